@@ -0,0 +1,153 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+
+/**
+ * Splits the accounts table of each shard into primary-key ranges for the
+ * batch jobs and runs one task per range on a fork/join pool.
+ */
+public final class AccountRanges {
+
+    private AccountRanges() {}
+
+    /**
+     * Task over one account range of one shard.
+     */
+    @FunctionalInterface
+    public interface ShardRangeTask<R> {
+        R apply(int shard, String lo, String hi);
+    }
+
+    /**
+     * {@link #bounds(int, int)} of the home shard.
+     */
+    public static List<String> bounds(int chunkSize) {
+        return bounds(0, chunkSize);
+    }
+
+    /**
+     * Lower bound of every account range on {@code shard}, found by seeking
+     * {@code chunkSize} rows ahead on the primary key index. Only one id per
+     * chunk is kept. Range {@code i} is {@code [bounds[i], bounds[i + 1])};
+     * the last one is open-ended.
+     */
+    public static List<String> bounds(int shard, int chunkSize) {
+        List<String> bounds = new ArrayList<>();
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            String lo = em.createQuery("SELECT MIN(a.accountId) FROM Account a", String.class)
+                    .getSingleResult();
+            TypedQuery<String> next = em.createQuery(
+                    "SELECT a.accountId FROM Account a WHERE a.accountId >= :lo ORDER BY a.accountId",
+                    String.class
+            );
+            next.setFirstResult(chunkSize);
+            next.setMaxResults(1);
+
+            while (lo != null) {
+                bounds.add(lo);
+                List<String> found = next.setParameter("lo", lo).getResultList();
+                lo = found.isEmpty() ? null : found.get(0);
+            }
+            return bounds;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * JPQL condition restricting {@code alias.accountId} to a range. Bind the
+     * parameters with {@link #bind}.
+     */
+    public static String condition(String alias, String hi) {
+        String condition = alias + ".accountId >= :lo";
+        if (hi != null) {
+            condition += " AND " + alias + ".accountId < :hi";
+        }
+        return condition;
+    }
+
+    public static <T extends Query> T bind(T query, String lo, String hi) {
+        query.setParameter("lo", lo);
+        if (hi != null) {
+            query.setParameter("hi", hi);
+        }
+        return query;
+    }
+
+    /**
+     * Runs {@code task(shard, lo, hi)} for every range of every shard, one
+     * shard after the other, and folds all the results with {@code merge}.
+     * @return {@code null} if there are no accounts at all
+     */
+    public static <R> R forEachShardRange(int chunkSize, int parallelism,
+                                          ShardRangeTask<R> task, BinaryOperator<R> merge) {
+        R result = null;
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            int n = shard;
+            R part = forEachRange(bounds(shard, chunkSize), parallelism, (lo, hi) -> task.apply(n, lo, hi), merge);
+            result = result == null ? part : part == null ? result : merge.apply(result, part);
+        }
+        return result;
+    }
+
+    /**
+     * Runs {@code task(lo, hi)} for every range on a pool of {@code parallelism}
+     * workers and folds the results with {@code merge}.
+     */
+    public static <R> R forEachRange(List<String> bounds, int parallelism,
+                                     BiFunction<String, String, R> task, BinaryOperator<R> merge) {
+        if (bounds.isEmpty()) {
+            return null;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new RangeTask<>(bounds, 0, bounds.size(), task, merge));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class RangeTask<R> extends RecursiveTask<R> {
+
+        private final List<String> bounds;
+        private final int from;
+        private final int to;
+        private final BiFunction<String, String, R> task;
+        private final BinaryOperator<R> merge;
+
+        RangeTask(List<String> bounds, int from, int to,
+                  BiFunction<String, String, R> task, BinaryOperator<R> merge) {
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.task = task;
+            this.merge = merge;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from == 1) {
+                String hi = to < bounds.size() ? bounds.get(to) : null;
+                return task.apply(bounds.get(from), hi);
+            }
+            int mid = (from + to) >>> 1;
+            RangeTask<R> left = new RangeTask<>(bounds, from, mid, task, merge);
+            RangeTask<R> right = new RangeTask<>(bounds, mid, to, task, merge);
+            left.fork();
+            R result = right.compute();
+            return merge.apply(result, left.join());
+        }
+    }
+}
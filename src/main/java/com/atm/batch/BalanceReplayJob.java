@@ -0,0 +1,348 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.AccountSnapshot;
+import com.atm.model.Transaction;
+import com.atm.model.TransactionArchive;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilds account balances from the {@link Transaction} log.
+ * <p>
+ * Every replay starts from the latest {@link AccountSnapshot} taken at or
+ * before the requested point in time and only applies the events after it,
+ * so the cost is proportional to recent activity rather than full history.
+ * {@link #snapshot()} extends each account's latest snapshot with its new
+ * events and should be run periodically.
+ * <p>
+ * Which events a snapshot covers is decided by transaction id alone: every
+ * row up to {@code lastTransactionId}, whatever its time. Its {@code asOf} is
+ * the latest time among them, so a snapshot taken at or before a point in
+ * time never holds an event after it, and the replay adds exactly the rows
+ * past the snapshot's id that are not after that point. Rows posted late
+ * with an earlier time, or early with a later one, are not skipped.
+ * <p>
+ * This relies on every row committing within the snapshot lag of getting
+ * its id. A snapshot only covers ids created at least that long ago, so
+ * an insert that takes longer to commit can land below a snapshot's
+ * {@code lastTransactionId} and be left out of every replay from it. The
+ * live paths commit in milliseconds; batch jobs that hold a transaction
+ * open for longer must not run while snapshots are taken, or the lag must
+ * be raised above their longest transaction.
+ * <p>
+ * Archived months are no longer in the table, so points in time up to the
+ * end of the latest archived month are refused, as is any replay whose
+ * snapshot does not cover all of the account's archived rows.
+ * <p>
+ * Transaction ids are per shard, so each shard is snapshotted up to its
+ * own last settled id, and an account is replayed on its own shard.
+ */
+public class BalanceReplayJob {
+
+    /**
+     * Events created less than this long ago are left out of snapshots, so a
+     * transaction that got its id early but commits within this long of it
+     * is not skipped; see the class comment for longer ones.
+     */
+    private static final Duration SNAPSHOT_LAG = Duration.ofMinutes(1);
+
+    private static final String SNAPSHOT_QUERY =
+            "SELECT a.accountId, COALESCE(s.balance, 0), COALESCE(s.lastTransactionId, 0), s.asOf, "
+            + "COALESCE(SUM(" + Transaction.signedAmountJpql("t") + "), 0), MAX(t.id), MAX(t.time) "
+            + "FROM Account a "
+            + "LEFT JOIN AccountSnapshot s ON s.account = a AND s.id = "
+            + "(SELECT MAX(s2.id) FROM AccountSnapshot s2 WHERE s2.account = a) "
+            + "LEFT JOIN Transaction t ON t.account = a "
+            + "AND t.id > COALESCE(s.lastTransactionId, 0) AND t.id <= :last "
+            + "WHERE %s "
+            + "GROUP BY a.accountId, s.balance, s.lastTransactionId, s.asOf";
+
+    private static final String REPLAY_QUERY =
+            "SELECT a.accountId, COALESCE(s.balance, 0), COALESCE(s.lastTransactionId, 0), s.asOf, "
+            + "COALESCE(SUM(" + Transaction.signedAmountJpql("t") + "), 0), MAX(t.id), MAX(t.time), "
+            + "(SELECT MAX(x.lastTransactionId) FROM ArchivedBalance x WHERE x.accountId = a.accountId) "
+            + "FROM Account a "
+            + "LEFT JOIN AccountSnapshot s ON s.account = a AND s.id = "
+            + "(SELECT MAX(s2.id) FROM AccountSnapshot s2 WHERE s2.account = a AND s2.asOf <= :at) "
+            + "LEFT JOIN Transaction t ON t.account = a "
+            + "AND t.id > COALESCE(s.lastTransactionId, 0) AND t.time <= :at "
+            + "WHERE %s "
+            + "GROUP BY a.accountId, s.balance, s.lastTransactionId, s.asOf";
+
+    private final int chunkSize;
+    private final int parallelism;
+    private final Duration snapshotLag;
+
+    public BalanceReplayJob() {
+        this(10_000, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BalanceReplayJob(int chunkSize, int parallelism) {
+        this(chunkSize, parallelism, SNAPSHOT_LAG);
+    }
+
+    public BalanceReplayJob(int chunkSize, int parallelism, Duration snapshotLag) {
+        if (chunkSize <= 0 || parallelism <= 0 || snapshotLag.isNegative()) {
+            throw new IllegalArgumentException("Invalid replay settings.");
+        }
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.snapshotLag = snapshotLag;
+    }
+
+    /* ================= SNAPSHOTS ================= */
+
+    /**
+     * Takes a new snapshot for every account with events since its last one.
+     * @return number of snapshots written
+     */
+    public long snapshot() {
+        LocalDateTime cutoff = LocalDateTime.now().minus(snapshotLag);
+        long written = 0;
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            int n = shard;
+            Long last = lastSettledId(shard, cutoff);
+            if (last == null) {
+                continue;
+            }
+            Long part = AccountRanges.forEachRange(
+                    AccountRanges.bounds(shard, chunkSize), parallelism,
+                    (lo, hi) -> snapshotRange(n, lo, hi, last), Long::sum
+            );
+            written += part == null ? 0 : part;
+        }
+        return written;
+    }
+
+    /**
+     * Highest transaction id on {@code shard} created at or before
+     * {@code cutoff}, found by walking the primary key down from the newest row.
+     */
+    private static Long lastSettledId(int shard, LocalDateTime cutoff) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            List<Long> ids = em.createQuery(
+                    "SELECT t.id FROM Transaction t WHERE t.createdAt <= :cutoff ORDER BY t.id DESC", Long.class)
+                    .setParameter("cutoff", cutoff)
+                    .setMaxResults(1)
+                    .getResultList();
+            return ids.isEmpty() ? null : ids.get(0);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Runs {@link #snapshot()} on a background thread every {@code interval}.
+     */
+    public ScheduledExecutorService startPeriodicSnapshots(Duration interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "balance-snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                System.out.println("Snapshots written: " + snapshot());
+            } catch (Exception e) {
+                System.out.println("Snapshot run failed: " + e.getMessage());
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    private long snapshotRange(int shard, String lo, String hi, long last) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+
+        try {
+            TypedQuery<Object[]> q = em.createQuery(
+                    String.format(SNAPSHOT_QUERY, AccountRanges.condition("a", hi)), Object[].class);
+            q.setParameter("last", last);
+
+            long written = 0;
+            for (Object[] row : AccountRanges.bind(q, lo, hi).getResultList()) {
+                if (row[5] == null) {
+                    continue; // no events since the last snapshot
+                }
+                LocalDateTime asOf = (LocalDateTime) row[6];
+                if (row[3] != null && ((LocalDateTime) row[3]).isAfter(asOf)) {
+                    asOf = (LocalDateTime) row[3];
+                }
+
+                AccountSnapshot snapshot = new AccountSnapshot();
+                snapshot.setAccount(em.getReference(Account.class, row[0]));
+                snapshot.setBalance(replayedBalance(row));
+                snapshot.setLastTransactionId(((Number) row[5]).longValue());
+                snapshot.setAsOf(asOf);
+                em.persist(snapshot);
+                written++;
+            }
+            em.getTransaction().commit();
+            return written;
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /* ================= REPLAY ================= */
+
+    /**
+     * Balance of one account as of {@code at}, for audit queries.
+     */
+    public double balanceAt(String accountId, LocalDateTime at) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        try {
+            List<Object[]> rows = replay(em, "a.accountId = :lo", accountId, null, at);
+            if (rows.isEmpty()) {
+                throw new IllegalArgumentException("Account not found: " + accountId);
+            }
+            return replayedBalance(rows.get(0));
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Sets one account's balance to its replayed value as of {@code at}.
+     */
+    public void restoreAccount(String accountId, LocalDateTime at) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        em.getTransaction().begin();
+
+        try {
+            List<Object[]> rows = replay(em, "a.accountId = :lo", accountId, null, at);
+            Account account = em.find(Account.class, accountId);
+            if (rows.isEmpty() || account == null) {
+                throw new IllegalArgumentException("Account not found: " + accountId);
+            }
+            account.setBalance(replayedBalance(rows.get(0)));
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Sets every account's balance to its replayed value as of {@code at},
+     * in parallel across account ranges.
+     * @return number of balances that changed
+     */
+    public long restoreAll(LocalDateTime at) {
+        Long changed = AccountRanges.forEachShardRange(
+                chunkSize, parallelism, (shard, lo, hi) -> restoreRange(shard, lo, hi, at), Long::sum
+        );
+        return changed == null ? 0 : changed;
+    }
+
+    private long restoreRange(int shard, String lo, String hi, LocalDateTime at) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+
+        try {
+            Map<String, Double> balances = new HashMap<>();
+            for (Object[] row : replayRange(em, lo, hi, at)) {
+                balances.put((String) row[0], replayedBalance(row));
+            }
+
+            TypedQuery<Account> q = em.createQuery(
+                    "SELECT a FROM Account a WHERE " + AccountRanges.condition("a", hi),
+                    Account.class
+            );
+            long changed = 0;
+            for (Account account : AccountRanges.bind(q, lo, hi).getResultList()) {
+                Double balance = balances.get(account.getAccountId());
+                // Sums in a different order differ in the last bits; only whole cents count
+                if (balance != null && Math.round(balance * 100) != Math.round(account.getBalance() * 100)) {
+                    account.setBalance(balance);
+                    changed++;
+                }
+            }
+            em.getTransaction().commit();
+            return changed;
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private List<Object[]> replayRange(EntityManager em, String lo, String hi, LocalDateTime at) {
+        return replay(em, AccountRanges.condition("a", hi), lo, hi, at);
+    }
+
+    private List<Object[]> replay(EntityManager em, String condition, String lo, String hi, LocalDateTime at) {
+        String latest = em.createNamedQuery(TransactionArchive.LATEST_MONTH, String.class).getSingleResult();
+        if (latest != null && at.isBefore(YearMonth.parse(latest).plusMonths(1).atDay(1).atStartOfDay())) {
+            throw new IllegalArgumentException("Months up to " + latest
+                    + " are archived; balances can only be replayed to a time after them.");
+        }
+
+        TypedQuery<Object[]> q = em.createQuery(String.format(REPLAY_QUERY, condition), Object[].class);
+        q.setParameter("at", at);
+        List<Object[]> rows = AccountRanges.bind(q, lo, hi).getResultList();
+        for (Object[] row : rows) {
+            // Archived rows past the snapshot are gone from the table
+            if (row[7] != null && ((Number) row[7]).longValue() > ((Number) row[2]).longValue()) {
+                throw new IllegalArgumentException("No snapshot of " + row[0] + " at or before " + at
+                        + " covers its archived rows; replay to a later time.");
+            }
+        }
+        return rows;
+    }
+
+    private static double replayedBalance(Object[] row) {
+        return ((Number) row[1]).doubleValue() + ((Number) row[4]).doubleValue();
+    }
+
+    /* ================= COMMAND LINE ================= */
+
+    /**
+     * Usage:
+     * <pre>
+     *   snapshot
+     *   balance &lt;accountId&gt; [yyyy-MM-ddTHH:mm]
+     *   restore &lt;accountId|ALL&gt; [yyyy-MM-ddTHH:mm]
+     * </pre>
+     */
+    public static void main(String[] args) {
+        BalanceReplayJob job = new BalanceReplayJob();
+        String command = args.length > 0 ? args[0] : "snapshot";
+        LocalDateTime at = args.length > 2 ? LocalDateTime.parse(args[2]) : LocalDateTime.now();
+
+        if (command.equals("snapshot")) {
+            System.out.println("Snapshots written: " + job.snapshot());
+        } else if (command.equals("balance") && args.length > 1) {
+            System.out.printf("Balance of %s at %s: %.2f\n", args[1], at, job.balanceAt(args[1], at));
+        } else if (command.equals("restore") && args.length > 1) {
+            if (args[1].equals("ALL")) {
+                System.out.println("Balances restored: " + job.restoreAll(at));
+            } else {
+                job.restoreAccount(args[1], at);
+                System.out.println("Balance restored for " + args[1]);
+            }
+        } else {
+            System.out.println("Usage: snapshot | balance <accountId> [time] | restore <accountId|ALL> [time]");
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+import com.atm.model.EodCheckpoint;
+import com.atm.model.Transaction;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Posts daily interest, and on the last day of a month the monthly fee, to
+ * every account as {@link Transaction} rows.
+ * <p>
+ * Each shard's accounts are processed in id ranges of {@code chunkSize} on a
+ * small worker pool. Each range is one short database transaction made of set-based
+ * statements: lock the range's rows, insert the interest and fee rows with
+ * INSERT ... SELECT, apply them to the balances with one UPDATE, and write
+ * an {@link EodCheckpoint} on the same shard. Live ATM operations on those accounts wait at
+ * most for one range, and {@code pause} spaces ranges out further.
+ * <p>
+ * A rerun for the same day skips checkpointed ranges, and every account
+ * records the last day posted to it, so nothing is posted twice even if the
+ * ranges have shifted since. Days are posted in order: a run is refused
+ * while an account still waits for an earlier day, or already has a later
+ * one.
+ * <p>
+ * Posted rows are stamped with the last second of the business day, so
+ * only days that have ended can be run. Otherwise the ledger would hold
+ * rows dated in the future, ahead of rows posted after them. Interest is
+ * paid on the balance at that second: the current balance less the rows
+ * dated after it, as the statements work out their opening balance.
+ */
+public class EndOfDayJob {
+
+    /**
+     * Totals of one run.
+     */
+    public static final class Result {
+        private long accounts;
+        private long interestPostings;
+        private long feePostings;
+        private int rangesSkipped;
+
+        Result merge(Result other) {
+            accounts += other.accounts;
+            interestPostings += other.interestPostings;
+            feePostings += other.feePostings;
+            rangesSkipped += other.rangesSkipped;
+            return this;
+        }
+
+        public long getAccounts() {
+            return accounts;
+        }
+
+        public long getInterestPostings() {
+            return interestPostings;
+        }
+
+        public long getFeePostings() {
+            return feePostings;
+        }
+
+        public int getRangesSkipped() {
+            return rangesSkipped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("accounts=%d interest=%d fees=%d skippedRanges=%d",
+                    accounts, interestPostings, feePostings, rangesSkipped);
+        }
+    }
+
+    private static final String NOT_POSTED = "(a.lastEodDate IS NULL OR a.lastEodDate < :date)";
+
+    private final double annualRate;
+    private final double monthlyFee;
+    private final int chunkSize;
+    private final int parallelism;
+    private final Duration pause;
+
+    public EndOfDayJob(double annualRate, double monthlyFee) {
+        this(annualRate, monthlyFee, 1_000, Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+                Duration.ZERO);
+    }
+
+    public EndOfDayJob(double annualRate, double monthlyFee, int chunkSize, int parallelism, Duration pause) {
+        if (annualRate < 0 || monthlyFee < 0 || chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid end-of-day settings.");
+        }
+        this.annualRate = annualRate;
+        this.monthlyFee = monthlyFee;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.pause = pause;
+    }
+
+    /**
+     * Posts interest and fees for {@code businessDate} to every account not
+     * yet posted for that day.
+     * @throws IllegalArgumentException if the day has not ended yet
+     * @throws IllegalStateException if an earlier day is not posted yet, or a later one already is
+     */
+    public Result run(LocalDate businessDate) {
+        if (!businessDate.isBefore(LocalDate.now())) {
+            throw new IllegalArgumentException("Business date " + businessDate + " has not ended yet.");
+        }
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            checkInOrder(shard, businessDate);
+        }
+        long start = System.currentTimeMillis();
+        Result result = AccountRanges.forEachShardRange(
+                chunkSize, parallelism, (shard, lo, hi) -> postRange(shard, businessDate, lo, hi), Result::merge
+        );
+        if (result == null) {
+            result = new Result();
+        }
+        System.out.printf("End of day %s: %s in %d ms\n", businessDate, result, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Refuses {@code businessDate} unless every account of the shard was
+     * last posted the day before, is new, or is being rerun for that day.
+     */
+    private static void checkInOrder(int shard, LocalDate businessDate) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            LocalDate latest = em.createQuery("SELECT MAX(a.lastEodDate) FROM Account a", LocalDate.class)
+                    .getSingleResult();
+            if (latest != null && latest.isAfter(businessDate)) {
+                throw new IllegalStateException("Business date " + businessDate + " comes before " + latest
+                        + ", which is already posted.");
+            }
+            LocalDate missed = em.createQuery("SELECT MIN(a.lastEodDate) FROM Account a "
+                    + "WHERE a.lastEodDate < :previous", LocalDate.class)
+                    .setParameter("previous", businessDate.minusDays(1))
+                    .getSingleResult();
+            if (missed != null) {
+                throw new IllegalStateException("Business date " + missed.plusDays(1)
+                        + " is not posted yet; post it before " + businessDate + ".");
+            }
+        } finally {
+            em.close();
+        }
+    }
+
+    /* ================= POSTING ================= */
+
+    private Result postRange(int shard, LocalDate businessDate, String lo, String hi) {
+        Result result = new Result();
+        String checkpointId = EodCheckpoint.idFor(businessDate, lo);
+        LocalDateTime stamp = businessDate.atTime(23, 59, 59);
+        LocalDateTime now = LocalDateTime.now();
+        String range = AccountRanges.condition("a", hi) + " AND " + NOT_POSTED;
+
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+
+        try {
+            if (em.find(EodCheckpoint.class, checkpointId) != null) {
+                em.getTransaction().rollback();
+                result.rangesSkipped = 1;
+                return result;
+            }
+
+            // Lock in id order, like the live paths, before reading any balance
+            AccountRanges.bind(em.createQuery(
+                    "SELECT a.accountId FROM Account a WHERE " + range + " ORDER BY a.accountId", String.class), lo, hi)
+                    .setParameter("date", businessDate)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .getResultList();
+
+            // Rates are inlined as literals: they are configuration, and some dialects mistype numeric parameters
+            String closing = "(a.balance - COALESCE((SELECT SUM(" + Transaction.signedAmountJpql("t") + ") "
+                    + "FROM Transaction t WHERE t.account.accountId = a.accountId AND t.time > :stamp), 0))";
+            String interest = "ROUND(" + closing + " * " + literal(annualRate / 365) + ", 2)";
+            result.interestPostings = AccountRanges.bind(em.createQuery(
+                    "INSERT INTO Transaction (account, amount, type, time, createdAt, updatedAt) "
+                    + "SELECT a, " + interest + ", '" + Transaction.INTEREST + "', :stamp, :now, :now "
+                    + "FROM Account a WHERE " + range + " AND " + interest + " > 0"), lo, hi)
+                    .setParameter("date", businessDate)
+                    .setParameter("stamp", stamp)
+                    .setParameter("now", now)
+                    .executeUpdate();
+
+            if (monthlyFee > 0 && businessDate.getDayOfMonth() == businessDate.lengthOfMonth()) {
+                // Accounts that cannot cover the fee are not charged
+                result.feePostings = AccountRanges.bind(em.createQuery(
+                        "INSERT INTO Transaction (account, amount, type, time, createdAt, updatedAt) "
+                        + "SELECT a, " + literal(monthlyFee) + ", '" + Transaction.FEE + "', :stamp, :now, :now "
+                        + "FROM Account a WHERE " + range + " AND a.balance >= " + literal(monthlyFee)), lo, hi)
+                        .setParameter("date", businessDate)
+                        .setParameter("stamp", stamp)
+                        .setParameter("now", now)
+                        .executeUpdate();
+            }
+
+            result.accounts = AccountRanges.bind(em.createQuery(
+                    "UPDATE Account a SET a.balance = a.balance + COALESCE((SELECT SUM("
+                    + Transaction.signedAmountJpql("t") + ") FROM Transaction t "
+                    + "WHERE t.account.accountId = a.accountId AND t.time = :stamp "
+                    + "AND t.type IN ('" + Transaction.INTEREST + "', '" + Transaction.FEE + "')), 0), "
+                    + "a.lastEodDate = :date, a.updatedAt = :now "
+                    + "WHERE " + range), lo, hi)
+                    .setParameter("date", businessDate)
+                    .setParameter("stamp", stamp)
+                    .setParameter("now", now)
+                    .executeUpdate();
+
+            EodCheckpoint checkpoint = new EodCheckpoint();
+            checkpoint.setId(checkpointId);
+            checkpoint.setBusinessDate(businessDate);
+            checkpoint.setRangeStart(lo);
+            checkpoint.setAccounts(result.accounts);
+            em.persist(checkpoint);
+
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+
+        if (!pause.isZero()) {
+            try {
+                Thread.sleep(pause.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return result;
+    }
+
+    private static String literal(double value) {
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * Usage: {@code [businessDate] [annualRate] [monthlyFee]}, defaulting to
+     * yesterday, 2% and $5.
+     */
+    public static void main(String[] args) {
+        LocalDate date = args.length > 0 ? LocalDate.parse(args[0]) : LocalDate.now().minusDays(1);
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 0.02;
+        double fee = args.length > 2 ? Double.parseDouble(args[2]) : 5.0;
+        new EndOfDayJob(rate, fee).run(date);
+    }
+}
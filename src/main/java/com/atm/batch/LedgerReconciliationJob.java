@@ -0,0 +1,122 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Transaction;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Nightly check of the two ledger invariants:
+ * <ul>
+ *   <li>every {@code Account.balance} equals the signed sum of its {@code Transaction} rows,
+ *       including the net of archived months</li>
+ *   <li>every {@code ATMState.cash} equals {@code 20*notes20 + 50*notes50 + 100*notes100}</li>
+ * </ul>
+ * Each shard's accounts are split into id ranges of {@code chunkSize} rows and
+ * checked on a fork/join pool; terminals live on the home shard. The per-account sums are computed by the database, so each
+ * worker only ever holds one chunk of aggregated rows in memory.
+ */
+public class LedgerReconciliationJob {
+
+    private static final double TOLERANCE = 0.005;
+
+    private static final String CHUNK_QUERY =
+            "SELECT a.accountId, a.balance, COALESCE(SUM(" + Transaction.signedAmountJpql("t") + "), 0), "
+            + "COALESCE((SELECT SUM(x.net) FROM ArchivedBalance x WHERE x.accountId = a.accountId), 0) "
+            + "FROM Account a LEFT JOIN Transaction t ON t.account = a "
+            + "WHERE %s "
+            + "GROUP BY a.accountId, a.balance";
+
+    private final int chunkSize;
+    private final int parallelism;
+    private final int maxDetails;
+
+    public LedgerReconciliationJob() {
+        this(10_000, Runtime.getRuntime().availableProcessors(), 1_000);
+    }
+
+    public LedgerReconciliationJob(int chunkSize, int parallelism, int maxDetails) {
+        if (chunkSize <= 0 || parallelism <= 0 || maxDetails < 0) {
+            throw new IllegalArgumentException("Invalid reconciliation settings.");
+        }
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.maxDetails = maxDetails;
+    }
+
+    public ReconciliationReport run() {
+        long start = System.currentTimeMillis();
+
+        ReconciliationReport report = new ReconciliationReport(maxDetails);
+        ReconciliationReport accounts = AccountRanges.forEachShardRange(
+                chunkSize, parallelism, this::checkAccounts, ReconciliationReport::merge
+        );
+        if (accounts != null) {
+            report.merge(accounts);
+        }
+
+        checkTerminals(report);
+        report.setElapsedMillis(System.currentTimeMillis() - start);
+        return report;
+    }
+
+    /* ================= CHECKS ================= */
+
+    private ReconciliationReport checkAccounts(int shard, String lo, String hi) {
+        ReconciliationReport report = new ReconciliationReport(maxDetails);
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            TypedQuery<Object[]> q = em.createQuery(
+                    String.format(CHUNK_QUERY, AccountRanges.condition("a", hi)),
+                    Object[].class
+            );
+            List<Object[]> rows = AccountRanges.bind(q, lo, hi).getResultList();
+
+            for (Object[] row : rows) {
+                String accountId = (String) row[0];
+                double balance = ((Number) row[1]).doubleValue();
+                double ledgerNet = ((Number) row[2]).doubleValue() + ((Number) row[3]).doubleValue();
+
+                report.accountChecked();
+                if (Math.abs(balance - ledgerNet) > TOLERANCE) {
+                    report.accountMismatch(accountId, balance, ledgerNet);
+                }
+            }
+            return report;
+        } finally {
+            em.close();
+        }
+    }
+
+    private void checkTerminals(ReconciliationReport report) {
+        EntityManager em = JpaManager.getEntityManager();
+        try (Stream<Object[]> rows = em.createQuery(
+                "SELECT s.id, s.cash, s.notes20, s.notes50, s.notes100 FROM ATMState s",
+                Object[].class
+        ).getResultStream()) {
+            rows.forEach(row -> {
+                double cash = ((Number) row[1]).doubleValue();
+                double notesTotal = ((Number) row[2]).intValue() * 20.0
+                        + ((Number) row[3]).intValue() * 50.0
+                        + ((Number) row[4]).intValue() * 100.0;
+
+                report.terminalChecked();
+                if (Math.abs(cash - notesTotal) > TOLERANCE) {
+                    report.cashMismatch((Long) row[0], cash, notesTotal);
+                }
+            });
+        } finally {
+            em.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        ReconciliationReport report = new LedgerReconciliationJob().run();
+        report.print();
+        System.exit(report.isClean() ? 0 : 1);
+    }
+}
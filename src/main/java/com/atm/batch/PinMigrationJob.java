@@ -0,0 +1,123 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.service.PinHasher;
+import com.atm.service.PinVerifier;
+
+import jakarta.persistence.EntityManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replaces the plain-text PINs left in {@code accounts} with salted hashes,
+ * on every shard.
+ * <p>
+ * Accounts are read in id order, {@code chunkSize} at a time, without
+ * locks. Their hashes are computed in parallel outside any transaction,
+ * then written in one short transaction per chunk. Each update only applies
+ * if the stored PIN is still the one that was read, so a PIN upgraded by a
+ * login or changed meanwhile is left alone. Logins keep working throughout,
+ * because they accept both forms. The job can be stopped and rerun at any
+ * point.
+ */
+public class PinMigrationJob {
+
+    private final PinHasher hasher;
+    private final int chunkSize;
+    private final int parallelism;
+
+    public PinMigrationJob(PinHasher hasher, int chunkSize, int parallelism) {
+        this.hasher = hasher;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return how many PINs were hashed
+     */
+    public long run() {
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        try {
+            long migrated = 0;
+            for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+                migrated += migrateShard(shard, workers);
+            }
+            return migrated;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private long migrateShard(int shard, ExecutorService workers) {
+        long migrated = 0;
+        String after = "";
+        while (true) {
+            List<Object[]> chunk = legacyPinsAfter(shard, after);
+            if (chunk.isEmpty()) {
+                return migrated;
+            }
+            after = (String) chunk.get(chunk.size() - 1)[0];
+
+            List<Future<String>> hashes = new ArrayList<>(chunk.size());
+            for (Object[] row : chunk) {
+                String pin = (String) row[1];
+                hashes.add(workers.submit(() -> hasher.hash(pin)));
+            }
+            migrated += write(shard, chunk, hashes);
+            System.out.printf("Shard %d: %d PINs hashed, up to account %s\n", shard, migrated, after);
+        }
+    }
+
+    private List<Object[]> legacyPinsAfter(int shard, String after) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            return em.createNamedQuery(Account.LEGACY_PINS_AFTER, Object[].class)
+                    .setParameter("after", after)
+                    .setMaxResults(chunkSize)
+                    .getResultList();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static int write(int shard, List<Object[]> chunk, List<Future<String>> hashes) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+        try {
+            int updated = 0;
+            for (int i = 0; i < chunk.size(); i++) {
+                updated += em.createNamedQuery(Account.REPLACE_PIN)
+                        .setParameter("hash", hashes.get(i).get())
+                        .setParameter("id", chunk.get(i)[0])
+                        .setParameter("old", chunk.get(i)[1])
+                        .executeUpdate();
+            }
+            em.getTransaction().commit();
+            return updated;
+        } catch (InterruptedException e) {
+            em.getTransaction().rollback();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("PIN migration interrupted", e);
+        } catch (ExecutionException | RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e instanceof RuntimeException r ? r : new IllegalStateException(e.getCause());
+        } finally {
+            em.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        int chunkSize = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        PinMigrationJob job = new PinMigrationJob(PinVerifier.fromClasspath().getHasher(), chunkSize, parallelism);
+        System.out.println("PINs hashed: " + job.run());
+    }
+}
@@ -0,0 +1,118 @@
+package com.atm.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a ledger reconciliation run. Only the first {@code maxDetails}
+ * discrepancies are kept in detail; the counters always cover the whole run.
+ */
+public class ReconciliationReport {
+
+    private final int maxDetails;
+    private final List<String> discrepancies = new ArrayList<>();
+
+    private long accountsChecked;
+    private long terminalsChecked;
+    private long accountDiscrepancies;
+    private long cashDiscrepancies;
+    private long elapsedMillis;
+
+    public ReconciliationReport(int maxDetails) {
+        this.maxDetails = maxDetails;
+    }
+
+    // ===== RECORDING =====
+
+    public void accountChecked() {
+        accountsChecked++;
+    }
+
+    public void terminalChecked() {
+        terminalsChecked++;
+    }
+
+    public void accountMismatch(String accountId, double balance, double ledgerNet) {
+        accountDiscrepancies++;
+        addDetail(String.format("ACCOUNT %s balance=%.2f ledger=%.2f diff=%.2f",
+                accountId, balance, ledgerNet, balance - ledgerNet));
+    }
+
+    public void cashMismatch(Long terminalId, double cash, double notesTotal) {
+        cashDiscrepancies++;
+        addDetail(String.format("ATM %d cash=%.2f notes=%.2f diff=%.2f",
+                terminalId, cash, notesTotal, cash - notesTotal));
+    }
+
+    /**
+     * Folds another partial report into this one.
+     */
+    public ReconciliationReport merge(ReconciliationReport other) {
+        accountsChecked += other.accountsChecked;
+        terminalsChecked += other.terminalsChecked;
+        accountDiscrepancies += other.accountDiscrepancies;
+        cashDiscrepancies += other.cashDiscrepancies;
+        for (String detail : other.discrepancies) {
+            addDetail(detail);
+        }
+        return this;
+    }
+
+    private void addDetail(String detail) {
+        if (discrepancies.size() < maxDetails) {
+            discrepancies.add(detail);
+        }
+    }
+
+    // ===== GETTERS =====
+
+    public List<String> getDiscrepancies() {
+        return Collections.unmodifiableList(discrepancies);
+    }
+
+    public long getAccountsChecked() {
+        return accountsChecked;
+    }
+
+    public long getTerminalsChecked() {
+        return terminalsChecked;
+    }
+
+    public long getAccountDiscrepancies() {
+        return accountDiscrepancies;
+    }
+
+    public long getCashDiscrepancies() {
+        return cashDiscrepancies;
+    }
+
+    public boolean isClean() {
+        return accountDiscrepancies == 0 && cashDiscrepancies == 0;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public void print() {
+        System.out.println("\n===== RECONCILIATION REPORT =====");
+        System.out.printf("Accounts checked: %d\n", accountsChecked);
+        System.out.printf("Terminals checked: %d\n", terminalsChecked);
+        System.out.printf("Account discrepancies: %d\n", accountDiscrepancies);
+        System.out.printf("Cash discrepancies: %d\n", cashDiscrepancies);
+        for (String detail : discrepancies) {
+            System.out.println("  " + detail);
+        }
+        long total = accountDiscrepancies + cashDiscrepancies;
+        if (total > discrepancies.size()) {
+            System.out.printf("  ... %d more not shown\n", total - discrepancies.size());
+        }
+        System.out.printf("Elapsed: %d ms\n", elapsedMillis);
+        System.out.println("=================================\n");
+    }
+}
@@ -0,0 +1,345 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Transaction;
+import com.atm.model.TransactionArchive;
+import com.atm.service.ChannelTextWriter;
+
+import jakarta.persistence.EntityManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Renders monthly account statements from the {@link Transaction} ledger
+ * into text files, one file per account range of each shard.
+ * <p>
+ * Ranges are rendered in parallel. For each range the accounts and their
+ * month's rows are streamed in account order and merged, so memory use is
+ * bounded by the database fetch size and one output buffer per worker,
+ * whatever the number of accounts. Every worker reuses its text and byte
+ * buffers across statements and writes through a {@link FileChannel}.
+ * Both streams of a range are read in one consistent read, so every
+ * opening balance plus the rows shown adds up to the closing balance even
+ * while ATMs keep posting.
+ * <p>
+ * Range bounds of each shard are saved on the first run for a month and every range file
+ * appears atomically once complete, so an interrupted run resumes by
+ * rendering only the missing files.
+ */
+public class StatementJob {
+
+    /**
+     * Totals of one run.
+     */
+    public static final class Result {
+        private long statements;
+        private long transactions;
+        private int rangesSkipped;
+
+        Result merge(Result other) {
+            statements += other.statements;
+            transactions += other.transactions;
+            rangesSkipped += other.rangesSkipped;
+            return this;
+        }
+
+        public long getStatements() {
+            return statements;
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public int getRangesSkipped() {
+            return rangesSkipped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("statements=%d transactions=%d skippedRanges=%d",
+                    statements, transactions, rangesSkipped);
+        }
+    }
+
+    private static final String RANGES_FILE = "ranges.txt";
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final int FETCH_SIZE = 1_000;
+    private static final int LINE_WIDTH = 64;
+
+    // One per worker thread, reused for every statement it renders
+    private static final ThreadLocal<Renderer> RENDERER = ThreadLocal.withInitial(Renderer::new);
+
+    private final Path outputDir;
+    private final int chunkSize;
+    private final int parallelism;
+
+    public StatementJob() {
+        this(Paths.get("statements"), 5_000, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StatementJob(Path outputDir, int chunkSize, int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid statement settings.");
+        }
+        this.outputDir = outputDir;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Writes the statements of {@code month} for every account, skipping
+     * range files already written by an earlier run.
+     */
+    public Result run(YearMonth month) {
+        long start = System.currentTimeMillis();
+        if (isArchived(month)) {
+            throw new IllegalStateException("Month " + month + " is archived; statements need its rows in the hot table.");
+        }
+
+        Path dir = outputDir.resolve(month.toString());
+        LocalDateTime from = month.atDay(1).atStartOfDay();
+        LocalDateTime to = month.plusMonths(1).atDay(1).atStartOfDay();
+
+        Result result = new Result();
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            int n = shard;
+            // Account ids are unique across shards, so range files named after them cannot collide
+            Result part = AccountRanges.forEachRange(
+                    bounds(dir, shard), parallelism,
+                    (lo, hi) -> renderRange(n, dir, month, from, to, lo, hi), Result::merge
+            );
+            if (part != null) {
+                result.merge(part);
+            }
+        }
+        System.out.printf("Statements %s: %s in %d ms\n", month, result, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Range bounds of {@code shard} for this month's run: read back when
+     * resuming, so the range files already written still line up with the ranges.
+     */
+    private List<String> bounds(Path dir, int shard) {
+        String name = shard == 0 ? RANGES_FILE : "ranges-" + shard + ".txt";
+        Path file = dir.resolve(name);
+        try {
+            if (Files.exists(file)) {
+                return Files.readAllLines(file, StandardCharsets.UTF_8);
+            }
+            Files.createDirectories(dir);
+            List<String> bounds = AccountRanges.bounds(shard, chunkSize);
+            Path tmp = dir.resolve(name + ".tmp");
+            Files.write(tmp, bounds, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return bounds;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* ================= RENDERING ================= */
+
+    private Result renderRange(int shard, Path dir, YearMonth month, LocalDateTime from, LocalDateTime to, String lo, String hi) {
+        Result result = new Result();
+        Path file = dir.resolve("statements-" + lo + ".txt");
+        if (Files.exists(file)) {
+            result.rangesSkipped = 1;
+            return result;
+        }
+
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        Renderer renderer = RENDERER.get();
+        EntityManager em = JpaManager.getEntityManager(shard);
+        // One snapshot for the opening balances and the rows; also keeps both streams on one connection
+        JpaManager.beginConsistentRead(em);
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Stream<Object[]> accounts = AccountRanges.bind(em.createQuery(
+                     "SELECT a.accountId, a.cardNumber, a.balance - COALESCE((SELECT SUM("
+                     + Transaction.signedAmountJpql("t") + ") FROM Transaction t "
+                     + "WHERE t.account.accountId = a.accountId AND t.time >= :from), 0) "
+                     + "FROM Account a WHERE " + AccountRanges.condition("a", hi) + " ORDER BY a.accountId",
+                     Object[].class), lo, hi)
+                     .setParameter("from", from)
+                     .setHint("org.hibernate.fetchSize", FETCH_SIZE)
+                     .getResultStream();
+             Stream<Object[]> rows = AccountRanges.bind(em.createQuery(
+                     "SELECT t.account.accountId, t.time, t.type, t.amount FROM Transaction t "
+                     + "WHERE " + AccountRanges.condition("t.account", hi)
+                     + " AND t.time >= :from AND t.time < :to ORDER BY t.account.accountId, t.id",
+                     Object[].class), lo, hi)
+                     .setParameter("from", from)
+                     .setParameter("to", to)
+                     .setHint("org.hibernate.fetchSize", FETCH_SIZE)
+                     .getResultStream()) {
+
+            renderer.start(channel);
+            Iterator<Object[]> rowIt = rows.iterator();
+            Object[] row = rowIt.hasNext() ? rowIt.next() : null;
+
+            Iterator<Object[]> accountIt = accounts.iterator();
+            while (accountIt.hasNext()) {
+                Object[] account = accountIt.next();
+                String accountId = (String) account[0];
+                double balance = ((Number) account[2]).doubleValue();
+
+                renderer.header(month, accountId, (String) account[1], balance);
+                // Both streams are in account order; rows of accounts outside the list cannot exist (foreign key)
+                while (row != null && accountId.equals(row[0])) {
+                    String type = (String) row[2];
+                    double signed = Transaction.signedAmount(type, (Double) row[3]);
+                    balance += signed;
+                    renderer.line((LocalDateTime) row[1], type, signed, balance);
+                    result.transactions++;
+                    row = rowIt.hasNext() ? rowIt.next() : null;
+                }
+                renderer.footer(balance);
+                result.statements++;
+            }
+            renderer.finish();
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            JpaManager.endConsistentRead(em);
+            em.close();
+        }
+
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Formats statements through a reusable {@link ChannelTextWriter}.
+     * Amounts are formatted from cents by hand rather than with
+     * {@link String#format}, which dominates the cost at this volume.
+     */
+    private static final class Renderer {
+
+        private final ChannelTextWriter out = new ChannelTextWriter(8 * 1024, 64 * 1024);
+        private final StringBuilder text = out.text();
+
+        void start(FileChannel channel) {
+            out.start(channel);
+        }
+
+        void header(YearMonth month, String accountId, String cardNumber, double opening) {
+            text.append("STATEMENT ").append(month).append("  ACCOUNT ").append(accountId)
+                    .append("  CARD ****").append(cardNumber, Math.max(0, cardNumber.length() - 4), cardNumber.length())
+                    .append('\n');
+            text.append("Opening balance");
+            amount(opening, LINE_WIDTH - "Opening balance".length(), false);
+            text.append('\n');
+        }
+
+        void line(LocalDateTime time, String type, double signed, double balance) throws IOException {
+            int start = text.length();
+            TIME.formatTo(time, text);
+            text.append("  ").append(type);
+            pad(start + 36);
+            amount(signed, 14, true);
+            amount(balance, LINE_WIDTH - (text.length() - start), false);
+            text.append('\n');
+            if (text.length() >= 4 * 1024) {
+                out.drain(false);
+            }
+        }
+
+        void footer(double closing) throws IOException {
+            text.append("Closing balance");
+            amount(closing, LINE_WIDTH - "Closing balance".length(), false);
+            text.append("\n\f\n");
+            out.drain(false);
+        }
+
+        void finish() throws IOException {
+            out.drain(true);
+        }
+
+        /**
+         * Appends {@code value} right-aligned in {@code width} characters.
+         */
+        private void amount(double value, int width, boolean signed) {
+            long cents = Math.round(value * 100);
+            boolean negative = cents < 0;
+            cents = Math.abs(cents);
+            long whole = cents / 100;
+            int fraction = (int) (cents % 100);
+
+            int digits = 1;
+            for (long w = whole; w >= 10; w /= 10) {
+                digits++;
+            }
+            int length = digits + 3 + (negative || signed ? 1 : 0);
+            for (int i = length; i < width; i++) {
+                text.append(' ');
+            }
+            if (negative) {
+                text.append('-');
+            } else if (signed) {
+                text.append('+');
+            }
+            text.append(whole).append('.');
+            if (fraction < 10) {
+                text.append('0');
+            }
+            text.append(fraction);
+        }
+
+        private void pad(int column) {
+            while (text.length() < column) {
+                text.append(' ');
+            }
+        }
+    }
+
+    /**
+     * Whether {@code month} has been archived on any shard.
+     */
+    private static boolean isArchived(YearMonth month) {
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            EntityManager em = JpaManager.getEntityManager(shard);
+            try {
+                if (em.find(TransactionArchive.class, month.toString()) != null) {
+                    return true;
+                }
+            } finally {
+                em.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Usage: {@code [month] [outputDir]}, defaulting to last month and
+     * {@code statements/}.
+     */
+    public static void main(String[] args) {
+        YearMonth month = args.length > 0 ? YearMonth.parse(args[0]) : YearMonth.now().minusMonths(1);
+        StatementJob job = args.length > 1
+                ? new StatementJob(Paths.get(args[1]), 5_000, Runtime.getRuntime().availableProcessors())
+                : new StatementJob();
+        job.run(month);
+    }
+}
@@ -0,0 +1,399 @@
+package com.atm.batch;
+
+import com.atm.db.DatabaseGuard;
+import com.atm.model.Account;
+import com.atm.service.ATMService;
+import com.atm.service.AdmissionController;
+import com.atm.service.TrafficTrace;
+import com.atm.service.TrafficTrace.Call;
+import com.atm.service.TrafficTrace.Op;
+import com.atm.service.TrafficTrace.Outcome;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-drives a {@link TrafficTrace} against an {@link ATMService}, e.g. a
+ * candidate build on a copy of the production database.
+ * <p>
+ * Calls are issued at their recorded offsets divided by {@code speed}
+ * ({@code 1} for real time, {@code 0} for as fast as possible). Each
+ * account's calls go to the same lane and run there one after another in
+ * the recorded order, while different accounts run in parallel on
+ * {@code lanes} threads; technician calls and receipts share a lane of
+ * their own. A lane that falls behind shows up as dispatch lag in the
+ * report, not as a change of order.
+ * <p>
+ * The trace holds no PINs. Logins are replayed with {@code pin}, for a
+ * copy whose PINs were reset to one known value, or skipped when it is
+ * {@code null}; later calls then load the account directly.
+ */
+public class TrafficReplayer {
+
+    private static final Scheduled END = new Scheduled(null, 0);
+    private static final String TERMINAL = "";
+
+    private final ATMService service;
+    private final double speed;
+    private final int laneCount;
+    private final String pin;
+
+    public TrafficReplayer(ATMService service, double speed, int lanes, String pin) {
+        if (speed < 0 || lanes < 1) {
+            throw new IllegalArgumentException("Invalid replay settings.");
+        }
+        this.service = service;
+        this.speed = speed;
+        this.laneCount = lanes;
+        this.pin = pin;
+    }
+
+    private static final class Scheduled {
+        final Call call;
+        final long dueNanos;
+
+        Scheduled(Call call, long dueNanos) {
+            this.call = call;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    /**
+     * Latency samples of one operation, kept per lane and merged at the end.
+     */
+    private static final class Stats {
+        long[] recorded = new long[64];
+        long[] replayed = new long[64];
+        int count;
+        int mismatches;
+        int errors;
+        int busy;
+        int skipped;
+
+        void add(long recordedMicros, long replayedMicros) {
+            if (count == recorded.length) {
+                recorded = Arrays.copyOf(recorded, count * 2);
+                replayed = Arrays.copyOf(replayed, count * 2);
+            }
+            recorded[count] = recordedMicros;
+            replayed[count] = replayedMicros;
+            count++;
+        }
+
+        void merge(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.recorded[i], other.replayed[i]);
+            }
+            mismatches += other.mismatches;
+            errors += other.errors;
+            busy += other.busy;
+            skipped += other.skipped;
+        }
+    }
+
+    /* ================= REPLAY ================= */
+
+    public Report replay(Path trace) throws IOException, InterruptedException {
+        Lane[] lanes = new Lane[laneCount];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+            lanes[i].thread = new Thread(lanes[i], "replay-lane-" + (i + 1));
+            lanes[i].thread.setDaemon(true);
+            lanes[i].thread.start();
+        }
+
+        long dropped = 0;
+        long first = -1;
+        long last = 0;
+        long origin = System.nanoTime();
+        try (TrafficTrace.Reader reader = new TrafficTrace.Reader(trace)) {
+            Call call;
+            while ((call = reader.next()) != null) {
+                if (call.getOp() == Op.GAP) {
+                    dropped += call.getNumber(0);
+                    continue;
+                }
+                if (first < 0) {
+                    first = call.getStartMicros();
+                }
+                last = Math.max(last, call.getStartMicros());
+                long due = System.nanoTime();
+                if (speed > 0) {
+                    // Calls are stored as they finished, so one may already be due
+                    due = origin + (long) ((call.getStartMicros() - first) * 1_000 / speed);
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                lanes[Math.floorMod(laneOf(call).hashCode(), lanes.length)].queue.put(new Scheduled(call, due));
+            }
+        } finally {
+            for (Lane lane : lanes) {
+                lane.queue.put(END);
+            }
+            for (Lane lane : lanes) {
+                lane.thread.join();
+            }
+        }
+
+        Map<Op, Stats> stats = new EnumMap<>(Op.class);
+        long[] lag = new long[0];
+        for (Lane lane : lanes) {
+            lane.stats.forEach((op, s) -> stats.computeIfAbsent(op, o -> new Stats()).merge(s));
+            long[] merged = Arrays.copyOf(lag, lag.length + lane.lagCount);
+            System.arraycopy(lane.lag, 0, merged, lag.length, lane.lagCount);
+            lag = merged;
+        }
+        return new Report(stats, lag, dropped, first < 0 ? 0 : last - first, System.nanoTime() - origin);
+    }
+
+    private static String laneOf(Call call) {
+        switch (call.getOp()) {
+            case LOGIN:
+                return call.getAccount() != null ? call.getAccount() : call.getCard();
+            case ACCOUNT:
+            case DEPOSIT:
+            case WITHDRAW:
+            case TRANSFER:
+            case HISTORY:
+                return call.getAccount();
+            default:
+                return TERMINAL;
+        }
+    }
+
+    private final class Lane implements Runnable {
+        final BlockingQueue<Scheduled> queue = new ArrayBlockingQueue<>(1024);
+        final Map<String, Account> accounts = new HashMap<>();
+        final Map<Op, Stats> stats = new EnumMap<>(Op.class);
+        long[] lag = new long[256];
+        int lagCount;
+        Thread thread;
+
+        @Override
+        public void run() {
+            while (true) {
+                Scheduled next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (next == END) {
+                    return;
+                }
+                Call call = next.call;
+                Stats s = stats.computeIfAbsent(call.getOp(), op -> new Stats());
+
+                // Loading an account the recording had in its session is not part of the call
+                Account account = null;
+                if (needsAccount(call.getOp())) {
+                    account = account(call.getAccount());
+                    if (account == null) {
+                        s.skipped++;
+                        continue;
+                    }
+                } else if (call.getOp() == Op.LOGIN && pin == null) {
+                    s.skipped++;
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                if (lagCount == lag.length) {
+                    lag = Arrays.copyOf(lag, lagCount * 2);
+                }
+                lag[lagCount++] = Math.max(0, start - next.dueNanos) / 1_000;
+                Outcome outcome;
+                try {
+                    outcome = execute(call, account);
+                } catch (AdmissionController.RejectedException e) {
+                    outcome = Outcome.BUSY;
+                } catch (DatabaseGuard.OpenException e) {
+                    outcome = Outcome.UNAVAILABLE;
+                } catch (RuntimeException e) {
+                    outcome = Outcome.ERROR;
+                }
+                s.add(call.getDurationMicros(), (System.nanoTime() - start) / 1_000);
+                if (outcome == Outcome.ERROR) {
+                    s.errors++;
+                } else if (outcome == Outcome.BUSY) {
+                    s.busy++;
+                }
+                if (outcome != call.getOutcome()) {
+                    s.mismatches++;
+                }
+            }
+        }
+
+        private Account account(String accountId) {
+            Account account = accounts.get(accountId);
+            if (account == null) {
+                account = service.getAccountDetails(accountId);
+                if (account != null) {
+                    accounts.put(accountId, account);
+                }
+            }
+            return account;
+        }
+
+        private Outcome execute(Call call, Account account) {
+            switch (call.getOp()) {
+                case LOGIN: {
+                    Account opened = service.login(call.getCard(), pin);
+                    if (opened == null) {
+                        return Outcome.DECLINED;
+                    }
+                    accounts.put(opened.getAccountId(), opened);
+                    return Outcome.OK;
+                }
+                case ACCOUNT:
+                    return service.getAccountDetails(call.getAccount()) != null ? Outcome.OK : Outcome.DECLINED;
+                case DEPOSIT:
+                    return outcome(service.deposit(account, call.getAmount(), call.getText()));
+                case WITHDRAW:
+                    return outcome(service.withdraw(account, call.getAmount(), call.getText()));
+                case TRANSFER:
+                    return outcome(service.transfer(account, call.getCard(), call.getAmount(), call.getText()));
+                case HISTORY:
+                    service.getHistory(call.getAccount(), TrafficTrace.decodeTime(call.getNumber(0)),
+                            TrafficTrace.decodeTime(call.getNumber(1)));
+                    return Outcome.OK;
+                case RECEIPT:
+                    return outcome(service.printReceipt(call.getText(), call.getAmount(), call.getBalance()));
+                case VIEW_STATUS:
+                    service.viewATMStatus();
+                    return Outcome.OK;
+                case STATUS:
+                    service.getATMStatus();
+                    return Outcome.OK;
+                case REFILL_PAPER:
+                    return outcome(service.refillPaper((int) call.getNumber(0)));
+                case REFILL_INK:
+                    return outcome(service.refillInk((int) call.getNumber(0)));
+                case ADD_CASH:
+                    return outcome(service.addCashToATM((int) call.getNumber(0), (int) call.getNumber(1),
+                            (int) call.getNumber(2)));
+                case COLLECT_CASH:
+                    return outcome(service.collectCash((int) call.getNumber(0), (int) call.getNumber(1),
+                            (int) call.getNumber(2)));
+                case FIRMWARE:
+                    return outcome(service.updateFirmware(call.getText()));
+                default:
+                    throw new IllegalStateException("Cannot replay " + call.getOp());
+            }
+        }
+    }
+
+    private static boolean needsAccount(Op op) {
+        return op == Op.DEPOSIT || op == Op.WITHDRAW || op == Op.TRANSFER;
+    }
+
+    private static Outcome outcome(boolean ok) {
+        return ok ? Outcome.OK : Outcome.DECLINED;
+    }
+
+    /* ================= REPORT ================= */
+
+    /**
+     * What a replay did, per operation and overall.
+     */
+    public static final class Report {
+        private final Map<Op, Stats> stats;
+        private final long[] lagMicros;
+        private final long dropped;
+        private final long traceMicros;
+        private final long elapsedNanos;
+
+        private Report(Map<Op, Stats> stats, long[] lagMicros, long dropped, long traceMicros, long elapsedNanos) {
+            this.stats = stats;
+            this.lagMicros = lagMicros;
+            this.dropped = dropped;
+            this.traceMicros = traceMicros;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** Calls replayed, not counting skipped ones. */
+        public int getCalls() {
+            return stats.values().stream().mapToInt(s -> s.count).sum();
+        }
+
+        /** Calls whose outcome differed from the recorded one. */
+        public int getMismatches() {
+            return stats.values().stream().mapToInt(s -> s.mismatches).sum();
+        }
+
+        public int getSkipped() {
+            return stats.values().stream().mapToInt(s -> s.skipped).sum();
+        }
+
+        /** Calls the recorder dropped, which the trace could not replay. */
+        public long getDropped() {
+            return dropped;
+        }
+
+        public void print(PrintStream out) {
+            out.println("operation       calls  mismatch  busy  skipped  rec p50  rec p99  p50 ms  p99 ms  max ms");
+            stats.forEach((op, s) -> {
+                long[] recorded = Arrays.copyOf(s.recorded, s.count);
+                long[] replayed = Arrays.copyOf(s.replayed, s.count);
+                Arrays.sort(recorded);
+                Arrays.sort(replayed);
+                out.printf("%-14s %6d  %8d  %4d  %7d  %7.1f  %7.1f  %6.1f  %6.1f  %6.1f%n", op, s.count,
+                        s.mismatches, s.busy, s.skipped, percentile(recorded, 0.50), percentile(recorded, 0.99),
+                        percentile(replayed, 0.50), percentile(replayed, 0.99), percentile(replayed, 1.0));
+            });
+            long[] lag = lagMicros.clone();
+            Arrays.sort(lag);
+            out.printf("Dispatch lag: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    percentile(lag, 0.50), percentile(lag, 0.99), percentile(lag, 1.0));
+            out.printf("Replayed %d calls in %.1f s; the trace spans %.1f s%n",
+                    getCalls(), elapsedNanos / 1e9, traceMicros / 1e6);
+            if (dropped > 0) {
+                out.printf("The recorder dropped %d calls, which are missing from this replay%n", dropped);
+            }
+        }
+
+        private static double percentile(long[] sortedMicros, double p) {
+            if (sortedMicros.length == 0) {
+                return 0;
+            }
+            return sortedMicros[(int) Math.min(sortedMicros.length - 1, p * sortedMicros.length)] / 1e3;
+        }
+    }
+
+    /**
+     * {@code TrafficReplayer <trace> [speed] [lanes] [pin]}: speed 1 replays
+     * in real time, 0 as fast as possible.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: TrafficReplayer <trace> [speed] [lanes] [pin]");
+            return;
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        int lanes = args.length > 2 ? Integer.parseInt(args[2]) : 4 * Runtime.getRuntime().availableProcessors();
+        String pin = args.length > 3 ? args[3] : null;
+
+        TrafficReplayer replayer = new TrafficReplayer(new ATMService(), speed, lanes, pin);
+        PrintStream out = System.out;
+        // Keep the service's own messages out of the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Report report;
+        try {
+            report = replayer.replay(Path.of(args[0]));
+        } finally {
+            System.setOut(out);
+        }
+        report.print(out);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,415 @@
+package com.atm.batch;
+
+import com.atm.db.JpaManager;
+import com.atm.db.TransactionPartitions;
+import com.atm.model.Account;
+import com.atm.model.Transaction;
+import com.atm.model.TransactionArchive;
+
+import jakarta.persistence.EntityManager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves closed months of {@link Transaction} rows out of the hot table.
+ * <p>
+ * Each month older than {@code hotMonths} is written to a gzip file of
+ * tab-separated rows, its per-account net is kept in {@code archived_balances},
+ * and then exactly the exported rows are deleted and, on a partitioned
+ * table, the emptied partition dropped. A row the export did not see, such
+ * as a late backdated posting, fails the month instead of being deleted
+ * unarchived. Snapshots are brought up to date first, so balance replays
+ * never need the archived rows.
+ * <p>
+ * The file is one gzip member per bucket of accounts, a bucket being the
+ * account id's hash modulo the number of buckets, with a {@code .idx} file
+ * of each member's offset and length next to it. Reading one account's rows
+ * decompresses only its bucket. The whole file is still one valid gzip
+ * stream of every row.
+ * <p>
+ * Every shard's table is archived on its own, the files of shards other
+ * than the home shard going to a {@code shard-<n>} subdirectory.
+ */
+public class TransactionArchiveJob {
+
+    private static final int MAX_BUCKETS = 256;
+
+    private final Path archiveDir;
+    private final int hotMonths;
+    // A month gets one bucket per this many rows, within 1 and MAX_BUCKETS
+    private final long rowsPerBucket;
+
+    public TransactionArchiveJob() {
+        this(Paths.get("archive", "transactions"), 3);
+    }
+
+    public TransactionArchiveJob(Path archiveDir, int hotMonths) {
+        this(archiveDir, hotMonths, 20_000);
+    }
+
+    public TransactionArchiveJob(Path archiveDir, int hotMonths, long rowsPerBucket) {
+        if (hotMonths < 1) {
+            throw new IllegalArgumentException("At least the current month must stay hot.");
+        }
+        if (rowsPerBucket < 1) {
+            throw new IllegalArgumentException("Invalid archive settings.");
+        }
+        this.archiveDir = archiveDir;
+        this.hotMonths = hotMonths;
+        this.rowsPerBucket = rowsPerBucket;
+    }
+
+    /**
+     * Archives every closed month still in the hot table.
+     * @return number of months archived, counted once per shard
+     */
+    public int run() {
+        YearMonth firstHot = YearMonth.now().minusMonths(hotMonths - 1);
+        boolean snapshotted = false;
+        int archived = 0;
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            TransactionPartitions partitions = new TransactionPartitions(shard);
+            partitions.ensurePartitions(3);
+
+            LocalDateTime oldest = oldestHotTime(shard);
+            if (oldest == null || !YearMonth.from(oldest).isBefore(firstHot)) {
+                continue;
+            }
+            if (!snapshotted) {
+                new BalanceReplayJob().snapshot();
+                snapshotted = true;
+            }
+
+            for (YearMonth m = YearMonth.from(oldest); m.isBefore(firstHot); m = m.plusMonths(1)) {
+                long rows = archiveMonth(shard, partitions, m);
+                if (rows >= 0) {
+                    System.out.printf("Archived %s of shard %d: %d rows\n", m, shard, rows);
+                    archived++;
+                }
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Runs {@link #run()} on a background thread every {@code interval}.
+     */
+    public ScheduledExecutorService startBackground(Duration interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transaction-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                run();
+            } catch (Exception e) {
+                System.out.println("Archive run failed: " + e.getMessage());
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    /* ================= ARCHIVING ================= */
+
+    private long archiveMonth(int shard, TransactionPartitions partitions, YearMonth month) {
+        LocalDateTime from = month.atDay(1).atStartOfDay();
+        LocalDateTime to = month.plusMonths(1).atDay(1).atStartOfDay();
+        Path file = archiveFile(shard, month);
+
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            if (em.find(TransactionArchive.class, month.toString()) != null) {
+                System.out.println("Month " + month + " is already archived but has rows in the hot table; skipped.");
+                return -1;
+            }
+
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Path indexTmp = indexFile(tmp);
+            Export export;
+            JpaManager.beginConsistentRead(em);
+            try {
+                export = export(em, from, to, tmp, indexTmp);
+            } finally {
+                JpaManager.endConsistentRead(em);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTmp, indexFile(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            em.getTransaction().begin();
+            if (partitions.isPartitioned()) {
+                // No row enters or leaves the month until the partition is gone
+                partitions.lockPartition(em, month);
+            }
+
+            // Only the exported rows are summed and deleted; any other row in the month fails the run
+            em.createQuery("INSERT INTO ArchivedBalance (month, accountId, net, rowCount, lastTransactionId) "
+                    + "SELECT '" + month + "', t.account.accountId, SUM(" + Transaction.signedAmountJpql("t") + "), "
+                    + "COUNT(t), MAX(t.id) "
+                    + "FROM Transaction t WHERE t.time >= :from AND t.time < :to AND t.id <= :maxId "
+                    + "GROUP BY t.account.accountId")
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .setParameter("maxId", export.maxId)
+                    .executeUpdate();
+
+            TransactionArchive archive = new TransactionArchive();
+            archive.setMonth(month.toString());
+            archive.setFilePath(file.toString());
+            archive.setRowCount(export.rows);
+            em.persist(archive);
+
+            int deleted = em.createQuery(
+                    "DELETE FROM Transaction t WHERE t.time >= :from AND t.time < :to AND t.id <= :maxId")
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .setParameter("maxId", export.maxId)
+                    .executeUpdate();
+            long left = em.createQuery(
+                    "SELECT COUNT(t) FROM Transaction t WHERE t.time >= :from AND t.time < :to", Long.class)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .getSingleResult();
+            if (deleted != export.rows || left != 0) {
+                throw new IllegalStateException("Month " + month + " changed while archiving.");
+            }
+            if (partitions.isPartitioned()) {
+                partitions.dropPartition(em, month);
+            }
+
+            em.getTransaction().commit();
+            return export.rows;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Rows an export wrote, and the highest id among them.
+     */
+    private static final class Export {
+        final long rows;
+        final long maxId;
+
+        Export(long rows, long maxId) {
+            this.rows = rows;
+            this.maxId = maxId;
+        }
+    }
+
+    /**
+     * Writes the month's rows, read in {@code em}'s consistent-read
+     * transaction, into one part file per bucket, then joins the parts into
+     * {@code tmp} and lists where each starts in {@code indexTmp}.
+     */
+    private Export export(EntityManager em, LocalDateTime from, LocalDateTime to, Path tmp, Path indexTmp)
+            throws IOException {
+        long rowCount = em.createQuery(
+                "SELECT COUNT(t) FROM Transaction t WHERE t.time >= :from AND t.time < :to", Long.class)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getSingleResult();
+        int buckets = (int) Math.min(MAX_BUCKETS, Math.max(1, (rowCount + rowsPerBucket - 1) / rowsPerBucket));
+
+        Path[] parts = new Path[buckets];
+        BufferedWriter[] writers = new BufferedWriter[buckets];
+        long written = 0;
+        long maxId = 0;
+        try {
+            for (int b = 0; b < buckets; b++) {
+                parts[b] = tmp.resolveSibling(tmp.getFileName() + "." + b);
+                writers[b] = new BufferedWriter(new OutputStreamWriter(
+                        new GZIPOutputStream(Files.newOutputStream(parts[b]), 8 * 1024), StandardCharsets.UTF_8));
+            }
+
+            try (Stream<Object[]> rows = em.createQuery(
+                    "SELECT t.id, t.account.accountId, t.amount, t.type, t.time FROM Transaction t "
+                    + "WHERE t.time >= :from AND t.time < :to ORDER BY t.id", Object[].class)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .setHint("org.hibernate.fetchSize", 1_000)
+                    .getResultStream()) {
+
+                Iterator<Object[]> it = rows.iterator();
+                while (it.hasNext()) {
+                    Object[] row = it.next();
+                    BufferedWriter out = writers[bucketOf((String) row[1], buckets)];
+                    out.write(row[0] + "\t" + row[1] + "\t" + row[2] + "\t" + row[3] + "\t" + row[4]);
+                    out.newLine();
+                    written++;
+                    maxId = (Long) row[0];
+                }
+            }
+            for (int b = 0; b < buckets; b++) {
+                writers[b].close();
+                writers[b] = null;
+            }
+
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                 BufferedWriter index = Files.newBufferedWriter(indexTmp, StandardCharsets.UTF_8)) {
+                for (int b = 0; b < buckets; b++) {
+                    long offset = out.position();
+                    try (FileChannel in = FileChannel.open(parts[b], StandardOpenOption.READ)) {
+                        long size = in.size();
+                        for (long done = 0; done < size; ) {
+                            done += in.transferTo(done, size - done, out);
+                        }
+                    }
+                    index.write(offset + "\t" + (out.position() - offset));
+                    index.newLine();
+                }
+                out.force(false);
+            }
+            return new Export(written, maxId);
+        } finally {
+            for (int b = 0; b < buckets; b++) {
+                if (writers[b] != null) {
+                    try {
+                        writers[b].close();
+                    } catch (IOException e) {
+                        // The export has failed already
+                    }
+                }
+                if (parts[b] != null) {
+                    Files.deleteIfExists(parts[b]);
+                }
+            }
+        }
+    }
+
+    private Path archiveFile(int shard, YearMonth month) {
+        Path dir = shard == 0 ? archiveDir : archiveDir.resolve("shard-" + shard);
+        return dir.resolve("transactions-" + month + ".tsv.gz");
+    }
+
+    private static Path indexFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".idx");
+    }
+
+    /**
+     * Bucket of {@code accountId} in a file of {@code buckets} members. String
+     * hashes are fixed by the language, so files stay readable by any process.
+     */
+    static int bucketOf(String accountId, int buckets) {
+        return Math.floorMod(accountId.hashCode(), buckets);
+    }
+
+    /* ================= READING ================= */
+
+    /**
+     * Streams the rows of an archive file back as detached {@link Transaction}
+     * objects whose account only carries its id.
+     */
+    public static void read(Path file, Consumer<Transaction> sink) {
+        try {
+            read(Files.newInputStream(file), null, sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Streams the rows of one account. Only that account's bucket is read
+     * when the file has an index; files archived before indexes existed are
+     * scanned whole.
+     */
+    public static void read(Path file, String accountId, Consumer<Transaction> sink) {
+        try {
+            Path index = indexFile(file);
+            if (!Files.exists(index)) {
+                read(Files.newInputStream(file), accountId, sink);
+                return;
+            }
+            List<String> members = Files.readAllLines(index, StandardCharsets.UTF_8);
+            String[] member = members.get(bucketOf(accountId, members.size())).split("\t");
+            ByteBuffer bytes = ByteBuffer.allocate(Integer.parseInt(member[1]));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long offset = Long.parseLong(member[0]);
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, offset + bytes.position()) < 0) {
+                        throw new IOException("Archive " + file + " is shorter than its index.");
+                    }
+                }
+            }
+            read(new ByteArrayInputStream(bytes.array()), accountId, sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void read(InputStream gzip, String accountId, Consumer<Transaction> sink) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(gzip, 64 * 1024), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                if (accountId != null && !accountId.equals(f[1])) {
+                    continue;
+                }
+                Account account = new Account();
+                account.setAccountId(f[1]);
+
+                Transaction t = new Transaction();
+                t.setId(Long.parseLong(f[0]));
+                t.setAccount(account);
+                t.setAmount(Double.parseDouble(f[2]));
+                t.setType(f[3]);
+                t.setTime(LocalDateTime.parse(f[4]));
+                sink.accept(t);
+            }
+        }
+    }
+
+    private static LocalDateTime oldestHotTime(int shard) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            return em.createQuery("SELECT MIN(t.time) FROM Transaction t", LocalDateTime.class)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        TransactionArchiveJob job = args.length > 0
+                ? new TransactionArchiveJob(Paths.get(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : 3)
+                : new TransactionArchiveJob();
+        System.out.println("Months archived: " + job.run());
+    }
+}
@@ -1,17 +1,88 @@
 package com.atm.core;
 
 import com.atm.db.DataInitializer;
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.db.TransactionPartitions;
 import com.atm.service.ATMService;
+import com.atm.service.LedgerEngine;
+import com.atm.service.RecordingATMService;
+import com.atm.service.SupplyMonitor;
+import com.atm.service.TrafficTrace;
 import com.atm.ui.ATMConsoleUI;
+import com.atm.ui.ScriptRunner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ATMApplication {
 
-    public static void main(String[] args) {
+    /**
+     * Starts the console, or with {@code --script <file> [repeat]} runs the
+     * script headless and exits with status 1 if anything in it failed.
+     * {@code --record <trace>} first records every service call to a
+     * traffic trace for {@link com.atm.batch.TrafficReplayer}.
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> options = new ArrayList<>(List.of(args));
+        Path record = null;
+        int recordAt = options.indexOf("--record");
+        if (recordAt >= 0 && recordAt + 1 < options.size()) {
+            record = Path.of(options.get(recordAt + 1));
+            options.subList(recordAt, recordAt + 2).clear();
+        }
+
+        // Refuse to start with a broken query catalog
+        JpaManager.checkNamedQueries();
+
         // Initialize test data
         DataInitializer.initializeTestData();
+
+        // Make sure upcoming monthly partitions exist (no-op on an unpartitioned table)
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            new TransactionPartitions(shard).ensurePartitions(3);
+        }
         
-        ATMService service = new ATMService();
+        // Null unless enabled in engine.properties; it replays its journal before taking operations
+        LedgerEngine engine = LedgerEngine.fromClasspath();
+        ATMService service = record == null ? new ATMService(null, SupplyMonitor.fromClasspath(), engine)
+                : new RecordingATMService(new TrafficTrace.Writer(record, 65_536), null,
+                        SupplyMonitor.fromClasspath(), engine, ReadRouter.fromClasspath());
+
+        // Settle cross-shard operations a previous run left half done
+        service.recoverSagas(Duration.ZERO);
+
+        // Post any withdrawals approved offline as soon as the database is reachable
+        ScheduledExecutorService standInReplay = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "standin-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        standInReplay.scheduleWithFixedDelay(service::replayStandIn, 0, 30, TimeUnit.SECONDS);
+        standInReplay.scheduleWithFixedDelay(() -> service.recoverSagas(Duration.ofMinutes(5)), 5, 5, TimeUnit.MINUTES);
+
+        if (options.size() > 1 && options.get(0).equals("--script")) {
+            int repeat = options.size() > 2 ? Integer.parseInt(options.get(2)) : 1;
+            boolean passed = new ScriptRunner(service, System.out).run(Path.of(options.get(1)), repeat);
+            close(service, engine);
+            System.exit(passed ? 0 : 1);
+        }
+
         ATMConsoleUI ui = new ATMConsoleUI(service);
         ui.start();
+        close(service, engine);
+    }
+
+    private static void close(ATMService service, LedgerEngine engine) {
+        service.close();
+        if (engine != null) {
+            engine.close();
+        }
     }
 }
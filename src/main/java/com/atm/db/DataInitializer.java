@@ -2,9 +2,15 @@ package com.atm.db;
 
 import com.atm.model.Account;
 import com.atm.model.ATMState;
+import com.atm.model.Transaction;
+import com.atm.service.PinHasher;
+import com.atm.service.PinVerifier;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.TypedQuery;
 
+import java.time.LocalDateTime;
+import java.util.List;
+
 public class DataInitializer {
 
     public static void initializeTestData() {
@@ -12,8 +18,10 @@ public class DataInitializer {
         
         try {
             // Check if data already exists
-            TypedQuery<Long> countQuery = em.createQuery("SELECT COUNT(a) FROM Account a", Long.class);
-            Long count = countQuery.getSingleResult();
+            long count = 0;
+            for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+                count += countAccounts(shard);
+            }
             
             if (count > 0) {
                 System.out.println("Test data already exists, skipping initialization.");
@@ -21,19 +29,20 @@ public class DataInitializer {
             }
             
             em.getTransaction().begin();
+            PinHasher pins = PinVerifier.fromClasspath().getHasher();
             
             // Create test accounts
             Account acc1 = new Account();
             acc1.setAccountId("ACC001");
             acc1.setCardNumber("1111");
-            acc1.setPin("1111");
+            acc1.setPin(pins.hash("1111"));
             acc1.setBalance(5000.0);
             acc1.setFailedAttempts(0);
             
             Account acc2 = new Account();
             acc2.setAccountId("ACC002");
             acc2.setCardNumber("2222");
-            acc2.setPin("2222");
+            acc2.setPin(pins.hash("2222"));
             acc2.setBalance(3000.0);
             acc2.setFailedAttempts(0);
             
@@ -48,9 +57,18 @@ public class DataInitializer {
             atmState.setNotes20(200);   // 200 x $20 notes = $4,000
             atmState.setFirmwareVersion("v1.0");
             
-            em.persist(acc1);
-            em.persist(acc2);
             em.persist(atmState);
+
+            // Opening balances go into the ledger so reconciliation can match them
+            for (Account account : List.of(acc1, acc2)) {
+                int shard = JpaManager.shardOf(account.getAccountId());
+                if (shard == 0) {
+                    em.persist(account);
+                    em.persist(openingTransaction(account));
+                } else {
+                    persistOnShard(shard, account);
+                }
+            }
             
             em.getTransaction().commit();
             System.out.println("\n=== Test data initialized successfully! ===");
@@ -69,5 +87,39 @@ public class DataInitializer {
             em.close();
         }
     }
+
+    private static long countAccounts(int shard) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            TypedQuery<Long> countQuery = em.createNamedQuery(Account.COUNT, Long.class);
+            return countQuery.getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void persistOnShard(int shard, Account account) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+        try {
+            em.persist(account);
+            em.persist(openingTransaction(account));
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Transaction openingTransaction(Account account) {
+        Transaction t = new Transaction();
+        t.setAccount(account);
+        t.setAmount(account.getBalance());
+        t.setType(Transaction.OPENING);
+        t.setTime(LocalDateTime.now());
+        return t;
+    }
 }
 
@@ -0,0 +1,505 @@
+package com.atm.db;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceException;
+import org.hibernate.Session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Properties;
+
+/**
+ * Statement and lock timeouts for each operation, and a circuit breaker,
+ * around the database calls of a service.
+ * <p>
+ * A transaction started through {@link #begin} runs with its operation's
+ * statement and lock timeouts, set in the database for that transaction
+ * (on H2, for the connection), so a stuck row lock or slow query ends in
+ * an error instead of holding the terminal and its connection. Reads
+ * outside a transaction get the statement timeout through JDBC.
+ * <p>
+ * The breaker watches the last {@code window} calls. Once at least
+ * {@code minCalls} were seen and the share that failed on the database
+ * (unreachable or timed out) reaches {@code failureRate}, or the share
+ * slower than {@code slowCallMillis} reaches {@code slowCallRate}, it
+ * opens: every call fails at once with {@link OpenException} without
+ * touching the database. After {@code openMillis} it lets up to
+ * {@code halfOpenTrials} calls through; if they all succeed it closes,
+ * and if any fails it opens again.
+ * <p>
+ * A call covers one service operation from {@link #call} to its close.
+ * The database methods check the breaker and report to the call of the
+ * current thread.
+ */
+public class DatabaseGuard {
+
+    /** Service operations with their own timeouts. */
+    public enum Operation {
+        LOGIN, ACCOUNT, DEPOSIT, WITHDRAW, TRANSFER, RECEIPT, STATUS, SUPPLIES, CASH, FIRMWARE, HISTORY
+    }
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Thrown instead of touching the database while the breaker is open.
+     */
+    public static final class OpenException extends PersistenceException {
+        private final Duration retryAfter;
+
+        OpenException(Duration retryAfter) {
+            super("The bank cannot be reached; try again in " + retryAfter.toMillis() + " ms");
+            this.retryAfter = retryAfter;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * One service operation as the breaker sees it; close it when the
+     * operation is done.
+     */
+    public final class Call implements AutoCloseable {
+        // The call this one runs inside of, which stands for both
+        private final Call outer;
+        private final boolean allowed;
+        private final boolean trial;
+        private long touchedNanos;
+        private boolean failed;
+        private boolean closed;
+
+        private Call(Call outer, boolean allowed, boolean trial) {
+            this.outer = outer;
+            this.allowed = allowed;
+            this.trial = trial;
+        }
+
+        /** Counts the call as failed if {@code e} is a database fault. */
+        public void failed(Throwable e) {
+            if (outer != null) {
+                outer.failed(e);
+            } else if (isFault(e)) {
+                failed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed || outer != null) {
+                return;
+            }
+            closed = true;
+            current.remove();
+            finished(this);
+        }
+    }
+
+    private static final String QUERY_TIMEOUT = "jakarta.persistence.query.timeout";
+    private static final String LOCK_TIMEOUT = "jakarta.persistence.lock.timeout";
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static DatabaseGuard shared;
+
+    private final ThreadLocal<Call> current = new ThreadLocal<>();
+    private final int[] statementMillis = new int[OPERATIONS.length];
+    private final int[] lockMillis = new int[OPERATIONS.length];
+    private final boolean breakerEnabled;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final double slowCallRate;
+    private final long openNanos;
+    private final int halfOpenTrials;
+    // Set from the first connection
+    private volatile String product;
+
+    // Guarded by this
+    private final boolean[] windowFailed;
+    private final boolean[] windowSlow;
+    private int windowSize;
+    private int windowNext;
+    private int failures;
+    private int slowCalls;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int trialsRunning;
+    private int trialsPassed;
+    private long rejected;
+    private long timesOpened;
+
+    /**
+     * @param statementMillis statement timeout of each operation, by ordinal; 0 for none
+     * @param lockMillis      lock wait timeout of each operation, by ordinal; 0 for none
+     * @param window          number of recent calls the breaker judges by; 0 for no breaker
+     */
+    public DatabaseGuard(int[] statementMillis, int[] lockMillis, int window, int minCalls, double failureRate,
+                         Duration slowCall, double slowCallRate, Duration open, int halfOpenTrials) {
+        if (statementMillis.length != OPERATIONS.length || lockMillis.length != OPERATIONS.length
+                || window < 0 || minCalls < 1 || failureRate <= 0 || slowCallRate <= 0 || halfOpenTrials < 1) {
+            throw new IllegalArgumentException("Invalid database guard settings.");
+        }
+        System.arraycopy(statementMillis, 0, this.statementMillis, 0, OPERATIONS.length);
+        System.arraycopy(lockMillis, 0, this.lockMillis, 0, OPERATIONS.length);
+        this.breakerEnabled = window > 0;
+        this.minCalls = Math.min(minCalls, Math.max(1, window));
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCall.toNanos();
+        this.slowCallRate = slowCallRate;
+        this.openNanos = open.toNanos();
+        this.halfOpenTrials = halfOpenTrials;
+        this.windowFailed = new boolean[window];
+        this.windowSlow = new boolean[window];
+    }
+
+    /** No timeouts and no breaker. */
+    public static DatabaseGuard none() {
+        int[] zero = new int[OPERATIONS.length];
+        return new DatabaseGuard(zero, zero, 0, 1, 1, Duration.ZERO, 1, Duration.ZERO, 1);
+    }
+
+    /**
+     * The guard configured by {@code database.properties}, with system
+     * properties of the same names ({@code db.*}, {@code breaker.*}) taking
+     * precedence; shared by every service in this process, since they
+     * share the database.
+     */
+    public static synchronized DatabaseGuard fromClasspath() {
+        if (shared == null) {
+            Properties props = new Properties();
+            try (InputStream in = DatabaseGuard.class.getClassLoader().getResourceAsStream("database.properties")) {
+                if (in != null) {
+                    props.load(in);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read database.properties: " + e.getMessage());
+            }
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("db.") || name.startsWith("breaker.")) {
+                    props.setProperty(name, System.getProperty(name));
+                }
+            }
+            shared = fromProperties(props);
+        }
+        return shared;
+    }
+
+    /**
+     * Reads {@code db.statementMillis}, {@code db.lockMillis}, the same
+     * with {@code .<OPERATION>} for one operation, {@code breaker.enabled},
+     * {@code breaker.window}, {@code breaker.minCalls},
+     * {@code breaker.failureRate}, {@code breaker.slowCallMillis},
+     * {@code breaker.slowCallRate}, {@code breaker.openMillis} and
+     * {@code breaker.halfOpenTrials}.
+     */
+    public static DatabaseGuard fromProperties(Properties props) {
+        String statementDefault = props.getProperty("db.statementMillis", "5000").trim();
+        String lockDefault = props.getProperty("db.lockMillis", "2000").trim();
+        int[] statement = new int[OPERATIONS.length];
+        int[] lock = new int[OPERATIONS.length];
+        for (Operation op : OPERATIONS) {
+            statement[op.ordinal()] = Integer.parseInt(
+                    props.getProperty("db.statementMillis." + op, statementDefault).trim());
+            lock[op.ordinal()] = Integer.parseInt(props.getProperty("db.lockMillis." + op, lockDefault).trim());
+        }
+        boolean breaker = Boolean.parseBoolean(props.getProperty("breaker.enabled", "true").trim());
+        return new DatabaseGuard(statement, lock,
+                breaker ? Integer.parseInt(props.getProperty("breaker.window", "50").trim()) : 0,
+                Integer.parseInt(props.getProperty("breaker.minCalls", "20").trim()),
+                Double.parseDouble(props.getProperty("breaker.failureRate", "0.5").trim()),
+                Duration.ofMillis(Long.parseLong(props.getProperty("breaker.slowCallMillis", "3000").trim())),
+                Double.parseDouble(props.getProperty("breaker.slowCallRate", "0.8").trim()),
+                Duration.ofMillis(Long.parseLong(props.getProperty("breaker.openMillis", "10000").trim())),
+                Integer.parseInt(props.getProperty("breaker.halfOpenTrials", "3").trim()));
+    }
+
+    /* ================= CALLS ================= */
+
+    /**
+     * Starts a call on this thread. It never fails here: while the breaker
+     * is open, the call's first database access throws instead, so the
+     * operation can take its offline path.
+     */
+    public Call call() {
+        Call outer = current.get();
+        if (outer != null) {
+            return new Call(outer, outer.allowed, false);
+        }
+        Call call;
+        synchronized (this) {
+            if (!breakerEnabled || state == State.CLOSED) {
+                call = new Call(null, true, false);
+            } else if (state == State.OPEN && System.nanoTime() - openedAt < openNanos) {
+                call = new Call(null, false, false);
+            } else {
+                if (state == State.OPEN) {
+                    state = State.HALF_OPEN;
+                    trialsPassed = 0;
+                    System.out.println("Database circuit half-open: probing with trial calls.");
+                }
+                boolean trial = trialsRunning + trialsPassed < halfOpenTrials;
+                if (trial) {
+                    trialsRunning++;
+                }
+                call = new Call(null, trial, trial);
+            }
+        }
+        current.set(call);
+        return call;
+    }
+
+    /**
+     * Fails with {@link OpenException} unless this thread's call may use the
+     * database; outside a call, unless the breaker is closed.
+     */
+    public void check() {
+        Call call = current.get();
+        boolean allowed;
+        synchronized (this) {
+            allowed = call != null ? call.allowed : !breakerEnabled || state == State.CLOSED;
+            if (!allowed) {
+                rejected++;
+            }
+        }
+        if (!allowed) {
+            throw new OpenException(retryAfter());
+        }
+        if (call != null && call.touchedNanos == 0) {
+            call.touchedNanos = System.nanoTime();
+        }
+    }
+
+    /** Counts this thread's call as failed if {@code e} is a database fault. */
+    public void failed(Throwable e) {
+        Call call = current.get();
+        if (call != null) {
+            call.failed(e);
+        }
+    }
+
+    /**
+     * Checks the breaker, then begins a transaction on {@code em} with the
+     * timeouts of {@code op}.
+     */
+    public void begin(EntityManager em, Operation op) {
+        check();
+        int statement = statementMillis[op.ordinal()];
+        int lock = lockMillis[op.ordinal()];
+        hint(em, statement, lock);
+        em.getTransaction().begin();
+        if (statement > 0 || lock > 0) {
+            em.unwrap(Session.class).doWork(c -> apply(c, statement, lock));
+        }
+    }
+
+    /**
+     * Checks the breaker and gives reads on {@code em} the statement timeout
+     * of {@code op}.
+     */
+    public EntityManager forRead(EntityManager em, Operation op) {
+        try {
+            check();
+        } catch (OpenException e) {
+            em.close();
+            throw e;
+        }
+        hint(em, statementMillis[op.ordinal()], 0);
+        return em;
+    }
+
+    private static void hint(EntityManager em, int statement, int lock) {
+        if (statement > 0) {
+            em.setProperty(QUERY_TIMEOUT, statement);
+        }
+        if (lock > 0) {
+            em.setProperty(LOCK_TIMEOUT, lock);
+        }
+    }
+
+    /**
+     * Sets the timeouts in the database, where the JPA hints cannot reach:
+     * lock waits, and statements that are not queries.
+     */
+    private void apply(Connection c, int statement, int lock) throws SQLException {
+        String name = product;
+        if (name == null) {
+            name = c.getMetaData().getDatabaseProductName();
+            product = name;
+        }
+        if ("PostgreSQL".equalsIgnoreCase(name)) {
+            // Local to the transaction, so the pooled connection keeps no trace
+            try (PreparedStatement ps = c.prepareStatement(
+                    "SELECT set_config('statement_timeout', ?, true), set_config('lock_timeout', ?, true)")) {
+                ps.setString(1, String.valueOf(statement));
+                ps.setString(2, String.valueOf(lock));
+                ps.execute();
+            }
+        } else if ("H2".equalsIgnoreCase(name)) {
+            try (Statement s = c.createStatement()) {
+                s.execute("SET QUERY_TIMEOUT " + statement);
+                if (lock > 0) {
+                    s.execute("SET LOCK_TIMEOUT " + lock);
+                }
+            }
+        }
+    }
+
+    /* ================= BREAKER ================= */
+
+    private synchronized void finished(Call call) {
+        if (!breakerEnabled || !call.allowed) {
+            return;
+        }
+        if (call.trial) {
+            trialsRunning--;
+        }
+        if (call.touchedNanos == 0) {
+            return; // Never reached the database
+        }
+        boolean slow = System.nanoTime() - call.touchedNanos > slowCallNanos;
+        if (call.trial && state == State.HALF_OPEN) {
+            if (call.failed || slow) {
+                open("trial call " + (call.failed ? "failed" : "was slow"));
+            } else if (++trialsPassed >= halfOpenTrials) {
+                state = State.CLOSED;
+                clearWindow();
+                System.out.println("Database circuit closed: trial calls succeeded.");
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            return; // Started before the breaker opened
+        }
+        if (windowSize == windowFailed.length) {
+            failures -= windowFailed[windowNext] ? 1 : 0;
+            slowCalls -= windowSlow[windowNext] ? 1 : 0;
+        } else {
+            windowSize++;
+        }
+        windowFailed[windowNext] = call.failed;
+        windowSlow[windowNext] = slow;
+        failures += call.failed ? 1 : 0;
+        slowCalls += slow ? 1 : 0;
+        windowNext = (windowNext + 1) % windowFailed.length;
+
+        if (windowSize >= minCalls) {
+            if (failures >= failureRate * windowSize) {
+                open(String.format("%d of the last %d calls failed", failures, windowSize));
+            } else if (slowCalls >= slowCallRate * windowSize) {
+                open(String.format("%d of the last %d calls were slow", slowCalls, windowSize));
+            }
+        }
+    }
+
+    private void open(String reason) {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        timesOpened++;
+        clearWindow();
+        System.out.println("Database circuit open: " + reason + ".");
+    }
+
+    private void clearWindow() {
+        windowSize = 0;
+        windowNext = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private synchronized Duration retryAfter() {
+        long left = state == State.OPEN ? openNanos - (System.nanoTime() - openedAt) : 0;
+        return Duration.ofMillis(Math.max(1000, left / 1_000_000));
+    }
+
+    /**
+     * Whether {@code e} was caused by the database being unreachable, as
+     * opposed to a query or constraint error.
+     */
+    public static boolean isUnavailable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof OpenException
+                    || t instanceof ConnectException
+                    || t instanceof SQLTransientConnectionException
+                    || t instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                String sqlState = ((SQLException) t).getSQLState();
+                if (sqlState != null && sqlState.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether {@code e} was caused by a statement or lock timeout.
+     */
+    public static boolean isTimeout(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof jakarta.persistence.QueryTimeoutException
+                    || t instanceof jakarta.persistence.LockTimeoutException
+                    || t instanceof SQLTimeoutException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                // Statement cancelled (by its timeout), lock not available, H2's lock timeout
+                String sqlState = ((SQLException) t).getSQLState();
+                if ("57014".equals(sqlState) || "55P03".equals(sqlState) || "HYT00".equals(sqlState)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Whether {@code e} counts against the breaker. */
+    public static boolean isFault(Throwable e) {
+        return !(e instanceof OpenException) && (isUnavailable(e) || isTimeout(e));
+    }
+
+    /* ================= METRICS ================= */
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            return State.HALF_OPEN; // The next call probes
+        }
+        return state;
+    }
+
+    /** Share of the calls in the window that failed on the database. */
+    public synchronized double getFailureRate() {
+        return windowSize == 0 ? 0 : (double) failures / windowSize;
+    }
+
+    /** Share of the calls in the window slower than {@code slowCallMillis}. */
+    public synchronized double getSlowCallRate() {
+        return windowSize == 0 ? 0 : (double) slowCalls / windowSize;
+    }
+
+    /** Calls failed fast while the breaker was open. */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+
+    public int getStatementMillis(Operation op) {
+        return statementMillis[op.ordinal()];
+    }
+
+    public int getLockMillis(Operation op) {
+        return lockMillis[op.ordinal()];
+    }
+}
@@ -3,13 +3,228 @@ package com.atm.db;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.Persistence;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.query.spi.QueryEngine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 
 public class JpaManager {
 
     private static final EntityManagerFactory emf =
-            Persistence.createEntityManagerFactory("atmPU");
+            Persistence.createEntityManagerFactory("atmPU", overrides());
+
+    private static final Properties shardConfig = shardConfig();
+    private static final int shardCount = Integer.parseInt(shardConfig.getProperty("shards.count", "1").trim());
+    // Shard 0 is the home shard, emf itself
+    private static final EntityManagerFactory[] shards = createShards();
+
+    // Created on first use, so installs without a replica never connect to one
+    private static final class Replica {
+        static final EntityManagerFactory emf =
+                Persistence.createEntityManagerFactory("atmReplicaPU", replicaOverrides());
+    }
+
+    /**
+     * System properties named {@code jakarta.persistence.*} or
+     * {@code hibernate.*} take precedence over persistence.xml, e.g. to run
+     * the tests against an embedded database.
+     */
+    private static Map<String, String> overrides() {
+        return overrides("");
+    }
+
+    /**
+     * The replica takes the same overrides as the primary (driver, dialect,
+     * credentials), then those prefixed with {@code replica.}, e.g.
+     * {@code replica.jakarta.persistence.jdbc.url}.
+     */
+    private static Map<String, String> replicaOverrides() {
+        Map<String, String> overrides = overrides("");
+        overrides.remove("jakarta.persistence.jdbc.url");
+        overrides.putAll(overrides("replica."));
+        return overrides;
+    }
+
+    private static Map<String, String> overrides(String prefix) {
+        return overrides(System.getProperties(), prefix);
+    }
+
+    private static Map<String, String> overrides(Properties props, String prefix) {
+        Map<String, String> overrides = new HashMap<>();
+        for (String name : props.stringPropertyNames()) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            String key = name.substring(prefix.length());
+            if (key.startsWith("jakarta.persistence.") || key.startsWith("hibernate.")) {
+                overrides.put(key, props.getProperty(name));
+            }
+        }
+        return overrides;
+    }
+
+    /**
+     * {@code shards.properties} from the classpath, with system properties of
+     * the same names ({@code shards.count}, {@code shard.<n>.*}) taking precedence.
+     */
+    private static Properties shardConfig() {
+        Properties props = new Properties();
+        try (InputStream in = JpaManager.class.getClassLoader().getResourceAsStream("shards.properties")) {
+            if (in != null) {
+                props.load(in);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read shards.properties: " + e.getMessage());
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("shards.") || name.startsWith("shard.")) {
+                props.setProperty(name, System.getProperty(name));
+            }
+        }
+        return props;
+    }
 
+    /**
+     * Every shard is a copy of atmPU; shard {@code n} takes the primary's
+     * overrides, then those prefixed with {@code shard.<n>.}, e.g.
+     * {@code shard.1.jakarta.persistence.jdbc.url}.
+     */
+    private static EntityManagerFactory[] createShards() {
+        if (shardCount < 1) {
+            throw new IllegalStateException("shards.count must be at least 1");
+        }
+        EntityManagerFactory[] factories = new EntityManagerFactory[shardCount];
+        factories[0] = emf;
+        for (int n = 1; n < shardCount; n++) {
+            Map<String, String> overrides = overrides("");
+            overrides.remove("jakarta.persistence.jdbc.url");
+            overrides.putAll(overrides(shardConfig, "shard." + n + "."));
+            if (!overrides.containsKey("jakarta.persistence.jdbc.url")) {
+                throw new IllegalStateException("No jakarta.persistence.jdbc.url configured for shard " + n);
+            }
+            factories[n] = Persistence.createEntityManagerFactory("atmPU", overrides);
+        }
+        return factories;
+    }
+
+    /**
+     * Entity manager on the home shard, which holds the terminals and every
+     * table that is not sharded.
+     */
     public static EntityManager getEntityManager() {
         return emf.createEntityManager();
     }
+
+    /* ================= SHARDS ================= */
+
+    public static int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Shard holding {@code accountId} and its transactions. String hashes are
+     * fixed by the language, so the mapping is the same in every process;
+     * changing the shard count means moving accounts.
+     */
+    public static int shardOf(String accountId) {
+        return shardCount == 1 ? 0 : Math.floorMod(accountId.hashCode(), shardCount);
+    }
+
+    public static EntityManager getEntityManager(int shard) {
+        return shards[shard].createEntityManager();
+    }
+
+    public static EntityManager getAccountEntityManager(String accountId) {
+        return getEntityManager(shardOf(accountId));
+    }
+
+    /**
+     * Entity manager on the read replica. Callers normally go through
+     * {@link ReadRouter}, which knows how stale the replica is.
+     */
+    public static EntityManager getReplicaEntityManager() {
+        return Replica.emf.createEntityManager();
+    }
+
+    /**
+     * Fails fast if any named query of the entity classes does not compile.
+     * Named queries are parsed once here and reused by every
+     * {@code createNamedQuery} call afterwards.
+     */
+    public static void checkNamedQueries() {
+        QueryEngine engine = emf.unwrap(SessionFactoryImplementor.class).getQueryEngine();
+        Map<String, HibernateException> errors = engine.getNamedObjectRepository().checkNamedQueries(engine);
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Invalid named queries:");
+            errors.forEach((name, e) -> sb.append("\n  ").append(name).append(": ").append(e.getMessage()));
+            throw new IllegalStateException(sb.toString());
+        }
+    }
+
+    /* ================= CONSISTENT READS ================= */
+
+    /**
+     * Begins a read-only transaction in which every statement sees the same
+     * snapshot of the database (REPEATABLE READ on PostgreSQL, SERIALIZABLE
+     * elsewhere, as H2's repeatable read still shows rows committed since),
+     * for jobs whose queries must agree with each other. The driver can also stream results
+     * through a cursor, which needs autocommit off. End it with
+     * {@link #endConsistentRead}.
+     */
+    public static void beginConsistentRead(EntityManager em) {
+        em.getTransaction().begin();
+        em.unwrap(Session.class).doWork(c -> {
+            if ("PostgreSQL".equalsIgnoreCase(c.getMetaData().getDatabaseProductName())) {
+                // Only lasts for this transaction
+                try (Statement s = c.createStatement()) {
+                    s.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+                }
+            } else {
+                c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            }
+        });
+    }
+
+    /**
+     * Rolls back a transaction begun with {@link #beginConsistentRead},
+     * handing its connection back to the pool at the default isolation.
+     */
+    public static void endConsistentRead(EntityManager em) {
+        if (!em.getTransaction().isActive()) {
+            return;
+        }
+        try {
+            em.unwrap(Session.class).doWork(c -> {
+                if (c.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED
+                        && !"PostgreSQL".equalsIgnoreCase(c.getMetaData().getDatabaseProductName())) {
+                    c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                }
+            });
+        } finally {
+            em.getTransaction().rollback();
+        }
+    }
+
+    /**
+     * Whether the configured database is PostgreSQL, for features that rely
+     * on its native DDL (partitioning) and fall back elsewhere.
+     */
+    public static boolean isPostgres() {
+        EntityManager em = getEntityManager();
+        try {
+            String product = em.unwrap(Session.class)
+                    .doReturningWork(c -> c.getMetaData().getDatabaseProductName());
+            return "PostgreSQL".equalsIgnoreCase(product);
+        } finally {
+            em.close();
+        }
+    }
 }
@@ -0,0 +1,231 @@
+package com.atm.db;
+
+import com.atm.model.ReplicationHeartbeat;
+
+import jakarta.persistence.EntityManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends read-only operations to the replica when it is fresh enough, and
+ * everything else to the primary.
+ * <p>
+ * The primary writes a {@link ReplicationHeartbeat} every
+ * {@code heartbeatMillis}; the heartbeat visible on the replica tells how
+ * far it has caught up. Each kind of {@link Read} has its own
+ * {@link Policy}, and a read that must see a caller's own write (passed as
+ * {@code notBeforeMillis}) goes to the primary until the replica has a
+ * later heartbeat. The replica's heartbeat is re-read at most once per
+ * heartbeat interval, by one caller at a time, so routing costs no query
+ * on the hot path. Heartbeats use the writer's clock, so terminals sharing
+ * a replica need synchronized clocks.
+ */
+public class ReadRouter {
+
+    /** Read-only operations, each routed by its own policy. */
+    public enum Read { ACCOUNT, STATUS, HISTORY }
+
+    public enum Policy {
+        /** Always the primary. */
+        PRIMARY,
+        /** The replica while it is at most {@code maxLagMillis} behind. */
+        BOUNDED,
+        /** The replica whenever it is reachable, however far behind. */
+        EVENTUAL
+    }
+
+    private static ReadRouter shared;
+
+    private final Map<Read, Policy> policies;
+    private final long maxLagMillis;
+    private final long heartbeatMillis;
+    private final AtomicBoolean checking = new AtomicBoolean();
+    // Last heartbeat seen on the replica, 0 while it is unreachable
+    private volatile long replicaBeat;
+    private volatile long checkedAt;
+    private ScheduledExecutorService heartbeat;
+
+    public ReadRouter(Map<Read, Policy> policies, long maxLagMillis, long heartbeatMillis) {
+        if (heartbeatMillis <= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be positive.");
+        }
+        this.policies = new EnumMap<>(Read.class);
+        for (Read read : Read.values()) {
+            this.policies.put(read, policies.getOrDefault(read, Policy.PRIMARY));
+        }
+        this.maxLagMillis = maxLagMillis;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Router sending every read to the primary.
+     */
+    public static ReadRouter primaryOnly() {
+        return new ReadRouter(Map.of(), 0, 1000);
+    }
+
+    /**
+     * The router configured by {@code replica.properties}, started on first
+     * use and shared by every caller in this process so only one heartbeat
+     * is written.
+     */
+    public static synchronized ReadRouter fromClasspath() {
+        if (shared == null) {
+            Properties props = new Properties();
+            try (InputStream in = ReadRouter.class.getClassLoader().getResourceAsStream("replica.properties")) {
+                if (in != null) {
+                    props.load(in);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read replica.properties: " + e.getMessage());
+            }
+            shared = fromProperties(props);
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Reads {@code replica.enabled}, {@code replica.policy.<READ>},
+     * {@code replica.maxLagMillis} and {@code replica.heartbeatMillis}.
+     * Without {@code replica.enabled=true} every read goes to the primary.
+     */
+    public static ReadRouter fromProperties(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("replica.enabled", "false"))) {
+            return primaryOnly();
+        }
+        Map<Read, Policy> policies = new EnumMap<>(Read.class);
+        for (Read read : Read.values()) {
+            policies.put(read, Policy.valueOf(props.getProperty("replica.policy." + read, "BOUNDED").trim()));
+        }
+        return new ReadRouter(policies,
+                Long.parseLong(props.getProperty("replica.maxLagMillis", "2000")),
+                Long.parseLong(props.getProperty("replica.heartbeatMillis", "250")));
+    }
+
+    /**
+     * Starts writing heartbeats on the primary, if any read may use the replica.
+     */
+    public synchronized void start() {
+        if (heartbeat != null || policies.values().stream().allMatch(p -> p == Policy.PRIMARY)) {
+            return;
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(this::beat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void close() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+    }
+
+    /* ================= ROUTING ================= */
+
+    /**
+     * Entity manager for {@code read}. The caller closes it and must not
+     * write through it.
+     * @param notBeforeMillis time of the caller's last committed write that
+     *                        this read must see, or 0
+     */
+    public EntityManager forRead(Read read, long notBeforeMillis) {
+        if (useReplica(read, notBeforeMillis)) {
+            try {
+                return JpaManager.getReplicaEntityManager();
+            } catch (RuntimeException | LinkageError e) {
+                replicaDown(e);
+            }
+        }
+        return JpaManager.getEntityManager();
+    }
+
+    /**
+     * Whether {@code read} would go to the replica now.
+     */
+    public boolean useReplica(Read read, long notBeforeMillis) {
+        Policy policy = policies.get(read);
+        if (policy == Policy.PRIMARY) {
+            return false;
+        }
+        long beat = replicaBeat();
+        // A heartbeat taken in the same millisecond may predate the write
+        if (beat == 0 || beat <= notBeforeMillis) {
+            return false;
+        }
+        return policy == Policy.EVENTUAL || System.currentTimeMillis() - beat <= maxLagMillis;
+    }
+
+    /**
+     * Last heartbeat seen on the replica, re-read if the cached one is older
+     * than a heartbeat interval; 0 while the replica is unreachable.
+     */
+    public long replicaBeat() {
+        long now = System.currentTimeMillis();
+        if (now - checkedAt >= heartbeatMillis && checking.compareAndSet(false, true)) {
+            try {
+                replicaBeat = readBeat();
+            } catch (RuntimeException | LinkageError e) {
+                replicaDown(e);
+            } finally {
+                checkedAt = now;
+                checking.set(false);
+            }
+        }
+        return replicaBeat;
+    }
+
+    /* ================= HELPER METHODS ================= */
+
+    private void replicaDown(Throwable e) {
+        if (replicaBeat != 0) {
+            System.out.println("Replica unavailable, reading from the primary: " + e.getMessage());
+        }
+        replicaBeat = 0;
+    }
+
+    private static long readBeat() {
+        EntityManager em = JpaManager.getReplicaEntityManager();
+        try {
+            ReplicationHeartbeat hb = em.find(ReplicationHeartbeat.class, ReplicationHeartbeat.ID);
+            return hb == null ? 0 : hb.getBeatMillis();
+        } finally {
+            em.close();
+        }
+    }
+
+    private void beat() {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            ReplicationHeartbeat hb = em.find(ReplicationHeartbeat.class, ReplicationHeartbeat.ID);
+            if (hb == null) {
+                hb = new ReplicationHeartbeat();
+                hb.setId(ReplicationHeartbeat.ID);
+                hb.setBeatMillis(System.currentTimeMillis());
+                em.persist(hb);
+            } else {
+                hb.setBeatMillis(System.currentTimeMillis());
+            }
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+        } finally {
+            em.close();
+        }
+    }
+}
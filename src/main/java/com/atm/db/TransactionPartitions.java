@@ -0,0 +1,176 @@
+package com.atm.db;
+
+import jakarta.persistence.EntityManager;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
+
+/**
+ * Monthly range partitioning of the {@code transactions} table on
+ * {@code time} (PostgreSQL only).
+ * <p>
+ * Each month gets its own heap and indexes, so inserts always touch a small,
+ * recent partition and old months can be dropped whole once archived.
+ * On other databases every method here is a no-op and the table stays a
+ * single heap. Each shard has its own table, handled by its own instance.
+ */
+public class TransactionPartitions {
+
+    private final boolean enabled;
+    private final int shard;
+
+    public TransactionPartitions() {
+        this(0);
+    }
+
+    public TransactionPartitions(int shard) {
+        this.enabled = JpaManager.isPostgres();
+        this.shard = shard;
+    }
+
+    public static String partitionName(YearMonth month) {
+        return String.format("transactions_p%04d_%02d", month.getYear(), month.getMonthValue());
+    }
+
+    public boolean isPartitioned() {
+        if (!enabled) {
+            return false;
+        }
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            List<?> rows = em.createNativeQuery(
+                    "SELECT 1 FROM pg_partitioned_table p JOIN pg_class c ON c.oid = p.partrelid "
+                    + "WHERE c.relname = 'transactions'"
+            ).getResultList();
+            return !rows.isEmpty();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * One-time migration of an existing plain {@code transactions} table into
+     * a partitioned one. Runs in a single transaction; ids keep counting from
+     * the current maximum. The indexes and the account foreign key are
+     * created here under the names the entity mapping gives them.
+     */
+    public void convertToPartitioned() {
+        if (!enabled || isPartitioned()) {
+            return;
+        }
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+
+        try {
+            execute(em, "ALTER TABLE transactions RENAME TO transactions_legacy");
+            execute(em, "ALTER INDEX IF EXISTS transactions_pkey RENAME TO transactions_legacy_pkey");
+            execute(em, "ALTER INDEX IF EXISTS idx_transactions_account RENAME TO idx_transactions_legacy_account");
+            execute(em, "ALTER INDEX IF EXISTS idx_transactions_saga RENAME TO idx_transactions_legacy_saga");
+            execute(em, "UPDATE transactions_legacy SET time = created_at WHERE time IS NULL");
+            execute(em, "CREATE TABLE transactions (LIKE transactions_legacy INCLUDING DEFAULTS INCLUDING IDENTITY) "
+                    + "PARTITION BY RANGE (time)");
+            execute(em, "ALTER TABLE transactions ALTER COLUMN time SET NOT NULL");
+            execute(em, "ALTER TABLE transactions ADD PRIMARY KEY (id, time)");
+            execute(em, "CREATE INDEX idx_transactions_account ON transactions (account_id, id)");
+            execute(em, "CREATE INDEX idx_transactions_saga ON transactions (saga_id)");
+            execute(em, "ALTER TABLE transactions ADD CONSTRAINT fk_transactions_account "
+                    + "FOREIGN KEY (account_id) REFERENCES accounts (account_id)");
+            execute(em, "CREATE TABLE transactions_default PARTITION OF transactions DEFAULT");
+
+            Object oldest = em.createNativeQuery("SELECT MIN(time) FROM transactions_legacy").getSingleResult();
+            YearMonth from = oldest == null ? YearMonth.now() : YearMonth.from(toLocalDateTime(oldest));
+            for (YearMonth m = from; !m.isAfter(YearMonth.now().plusMonths(3)); m = m.plusMonths(1)) {
+                createPartition(em, m);
+            }
+
+            execute(em, "INSERT INTO transactions SELECT * FROM transactions_legacy");
+            execute(em, "SELECT setval(pg_get_serial_sequence('transactions', 'id'), "
+                    + "COALESCE((SELECT MAX(id) FROM transactions), 0) + 1, false)");
+            execute(em, "DROP TABLE transactions_legacy");
+
+            em.getTransaction().commit();
+            System.out.println("Transactions table converted to monthly partitions.");
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Creates the partitions for the current month and the next
+     * {@code monthsAhead}, so inserts never land in the default partition.
+     */
+    public void ensurePartitions(int monthsAhead) {
+        if (!isPartitioned()) {
+            return;
+        }
+        EntityManager em = JpaManager.getEntityManager(shard);
+        em.getTransaction().begin();
+
+        try {
+            YearMonth now = YearMonth.now();
+            for (int i = 0; i <= monthsAhead; i++) {
+                createPartition(em, now.plusMonths(i));
+            }
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Locks one month's partition against every other reader and writer
+     * until {@code em}'s transaction ends.
+     */
+    public void lockPartition(EntityManager em, YearMonth month) {
+        execute(em, "LOCK TABLE " + partitionName(month) + " IN ACCESS EXCLUSIVE MODE");
+    }
+
+    /**
+     * Detaches and drops one month's partition. Only call this once the
+     * month has been archived.
+     */
+    public void dropPartition(EntityManager em, YearMonth month) {
+        String name = partitionName(month);
+        execute(em, "ALTER TABLE transactions DETACH PARTITION " + name);
+        execute(em, "DROP TABLE " + name);
+    }
+
+    private void createPartition(EntityManager em, YearMonth month) {
+        execute(em, String.format(
+                "CREATE TABLE IF NOT EXISTS %s PARTITION OF transactions FOR VALUES FROM ('%s') TO ('%s')",
+                partitionName(month), month.atDay(1), month.plusMonths(1).atDay(1)
+        ));
+    }
+
+    private static LocalDateTime toLocalDateTime(Object value) {
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toLocalDateTime();
+        }
+        return (LocalDateTime) value;
+    }
+
+    private static void execute(EntityManager em, String sql) {
+        if (sql.startsWith("SELECT")) {
+            em.createNativeQuery(sql).getSingleResult();
+        } else {
+            em.createNativeQuery(sql).executeUpdate();
+        }
+    }
+
+    public static void main(String[] args) {
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            TransactionPartitions partitions = new TransactionPartitions(shard);
+            partitions.convertToPartitioned();
+            partitions.ensurePartitions(3);
+            System.out.println("Shard " + shard + " partitioned: " + partitions.isPartitioned());
+        }
+    }
+}
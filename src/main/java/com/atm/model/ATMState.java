@@ -3,9 +3,20 @@ package com.atm.model;
 import jakarta.persistence.*;
 
 @Entity
-@Table(name = "atm_state")
+@Table(name = "atm_state", indexes = {
+        @Index(name = "idx_atm_state_region", columnList = "region")
+})
+@NamedQueries({
+        @NamedQuery(name = ATMState.FIRST_ID, query = "SELECT a.id FROM ATMState a ORDER BY a.id"),
+        @NamedQuery(name = ATMState.ALL, query = "SELECT a FROM ATMState a ORDER BY a.id")
+})
 public class ATMState extends BaseEntity {
 
+    // ===== QUERIES =====
+
+    public static final String FIRST_ID = "ATMState.firstId";
+    public static final String ALL = "ATMState.all";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "id")
@@ -32,6 +43,9 @@ public class ATMState extends BaseEntity {
     @Column(name = "notes_100")
     private int notes100;
 
+    @Column(name = "region")
+    private String region;
+
     public ATMState() {}
 
     // ===== GETTERS =====
@@ -68,6 +82,10 @@ public class ATMState extends BaseEntity {
         return notes100;
     }
 
+    public String getRegion() {
+        return region;
+    }
+
     // ===== SETTERS =====
 
     public void setCash(double cash) {
@@ -98,6 +116,10 @@ public class ATMState extends BaseEntity {
         this.notes100 = notes100;
     }
 
+    public void setRegion(String region) {
+        this.region = region;
+    }
+
     // ===== OPERATIONS =====
 
     public void addCash(double amount) {
@@ -124,6 +146,72 @@ public class ATMState extends BaseEntity {
         this.cash += (notes20 * 20) + (notes50 * 50) + (notes100 * 100);
     }
 
+    /**
+     * Takes {@code amount} out of the cassettes, using as many large notes
+     * as the available counts allow.
+     * @return false, leaving the state untouched, if no combination of the
+     *         notes on hand makes up the amount
+     */
+    public boolean dispense(double amount) {
+        int[] notes = breakdown(amount, notes20, notes50, notes100);
+        if (notes == null) {
+            return false;
+        }
+        addBanknotes(-notes[0], -notes[1], -notes[2]);
+        return true;
+    }
+
+    /**
+     * Puts a cash deposit of {@code amount} into the cassettes as $20, $50
+     * and $100 notes.
+     * @return false, leaving the state untouched, if the amount cannot be
+     *         made up of those notes
+     */
+    public boolean depositNotes(double amount) {
+        int[] notes = breakdown(amount, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        if (notes == null) {
+            return false;
+        }
+        addBanknotes(notes[0], notes[1], notes[2]);
+        return true;
+    }
+
+    /**
+     * Hands back the notes {@link #depositNotes} took in for {@code amount}.
+     * @return false, leaving the state untouched, if they are no longer all there
+     */
+    public boolean returnDeposit(double amount) {
+        int[] notes = breakdown(amount, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        if (notes == null || notes[0] > notes20 || notes[1] > notes50 || notes[2] > notes100) {
+            return false;
+        }
+        addBanknotes(-notes[0], -notes[1], -notes[2]);
+        return true;
+    }
+
+    /**
+     * Counts of $20, $50 and $100 notes adding up to {@code amount}, or
+     * {@code null} if there is no such combination within the limits.
+     */
+    private static int[] breakdown(double amount, int max20, int max50, int max100) {
+        if (amount <= 0 || amount != Math.rint(amount) || amount % 10 != 0) {
+            return null;
+        }
+        int total = (int) amount;
+        for (int n100 = Math.min(max100, total / 100); n100 >= 0; n100--) {
+            int rest = total - n100 * 100;
+            // Only the parity of n50 matters for the remainder, and more 50s leave fewer 20s to find
+            int most50 = Math.min(max50, rest / 50);
+            for (int n50 = most50; n50 >= Math.max(0, most50 - 1); n50--) {
+                int left = rest - n50 * 50;
+                if (left % 20 == 0 && left / 20 <= max20) {
+                    return new int[] { left / 20, n50, n100 };
+                }
+            }
+        }
+        return null;
+    }
+
     public String getBanknoteStatus() {
         return String.format("$20 notes: %d | $50 notes: %d | $100 notes: %d", notes20, notes50, notes100);
     }
@@ -1,11 +1,41 @@
 package com.atm.model;
 
 import jakarta.persistence.*;
+import java.time.LocalDate;
 
 @Entity
-@Table(name = "accounts")
+@Table(name = "accounts", indexes = {
+        @Index(name = "idx_accounts_card", columnList = "card_number")
+})
+@NamedQueries({
+        @NamedQuery(name = Account.BY_CARD,
+                query = "SELECT a FROM Account a WHERE a.cardNumber = :card"),
+        @NamedQuery(name = Account.ID_BY_CARD,
+                query = "SELECT a.accountId FROM Account a WHERE a.cardNumber = :card"),
+        @NamedQuery(name = Account.BY_IDS,
+                query = "SELECT a FROM Account a WHERE a.accountId IN :ids ORDER BY a.accountId"),
+        @NamedQuery(name = Account.COUNT,
+                query = "SELECT COUNT(a) FROM Account a"),
+        @NamedQuery(name = Account.BALANCES,
+                query = "SELECT a.accountId, a.cardNumber, a.balance FROM Account a"),
+        @NamedQuery(name = Account.LEGACY_PINS_AFTER,
+                query = "SELECT a.accountId, a.pin FROM Account a WHERE a.accountId > :after "
+                        + "AND a.pin NOT LIKE 'pbkdf2-sha256$%' ORDER BY a.accountId"),
+        @NamedQuery(name = Account.REPLACE_PIN,
+                query = "UPDATE Account a SET a.pin = :hash WHERE a.accountId = :id AND a.pin = :old")
+})
 public class Account extends BaseEntity {
 
+    // ===== QUERIES =====
+
+    public static final String BY_CARD = "Account.byCard";
+    public static final String ID_BY_CARD = "Account.idByCard";
+    public static final String BY_IDS = "Account.byIds";
+    public static final String COUNT = "Account.count";
+    public static final String BALANCES = "Account.balances";
+    public static final String LEGACY_PINS_AFTER = "Account.legacyPinsAfter";
+    public static final String REPLACE_PIN = "Account.replacePin";
+
     @Id
     @Column(name = "account_id")
     private String accountId;
@@ -13,6 +43,7 @@ public class Account extends BaseEntity {
     @Column(name = "card_number", nullable = false)
     private String cardNumber;
 
+    // Salted hash from PinHasher; plain text until migrated
     @Column(name = "pin", nullable = false)
     private String pin;
 
@@ -22,6 +53,10 @@ public class Account extends BaseEntity {
     @Column(name = "failedattempts")
     private int failedAttempts;
 
+    // Last business day whose fees and interest have been posted
+    @Column(name = "last_eod_date")
+    private LocalDate lastEodDate;
+
     // ===== GETTERS & SETTERS =====
 
     public String getAccountId() {
@@ -63,4 +98,12 @@ public class Account extends BaseEntity {
     public void setFailedAttempts(int failedAttempts) {
         this.failedAttempts = failedAttempts;
     }
+
+    public LocalDate getLastEodDate() {
+        return lastEodDate;
+    }
+
+    public void setLastEodDate(LocalDate lastEodDate) {
+        this.lastEodDate = lastEodDate;
+    }
 }
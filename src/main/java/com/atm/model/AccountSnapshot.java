@@ -0,0 +1,71 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Balance of one account after applying every {@link Transaction} up to and
+ * including {@code lastTransactionId}. Replays start from the latest snapshot
+ * instead of the beginning of history.
+ */
+@Entity
+@Table(name = "account_snapshots", indexes = {
+        @Index(name = "idx_account_snapshots_account", columnList = "account_id, as_of")
+})
+public class AccountSnapshot extends BaseEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "account_id", nullable = false)
+    private Account account;
+
+    @Column(name = "balance", nullable = false)
+    private double balance;
+
+    @Column(name = "last_transaction_id", nullable = false)
+    private long lastTransactionId;
+
+    @Column(name = "as_of", nullable = false)
+    private LocalDateTime asOf;
+
+    // ===== GETTERS & SETTERS =====
+
+    public Long getId() {
+        return id;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public void setAccount(Account account) {
+        this.account = account;
+    }
+
+    public double getBalance() {
+        return balance;
+    }
+
+    public void setBalance(double balance) {
+        this.balance = balance;
+    }
+
+    public long getLastTransactionId() {
+        return lastTransactionId;
+    }
+
+    public void setLastTransactionId(long lastTransactionId) {
+        this.lastTransactionId = lastTransactionId;
+    }
+
+    public LocalDateTime getAsOf() {
+        return asOf;
+    }
+
+    public void setAsOf(LocalDateTime asOf) {
+        this.asOf = asOf;
+    }
+}
@@ -0,0 +1,80 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Net effect of one archived month on one account, kept so that ledger
+ * totals stay complete after the month's rows leave the hot table.
+ */
+@Entity
+@Table(name = "archived_balances", indexes = {
+        @Index(name = "idx_archived_balances_account", columnList = "account_id, archive_month")
+})
+public class ArchivedBalance {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "archive_month", length = 7, nullable = false)
+    private String month;
+
+    @Column(name = "account_id", nullable = false)
+    private String accountId;
+
+    @Column(name = "net", nullable = false)
+    private double net;
+
+    @Column(name = "row_count", nullable = false)
+    private long rowCount;
+
+    // Highest archived transaction id; null for months archived before it was kept
+    @Column(name = "last_transaction_id")
+    private Long lastTransactionId;
+
+    // ===== GETTERS & SETTERS =====
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getMonth() {
+        return month;
+    }
+
+    public void setMonth(String month) {
+        this.month = month;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(String accountId) {
+        this.accountId = accountId;
+    }
+
+    public double getNet() {
+        return net;
+    }
+
+    public void setNet(double net) {
+        this.net = net;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public void setRowCount(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public Long getLastTransactionId() {
+        return lastTransactionId;
+    }
+
+    public void setLastTransactionId(Long lastTransactionId) {
+        this.lastTransactionId = lastTransactionId;
+    }
+}
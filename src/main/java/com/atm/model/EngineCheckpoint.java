@@ -0,0 +1,38 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Last ledger-engine journal entry whose effects are in the database.
+ * Written in the same database transaction as those effects, so after a
+ * restart only later journal entries are replayed.
+ */
+@Entity
+@Table(name = "engine_checkpoints")
+public class EngineCheckpoint extends BaseEntity {
+
+    @Id
+    @Column(name = "engine", length = 64)
+    private String engine;
+
+    @Column(name = "last_seq", nullable = false)
+    private long lastSeq;
+
+    // ===== GETTERS & SETTERS =====
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public void setLastSeq(long lastSeq) {
+        this.lastSeq = lastSeq;
+    }
+}
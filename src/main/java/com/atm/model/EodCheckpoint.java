@@ -0,0 +1,65 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDate;
+
+/**
+ * One account range finished by the end-of-day batch for a business day.
+ * Written in the same database transaction as the range's postings, so a
+ * restarted run can skip it.
+ */
+@Entity
+@Table(name = "eod_checkpoints")
+public class EodCheckpoint extends BaseEntity {
+
+    @Id
+    @Column(name = "checkpoint_id", length = 128)
+    private String id;
+
+    @Column(name = "business_date", nullable = false)
+    private LocalDate businessDate;
+
+    @Column(name = "range_start", nullable = false)
+    private String rangeStart;
+
+    @Column(name = "accounts", nullable = false)
+    private long accounts;
+
+    public static String idFor(LocalDate businessDate, String rangeStart) {
+        return businessDate + "/" + rangeStart;
+    }
+
+    // ===== GETTERS & SETTERS =====
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public LocalDate getBusinessDate() {
+        return businessDate;
+    }
+
+    public void setBusinessDate(LocalDate businessDate) {
+        this.businessDate = businessDate;
+    }
+
+    public String getRangeStart() {
+        return rangeStart;
+    }
+
+    public void setRangeStart(String rangeStart) {
+        this.rangeStart = rangeStart;
+    }
+
+    public long getAccounts() {
+        return accounts;
+    }
+
+    public void setAccounts(long accounts) {
+        this.accounts = accounts;
+    }
+}
@@ -0,0 +1,100 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Outcome of a committed money operation, keyed by the client-supplied
+ * idempotency key. Written in the same database transaction as the
+ * operation itself, so the primary key guarantees it runs at most once.
+ */
+@Entity
+@Table(name = "idempotency_keys", indexes = {
+        @Index(name = "idx_idempotency_keys_created", columnList = "created_at")
+})
+@NamedQueries({
+        @NamedQuery(name = IdempotencyRecord.KEYS_IN,
+                query = "SELECT r.key FROM IdempotencyRecord r WHERE r.key IN :keys"),
+        @NamedQuery(name = IdempotencyRecord.DELETE_BEFORE,
+                query = "DELETE FROM IdempotencyRecord r WHERE r.createdAt < :cutoff")
+})
+public class IdempotencyRecord extends BaseEntity {
+
+    // ===== QUERIES =====
+
+    public static final String KEYS_IN = "IdempotencyRecord.keysIn";
+    public static final String DELETE_BEFORE = "IdempotencyRecord.deleteBefore";
+
+    @Id
+    @Column(name = "idempotency_key", length = 64)
+    private String key;
+
+    @Column(name = "operation", nullable = false)
+    private String operation;
+
+    @Column(name = "account_id", nullable = false)
+    private String accountId;
+
+    @Column(name = "amount", nullable = false)
+    private double amount;
+
+    @Column(name = "balance_after", nullable = false)
+    private double balanceAfter;
+
+    // ===== GETTERS & SETTERS =====
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(String accountId) {
+        this.accountId = accountId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public void setAmount(double amount) {
+        this.amount = amount;
+    }
+
+    public double getBalanceAfter() {
+        return balanceAfter;
+    }
+
+    public void setBalanceAfter(double balanceAfter) {
+        this.balanceAfter = balanceAfter;
+    }
+
+    /**
+     * Whether a retry carries the same request as the original.
+     */
+    public boolean matches(String operation, String accountId, double amount) {
+        return this.operation.equals(operation)
+                && this.accountId.equals(accountId)
+                && this.amount == amount;
+    }
+
+    /**
+     * The original request, for the message shown when a key is reused.
+     */
+    public String describe() {
+        return String.format("%s of %.2f on %s", operation, amount, accountId);
+    }
+}
@@ -0,0 +1,40 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Clock written on the primary every few hundred milliseconds. Read on a
+ * replica, it tells how far that replica has caught up: every primary
+ * commit before {@code beatMillis} has been applied there.
+ */
+@Entity
+@Table(name = "replication_heartbeat")
+public class ReplicationHeartbeat extends BaseEntity {
+
+    public static final int ID = 1;
+
+    @Id
+    @Column(name = "id")
+    private int id;
+
+    @Column(name = "beat_millis", nullable = false)
+    private long beatMillis;
+
+    // ===== GETTERS & SETTERS =====
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public long getBeatMillis() {
+        return beatMillis;
+    }
+
+    public void setBeatMillis(long beatMillis) {
+        this.beatMillis = beatMillis;
+    }
+}
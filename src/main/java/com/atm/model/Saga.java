@@ -0,0 +1,133 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+
+import java.util.Objects;
+
+/**
+ * Coordinator record of a money movement that spans shards. Kept on the
+ * home shard; the money itself moves in {@link Transaction} rows tagged
+ * with the saga id on each account's shard.
+ */
+@Entity
+@Table(name = "sagas", indexes = {
+        @Index(name = "idx_sagas_owner_state", columnList = "owner, state")
+})
+@NamedQuery(name = Saga.OPEN_FOR_OWNER,
+        query = "SELECT s FROM Saga s WHERE s.owner = :owner AND s.state = :state "
+                + "AND s.createdAt < :before ORDER BY s.createdAt")
+public class Saga extends BaseEntity {
+
+    public enum State {
+        /** Steps may be in progress, or interrupted. */
+        STARTED,
+        /** Every step was applied. */
+        CONFIRMED,
+        /** Declined before anything was applied. */
+        DECLINED,
+        /** Applied steps were undone. */
+        COMPENSATED
+    }
+
+    // ===== QUERIES =====
+
+    public static final String OPEN_FOR_OWNER = "Saga.openForOwner";
+
+    @Id
+    @Column(name = "id", length = 64)
+    private String id;
+
+    // Transaction type of the first step: DEPOSIT, WITHDRAW or TRANSFER_OUT
+    @Column(name = "type", nullable = false, updatable = false)
+    private String type;
+
+    // Terminal that runs the saga and recovers it after a crash
+    @Column(name = "owner", nullable = false, updatable = false)
+    private String owner;
+
+    @Column(name = "account_id", nullable = false, updatable = false)
+    private String accountId;
+
+    @Column(name = "target_id", updatable = false)
+    private String targetId;
+
+    @Column(name = "amount", nullable = false, updatable = false)
+    private double amount;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "state", nullable = false, length = 16)
+    private State state;
+
+    // ===== GETTERS & SETTERS =====
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(String accountId) {
+        this.accountId = accountId;
+    }
+
+    public String getTargetId() {
+        return targetId;
+    }
+
+    public void setTargetId(String targetId) {
+        this.targetId = targetId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public void setAmount(double amount) {
+        this.amount = amount;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Whether a retry with the same id asks for the same movement.
+     */
+    public boolean matches(String type, String accountId, String targetId, double amount) {
+        return this.type.equals(type) && this.accountId.equals(accountId)
+                && Objects.equals(this.targetId, targetId) && this.amount == amount;
+    }
+
+    /**
+     * The original request, for the message shown when an id is reused.
+     */
+    public String describe() {
+        return String.format("%s of %.2f on %s%s", type, amount, accountId, targetId == null ? "" : " to " + targetId);
+    }
+}
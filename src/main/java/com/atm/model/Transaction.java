@@ -3,30 +3,78 @@ package com.atm.model;
 import jakarta.persistence.*;
 import java.time.LocalDateTime;
 
+/**
+ * Append-only ledger event. Account balances can always be rebuilt by
+ * replaying these rows in id order, so they are never updated once written.
+ */
 @Entity
-@Table(name = "transactions")
+@Table(name = "transactions", indexes = {
+        @Index(name = "idx_transactions_account", columnList = "account_id, id"),
+        @Index(name = "idx_transactions_saga", columnList = "saga_id")
+})
+@NamedQueries({
+        @NamedQuery(name = Transaction.FOR_ACCOUNT_BETWEEN,
+                query = "SELECT t FROM Transaction t WHERE t.account.accountId = :id "
+                        + "AND t.time >= :from AND t.time < :to ORDER BY t.id"),
+        @NamedQuery(name = Transaction.COUNT_FOR_SAGA,
+                query = "SELECT COUNT(t) FROM Transaction t WHERE t.saga = :saga AND t.type = :type")
+})
 public class Transaction extends BaseEntity {
 
+    // ===== TYPES =====
+
+    public static final String OPENING = "OPENING";
+    public static final String DEPOSIT = "DEPOSIT";
+    public static final String WITHDRAW = "WITHDRAW";
+    public static final String TRANSFER_IN = "TRANSFER_IN";
+    public static final String TRANSFER_OUT = "TRANSFER_OUT";
+    public static final String FEE = "FEE";
+    public static final String INTEREST = "INTEREST";
+    // Credit that undoes an earlier debit of the same saga
+    public static final String REVERSAL = "REVERSAL";
+
+    // ===== QUERIES =====
+
+    public static final String FOR_ACCOUNT_BETWEEN = "Transaction.forAccountBetween";
+    public static final String COUNT_FOR_SAGA = "Transaction.countForSaga";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
-    @ManyToOne
-    @JoinColumn(name = "account_id", nullable = false)
+    // Ledger reads only need the account id, which a lazy proxy carries without a join
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "account_id", nullable = false, updatable = false,
+            foreignKey = @ForeignKey(name = "fk_transactions_account"))
     private Account account;
 
+    @Column(updatable = false)
     private double amount;
 
+    @Column(updatable = false)
     private String type;
 
+    @Column(updatable = false)
     private LocalDateTime time;
 
+    // Cross-shard movements only: the saga this row is a step of
+    @Column(name = "saga_id", length = 64, updatable = false)
+    private String saga;
+
     // ===== GETTERS & SETTERS =====
 
     public Long getId() {
         return id;
     }
 
+    /**
+     * Only for rows read back from an archive file; live rows get their id
+     * from the database.
+     */
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public Account getAccount() {
         return account;
     }
@@ -58,4 +106,37 @@ public class Transaction extends BaseEntity {
     public void setTime(LocalDateTime time) {
         this.time = time;
     }
+
+    public String getSaga() {
+        return saga;
+    }
+
+    public void setSaga(String saga) {
+        this.saga = saga;
+    }
+
+    // ===== LEDGER =====
+
+    /**
+     * Effect of this row on the account balance: positive for credits,
+     * negative for debits.
+     */
+    public double getSignedAmount() {
+        return signedAmount(type, amount);
+    }
+
+    public static double signedAmount(String type, double amount) {
+        if (WITHDRAW.equals(type) || TRANSFER_OUT.equals(type) || FEE.equals(type)) {
+            return -amount;
+        }
+        return amount;
+    }
+
+    /**
+     * JPQL expression for {@link #signedAmount} of the rows bound to {@code alias}.
+     */
+    public static String signedAmountJpql(String alias) {
+        return "CASE WHEN " + alias + ".type IN ('" + WITHDRAW + "', '" + TRANSFER_OUT + "', '" + FEE + "') "
+                + "THEN -" + alias + ".amount ELSE " + alias + ".amount END";
+    }
 }
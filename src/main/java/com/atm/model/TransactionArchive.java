@@ -0,0 +1,59 @@
+package com.atm.model;
+
+import jakarta.persistence.*;
+
+/**
+ * A month of {@link Transaction} rows that has been moved out of the hot
+ * table into a compressed archive file.
+ */
+@Entity
+@Table(name = "transaction_archives")
+@NamedQueries({
+        @NamedQuery(name = TransactionArchive.BETWEEN,
+                query = "SELECT a FROM TransactionArchive a WHERE a.month >= :first AND a.month <= :last ORDER BY a.month"),
+        @NamedQuery(name = TransactionArchive.LATEST_MONTH,
+                query = "SELECT MAX(a.month) FROM TransactionArchive a")
+})
+public class TransactionArchive extends BaseEntity {
+
+    // ===== QUERIES =====
+
+    public static final String BETWEEN = "TransactionArchive.between";
+    public static final String LATEST_MONTH = "TransactionArchive.latestMonth";
+
+    @Id
+    @Column(name = "archive_month", length = 7)
+    private String month;
+
+    @Column(name = "file_path", nullable = false)
+    private String filePath;
+
+    @Column(name = "row_count", nullable = false)
+    private long rowCount;
+
+    // ===== GETTERS & SETTERS =====
+
+    public String getMonth() {
+        return month;
+    }
+
+    public void setMonth(String month) {
+        this.month = month;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public void setRowCount(long rowCount) {
+        this.rowCount = rowCount;
+    }
+}
@@ -1,43 +1,190 @@
 package com.atm.service;
 
+import com.atm.db.DatabaseGuard;
 import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
 import com.atm.model.Account;
 import com.atm.model.ATMState;
+import com.atm.model.IdempotencyRecord;
 import com.atm.model.Transaction;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
 import jakarta.persistence.NoResultException;
 import jakarta.persistence.TypedQuery;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
-public class ATMService {
+public class ATMService implements AutoCloseable {
 
     private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final String TECHNICIAN = "technician";
+
+    private final VelocityChecker velocity = VelocityChecker.fromClasspath();
+    private final PinVerifier pins = PinVerifier.fromClasspath();
+    private final AdmissionController admission = AdmissionController.fromClasspath();
+    private final DatabaseGuard guard = DatabaseGuard.fromClasspath();
+    private final Long terminalId;
+    private final TerminalResources resources;
+    private final IdempotencyStore idempotency;
+    private final StandInAuthorizer standIn;
+    private final AuditLog audit;
+    private final TransactionEventLog events;
+    private final SupplyMonitor supplies;
+    private final LedgerEngine engine;
+    private final ReadRouter reads;
+    // Only when accounts are sharded
+    private final SagaCoordinator sagas;
+    // When this terminal last committed a write, so its own reads see it
+    private volatile long lastWriteMillis;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public ATMService() {
+        this(null);
+    }
+
+    /**
+     * Service for one terminal of a fleet. {@code null} selects the first
+     * terminal, which is the only one on a single-machine install. Supply
+     * changes go to the process-wide {@link SupplyMonitor#fromClasspath()}.
+     */
+    public ATMService(Long terminalId) {
+        this(terminalId, SupplyMonitor.fromClasspath());
+    }
+
+    /**
+     * Service reporting supply changes to {@code supplies}, which may be
+     * shared by the services of several terminals.
+     */
+    public ATMService(Long terminalId, SupplyMonitor supplies) {
+        this(terminalId, supplies, null);
+    }
+
+    /**
+     * Service that authorizes money movements on {@code engine} instead of
+     * in a database transaction per operation; {@code null} for the
+     * database path.
+     */
+    public ATMService(Long terminalId, SupplyMonitor supplies, LedgerEngine engine) {
+        this(terminalId, supplies, engine, ReadRouter.fromClasspath());
+    }
+
+    /**
+     * Service sending account, status and history reads through {@code reads},
+     * which may route them to a replica.
+     */
+    public ATMService(Long terminalId, SupplyMonitor supplies, LedgerEngine engine, ReadRouter reads) {
+        this.terminalId = terminalId;
+        this.supplies = supplies;
+        this.engine = engine;
+        this.reads = reads;
+        this.sagas = JpaManager.shardCount() > 1 ? new SagaCoordinator(terminalId, supplies) : null;
+        this.resources = TerminalResources.acquire(terminalId);
+        this.idempotency = resources.idempotency;
+        this.standIn = resources.standIn;
+        this.audit = resources.audit;
+        this.events = resources.events;
+    }
+
+    /**
+     * Writes out this terminal's audit and event logs, stops their writers
+     * and closes its stand-in queue, once no other service of the same
+     * terminal uses them. Queued offline withdrawals stay on disk for the
+     * next start to replay.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            TerminalResources.release(resources);
+        }
+    }
 
     /* ================= LOGIN ================= */
 
     public Account login(String cardNumber, String pin) {
-        EntityManager em = JpaManager.getEntityManager();
+        return admitted(AdmissionController.Priority.CUSTOMER, () -> doLogin(cardNumber, pin));
+    }
+
+    private Account doLogin(String cardNumber, String pin) {
         try {
-            TypedQuery<Account> q = em.createQuery(
-                "SELECT a FROM Account a WHERE a.cardNumber = :card AND a.pin = :pin",
-                Account.class
-            );
-            q.setParameter("card", cardNumber);
-            q.setParameter("pin", pin);
-
-            Account account = q.getSingleResult();
-            account.setFailedAttempts(0); // Reset failed attempts on successful login
-            
-            em.getTransaction().begin();
-            em.merge(account);
-            em.getTransaction().commit();
-            
+            // Accounts are sharded by id, not card, so each shard is asked in turn
+            Account account = null;
+            int shard = 0;
+            for (int n = 0; n < JpaManager.shardCount() && account == null; n++) {
+                account = findByCard(n, cardNumber);
+                shard = n;
+            }
+
+            // No connection is held while the hash is checked
+            PinVerifier.Result check = pins.verify(account == null ? null : account.getPin(), pin);
+            if (check.getOutcome() == PinVerifier.Outcome.BUSY) {
+                System.out.println("The ATM is busy. Please try again in a moment.");
+                audit.record(cardNumber, "LOGIN_BUSY", "PIN verifier queue full");
+                return null;
+            }
+            if (check.getOutcome() != PinVerifier.Outcome.MATCH) {
+                audit.record(cardNumber, "LOGIN_FAILED", "wrong card or PIN");
+                return null;
+            }
+
+            recordLogin(shard, account, check.getUpgradedHash());
+            standIn.rememberLogin(account);
             return account;
-        } catch (NoResultException e) {
-            return null;
+        } catch (RuntimeException e) {
+            guard.failed(e);
+            if (StandInAuthorizer.isDatabaseUnavailable(e)) {
+                Account offline = standIn.login(cardNumber, pin);
+                audit.record(cardNumber, offline != null ? "LOGIN_STANDIN" : "LOGIN_FAILED", "bank offline");
+                return offline;
+            }
+            throw e;
+        }
+    }
+
+    private Account findByCard(int shard, String cardNumber) {
+        EntityManager em = guard.forRead(JpaManager.getEntityManager(shard), DatabaseGuard.Operation.LOGIN);
+        try {
+            List<Account> accounts = em.createNamedQuery(Account.BY_CARD, Account.class)
+                    .setParameter("card", cardNumber)
+                    .getResultList();
+            return accounts.isEmpty() ? null : accounts.get(0);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Resets failed attempts and stores the upgraded PIN hash, if any.
+     */
+    private void recordLogin(int shard, Account account, String upgradedHash) {
+        if (account.getFailedAttempts() == 0 && upgradedHash == null) {
+            return;
+        }
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            guard.begin(em, DatabaseGuard.Operation.LOGIN);
+            Account managed = em.find(Account.class, account.getAccountId(), LockModeType.PESSIMISTIC_WRITE);
+            managed.setFailedAttempts(0); // Reset failed attempts on successful login
+            // Unless the PIN was changed meanwhile
+            if (upgradedHash != null && managed.getPin().equals(account.getPin())) {
+                managed.setPin(upgradedHash);
+            }
+            em.getTransaction().commit();
+            account.setFailedAttempts(0);
+            account.setPin(managed.getPin());
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
         } finally {
             em.close();
         }
@@ -46,7 +193,15 @@ public class ATMService {
     /* ================= ACCOUNT OPERATIONS ================= */
 
     public Account getAccountDetails(String accountId) {
-        EntityManager em = JpaManager.getEntityManager();
+        return admitted(AdmissionController.Priority.CUSTOMER, () -> readAccount(accountId));
+    }
+
+    private Account readAccount(String accountId) {
+        int shard = JpaManager.shardOf(accountId);
+        // Only the home shard has a replica
+        EntityManager em = guard.forRead(shard == 0
+                ? reads.forRead(ReadRouter.Read.ACCOUNT, lastWriteMillis)
+                : JpaManager.getEntityManager(shard), DatabaseGuard.Operation.ACCOUNT);
         try {
             return em.find(Account.class, accountId);
         } finally {
@@ -61,20 +216,55 @@ public class ATMService {
     /* ================= DEPOSIT ================= */
 
     public boolean deposit(Account account, double amount) {
+        return deposit(account, amount, null);
+    }
+
+    /**
+     * Deposit that runs at most once per {@code idempotencyKey}. A retry with
+     * the same key returns the original result without touching the account.
+     */
+    public boolean deposit(Account account, double amount, String idempotencyKey) {
+        long start = System.nanoTime();
+        boolean done = admitted(AdmissionController.Priority.CUSTOMER,
+                () -> doDeposit(account, amount, idempotencyKey));
+        events.record(Transaction.DEPOSIT, account.getAccountId(), amount, done, start);
+        return done;
+    }
+
+    private boolean doDeposit(Account account, double amount, String idempotencyKey) {
         if (amount <= 0) {
             System.out.println("Invalid amount. Please enter a positive number.");
             return false;
         }
 
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+        if (engine != null) {
+            return applied(engine.deposit(terminalId, account.getAccountId(), amount, idempotencyKey),
+                    account, "Deposit successful.");
+        }
+
+        Boolean replayed = replay(idempotencyKey, Transaction.DEPOSIT, account, amount);
+        if (replayed != null) {
+            return replayed;
+        }
 
+        if (sagas != null && JpaManager.shardOf(account.getAccountId()) != 0) {
+            guard.check();
+            return settled(sagas.deposit(account, amount, idempotencyKey), account);
+        }
+
+        EntityManager em = JpaManager.getEntityManager();
         try {
-            Account managed = em.find(Account.class, account.getAccountId());
+            guard.begin(em, DatabaseGuard.Operation.DEPOSIT);
+            Account managed = em.find(Account.class, account.getAccountId(), LockModeType.PESSIMISTIC_WRITE);
             ATMState atmState = getATMState(em);
+            double[] before = SupplyMonitor.levels(atmState);
 
+            if (!atmState.depositNotes(amount)) {
+                System.out.println("Deposits must be made in $20, $50 and $100 notes.");
+                em.getTransaction().rollback();
+                return false;
+            }
             managed.setBalance(managed.getBalance() + amount);
-            atmState.addCash(amount);
 
             Transaction t = new Transaction();
             t.setAccount(managed);
@@ -84,13 +274,29 @@ public class ATMService {
 
             em.persist(t);
             em.merge(atmState);
+            IdempotencyRecord record = recordKey(em, idempotencyKey, Transaction.DEPOSIT, managed, amount);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(atmState.getId(), before, atmState);
+            remember(record);
 
             System.out.println("Deposit successful.");
             account.setBalance(managed.getBalance());
+            standIn.rememberBalance(account);
             return true;
+        } catch (DatabaseGuard.OpenException e) {
+            // Refused before the transaction began; the caller handles an open breaker
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            // A concurrent attempt with the same key may have committed first
+            Boolean raced = replay(idempotencyKey, Transaction.DEPOSIT, account, amount);
+            if (raced != null) {
+                return raced;
+            }
             System.out.println("Deposit failed: " + e.getMessage());
             return false;
         } finally {
@@ -101,17 +307,54 @@ public class ATMService {
     /* ================= WITHDRAW ================= */
 
     public boolean withdraw(Account account, double amount) {
+        return withdraw(account, amount, null);
+    }
+
+    /**
+     * Withdrawal that runs at most once per {@code idempotencyKey}. A retry
+     * with the same key returns the original result without debiting again.
+     */
+    public boolean withdraw(Account account, double amount, String idempotencyKey) {
+        long start = System.nanoTime();
+        boolean done = admitted(AdmissionController.Priority.CUSTOMER,
+                () -> doWithdraw(account, amount, idempotencyKey));
+        events.record(Transaction.WITHDRAW, account.getAccountId(), amount, done, start);
+        return done;
+    }
+
+    private boolean doWithdraw(Account account, double amount, String idempotencyKey) {
         if (amount <= 0) {
             System.out.println("Invalid amount. Please enter a positive number.");
             return false;
         }
 
+        if (engine != null) {
+            return withinVelocityLimits(account, amount, () -> applied(
+                    engine.withdraw(terminalId, account.getAccountId(), amount, idempotencyKey),
+                    account, "Withdrawal successful."));
+        }
+
+        Boolean replayed = replay(idempotencyKey, Transaction.WITHDRAW, account, amount);
+        if (replayed != null) {
+            return replayed;
+        }
+
+        return withinVelocityLimits(account, amount, () -> debit(account, amount, idempotencyKey));
+    }
+
+    private boolean debit(Account account, double amount, String idempotencyKey) {
+        if (sagas != null && JpaManager.shardOf(account.getAccountId()) != 0) {
+            guard.check();
+            return settled(sagas.withdraw(account, amount, idempotencyKey), account);
+        }
+
         EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
 
         try {
-            Account managed = em.find(Account.class, account.getAccountId());
+            guard.begin(em, DatabaseGuard.Operation.WITHDRAW);
+            Account managed = em.find(Account.class, account.getAccountId(), LockModeType.PESSIMISTIC_WRITE);
             ATMState atmState = getATMState(em);
+            double[] before = SupplyMonitor.levels(atmState);
 
             // Validate
             if (managed.getBalance() < amount) {
@@ -138,9 +381,14 @@ public class ATMService {
                 return false;
             }
 
+            if (!atmState.dispense(amount)) {
+                System.out.println("ATM cannot dispense this amount with the available notes.");
+                em.getTransaction().rollback();
+                return false;
+            }
+
             // Process withdrawal
             managed.setBalance(managed.getBalance() - amount);
-            atmState.setCash(atmState.getCash() - amount);
 
             Transaction t = new Transaction();
             t.setAccount(managed);
@@ -150,13 +398,29 @@ public class ATMService {
 
             em.persist(t);
             em.merge(atmState);
+            IdempotencyRecord record = recordKey(em, idempotencyKey, Transaction.WITHDRAW, managed, amount);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(atmState.getId(), before, atmState);
+            remember(record);
 
             System.out.println("Withdrawal successful.");
             account.setBalance(managed.getBalance());
+            standIn.rememberBalance(account);
+            standIn.rememberCash(atmState.getCash());
             return true;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            if (StandInAuthorizer.isDatabaseUnavailable(e)) {
+                return standIn.withdraw(account, amount, idempotencyKey);
+            }
+            Boolean raced = replay(idempotencyKey, Transaction.WITHDRAW, account, amount);
+            if (raced != null) {
+                return raced;
+            }
             System.out.println("Withdrawal failed: " + e.getMessage());
             return false;
         } finally {
@@ -167,32 +431,82 @@ public class ATMService {
     /* ================= TRANSFER ================= */
 
     public boolean transfer(Account from, String toCardNumber, double amount) {
+        return transfer(from, toCardNumber, amount, null);
+    }
+
+    /**
+     * Transfer that runs at most once per {@code idempotencyKey}. A retry with
+     * the same key returns the original result without moving money again.
+     */
+    public boolean transfer(Account from, String toCardNumber, double amount, String idempotencyKey) {
+        long start = System.nanoTime();
+        boolean done = admitted(AdmissionController.Priority.CUSTOMER,
+                () -> doTransfer(from, toCardNumber, amount, idempotencyKey));
+        events.record(Transaction.TRANSFER_OUT, from.getAccountId(), amount, done, start);
+        return done;
+    }
+
+    private boolean doTransfer(Account from, String toCardNumber, double amount, String idempotencyKey) {
         if (amount <= 0) {
             System.out.println("Invalid amount. Please enter a positive number.");
             return false;
         }
 
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+        if (engine != null) {
+            return withinVelocityLimits(from, amount, () -> applied(
+                    engine.transfer(from.getAccountId(), toCardNumber, amount, idempotencyKey),
+                    from, "Transfer successful."));
+        }
 
-        try {
-            Account sender = em.find(Account.class, from.getAccountId());
+        String operation = Transaction.TRANSFER_OUT + ":" + toCardNumber;
+        Boolean replayed = replay(idempotencyKey, operation, from, amount);
+        if (replayed != null) {
+            return replayed;
+        }
+
+        return withinVelocityLimits(from, amount,
+                () -> move(from, toCardNumber, amount, idempotencyKey, operation));
+    }
 
-            TypedQuery<Account> q = em.createQuery(
-                "SELECT a FROM Account a WHERE a.cardNumber = :card",
-                Account.class
-            );
+    private boolean move(Account from, String toCardNumber, double amount, String idempotencyKey,
+                         String operation) {
+        if (sagas != null) {
+            String receiverId = findAccountIdByCard(toCardNumber);
+            if (receiverId == null) {
+                System.out.println("Target account not found.");
+                return false;
+            }
+            if (JpaManager.shardOf(from.getAccountId()) != 0 || JpaManager.shardOf(receiverId) != 0) {
+                return settled(sagas.transfer(from, receiverId, amount, idempotencyKey), from);
+            }
+        }
+
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            guard.begin(em, DatabaseGuard.Operation.TRANSFER);
+            TypedQuery<String> q = em.createNamedQuery(Account.ID_BY_CARD, String.class);
             q.setParameter("card", toCardNumber);
 
-            Account receiver;
+            String receiverId;
             try {
-                receiver = q.getSingleResult();
+                receiverId = q.getSingleResult();
             } catch (NoResultException e) {
                 System.out.println("Target account not found.");
                 em.getTransaction().rollback();
                 return false;
             }
 
+            // Lock both accounts in id order so opposite transfers cannot deadlock
+            Account sender;
+            Account receiver;
+            if (from.getAccountId().compareTo(receiverId) <= 0) {
+                sender = em.find(Account.class, from.getAccountId(), LockModeType.PESSIMISTIC_WRITE);
+                receiver = em.find(Account.class, receiverId, LockModeType.PESSIMISTIC_WRITE);
+            } else {
+                receiver = em.find(Account.class, receiverId, LockModeType.PESSIMISTIC_WRITE);
+                sender = em.find(Account.class, from.getAccountId(), LockModeType.PESSIMISTIC_WRITE);
+            }
+
             if (sender.getBalance() < amount) {
                 System.out.println("Insufficient balance.");
                 em.getTransaction().rollback();
@@ -217,13 +531,26 @@ public class ATMService {
 
             em.persist(t1);
             em.persist(t2);
+            IdempotencyRecord record = recordKey(em, idempotencyKey, operation, sender, amount);
             em.getTransaction().commit();
+            wrote();
+            remember(record);
 
             System.out.println("Transfer successful.");
             from.setBalance(sender.getBalance());
+            standIn.rememberBalance(from);
             return true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            Boolean raced = replay(idempotencyKey, operation, from, amount);
+            if (raced != null) {
+                return raced;
+            }
             System.out.println("Transfer failed: " + e.getMessage());
             return false;
         } finally {
@@ -233,12 +560,20 @@ public class ATMService {
 
     /* ================= RECEIPT ================= */
 
-    public void printReceipt(String type, double amount, double balance) {
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+    /**
+     * @return whether paper and ink were used; false if the ATM could not print
+     */
+    public boolean printReceipt(String type, double amount, double balance) {
+        return admitted(AdmissionController.Priority.CUSTOMER, () -> doPrintReceipt(type, amount, balance));
+    }
 
+    private boolean doPrintReceipt(String type, double amount, double balance) {
+        boolean printed = false;
+        EntityManager em = JpaManager.getEntityManager();
         try {
+            guard.begin(em, DatabaseGuard.Operation.RECEIPT);
             ATMState state = getATMState(em);
+            double[] before = SupplyMonitor.levels(state);
 
             boolean outOfPaper = state.getPaper() <= 0;
             boolean outOfInk = state.getInk() <= 0;
@@ -253,7 +588,7 @@ public class ATMService {
                 } else {
                     System.out.println("Sorry, we cannot print the receipt. The ATM is out of ink.");
                 }
-                return;
+                return false;
             }
 
             // Decrement paper and ink when printing receipt
@@ -262,8 +597,16 @@ public class ATMService {
 
             em.merge(state);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(state.getId(), before, state);
+            printed = true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             System.out.println("Error updating receipt supplies: " + e.getMessage());
         } finally {
             em.close();
@@ -275,12 +618,21 @@ public class ATMService {
         System.out.printf("Balance: %.2f\n", balance);
         System.out.printf("Date   : %s\n", LocalDateTime.now().format(dateFormatter));
         System.out.println("---------------------------\n");
+        return printed;
     }
 
     /* ================= TECHNICIAN OPERATIONS ================= */
 
     public void viewATMStatus() {
-        EntityManager em = JpaManager.getEntityManager();
+        admitted(AdmissionController.Priority.TECHNICIAN, () -> {
+            doViewATMStatus();
+            return null;
+        });
+    }
+
+    private void doViewATMStatus() {
+        EntityManager em = guard.forRead(reads.forRead(ReadRouter.Read.STATUS, lastWriteMillis),
+                DatabaseGuard.Operation.STATUS);
         try {
             ATMState state = getATMState(em);
             System.out.println("\n===== ATM STATUS =====");
@@ -288,69 +640,138 @@ public class ATMService {
             System.out.printf("Paper: %d\n", state.getPaper());
             System.out.printf("Ink: %d\n", state.getInk());
             System.out.printf("Firmware: %s\n", state.getFirmwareVersion());
+            System.out.printf("Database: %s (failed %.0f%%, slow %.0f%%, opened %d times)\n", guard.getState(),
+                    100 * guard.getFailureRate(), 100 * guard.getSlowCallRate(), guard.getTimesOpened());
             System.out.println("Banknotes:");
             System.out.printf("  $20 notes: %d\n", state.getNotes20());
             System.out.printf("  $50 notes: %d\n", state.getNotes50());
             System.out.printf("  $100 notes: %d\n", state.getNotes100());
+            Duration cashLeft = supplies.timeToEmpty(state, SupplyMonitor.Supply.CASH);
+            if (cashLeft != null) {
+                System.out.printf("Cash forecast: empty in ~%.1f h\n", cashLeft.toMinutes() / 60.0);
+            }
             System.out.println("====================\n");
+            supplies.observe(state.getId(), null, state);
         } finally {
             em.close();
         }
     }
 
-    public void refillPaper(int amount) {
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+    /**
+     * The terminal's supplies as last committed, read where
+     * {@link ReadRouter.Read#STATUS} is routed, without printing them.
+     */
+    public ATMState getATMStatus() {
+        return admitted(AdmissionController.Priority.TECHNICIAN, this::readATMStatus);
+    }
+
+    private ATMState readATMStatus() {
+        EntityManager em = guard.forRead(reads.forRead(ReadRouter.Read.STATUS, lastWriteMillis),
+                DatabaseGuard.Operation.STATUS);
+        try {
+            return getATMState(em);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return whether the paper was refilled
+     */
+    public boolean refillPaper(int amount) {
+        return admitted(AdmissionController.Priority.TECHNICIAN, () -> doRefillPaper(amount));
+    }
 
+    private boolean doRefillPaper(int amount) {
+        EntityManager em = JpaManager.getEntityManager();
         try {
+            guard.begin(em, DatabaseGuard.Operation.SUPPLIES);
             ATMState state = getATMState(em);
             state.refillPaper(amount);
             em.merge(state);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(state.getId(), null, state);
             System.out.printf("Paper refilled by %d. Total: %d\n", amount, state.getPaper());
+            audit.record(TECHNICIAN, "REFILL_PAPER", "added=" + amount + " total=" + state.getPaper());
+            return true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             System.out.println("Refill failed: " + e.getMessage());
+            audit.record(TECHNICIAN, "REFILL_PAPER_FAILED", e.getMessage());
+            return false;
         } finally {
             em.close();
         }
     }
 
-    public void refillInk(int amount) {
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+    /**
+     * @return whether the ink was refilled
+     */
+    public boolean refillInk(int amount) {
+        return admitted(AdmissionController.Priority.TECHNICIAN, () -> doRefillInk(amount));
+    }
 
+    private boolean doRefillInk(int amount) {
+        EntityManager em = JpaManager.getEntityManager();
         try {
+            guard.begin(em, DatabaseGuard.Operation.SUPPLIES);
             ATMState state = getATMState(em);
             state.refillInk(amount);
             em.merge(state);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(state.getId(), null, state);
             System.out.printf("Ink refilled by %d. Total: %d\n", amount, state.getInk());
+            audit.record(TECHNICIAN, "REFILL_INK", "added=" + amount + " total=" + state.getInk());
+            return true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             System.out.println("Refill failed: " + e.getMessage());
+            audit.record(TECHNICIAN, "REFILL_INK_FAILED", e.getMessage());
+            return false;
         } finally {
             em.close();
         }
     }
 
-    public void addCashToATM(int notes20, int notes50, int notes100) {
+    /**
+     * @return whether the notes were added
+     */
+    public boolean addCashToATM(int notes20, int notes50, int notes100) {
+        return admitted(AdmissionController.Priority.TECHNICIAN, () -> doAddCashToATM(notes20, notes50, notes100));
+    }
+
+    private boolean doAddCashToATM(int notes20, int notes50, int notes100) {
         if (notes20 < 0 || notes50 < 0 || notes100 < 0) {
             System.out.println("Invalid amount. Banknotes cannot be negative.");
-            return;
+            return false;
         }
 
         double totalCash = (notes20 * 20) + (notes50 * 50) + (notes100 * 100);
         
         if (totalCash == 0) {
             System.out.println("Please add at least one banknote.");
-            return;
+            return false;
         }
 
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+        if (engine != null) {
+            return adjustNotesOnEngine(notes20, notes50, notes100, "CASH_ADDED", "CASH_ADD_FAILED");
+        }
 
+        EntityManager em = JpaManager.getEntityManager();
         try {
+            guard.begin(em, DatabaseGuard.Operation.CASH);
             ATMState state = getATMState(em);
             state.setCash(state.getCash() + totalCash);
             state.setNotes20(state.getNotes20() + notes20);
@@ -358,47 +779,69 @@ public class ATMService {
             state.setNotes100(state.getNotes100() + notes100);
             em.merge(state);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(state.getId(), null, state);
             System.out.printf("\n=== CASH ADDED ===");
             System.out.printf("$20 notes added: %d\n", notes20);
             System.out.printf("$50 notes added: %d\n", notes50);
             System.out.printf("$100 notes added: %d\n", notes100);
             System.out.printf("Total cash added: $%.2f\n", totalCash);
             System.out.printf("ATM total cash: $%.2f\n==================\n", state.getCash());
+            audit.record(TECHNICIAN, "CASH_ADDED", String.format("n20=%d n50=%d n100=%d total=%.2f cash=%.2f",
+                    notes20, notes50, notes100, totalCash, state.getCash()));
+            return true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             System.out.println("Operation failed: " + e.getMessage());
+            audit.record(TECHNICIAN, "CASH_ADD_FAILED", e.getMessage());
+            return false;
         } finally {
             em.close();
         }
     }
 
-    public void collectCash(int notes20, int notes50, int notes100) {
+    /**
+     * @return whether the notes were taken out
+     */
+    public boolean collectCash(int notes20, int notes50, int notes100) {
+        return admitted(AdmissionController.Priority.TECHNICIAN, () -> doCollectCash(notes20, notes50, notes100));
+    }
+
+    private boolean doCollectCash(int notes20, int notes50, int notes100) {
         if (notes20 < 0 || notes50 < 0 || notes100 < 0) {
             System.out.println("Invalid banknote quantities. Please enter positive numbers.");
-            return;
+            return false;
         }
 
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+        if (engine != null) {
+            return adjustNotesOnEngine(-notes20, -notes50, -notes100, "CASH_COLLECTED", "CASH_COLLECT_FAILED");
+        }
 
+        EntityManager em = JpaManager.getEntityManager();
         try {
+            guard.begin(em, DatabaseGuard.Operation.CASH);
             ATMState state = getATMState(em);
             
             // Check if requested banknotes are available
             if (state.getNotes20() < notes20) {
                 System.out.println("Not enough $20 notes. Available: " + state.getNotes20());
                 em.getTransaction().rollback();
-                return;
+                return false;
             }
             if (state.getNotes50() < notes50) {
                 System.out.println("Not enough $50 notes. Available: " + state.getNotes50());
                 em.getTransaction().rollback();
-                return;
+                return false;
             }
             if (state.getNotes100() < notes100) {
                 System.out.println("Not enough $100 notes. Available: " + state.getNotes100());
                 em.getTransaction().rollback();
-                return;
+                return false;
             }
             
             // Calculate total amount
@@ -412,6 +855,8 @@ public class ATMService {
             
             em.merge(state);
             em.getTransaction().commit();
+            wrote();
+            supplies.observe(state.getId(), null, state);
             
             System.out.printf("\n=== CASH COLLECTED ===\n");
             System.out.printf("$20 notes collected: %d\n", notes20);
@@ -419,36 +864,325 @@ public class ATMService {
             System.out.printf("$100 notes collected: %d\n", notes100);
             System.out.printf("Total collected: $%.2f\n", totalAmount);
             System.out.printf("Remaining ATM cash: $%.2f\n==================\n", state.getCash());
+            audit.record(TECHNICIAN, "CASH_COLLECTED", String.format("n20=%d n50=%d n100=%d total=%.2f cash=%.2f",
+                    notes20, notes50, notes100, totalAmount, state.getCash()));
+            return true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             System.out.println("Collection failed: " + e.getMessage());
+            audit.record(TECHNICIAN, "CASH_COLLECT_FAILED", e.getMessage());
+            return false;
         } finally {
             em.close();
         }
     }
 
-    public void updateFirmware(String version) {
-        EntityManager em = JpaManager.getEntityManager();
-        em.getTransaction().begin();
+    /**
+     * @return whether the firmware version was changed
+     */
+    public boolean updateFirmware(String version) {
+        return admitted(AdmissionController.Priority.TECHNICIAN, () -> doUpdateFirmware(version));
+    }
 
+    private boolean doUpdateFirmware(String version) {
+        EntityManager em = JpaManager.getEntityManager();
         try {
+            guard.begin(em, DatabaseGuard.Operation.FIRMWARE);
             ATMState state = getATMState(em);
+            String previous = state.getFirmwareVersion();
             state.setFirmwareVersion(version);
             em.merge(state);
             em.getTransaction().commit();
+            wrote();
             System.out.printf("Firmware updated to: %s\n", version);
+            audit.record(TECHNICIAN, "FIRMWARE_UPDATED", previous + " -> " + version);
+            return true;
+        } catch (DatabaseGuard.OpenException e) {
+            throw e;
         } catch (Exception e) {
-            em.getTransaction().rollback();
+            guard.failed(e);
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
             System.out.println("Update failed: " + e.getMessage());
+            audit.record(TECHNICIAN, "FIRMWARE_UPDATE_FAILED", version + ": " + e.getMessage());
+            return false;
         } finally {
             em.close();
         }
     }
 
+    /* ================= SHARDS ================= */
+
+    /**
+     * Completes or compensates this terminal's cross-shard operations that
+     * were interrupted more than {@code olderThan} ago. Use a zero age only
+     * at startup, before the terminal takes customers.
+     */
+    public void recoverSagas(Duration olderThan) {
+        if (sagas == null) {
+            return;
+        }
+        try {
+            admitted(AdmissionController.Priority.BATCH, () -> {
+                guard.check();
+                sagas.recover(olderThan);
+                return null;
+            });
+        } catch (AdmissionController.RejectedException e) {
+            // Busy with customers; the next round picks them up
+        } catch (RuntimeException e) {
+            if (!StandInAuthorizer.isDatabaseUnavailable(e)) {
+                System.out.println("Saga recovery failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /* ================= STAND-IN ================= */
+
+    /**
+     * Posts withdrawals approved while the database was unreachable. Safe to
+     * call periodically; does nothing when the queue is empty or the
+     * database is still down.
+     */
+    public void replayStandIn() {
+        if (!standIn.hasPending()) {
+            return;
+        }
+        try {
+            admitted(AdmissionController.Priority.BATCH, () -> {
+                guard.check();
+                standIn.replay();
+                return null;
+            });
+            wrote();
+        } catch (AdmissionController.RejectedException e) {
+            // Busy with customers; the next round posts them
+        } catch (RuntimeException e) {
+            if (!StandInAuthorizer.isDatabaseUnavailable(e)) {
+                System.out.println("Stand-in replay failed: " + e.getMessage());
+            }
+        }
+    }
+
     /* ================= HELPER METHODS ================= */
 
+    /**
+     * Runs {@code call} in a slot of {@code priority}, as one call of the
+     * database guard.
+     *
+     * @throws AdmissionController.RejectedException if the service is at its limit
+     * @throws DatabaseGuard.OpenException if the call needs the database while its breaker is open
+     */
+    private <T> T admitted(AdmissionController.Priority priority, Supplier<T> call) {
+        try (AdmissionController.Permit permit = admission.admit(priority);
+             DatabaseGuard.Call db = guard.call()) {
+            try {
+                return call.get();
+            } catch (RuntimeException e) {
+                permit.failed();
+                db.failed(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits for the engine's decision and reports it the way the database
+     * path does, with the same bookkeeping after an approval.
+     */
+    private boolean adjustNotesOnEngine(int notes20, int notes50, int notes100, String action, String failedAction) {
+        LedgerEngine.Result result = engine.adjustNotes(terminalId, notes20, notes50, notes100).join();
+        String detail = String.format("n20=%d n50=%d n100=%d", notes20, notes50, notes100);
+        if (!result.isApproved()) {
+            System.out.println(result.getStatus().getMessage());
+            audit.record(TECHNICIAN, failedAction, detail + " " + result.getStatus());
+            return false;
+        }
+        wrote();
+        supplies.observe(result.getTerminal(), null, result.getSuppliesAfter(), System.currentTimeMillis());
+        System.out.printf("Banknotes updated. ATM total cash: $%.2f\n", result.getBalance());
+        audit.record(TECHNICIAN, action, detail + String.format(" cash=%.2f", result.getBalance()));
+        return true;
+    }
+
+    /**
+     * Bookkeeping after a cross-shard operation, as the local path does after its commit.
+     */
+    private boolean settled(boolean done, Account account) {
+        if (done) {
+            wrote();
+            standIn.rememberBalance(account);
+        }
+        return done;
+    }
+
+    private String findAccountIdByCard(String cardNumber) {
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            EntityManager em = guard.forRead(JpaManager.getEntityManager(shard), DatabaseGuard.Operation.TRANSFER);
+            try {
+                List<String> ids = em.createNamedQuery(Account.ID_BY_CARD, String.class)
+                        .setParameter("card", cardNumber)
+                        .getResultList();
+                if (!ids.isEmpty()) {
+                    return ids.get(0);
+                }
+            } finally {
+                em.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the engine's decision on a customer operation, then keeps
+     * the same books as the database path after its commit.
+     */
+    private boolean applied(CompletableFuture<LedgerEngine.Result> pending, Account account, String success) {
+        LedgerEngine.Result result;
+        try {
+            result = pending.join();
+        } catch (CompletionException e) {
+            System.out.println("Operation failed: " + e.getCause().getMessage());
+            return false;
+        }
+        if (!result.isApproved()) {
+            System.out.println(result.getStatus().getMessage());
+            return false;
+        }
+        System.out.println(result.isDuplicate() ? "Duplicate request, already processed." : success);
+        if (!result.isDuplicate()) {
+            wrote();
+            double[] after = result.getSuppliesAfter();
+            if (after != null) {
+                supplies.observe(result.getTerminal(), result.getSuppliesBefore(), after, System.currentTimeMillis());
+                standIn.rememberCash(after[SupplyMonitor.Supply.CASH.ordinal()]);
+            }
+        }
+        account.setBalance(result.getBalance());
+        standIn.rememberBalance(account);
+        return true;
+    }
+
+    /**
+     * Result of an earlier attempt with the same idempotency key, or
+     * {@code null} if the operation still has to run.
+     */
+    private Boolean replay(String idempotencyKey, String operation, Account account, double amount) {
+        if (idempotencyKey == null) {
+            return null;
+        }
+        IdempotencyRecord record;
+        try {
+            guard.check();
+            record = idempotency.lookup(idempotencyKey);
+        } catch (RuntimeException e) {
+            if (StandInAuthorizer.isDatabaseUnavailable(e)) {
+                return null; // stand-in mode checks its own queue for the key
+            }
+            throw e;
+        }
+        if (record == null) {
+            return null;
+        }
+        if (!record.matches(operation, account.getAccountId(), amount)) {
+            System.out.println("Request rejected: idempotency key " + idempotencyKey
+                    + " was already used for " + record.describe() + ".");
+            audit.record(account.getCardNumber(), "KEY_REUSED", idempotencyKey + " first used for "
+                    + record.describe() + ", retried as " + String.format("%s of %.2f", operation, amount));
+            return false;
+        }
+        System.out.println("Duplicate request, already processed.");
+        account.setBalance(record.getBalanceAfter());
+        return true;
+    }
+
+    /**
+     * Runs {@code operation} if the card's velocity limits allow it. The
+     * operation counts towards the limits only if it went through.
+     */
+    private boolean withinVelocityLimits(Account account, double amount, BooleanSupplier operation) {
+        long now = System.currentTimeMillis();
+        VelocityChecker.Decision decision = velocity.check(account.getCardNumber(), amount, now);
+        if (decision == VelocityChecker.Decision.BLOCK) {
+            System.out.println("Transaction declined: card activity limit reached.");
+            return false;
+        }
+        if (decision == VelocityChecker.Decision.FLAG) {
+            System.out.println("Card " + account.getCardNumber() + " flagged for unusual activity.");
+        }
+
+        boolean done = false;
+        try {
+            done = operation.getAsBoolean();
+            return done;
+        } finally {
+            if (!done) {
+                velocity.release(account.getCardNumber(), amount, now);
+            }
+        }
+    }
+
+    /**
+     * Drops velocity state for cards idle longer than {@code idle}.
+     */
+    public int evictIdleCards(Duration idle) {
+        return velocity.evictIdle(idle.toMillis(), System.currentTimeMillis());
+    }
+
+    private IdempotencyRecord recordKey(EntityManager em, String idempotencyKey, String operation,
+                                        Account account, double amount) {
+        if (idempotencyKey == null) {
+            return null;
+        }
+        return idempotency.record(em, idempotencyKey, operation,
+                account.getAccountId(), amount, account.getBalance());
+    }
+
+    private void remember(IdempotencyRecord record) {
+        if (record != null) {
+            idempotency.remember(record);
+        }
+    }
+
+    private void wrote() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * History of {@code accountId}, read where {@link ReadRouter.Read#HISTORY} is routed.
+     */
+    public List<Transaction> getHistory(String accountId, LocalDateTime from, LocalDateTime to) {
+        return admitted(AdmissionController.Priority.CUSTOMER,
+                () -> new TransactionHistory(reads, guard).forAccount(accountId, from, to, lastWriteMillis));
+    }
+
     private ATMState getATMState(EntityManager em) {
-        TypedQuery<ATMState> q = em.createQuery("SELECT a FROM ATMState a", ATMState.class);
-        return q.getSingleResult();
+        return findTerminal(em, terminalId);
+    }
+
+    /**
+     * Loads the terminal. Inside a transaction its row stays locked until the
+     * transaction ends, so concurrent operations on the same terminal apply
+     * one after another; callers lock accounts first and the terminal last.
+     */
+    static ATMState findTerminal(EntityManager em, Long terminalId) {
+        Long id = terminalId;
+        if (id == null) {
+            TypedQuery<Long> q = em.createNamedQuery(ATMState.FIRST_ID, Long.class);
+            q.setMaxResults(1);
+            id = q.getSingleResult();
+        }
+        LockModeType lock = em.getTransaction().isActive() ? LockModeType.PESSIMISTIC_WRITE : LockModeType.NONE;
+        ATMState state = em.find(ATMState.class, id, lock);
+        if (state == null) {
+            throw new IllegalStateException("Unknown terminal: " + terminalId);
+        }
+        return state;
     }
 }
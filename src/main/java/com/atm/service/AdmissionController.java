@@ -0,0 +1,360 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many {@link ATMService} calls run at once, and turns the rest
+ * away before they open a connection.
+ * <p>
+ * The limit adapts to latency the way a gradient limiter does: a baseline
+ * that drops to the fastest recent call and rises only slowly stands for
+ * latency without queueing, a fast average for latency now. While the two
+ * agree the limit grows by about its square root; as recent latency rises
+ * above {@code tolerance} times the baseline, the limit shrinks in
+ * proportion, and a failed call cuts it by a tenth. The limit only grows
+ * while at least half of it is used.
+ * <p>
+ * Each {@link Priority} may fill only its share of the limit, so
+ * technician and batch work leaves room for customers, and it may wait
+ * for a slot up to its own bound (customers briefly, the others not at
+ * all). Waiting calls are admitted highest priority first. A call that
+ * gets no slot fails at once with {@link RejectedException}, which says
+ * when to try again.
+ */
+public class AdmissionController {
+
+    /** Highest first. */
+    public enum Priority { CUSTOMER, TECHNICIAN, BATCH }
+
+    /**
+     * Thrown instead of running a call when the service is at its limit.
+     */
+    public static final class RejectedException extends RuntimeException {
+        private final Priority priority;
+        private final Duration retryAfter;
+
+        RejectedException(Priority priority, Duration retryAfter) {
+            super("The ATM is busy; try again in " + retryAfter.toMillis() + " ms");
+            this.priority = priority;
+            this.retryAfter = retryAfter;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * A slot held by one call; close it when the call is done.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long startNanos = nanoClock.getAsLong();
+        private boolean failed;
+        private boolean closed;
+
+        private Permit() {
+        }
+
+        /** Marks the call as failed, e.g. by a database error or timeout. */
+        public void failed() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(nanoClock.getAsLong() - startNanos, failed);
+            }
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static AdmissionController shared;
+
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final double[] shares;
+    private final long[] maxWaitNanos;
+    private final long minRetryMillis;
+    private final long maxRetryMillis;
+    private final LongSupplier nanoClock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] turns = new Condition[PRIORITIES.length];
+    private final int[] waiting = new int[PRIORITIES.length];
+    private final AtomicLong[] rejected = new AtomicLong[PRIORITIES.length];
+    private final AtomicLong admitted = new AtomicLong();
+    // Guarded by lock
+    private double limit;
+    private int inFlight;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    /**
+     * @param shares         fraction of the limit each priority may fill, by ordinal
+     * @param maxWait        how long each priority may wait for a slot, by ordinal
+     */
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, double tolerance, double smoothing,
+                               double[] shares, Duration[] maxWait, Duration minRetry, Duration maxRetry) {
+        this(initialLimit, minLimit, maxLimit, tolerance, smoothing, shares, maxWait, minRetry, maxRetry,
+                System::nanoTime);
+    }
+
+    /**
+     * Controller timing calls by {@code nanoClock}, read like
+     * {@link System#nanoTime()} when a permit is taken and closed.
+     */
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, double tolerance, double smoothing,
+                               double[] shares, Duration[] maxWait, Duration minRetry, Duration maxRetry,
+                               LongSupplier nanoClock) {
+        if (minLimit < 1 || maxLimit < minLimit || tolerance < 1 || smoothing <= 0 || smoothing > 1
+                || shares.length != PRIORITIES.length || maxWait.length != PRIORITIES.length) {
+            throw new IllegalArgumentException("Invalid admission settings.");
+        }
+        this.enabled = true;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.shares = shares.clone();
+        this.maxWaitNanos = new long[PRIORITIES.length];
+        for (int p = 0; p < PRIORITIES.length; p++) {
+            maxWaitNanos[p] = maxWait[p].toNanos();
+        }
+        this.minRetryMillis = minRetry.toMillis();
+        this.maxRetryMillis = maxRetry.toMillis();
+        this.nanoClock = nanoClock;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        for (int p = 0; p < PRIORITIES.length; p++) {
+            turns[p] = lock.newCondition();
+            rejected[p] = new AtomicLong();
+        }
+    }
+
+    private AdmissionController() {
+        this.enabled = false;
+        this.minLimit = 1;
+        this.maxLimit = Integer.MAX_VALUE;
+        this.tolerance = 1;
+        this.smoothing = 1;
+        this.shares = new double[PRIORITIES.length];
+        this.maxWaitNanos = new long[PRIORITIES.length];
+        this.minRetryMillis = 0;
+        this.maxRetryMillis = 0;
+        this.nanoClock = System::nanoTime;
+        this.limit = Integer.MAX_VALUE;
+        for (int p = 0; p < PRIORITIES.length; p++) {
+            rejected[p] = new AtomicLong();
+        }
+    }
+
+    /** Admits every call. */
+    public static AdmissionController unlimited() {
+        return new AdmissionController();
+    }
+
+    /**
+     * The controller configured by {@code admission.properties}, shared by
+     * every service in this process, since they share the database.
+     */
+    public static synchronized AdmissionController fromClasspath() {
+        if (shared == null) {
+            Properties props = new Properties();
+            try (InputStream in = AdmissionController.class.getClassLoader()
+                    .getResourceAsStream("admission.properties")) {
+                if (in != null) {
+                    props.load(in);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read admission.properties: " + e.getMessage());
+            }
+            shared = fromProperties(props);
+        }
+        return shared;
+    }
+
+    /**
+     * Reads {@code admission.enabled}, {@code admission.initialLimit},
+     * {@code admission.minLimit}, {@code admission.maxLimit},
+     * {@code admission.tolerance}, {@code admission.smoothing},
+     * {@code admission.share.<PRIORITY>}, {@code admission.waitMillis.<PRIORITY>},
+     * {@code admission.minRetryMillis} and {@code admission.maxRetryMillis}.
+     */
+    public static AdmissionController fromProperties(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("admission.enabled", "true").trim())) {
+            return unlimited();
+        }
+        double[] shares = new double[PRIORITIES.length];
+        Duration[] waits = new Duration[PRIORITIES.length];
+        for (Priority p : PRIORITIES) {
+            shares[p.ordinal()] = Double.parseDouble(props.getProperty("admission.share." + p,
+                    p == Priority.CUSTOMER ? "1.0" : p == Priority.TECHNICIAN ? "0.5" : "0.25").trim());
+            waits[p.ordinal()] = Duration.ofMillis(Long.parseLong(props.getProperty("admission.waitMillis." + p,
+                    p == Priority.CUSTOMER ? "50" : "0").trim()));
+        }
+        return new AdmissionController(
+                Integer.parseInt(props.getProperty("admission.initialLimit", "20").trim()),
+                Integer.parseInt(props.getProperty("admission.minLimit", "2").trim()),
+                Integer.parseInt(props.getProperty("admission.maxLimit", "200").trim()),
+                Double.parseDouble(props.getProperty("admission.tolerance", "1.5").trim()),
+                Double.parseDouble(props.getProperty("admission.smoothing", "0.2").trim()),
+                shares, waits,
+                Duration.ofMillis(Long.parseLong(props.getProperty("admission.minRetryMillis", "100").trim())),
+                Duration.ofMillis(Long.parseLong(props.getProperty("admission.maxRetryMillis", "5000").trim())));
+    }
+
+    /* ================= ADMISSION ================= */
+
+    /**
+     * Takes a slot for one call of {@code priority}, waiting at most that
+     * priority's bound.
+     *
+     * @throws RejectedException if no slot became free in time
+     */
+    public Permit admit(Priority priority) {
+        if (!enabled) {
+            return new Permit();
+        }
+        int p = priority.ordinal();
+        lock.lock();
+        try {
+            // Queue behind calls of the same or a higher priority that are already waiting
+            if (!fits(p) || higherWaiting(p + 1)) {
+                long remaining = maxWaitNanos[p];
+                waiting[p]++;
+                try {
+                    while (!fits(p) || higherWaiting(p)) {
+                        if (remaining <= 0) {
+                            rejected[p].incrementAndGet();
+                            throw new RejectedException(priority, retryAfter(p));
+                        }
+                        remaining = turns[p].awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected[p].incrementAndGet();
+                    throw new RejectedException(priority, retryAfter(p));
+                } finally {
+                    waiting[p]--;
+                }
+            }
+            inFlight++;
+            admitted.incrementAndGet();
+            return new Permit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(int p) {
+        return inFlight < Math.max(1, Math.floor(limit * shares[p]));
+    }
+
+    /** Whether a call of a priority above {@code p} is waiting. */
+    private boolean higherWaiting(int p) {
+        for (int q = 0; q < p; q++) {
+            if (waiting[q] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Duration retryAfter(int p) {
+        // About the time the calls ahead take to drain, longer for lower priorities
+        double rttMillis = (shortRttNanos > 0 ? shortRttNanos : 0) / 1e6;
+        double millis = rttMillis * (1 + inFlight / Math.max(1, limit)) * (1 << p);
+        return Duration.ofMillis(Math.max(minRetryMillis, Math.min(maxRetryMillis, Math.round(millis))));
+    }
+
+    private void release(long rttNanos, boolean failed) {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            int used = inFlight;
+            inFlight--;
+            update(rttNanos, failed, used);
+            // Wake the highest priority that now fits
+            for (int p = 0; p < PRIORITIES.length; p++) {
+                if (waiting[p] > 0) {
+                    if (fits(p)) {
+                        turns[p].signal();
+                    }
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(long rttNanos, boolean failed, int used) {
+        if (shortRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+        }
+        shortRttNanos += (rttNanos - shortRttNanos) * 0.1;
+        // The baseline drops to any faster call at once but rises only slowly, so queueing
+        // that lasts is not taken for the new normal before the limit shrinks
+        longRttNanos = Math.min(rttNanos, longRttNanos + (rttNanos - longRttNanos) / 600);
+
+        double next;
+        if (failed) {
+            next = limit * 0.9;
+        } else {
+            if (used < limit / 2) {
+                return;
+            }
+            // Calls too fast for the clock to tell apart show no queueing
+            double gradient = shortRttNanos <= 0 ? 1.0
+                    : Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+            next = limit * gradient + Math.sqrt(limit);
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - smoothing) + next * smoothing));
+    }
+
+    /* ================= METRICS ================= */
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected(Priority priority) {
+        return rejected[priority.ordinal()].get();
+    }
+}
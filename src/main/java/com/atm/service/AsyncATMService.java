@@ -0,0 +1,303 @@
+package com.atm.service;
+
+import com.atm.model.Account;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking facade over {@link ATMService}.
+ * <p>
+ * Every call runs on a bounded executor and returns a {@link CompletableFuture}.
+ * When the queue is full, the future fails at once with a
+ * {@link RejectedExecutionException} rather than blocking the caller.
+ * <p>
+ * Every operation takes the timeout given at construction, or its own
+ * {@link Duration} through an overload. Reads that are not finished within
+ * their timeout complete with a {@link TimeoutException}; cancelling or
+ * timing out a read interrupts it. Logins and calls that change money or
+ * the terminal can only time out or be cancelled while still queued, in
+ * which case they never run. Once started they always report what
+ * actually happened, so a withdrawal that committed is never reported as
+ * failed.
+ * <p>
+ * Money movements work on a copy of the caller's {@link Account} and
+ * complete with the account as it stands afterwards, or {@code null} if
+ * the operation was refused; the caller's object is never written from a
+ * worker thread.
+ */
+public class AsyncATMService implements AutoCloseable {
+
+    private final ATMService service;
+    private final ExecutorService executor;
+    private final Duration defaultTimeout;
+
+    /**
+     * Runs calls on a fixed pool of {@code threads} with at most
+     * {@code queueCapacity} calls waiting.
+     */
+    public AsyncATMService(ATMService service, int threads, int queueCapacity, Duration defaultTimeout) {
+        this(service, boundedPool(threads, queueCapacity), defaultTimeout);
+    }
+
+    /**
+     * Runs calls on a caller-supplied executor, e.g. a virtual-thread
+     * executor on a JDK that has one.
+     */
+    public AsyncATMService(ATMService service, ExecutorService executor, Duration defaultTimeout) {
+        this.service = service;
+        this.executor = executor;
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    private static ExecutorService boundedPool(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "atm-async-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /* ================= CUSTOMER OPERATIONS ================= */
+
+    public CompletableFuture<Account> login(String cardNumber, String pin) {
+        return login(cardNumber, pin, defaultTimeout);
+    }
+
+    /**
+     * A login counts failed attempts and may store an upgraded PIN hash,
+     * so it runs as a write: once started it is never interrupted.
+     */
+    public CompletableFuture<Account> login(String cardNumber, String pin, Duration timeout) {
+        return submitWrite(() -> service.login(cardNumber, pin), timeout);
+    }
+
+    public CompletableFuture<Account> getAccountDetails(String accountId) {
+        return getAccountDetails(accountId, defaultTimeout);
+    }
+
+    public CompletableFuture<Account> getAccountDetails(String accountId, Duration timeout) {
+        return submit(() -> service.getAccountDetails(accountId), timeout);
+    }
+
+    public CompletableFuture<Account> deposit(Account account, double amount, String idempotencyKey) {
+        return deposit(account, amount, idempotencyKey, defaultTimeout);
+    }
+
+    public CompletableFuture<Account> deposit(Account account, double amount, String idempotencyKey,
+                                              Duration timeout) {
+        Account copy = copyOf(account);
+        return submitWrite(() -> service.deposit(copy, amount, idempotencyKey) ? copy : null, timeout);
+    }
+
+    public CompletableFuture<Account> withdraw(Account account, double amount, String idempotencyKey) {
+        return withdraw(account, amount, idempotencyKey, defaultTimeout);
+    }
+
+    public CompletableFuture<Account> withdraw(Account account, double amount, String idempotencyKey,
+                                               Duration timeout) {
+        Account copy = copyOf(account);
+        return submitWrite(() -> service.withdraw(copy, amount, idempotencyKey) ? copy : null, timeout);
+    }
+
+    public CompletableFuture<Account> transfer(Account from, String toCardNumber, double amount,
+                                               String idempotencyKey) {
+        return transfer(from, toCardNumber, amount, idempotencyKey, defaultTimeout);
+    }
+
+    public CompletableFuture<Account> transfer(Account from, String toCardNumber, double amount,
+                                               String idempotencyKey, Duration timeout) {
+        Account copy = copyOf(from);
+        return submitWrite(() -> service.transfer(copy, toCardNumber, amount, idempotencyKey) ? copy : null,
+                timeout);
+    }
+
+    public CompletableFuture<Boolean> printReceipt(String type, double amount, double balance) {
+        return printReceipt(type, amount, balance, defaultTimeout);
+    }
+
+    public CompletableFuture<Boolean> printReceipt(String type, double amount, double balance, Duration timeout) {
+        return submitWrite(() -> service.printReceipt(type, amount, balance), timeout);
+    }
+
+    /* ================= TECHNICIAN OPERATIONS ================= */
+
+    public CompletableFuture<Void> viewATMStatus() {
+        return viewATMStatus(defaultTimeout);
+    }
+
+    public CompletableFuture<Void> viewATMStatus(Duration timeout) {
+        return submit(() -> {
+            service.viewATMStatus();
+            return null;
+        }, timeout);
+    }
+
+    public CompletableFuture<Boolean> refillPaper(int amount) {
+        return refillPaper(amount, defaultTimeout);
+    }
+
+    public CompletableFuture<Boolean> refillPaper(int amount, Duration timeout) {
+        return submitWrite(() -> service.refillPaper(amount), timeout);
+    }
+
+    public CompletableFuture<Boolean> refillInk(int amount) {
+        return refillInk(amount, defaultTimeout);
+    }
+
+    public CompletableFuture<Boolean> refillInk(int amount, Duration timeout) {
+        return submitWrite(() -> service.refillInk(amount), timeout);
+    }
+
+    public CompletableFuture<Boolean> addCashToATM(int notes20, int notes50, int notes100) {
+        return addCashToATM(notes20, notes50, notes100, defaultTimeout);
+    }
+
+    public CompletableFuture<Boolean> addCashToATM(int notes20, int notes50, int notes100, Duration timeout) {
+        return submitWrite(() -> service.addCashToATM(notes20, notes50, notes100), timeout);
+    }
+
+    public CompletableFuture<Boolean> collectCash(int notes20, int notes50, int notes100) {
+        return collectCash(notes20, notes50, notes100, defaultTimeout);
+    }
+
+    public CompletableFuture<Boolean> collectCash(int notes20, int notes50, int notes100, Duration timeout) {
+        return submitWrite(() -> service.collectCash(notes20, notes50, notes100), timeout);
+    }
+
+    public CompletableFuture<Boolean> updateFirmware(String version) {
+        return updateFirmware(version, defaultTimeout);
+    }
+
+    public CompletableFuture<Boolean> updateFirmware(String version, Duration timeout) {
+        return submitWrite(() -> service.updateFirmware(version), timeout);
+    }
+
+    /* ================= EXECUTION ================= */
+
+    private static Account copyOf(Account account) {
+        Account copy = new Account();
+        copy.setAccountId(account.getAccountId());
+        copy.setCardNumber(account.getCardNumber());
+        copy.setPin(account.getPin());
+        copy.setBalance(account.getBalance());
+        copy.setFailedAttempts(account.getFailedAttempts());
+        copy.setLastEodDate(account.getLastEodDate());
+        return copy;
+    }
+
+    /**
+     * Runs a read against the service with its own timeout. The call is
+     * interrupted if it times out or is cancelled, so it must be safe to
+     * abandon midway; use {@link #submitWrite} for anything else.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call, Duration timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (result.isDone()) {
+                    return; // timed out or cancelled while queued
+                }
+                try {
+                    result.complete(call.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((value, error) -> {
+            if (error != null && !task.isDone()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a call that changes state, with its own timeout. The timeout and
+     * {@code cancel} only take effect while the call is still queued; once
+     * it has started, the future completes with its actual outcome.
+     */
+    public <T> CompletableFuture<T> submitWrite(Callable<T> call, Duration timeout) {
+        Write<T> result = new Write<>();
+        try {
+            executor.execute(() -> {
+                if (!result.start()) {
+                    return; // timed out or cancelled while queued
+                }
+                try {
+                    result.complete(call.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        CompletableFuture.delayedExecutor(timeout.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+            if (result.abandon()) {
+                result.completeExceptionally(new TimeoutException());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Future of a state-changing call, which can no longer be cancelled
+     * once the call has started.
+     */
+    private static final class Write<T> extends CompletableFuture<T> {
+        private static final int QUEUED = 0;
+        private static final int STARTED = 1;
+        private static final int ABANDONED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        boolean start() {
+            return state.compareAndSet(QUEUED, STARTED);
+        }
+
+        boolean abandon() {
+            return state.compareAndSet(QUEUED, ABANDONED);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return abandon() && super.cancel(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.atm.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Append-only audit trail of technician and security events.
+ * <p>
+ * {@link #record} only puts the event on an in-memory queue; a single
+ * background writer appends queued events in batches to numbered segment
+ * files ({@code audit-000001.log}, ...) and forces each batch to disk.
+ * Every line carries the SHA-256 of the previous line's hash plus its own
+ * content, so editing, removing or reordering lines breaks the chain that
+ * {@link #verify} checks. If the queue is full the event is counted and an
+ * {@code AUDIT_OVERFLOW} event is written in its place once there is room.
+ */
+public class AuditLog implements AutoCloseable {
+
+    private static final String GENESIS = "0".repeat(64);
+    private static final int BATCH = 512;
+
+    /**
+     * One audit line.
+     */
+    public static final class Entry {
+        public final long seq;
+        public final LocalDateTime time;
+        public final String terminal;
+        public final String actor;
+        public final String action;
+        public final String detail;
+        public final String prevHash;
+        public final String hash;
+
+        Entry(long seq, LocalDateTime time, String terminal, String actor, String action, String detail,
+              String prevHash, String hash) {
+            this.seq = seq;
+            this.time = time;
+            this.terminal = terminal;
+            this.actor = actor;
+            this.action = action;
+            this.detail = detail;
+            this.prevHash = prevHash;
+            this.hash = hash;
+        }
+
+        String body() {
+            return body(seq, time, terminal, actor, action, detail);
+        }
+
+        static String body(long seq, LocalDateTime time, String terminal, String actor, String action,
+                           String detail) {
+            return seq + "\t" + time + "\t" + terminal + "\t" + actor + "\t" + action + "\t" + detail;
+        }
+
+        static Entry parse(String line) {
+            String[] f = line.split("\t", -1);
+            return new Entry(Long.parseLong(f[0]), LocalDateTime.parse(f[1]), f[2], f[3], f[4], f[5], f[6], f[7]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %s [%s] %s %s %s", seq, time, terminal, actor, action, detail);
+        }
+    }
+
+    private static final class Event {
+        final LocalDateTime time;
+        final String actor;
+        final String action;
+        final String detail;
+
+        Event(LocalDateTime time, String actor, String action, String detail) {
+            this.time = time;
+            this.actor = actor;
+            this.action = action;
+            this.detail = detail;
+        }
+    }
+
+    private final Path dir;
+    private final String terminal;
+    private final long maxSegmentBytes;
+    private final BlockingQueue<Event> queue;
+    private final BatchWriter<Event> writer;
+
+    // Writer thread state
+    private final ChannelTextWriter out = new ChannelTextWriter(16 * 1024, 64 * 1024);
+    private FileChannel channel;
+    private int segment;
+    private long seq;
+    private String lastHash = GENESIS;
+
+    public AuditLog(Path dir, String terminal) {
+        this(dir, terminal, 8_192, 16L * 1024 * 1024);
+    }
+
+    public AuditLog(Path dir, String terminal, int queueCapacity, long maxSegmentBytes) {
+        this.dir = dir;
+        this.terminal = clean(terminal);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new BatchWriter<>("audit", "Audit log", queue, BATCH, new BatchWriter.Sink<>() {
+            @Override
+            public void open() throws IOException {
+                resume();
+            }
+
+            @Override
+            public void write(List<Event> batch, long dropped) throws IOException {
+                append(batch, dropped);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        });
+    }
+
+    /* ================= RECORDING ================= */
+
+    /**
+     * Queues an event without blocking or touching the disk.
+     */
+    public void record(String actor, String action, String detail) {
+        if (writer.isClosed()
+                || !queue.offer(new Event(LocalDateTime.now(), clean(actor), clean(action), clean(detail)))) {
+            writer.dropped();
+        }
+    }
+
+    /**
+     * Writes everything queued so far, then stops the writer.
+     */
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * Continues the chain from the last line of the newest segment. A last
+     * line without its newline was torn by a crash mid-write; it is cut
+     * off, as its batch was never reported written.
+     */
+    private void resume() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            segment = 1;
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        segment = segmentNumber(last);
+        long cut = ChannelTextWriter.cutTornLine(last);
+        if (cut > 0) {
+            System.out.println("Audit log: cut " + cut + " bytes of a torn line from " + last);
+        }
+
+        String lastLine = null;
+        try (BufferedReader in = Files.newBufferedReader(last, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isBlank()) {
+                    lastLine = line;
+                }
+            }
+        }
+        if (lastLine != null) {
+            Entry entry;
+            try {
+                entry = Entry.parse(lastLine);
+            } catch (RuntimeException e) {
+                throw new IOException("Unreadable last line in " + last, e);
+            }
+            seq = entry.seq;
+            lastHash = entry.hash;
+        }
+    }
+
+    /**
+     * Appends the batch, and an {@code AUDIT_OVERFLOW} line for events
+     * dropped since the last one. A batch that fails is cut off again, so
+     * the chain carries on from the last line on disk.
+     */
+    private void append(List<Event> batch, long dropped) throws IOException {
+        if (channel == null || channel.size() >= maxSegmentBytes) {
+            if (channel != null) {
+                channel.close();
+                segment++;
+            }
+            channel = FileChannel.open(segmentFile(dir, segment), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            out.start(channel);
+        }
+
+        long start = channel.size();
+        long next = seq;
+        String prev = lastHash;
+        try {
+            for (Event event : batch) {
+                prev = line(++next, event.time, event.actor, event.action, event.detail, prev);
+            }
+            if (dropped > 0) {
+                prev = line(++next, LocalDateTime.now(), "system", "AUDIT_OVERFLOW", dropped + " events dropped",
+                        prev);
+            }
+            out.drain(true);
+            channel.force(false);
+        } catch (IOException e) {
+            out.discard();
+            try {
+                channel.truncate(start);
+            } catch (IOException cut) {
+                e.addSuppressed(cut);
+            }
+            throw e;
+        }
+        seq = next;
+        lastHash = prev;
+    }
+
+    private String line(long seq, LocalDateTime time, String actor, String action, String detail, String prevHash)
+            throws IOException {
+        String body = Entry.body(seq, time, terminal, actor, action, detail);
+        String hash = hash(prevHash, body);
+        out.text().append(body).append('\t').append(prevHash).append('\t').append(hash).append('\n');
+        if (out.text().length() >= 8 * 1024) {
+            out.drain(false);
+        }
+        return hash;
+    }
+
+    /* ================= READING ================= */
+
+    /**
+     * Streams every entry of every segment in order.
+     */
+    public static void read(Path dir, Consumer<Entry> sink) {
+        try {
+            for (Path file : segments(dir)) {
+                try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            sink.accept(Entry.parse(line));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Recomputes the hash chain.
+     * @return sequence number of the first entry that does not fit the chain, or -1 if it is intact
+     */
+    public static long verify(Path dir) {
+        long[] broken = { -1 };
+        String[] prev = { GENESIS };
+        long[] expectedSeq = { -1 };
+        read(dir, entry -> {
+            if (broken[0] >= 0) {
+                return;
+            }
+            boolean seqOk = expectedSeq[0] < 0 || entry.seq == expectedSeq[0];
+            if (!seqOk || !entry.prevHash.equals(prev[0]) || !entry.hash.equals(hash(prev[0], entry.body()))) {
+                broken[0] = entry.seq;
+                return;
+            }
+            prev[0] = entry.hash;
+            expectedSeq[0] = entry.seq + 1;
+        });
+        return broken[0];
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().matches("audit-\\d{6}\\.log"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static Path segmentFile(Path dir, int segment) {
+        return dir.resolve(String.format("audit-%06d.log", segment));
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring("audit-".length(), name.length() - ".log".length()));
+    }
+
+    private static String hash(String prevHash, String body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(prevHash.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest(body.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String clean(String value) {
+        return value == null ? "-" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /* ================= COMMAND LINE ================= */
+
+    /**
+     * Usage, where {@code dir} is one terminal's directory and defaults to
+     * {@code audit/default}:
+     * <pre>
+     *   verify [dir]
+     *   search [dir] [action=X] [actor=Y] [from=yyyy-MM-ddTHH:mm] [to=yyyy-MM-ddTHH:mm]
+     * </pre>
+     */
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "";
+        int next = 1;
+        Path dir = Paths.get("audit", "default");
+        if (args.length > 1 && !args[1].contains("=")) {
+            dir = Paths.get(args[1]);
+            next = 2;
+        }
+
+        if (command.equals("verify")) {
+            long broken = verify(dir);
+            if (broken < 0) {
+                System.out.println("Audit chain intact.");
+            } else {
+                System.out.println("Audit chain broken at entry #" + broken);
+                System.exit(1);
+            }
+        } else if (command.equals("search")) {
+            String action = null;
+            String actor = null;
+            LocalDateTime from = null;
+            LocalDateTime to = null;
+            for (int i = next; i < args.length; i++) {
+                String[] kv = args[i].split("=", 2);
+                switch (kv[0]) {
+                    case "action" -> action = kv[1];
+                    case "actor" -> actor = kv[1];
+                    case "from" -> from = LocalDateTime.parse(kv[1]);
+                    case "to" -> to = LocalDateTime.parse(kv[1]);
+                    default -> System.out.println("Unknown filter: " + args[i]);
+                }
+            }
+            String a = action, who = actor;
+            LocalDateTime f = from, t = to;
+            read(dir, entry -> {
+                if ((a == null || entry.action.equalsIgnoreCase(a))
+                        && (who == null || entry.actor.equals(who))
+                        && (f == null || !entry.time.isBefore(f))
+                        && (t == null || entry.time.isBefore(t))) {
+                    System.out.println(entry);
+                }
+            });
+        } else {
+            System.out.println("Usage: verify [dir] | search [dir] [action=X] [actor=Y] [from=...] [to=...]");
+        }
+    }
+}
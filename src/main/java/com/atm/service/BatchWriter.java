@@ -0,0 +1,137 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread behind the asynchronous logs: takes what callers put
+ * on a queue and hands it to a {@link Sink} in batches, together with how
+ * many items callers had to drop since the last batch. A batch that fails
+ * to write is counted as dropped. {@link #close()} writes out what is
+ * queued, then stops the thread; it also runs at JVM shutdown if the
+ * writer is still open then.
+ */
+final class BatchWriter<T> implements AutoCloseable {
+
+    /**
+     * Where batches go. Every method runs on the writer thread.
+     */
+    interface Sink<T> {
+        /**
+         * Runs once before the first batch; if it fails, nothing is written.
+         */
+        void open() throws IOException;
+
+        void write(List<T> batch, long dropped) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final String description;
+    private final BlockingQueue<T> queue;
+    private final int batchSize;
+    private final Sink<T> sink;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private final Thread shutdownHook;
+    private volatile boolean closed;
+
+    /**
+     * @param name prefix of the writer and shutdown thread names
+     * @param description what is written, for error messages
+     */
+    BatchWriter(String name, String description, BlockingQueue<T> queue, int batchSize, Sink<T> sink) {
+        this.description = description;
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.sink = sink;
+        this.thread = new Thread(this::run, name + "-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        this.shutdownHook = new Thread(this::close, name + "-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Counts one item the caller could not queue.
+     */
+    void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // Otherwise the hook keeps this writer and its buffers until the JVM exits
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down, possibly in this very hook
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            sink.open();
+        } catch (IOException e) {
+            System.out.println(description + " unavailable: " + e.getMessage());
+            closed = true;
+            return;
+        }
+
+        List<T> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                if (!closed) {
+                    T first = queue.poll(200, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                    }
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            queue.drainTo(batch, batchSize - batch.size());
+
+            long lost = dropped.getAndSet(0);
+            if (batch.isEmpty() && lost == 0) {
+                if (closed) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                sink.write(batch, lost);
+            } catch (IOException e) {
+                System.out.println(description + " write failed: " + e.getMessage());
+                dropped.addAndGet(batch.size() + lost);
+                if (closed) {
+                    break;
+                }
+            }
+            batch.clear();
+        }
+
+        try {
+            sink.close();
+        } catch (IOException e) {
+            System.out.println(description + " close failed: " + e.getMessage());
+        }
+    }
+}
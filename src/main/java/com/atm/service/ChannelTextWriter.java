@@ -0,0 +1,120 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Text written to a {@link FileChannel} through a reused
+ * {@link StringBuilder} and a reused direct buffer, so formatting and
+ * encoding allocate nothing per line. Callers append to {@link #text()}
+ * and call {@link #drain} every few kilobytes; the bytes go out when the
+ * buffer fills up or on a flush.
+ * <p>
+ * Not thread-safe: each writer thread has its own.
+ */
+public final class ChannelTextWriter {
+
+    private final StringBuilder text;
+    private final ByteBuffer bytes;
+    private final int reserve;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private FileChannel channel;
+
+    /**
+     * @param textCapacity initial characters of pending text
+     * @param bufferBytes size of the direct buffer; a drain writes it out
+     *                    once less than an eighth of it is left
+     */
+    public ChannelTextWriter(int textCapacity, int bufferBytes) {
+        this.text = new StringBuilder(textCapacity);
+        this.bytes = ByteBuffer.allocateDirect(bufferBytes);
+        this.reserve = bufferBytes / 8;
+    }
+
+    /**
+     * Writes to {@code channel} from now on, dropping anything pending.
+     */
+    public void start(FileChannel channel) {
+        this.channel = channel;
+        discard();
+    }
+
+    /**
+     * Pending text, to append to.
+     */
+    public StringBuilder text() {
+        return text;
+    }
+
+    /**
+     * Encodes the pending text; writes the byte buffer out when it fills
+     * up, or always when {@code flush} is set.
+     */
+    public void drain(boolean flush) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult cr = encoder.encode(chars, bytes, false);
+            if (cr.isOverflow()) {
+                write();
+            } else if (cr.isError()) {
+                cr.throwException();
+            } else {
+                break;
+            }
+        }
+        text.setLength(0);
+        if (flush || bytes.remaining() < reserve) {
+            write();
+        }
+    }
+
+    /**
+     * Forgets pending text and bytes, e.g. after a failed write.
+     */
+    public void discard() {
+        text.setLength(0);
+        bytes.clear();
+        encoder.reset();
+    }
+
+    /**
+     * Cuts a last line without its newline off {@code file}: a crash tore
+     * it mid-write, so its batch was never reported written.
+     * @return number of bytes cut
+     */
+    public static long cutTornLine(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long complete = size;
+            ByteBuffer one = ByteBuffer.allocate(1);
+            while (complete > 0) {
+                one.clear();
+                ch.read(one, complete - 1);
+                if (one.get(0) == '\n') {
+                    break;
+                }
+                complete--;
+            }
+            if (complete < size) {
+                ch.truncate(complete);
+                ch.force(false);
+            }
+            return size - complete;
+        }
+    }
+
+    private void write() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
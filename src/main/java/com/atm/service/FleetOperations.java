@@ -0,0 +1,312 @@
+package com.atm.service;
+
+import com.atm.db.JpaManager;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.Parameter;
+import jakarta.persistence.Query;
+
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Technician operations applied to many terminals at once.
+ * <p>
+ * Each operation is a set-based {@code UPDATE} on {@code atm_state}, run
+ * over consecutive id ranges of {@code chunkSize} terminals so that locks
+ * stay short and progress can be reported. Only the ids of the terminals
+ * a chunk matches are loaded, and locked until its commit, so the update
+ * and the supply levels read back afterwards are those of the same rows.
+ * {@code region} narrows any operation to one region; {@code null} means
+ * the whole fleet.
+ * <p>
+ * Every operation is recorded as one audit entry, with its filter and the
+ * number of terminals it changed, and the new supply levels of those
+ * terminals are passed to the {@link SupplyMonitor}, as a single
+ * terminal's technician operations are.
+ */
+public class FleetOperations implements AutoCloseable {
+
+    private static final String TECHNICIAN = "technician";
+
+    /**
+     * Called after each chunk of terminals.
+     */
+    public interface ProgressListener {
+        void onProgress(int chunksDone, int chunksTotal, long terminalsUpdated);
+    }
+
+    public static final ProgressListener CONSOLE = (done, total, updated) ->
+            System.out.printf("  %d/%d chunks, %d terminals updated\n", done, total, updated);
+
+    private final int chunkSize;
+    private final AuditLog audit;
+    private final SupplyMonitor supplies;
+
+    public FleetOperations() {
+        this(1_000);
+    }
+
+    /**
+     * Operations audited under {@code audit/fleet} and reported to the
+     * process's supply monitor.
+     */
+    public FleetOperations(int chunkSize) {
+        this(chunkSize, new AuditLog(Paths.get("audit", "fleet"), "fleet"), SupplyMonitor.fromClasspath());
+    }
+
+    /**
+     * @param audit closed with this object
+     */
+    public FleetOperations(int chunkSize, AuditLog audit, SupplyMonitor supplies) {
+        if (chunkSize <= 0) {
+            audit.close();
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.chunkSize = chunkSize;
+        this.audit = audit;
+        this.supplies = supplies;
+    }
+
+    /* ================= OPERATIONS ================= */
+
+    /**
+     * Tops up paper to {@code refillTo} on every terminal with less than {@code threshold}.
+     */
+    public long refillPaperBelow(int threshold, int refillTo, String region, ProgressListener listener) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("threshold", threshold);
+        params.put("refillTo", refillTo);
+        return update("FLEET_REFILL_PAPER", "paper<" + threshold + " refillTo=" + refillTo,
+                "s.paper = :refillTo", "s.paper < :threshold", params, region, listener, true);
+    }
+
+    /**
+     * Tops up ink to {@code refillTo} on every terminal with less than {@code threshold}.
+     */
+    public long refillInkBelow(int threshold, int refillTo, String region, ProgressListener listener) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("threshold", threshold);
+        params.put("refillTo", refillTo);
+        return update("FLEET_REFILL_INK", "ink<" + threshold + " refillTo=" + refillTo,
+                "s.ink = :refillTo", "s.ink < :threshold", params, region, listener, true);
+    }
+
+    /**
+     * Sets the firmware version on every terminal not already running it.
+     */
+    public long rollOutFirmware(String version, String region, ProgressListener listener) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("version", version);
+        return update("FLEET_FIRMWARE", "firmware<>" + version, "s.firmwareVersion = :version",
+                "(s.firmwareVersion IS NULL OR s.firmwareVersion <> :version)", params, region, listener, false);
+    }
+
+    /**
+     * Loads the same banknotes into every terminal, keeping cash and note
+     * counts in step.
+     */
+    public long addBanknotes(int notes20, int notes50, int notes100, String region, ProgressListener listener) {
+        if (notes20 < 0 || notes50 < 0 || notes100 < 0) {
+            throw new IllegalArgumentException("Banknotes cannot be negative.");
+        }
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("n20", notes20);
+        params.put("n50", notes50);
+        params.put("n100", notes100);
+        return update("FLEET_CASH_ADDED", String.format("n20=%d n50=%d n100=%d", notes20, notes50, notes100),
+                "s.notes20 = s.notes20 + :n20, s.notes50 = s.notes50 + :n50, "
+                + "s.notes100 = s.notes100 + :n100, s.cash = s.cash + 20 * :n20 + 50 * :n50 + 100 * :n100",
+                null, params, region, listener, true);
+    }
+
+    /**
+     * Empties the cash of every terminal.
+     */
+    public long collectAllCash(String region, ProgressListener listener) {
+        return update("FLEET_CASH_COLLECTED", "cash>0", "s.notes20 = 0, s.notes50 = 0, s.notes100 = 0, s.cash = 0",
+                "s.cash > 0", new LinkedHashMap<>(), region, listener, true);
+    }
+
+    /* ================= EXECUTION ================= */
+
+    /**
+     * @param action  audit action of the operation
+     * @param filter  what the operation matches and sets, for the audit entry
+     * @param changesSupplies whether the monitor is told the new supply levels
+     */
+    private long update(String action, String filter, String set, String condition, Map<String, Object> params,
+                        String region, ProgressListener listener, boolean changesSupplies) {
+        String detail = filter + " region=" + (region == null ? "all" : region);
+        long[] idRange = idRange();
+        if (idRange == null) {
+            audit.record(TECHNICIAN, action, detail + " terminals=0");
+            return 0;
+        }
+
+        StringBuilder select = new StringBuilder("SELECT s.id FROM ATMState s WHERE s.id >= :lo AND s.id < :hi");
+        if (condition != null) {
+            select.append(" AND ").append(condition);
+        }
+        if (region != null) {
+            select.append(" AND s.region = :region");
+        }
+        String update = "UPDATE ATMState s SET " + set + ", s.updatedAt = :now WHERE s.id IN :ids";
+
+        int chunksTotal = (int) ((idRange[1] - idRange[0]) / chunkSize + 1);
+        long updated = 0;
+        int chunksDone = 0;
+
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            for (long lo = idRange[0]; lo <= idRange[1]; lo += chunkSize) {
+                List<Object[]> levels = null;
+                em.getTransaction().begin();
+                try {
+                    Query ids = em.createQuery(select.toString()).setLockMode(LockModeType.PESSIMISTIC_WRITE);
+                    bind(ids, params);
+                    ids.setParameter("lo", lo);
+                    ids.setParameter("hi", lo + chunkSize);
+                    if (region != null) {
+                        ids.setParameter("region", region);
+                    }
+                    List<?> matched = ids.getResultList();
+                    if (!matched.isEmpty()) {
+                        Query q = em.createQuery(update);
+                        bind(q, params);
+                        q.setParameter("now", LocalDateTime.now());
+                        q.setParameter("ids", matched);
+                        updated += q.executeUpdate();
+                        if (changesSupplies) {
+                            levels = em.createQuery("SELECT s.id, s.cash, s.notes20, s.notes50, s.notes100, "
+                                    + "s.paper, s.ink FROM ATMState s WHERE s.id IN :ids", Object[].class)
+                                    .setParameter("ids", matched)
+                                    .getResultList();
+                        }
+                    }
+                    em.getTransaction().commit();
+                } catch (RuntimeException e) {
+                    if (em.getTransaction().isActive()) {
+                        em.getTransaction().rollback();
+                    }
+                    throw e;
+                }
+                if (levels != null) {
+                    observe(levels);
+                }
+
+                chunksDone++;
+                if (listener != null) {
+                    listener.onProgress(chunksDone, chunksTotal, updated);
+                }
+            }
+            audit.record(TECHNICIAN, action, detail + " terminals=" + updated);
+            return updated;
+        } catch (RuntimeException e) {
+            // Earlier chunks are committed: the entry says how many terminals they changed
+            audit.record(TECHNICIAN, action + "_FAILED", detail + " terminals=" + updated + " " + e.getMessage());
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Sets those of {@code params} the query uses.
+     */
+    private static void bind(Query q, Map<String, Object> params) {
+        for (Parameter<?> parameter : q.getParameters()) {
+            if (params.containsKey(parameter.getName())) {
+                q.setParameter(parameter.getName(), params.get(parameter.getName()));
+            }
+        }
+    }
+
+    /**
+     * Passes committed levels, read as id, cash, notes20, notes50,
+     * notes100, paper and ink, to the supply monitor.
+     */
+    private void observe(List<Object[]> rows) {
+        long now = System.currentTimeMillis();
+        for (Object[] row : rows) {
+            // Columns follow the order of SupplyMonitor.Supply
+            double[] levels = new double[row.length - 1];
+            for (int i = 1; i < row.length; i++) {
+                levels[i - 1] = ((Number) row[i]).doubleValue();
+            }
+            supplies.observe(((Number) row[0]).longValue(), null, levels, now);
+        }
+    }
+
+    private long[] idRange() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            Object[] row = em.createQuery("SELECT MIN(s.id), MAX(s.id) FROM ATMState s", Object[].class)
+                    .getSingleResult();
+            if (row[0] == null) {
+                return null;
+            }
+            return new long[] { ((Number) row[0]).longValue(), ((Number) row[1]).longValue() };
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Writes out and closes the audit log.
+     */
+    @Override
+    public void close() {
+        audit.close();
+    }
+
+    /* ================= COMMAND LINE ================= */
+
+    /**
+     * Usage:
+     * <pre>
+     *   refill-paper &lt;threshold&gt; &lt;refillTo&gt; [region]
+     *   refill-ink &lt;threshold&gt; &lt;refillTo&gt; [region]
+     *   firmware &lt;version&gt; [region]
+     *   add-cash &lt;notes20&gt; &lt;notes50&gt; &lt;notes100&gt; [region]
+     *   collect-cash [region]
+     * </pre>
+     */
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "";
+        long updated;
+
+        try (FleetOperations fleet = new FleetOperations()) {
+            if (command.equals("refill-paper") && args.length >= 3) {
+                updated = fleet.refillPaperBelow(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                        arg(args, 3), CONSOLE);
+            } else if (command.equals("refill-ink") && args.length >= 3) {
+                updated = fleet.refillInkBelow(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                        arg(args, 3), CONSOLE);
+            } else if (command.equals("firmware") && args.length >= 2) {
+                updated = fleet.rollOutFirmware(args[1], arg(args, 2), CONSOLE);
+            } else if (command.equals("add-cash") && args.length >= 4) {
+                updated = fleet.addBanknotes(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                        Integer.parseInt(args[3]), arg(args, 4), CONSOLE);
+            } else if (command.equals("collect-cash")) {
+                updated = fleet.collectAllCash(arg(args, 1), CONSOLE);
+            } else {
+                System.out.println("Usage: refill-paper|refill-ink <threshold> <refillTo> [region] | "
+                        + "firmware <version> [region] | add-cash <n20> <n50> <n100> [region] | collect-cash [region]");
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        }
+        System.out.printf("Done. Terminals updated: %d\n", updated);
+    }
+
+    private static String arg(String[] args, int index) {
+        return args.length > index ? args[index] : null;
+    }
+}
@@ -0,0 +1,131 @@
+package com.atm.service;
+
+import com.atm.db.JpaManager;
+import com.atm.model.IdempotencyRecord;
+
+import jakarta.persistence.EntityManager;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of recent money operations by idempotency key.
+ * <p>
+ * Lookups hit a bounded in-memory cache first and fall back to the
+ * {@code idempotency_keys} table, so a retry never re-executes the
+ * operation or takes account locks. Cache entries expire after {@code ttl}
+ * and the oldest entries are evicted once {@code maxEntries} is reached.
+ * <p>
+ * A keyed first attempt always misses the cache and costs one primary key
+ * read. That read cannot be skipped: the original may have run on another
+ * terminal, or on this one before a restart or an eviction.
+ * <p>
+ * Only committed outcomes are stored. An attempt that was declined or
+ * failed changed nothing, so a retry with its key runs the operation again
+ * and may succeed.
+ */
+public class IdempotencyStore {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Entry> cache;
+
+    private static final class Entry {
+        final IdempotencyRecord record;
+        final long storedAt;
+
+        Entry(IdempotencyRecord record, long storedAt) {
+            this.record = record;
+            this.storedAt = storedAt;
+        }
+    }
+
+    public IdempotencyStore(int maxEntries, Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > IdempotencyStore.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Finds the committed result for {@code key}, or {@code null} if the
+     * operation has not run yet.
+     */
+    public IdempotencyRecord lookup(String key) {
+        long now = System.nanoTime();
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                if (now - entry.storedAt < ttlNanos) {
+                    return entry.record;
+                }
+                cache.remove(key);
+            }
+        }
+
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            IdempotencyRecord record = em.find(IdempotencyRecord.class, key);
+            if (record != null) {
+                remember(record);
+            }
+            return record;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Adds the record to the caller's transaction. If another attempt with
+     * the same key commits first, the caller's commit fails on the primary key.
+     */
+    public IdempotencyRecord record(EntityManager em, String key, String operation,
+                                    String accountId, double amount, double balanceAfter) {
+        IdempotencyRecord record = new IdempotencyRecord();
+        record.setKey(key);
+        record.setOperation(operation);
+        record.setAccountId(accountId);
+        record.setAmount(amount);
+        record.setBalanceAfter(balanceAfter);
+        em.persist(record);
+        return record;
+    }
+
+    /**
+     * Caches a record once its transaction has committed.
+     */
+    public void remember(IdempotencyRecord record) {
+        synchronized (cache) {
+            cache.put(record.getKey(), new Entry(record, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Deletes stored keys older than {@code age}. Retries after that are
+     * treated as new operations.
+     * @return number of keys removed
+     */
+    public int purgeOlderThan(Duration age) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+
+        try {
+            int removed = em.createNamedQuery(IdempotencyRecord.DELETE_BEFORE)
+                    .setParameter("cutoff", LocalDateTime.now().minus(age))
+                    .executeUpdate();
+            em.getTransaction().commit();
+            return removed;
+        } catch (RuntimeException e) {
+            em.getTransaction().rollback();
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+}
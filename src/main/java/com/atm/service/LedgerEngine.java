@@ -0,0 +1,812 @@
+package com.atm.service;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.EngineCheckpoint;
+import com.atm.model.IdempotencyRecord;
+import com.atm.model.Transaction;
+import com.atm.service.LedgerJournal.Entry;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.hibernate.Session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Optional engine that authorizes deposits, withdrawals and transfers
+ * against balances and terminal cash held in memory.
+ * <p>
+ * All operations go through one queue to a single sequencer thread, which
+ * applies them in order without locks, appends the approved ones to a
+ * {@link LedgerJournal} with one disk flush per batch, and only then
+ * completes the callers' futures. A write-behind thread then copies each
+ * journaled batch to the database, one JDBC-batched transaction per shard:
+ * {@link Transaction} rows, the changes to balances and note counts, the
+ * {@link IdempotencyRecord}s of keyed operations, and the shard's
+ * {@link EngineCheckpoint}. Balances and notes are changed by adding to
+ * them, so postings by other writers (end of day, sagas, fleet operations)
+ * are kept; the engine itself only sees those at its next start. If the
+ * database is down the write-behind keeps retrying while the engine goes
+ * on authorizing, until the write-behind queue is full.
+ * <p>
+ * On start the engine loads accounts from every shard and terminals from
+ * the home shard, then applies the journal entries each shard's checkpoint
+ * does not cover yet. Technicians change notes through {@link #adjustNotes};
+ * paper, ink and receipts stay on the database path.
+ * <p>
+ * Idempotency keys are remembered in memory until their operation is in
+ * the database, and looked up there before an operation is queued, so a
+ * retry is recognized however late it comes; while the database is down
+ * only the keys still in memory are.
+ */
+public class LedgerEngine implements AutoCloseable {
+
+    public enum Status {
+        APPROVED(null),
+        INVALID_AMOUNT("Invalid amount. Please enter a positive number."),
+        UNKNOWN_ACCOUNT("Account not found."),
+        INSUFFICIENT_FUNDS("Insufficient balance."),
+        INSUFFICIENT_CASH("ATM has insufficient cash."),
+        NOTES_UNAVAILABLE("ATM cannot dispense this amount with the available notes."),
+        INVALID_NOTES("Deposits must be made in $20, $50 and $100 notes."),
+        NOT_ENOUGH_NOTES("Not enough banknotes in the ATM."),
+        KEY_REUSED("Request rejected: idempotency key was used for a different operation."),
+        BUSY("The system is busy. Please try again."),
+        STOPPED("The ledger engine is not running.");
+
+        private final String message;
+
+        Status(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Outcome of one operation.
+     */
+    public static final class Result {
+        private final Status status;
+        private final double balance;
+        private final boolean duplicate;
+        private final long terminal;
+        private final double[] suppliesBefore;
+        private final double[] suppliesAfter;
+
+        Result(Status status, double balance, boolean duplicate) {
+            this(status, balance, duplicate, -1, null, null);
+        }
+
+        Result(Status status, double balance, boolean duplicate, long terminal,
+               double[] suppliesBefore, double[] suppliesAfter) {
+            this.status = status;
+            this.balance = balance;
+            this.duplicate = duplicate;
+            this.terminal = terminal;
+            this.suppliesBefore = suppliesBefore;
+            this.suppliesAfter = suppliesAfter;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isApproved() {
+            return status == Status.APPROVED;
+        }
+
+        /**
+         * Balance of the operation's account afterwards, or the terminal's
+         * cash after {@link LedgerEngine#adjustNotes}; only set when approved.
+         */
+        public double getBalance() {
+            return balance;
+        }
+
+        /**
+         * Whether this is the stored result of an earlier request with the same key.
+         */
+        public boolean isDuplicate() {
+            return duplicate;
+        }
+
+        /**
+         * Terminal whose notes the operation moved, or -1.
+         */
+        public long getTerminal() {
+            return terminal;
+        }
+
+        /**
+         * That terminal's supply levels before the operation, as
+         * {@link SupplyMonitor#levels} gives them, with paper and ink NaN
+         * since the engine does not track them; {@code null} if no notes moved.
+         */
+        public double[] getSuppliesBefore() {
+            return suppliesBefore;
+        }
+
+        /**
+         * The same levels afterwards.
+         */
+        public double[] getSuppliesAfter() {
+            return suppliesAfter;
+        }
+    }
+
+    private static final int BATCH = 4_096;
+    private static final String NAME = "ledger";
+    // Technician change of a terminal's notes; journaled, but not a ledger row
+    private static final String NOTES = "NOTES";
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final class Command {
+        final String type;
+        final String account;
+        final String targetCard;
+        final Long terminal;
+        final double amount;
+        final String key;
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        int[] notes;
+        // Outcome stored in the database for the key, looked up before queueing
+        IdempotencyRecord stored;
+
+        Command(String type, String account, String targetCard, Long terminal, double amount, String key) {
+            this.type = type;
+            this.account = account;
+            this.targetCard = targetCard;
+            this.terminal = terminal;
+            this.amount = amount;
+            this.key = key;
+        }
+    }
+
+    private static final class Balance {
+        double value;
+
+        Balance(double value) {
+            this.value = value;
+        }
+    }
+
+    private static final class KeyedResult {
+        // Journal entry of the operation; 0 if read back from the database
+        final long seq;
+        final String operation;
+        final String account;
+        final double amount;
+        final double balance;
+
+        KeyedResult(long seq, String operation, String account, double amount, double balance) {
+            this.seq = seq;
+            this.operation = operation;
+            this.account = account;
+            this.amount = amount;
+            this.balance = balance;
+        }
+    }
+
+    // Sequencer state: only touched by the sequencer thread once started
+    private final Map<String, Balance> balances = new HashMap<>();
+    private final Map<String, String> accountByCard = new HashMap<>();
+    private final Map<Long, ATMState> terminals = new HashMap<>();
+    private final Map<String, KeyedResult> keys;
+    private Long defaultTerminal;
+    private long seq;
+
+    private final LedgerJournal journal;
+    private final BlockingQueue<Command> commands;
+    private final BlockingQueue<List<Entry>> unpersisted;
+    private final Thread sequencer;
+    private final Thread writeBehind;
+    private final Thread shutdownHook;
+    private volatile boolean running = true;
+    private volatile boolean failed;
+    private volatile long persistedSeq;
+
+    /**
+     * @param queueCapacity operations waiting for the sequencer
+     * @param writeBehindBatches journaled batches that may wait for the database
+     * @param keyCapacity idempotency keys remembered
+     */
+    public LedgerEngine(Path journalDir, int queueCapacity, int writeBehindBatches, int keyCapacity) {
+        this.journal = new LedgerJournal(journalDir, 64L * 1024 * 1024);
+        this.commands = new ArrayBlockingQueue<>(queueCapacity);
+        this.unpersisted = new ArrayBlockingQueue<>(writeBehindBatches);
+        this.keys = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KeyedResult> eldest) {
+                // Keys not in the database yet stay, however many there are
+                Iterator<KeyedResult> oldest = values().iterator();
+                while (size() > keyCapacity && oldest.hasNext() && oldest.next().seq <= persistedSeq) {
+                    oldest.remove();
+                }
+                return false;
+            }
+        };
+
+        load();
+        this.sequencer = new Thread(this::sequence, "ledger-sequencer");
+        this.writeBehind = new Thread(this::persistLoop, "ledger-write-behind");
+        this.sequencer.setDaemon(true);
+        this.writeBehind.setDaemon(true);
+        this.sequencer.start();
+        this.writeBehind.start();
+        this.shutdownHook = new Thread(this::close, "ledger-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Engine configured by {@code engine.properties} on the classpath, or
+     * {@code null} if it is not enabled there.
+     */
+    public static LedgerEngine fromClasspath() {
+        Properties props = new Properties();
+        try (InputStream in = LedgerEngine.class.getClassLoader().getResourceAsStream("engine.properties")) {
+            if (in != null) {
+                props.load(in);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read engine.properties: " + e.getMessage());
+        }
+        return fromProperties(props);
+    }
+
+    /**
+     * Reads {@code engine.enabled}, {@code engine.dir}, {@code engine.queue},
+     * {@code engine.writeBehindBatches} and {@code engine.keys}; {@code null}
+     * unless enabled.
+     */
+    public static LedgerEngine fromProperties(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("engine.enabled", "false").trim())) {
+            return null;
+        }
+        return new LedgerEngine(
+                Paths.get(props.getProperty("engine.dir", "journal").trim()),
+                Integer.parseInt(props.getProperty("engine.queue", "65536").trim()),
+                Integer.parseInt(props.getProperty("engine.writeBehindBatches", "1024").trim()),
+                Integer.parseInt(props.getProperty("engine.keys", "100000").trim()));
+    }
+
+    /* ================= OPERATIONS ================= */
+
+    public CompletableFuture<Result> deposit(Long terminal, String accountId, double amount, String key) {
+        return submit(new Command(Transaction.DEPOSIT, accountId, null, terminal, amount, key));
+    }
+
+    public CompletableFuture<Result> withdraw(Long terminal, String accountId, double amount, String key) {
+        return submit(new Command(Transaction.WITHDRAW, accountId, null, terminal, amount, key));
+    }
+
+    public CompletableFuture<Result> transfer(String accountId, String targetCard, double amount, String key) {
+        return submit(new Command(Transaction.TRANSFER_OUT, accountId, targetCard, null, amount, key));
+    }
+
+    /**
+     * Adds (positive) or collects (negative) notes at a terminal.
+     */
+    public CompletableFuture<Result> adjustNotes(Long terminal, int notes20, int notes50, int notes100) {
+        Command command = new Command(NOTES, null, null, terminal, 0, null);
+        command.notes = new int[] { notes20, notes50, notes100 };
+        return submit(command);
+    }
+
+    /**
+     * Last journal entry known to be in the database.
+     */
+    public long getPersistedSeq() {
+        return persistedSeq;
+    }
+
+    private CompletableFuture<Result> submit(Command command) {
+        if (command.key != null && running && !failed) {
+            command.stored = storedKey(command.key);
+        }
+        if (!running || failed) {
+            command.future.complete(new Result(Status.STOPPED, 0, false));
+        } else if (!commands.offer(command)) {
+            command.future.complete(new Result(Status.BUSY, 0, false));
+        }
+        return command.future;
+    }
+
+    /**
+     * Outcome an earlier run stored for {@code key}, read on the caller's
+     * thread so the sequencer never waits for the database.
+     */
+    private static IdempotencyRecord storedKey(String key) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(IdempotencyRecord.class, key);
+        } catch (RuntimeException e) {
+            // The engine authorizes without the database; keys in memory still count
+            return null;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Stops taking operations, finishes the queued ones and waits up to
+     * {@code timeoutMillis} for the database to catch up. Entries it has
+     * not reached stay in the journal for the next start.
+     */
+    public void close(long timeoutMillis) {
+        running = false;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down, possibly in this very hook
+        }
+        try {
+            sequencer.join();
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (persistedSeq < seq && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            writeBehind.interrupt();
+            writeBehind.join(1_000);
+            journal.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        close(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /* ================= SEQUENCER ================= */
+
+    private void sequence() {
+        List<Command> batch = new ArrayList<>(BATCH);
+        List<Result> results = new ArrayList<>(BATCH);
+        List<Entry> entries = new ArrayList<>(BATCH);
+        while (running || !commands.isEmpty()) {
+            try {
+                Command first = commands.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                running = false;
+                continue;
+            }
+            commands.drainTo(batch, BATCH - 1);
+
+            for (Command command : batch) {
+                results.add(apply(command, entries));
+            }
+            try {
+                if (!entries.isEmpty()) {
+                    journal.append(entries);
+                    unpersisted.put(new ArrayList<>(entries));
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).future.complete(results.get(i));
+                }
+            } catch (IOException | InterruptedException e) {
+                // Memory is now ahead of the journal: stop, and let a restart rebuild from the journal
+                failed = true;
+                running = false;
+                System.out.println("Ledger journal failed, engine stopped: " + e.getMessage());
+                for (Command command : batch) {
+                    command.future.completeExceptionally(e);
+                }
+                for (Command command : commands) {
+                    command.future.complete(new Result(Status.STOPPED, 0, false));
+                }
+                return;
+            }
+            batch.clear();
+            results.clear();
+            entries.clear();
+        }
+    }
+
+    private Result apply(Command c, List<Entry> entries) {
+        if (c.type.equals(NOTES)) {
+            return applyNotes(c, entries);
+        }
+        if (c.amount <= 0) {
+            return new Result(Status.INVALID_AMOUNT, 0, false);
+        }
+        String targetId = c.targetCard == null ? null : accountByCard.get(c.targetCard);
+        String operation = c.targetCard == null ? c.type : c.type + ":" + targetId;
+        if (c.key != null) {
+            KeyedResult earlier = keys.get(c.key);
+            if (earlier == null && c.stored != null) {
+                earlier = new KeyedResult(0, c.stored.getOperation(), c.stored.getAccountId(),
+                        c.stored.getAmount(), c.stored.getBalanceAfter());
+            }
+            if (earlier != null) {
+                if (!earlier.operation.equals(operation) || !earlier.account.equals(c.account)
+                        || earlier.amount != c.amount) {
+                    return new Result(Status.KEY_REUSED, 0, false);
+                }
+                return new Result(Status.APPROVED, earlier.balance, true);
+            }
+        }
+
+        Balance balance = balances.get(c.account);
+        if (balance == null) {
+            return new Result(Status.UNKNOWN_ACCOUNT, 0, false);
+        }
+        long now = System.currentTimeMillis();
+        Entry entry;
+        Result result;
+
+        if (c.type.equals(Transaction.TRANSFER_OUT)) {
+            Balance target = targetId == null ? null : balances.get(targetId);
+            if (target == null) {
+                return new Result(Status.UNKNOWN_ACCOUNT, 0, false);
+            }
+            if (balance.value < c.amount) {
+                return new Result(Status.INSUFFICIENT_FUNDS, 0, false);
+            }
+            balance.value -= c.amount;
+            target.value += c.amount;
+            entry = new Entry(++seq, now, c.type, c.account, c.amount, balance.value,
+                    targetId, target.value, -1, 0, 0, 0, c.key);
+            result = new Result(Status.APPROVED, balance.value, false);
+        } else {
+            ATMState terminal = terminals.get(c.terminal != null ? c.terminal : defaultTerminal);
+            if (terminal == null) {
+                return new Result(Status.STOPPED, 0, false);
+            }
+            double[] before = supplies(terminal);
+            int notes20 = terminal.getNotes20();
+            int notes50 = terminal.getNotes50();
+            int notes100 = terminal.getNotes100();
+            if (c.type.equals(Transaction.WITHDRAW)) {
+                if (balance.value < c.amount) {
+                    return new Result(Status.INSUFFICIENT_FUNDS, 0, false);
+                }
+                if (terminal.getCash() < c.amount) {
+                    return new Result(Status.INSUFFICIENT_CASH, 0, false);
+                }
+                if (!terminal.dispense(c.amount)) {
+                    return new Result(Status.NOTES_UNAVAILABLE, 0, false);
+                }
+                balance.value -= c.amount;
+            } else {
+                if (!terminal.depositNotes(c.amount)) {
+                    return new Result(Status.INVALID_NOTES, 0, false);
+                }
+                balance.value += c.amount;
+            }
+            entry = new Entry(++seq, now, c.type, c.account, c.amount, balance.value,
+                    null, 0, terminal.getId(), terminal.getNotes20() - notes20, terminal.getNotes50() - notes50,
+                    terminal.getNotes100() - notes100, c.key);
+            result = new Result(Status.APPROVED, balance.value, false, terminal.getId(), before, supplies(terminal));
+        }
+
+        entries.add(entry);
+        if (c.key != null) {
+            keys.put(c.key, new KeyedResult(entry.seq, operation, c.account, c.amount, balance.value));
+        }
+        return result;
+    }
+
+    private Result applyNotes(Command c, List<Entry> entries) {
+        ATMState terminal = terminals.get(c.terminal != null ? c.terminal : defaultTerminal);
+        if (terminal == null) {
+            return new Result(Status.STOPPED, 0, false);
+        }
+        int[] n = c.notes;
+        if (terminal.getNotes20() + n[0] < 0 || terminal.getNotes50() + n[1] < 0 || terminal.getNotes100() + n[2] < 0) {
+            return new Result(Status.NOT_ENOUGH_NOTES, 0, false);
+        }
+        double[] before = supplies(terminal);
+        terminal.addBanknotes(n[0], n[1], n[2]);
+        entries.add(new Entry(++seq, System.currentTimeMillis(), NOTES, "-", 20.0 * n[0] + 50.0 * n[1] + 100.0 * n[2],
+                0, null, 0, terminal.getId(), n[0], n[1], n[2], null));
+        return new Result(Status.APPROVED, terminal.getCash(), false, terminal.getId(), before, supplies(terminal));
+    }
+
+    /**
+     * Supply levels of {@code terminal}, without the paper and ink the engine does not track.
+     */
+    private static double[] supplies(ATMState terminal) {
+        double[] levels = SupplyMonitor.levels(terminal);
+        levels[SupplyMonitor.Supply.PAPER.ordinal()] = Double.NaN;
+        levels[SupplyMonitor.Supply.INK.ordinal()] = Double.NaN;
+        return levels;
+    }
+
+    /* ================= RECOVERY ================= */
+
+    private void load() {
+        // Last entry each shard has; terminals and keys are on the home shard
+        long[] checkpoints = new long[JpaManager.shardCount()];
+        for (int shard = 0; shard < checkpoints.length; shard++) {
+            EntityManager em = JpaManager.getEntityManager(shard);
+            try {
+                try (Stream<Object[]> rows = em.createNamedQuery(Account.BALANCES, Object[].class)
+                        .setHint("org.hibernate.fetchSize", 10_000)
+                        .getResultStream()) {
+                    rows.forEach(row -> {
+                        balances.put((String) row[0], new Balance((Double) row[2]));
+                        accountByCard.put((String) row[1], (String) row[0]);
+                    });
+                }
+                if (shard == 0) {
+                    for (ATMState state : em.createNamedQuery(ATMState.ALL, ATMState.class).getResultList()) {
+                        terminals.put(state.getId(), state);
+                        if (defaultTerminal == null) {
+                            defaultTerminal = state.getId();
+                        }
+                    }
+                }
+                em.clear();
+                EngineCheckpoint checkpoint = em.find(EngineCheckpoint.class, NAME);
+                checkpoints[shard] = checkpoint == null ? 0 : checkpoint.getLastSeq();
+            } finally {
+                em.close();
+            }
+        }
+        persistedSeq = Arrays.stream(checkpoints).min().getAsLong();
+
+        List<Entry> replay = new ArrayList<>();
+        try {
+            long last = journal.open(persistedSeq, entry -> {
+                replay(entry, checkpoints);
+                replay.add(entry);
+            });
+            // Never reuse a number a shard has already stored, even without the journal
+            seq = Math.max(last, Arrays.stream(checkpoints).max().getAsLong());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!replay.isEmpty()) {
+            // Entries journaled but not yet written back when the engine last stopped
+            System.out.printf("Ledger engine: writing %d journal entries to the database\n", replay.size());
+            for (int from = 0; from < replay.size(); from += BATCH) {
+                List<Entry> chunk = replay.subList(from, Math.min(replay.size(), from + BATCH));
+                persist(chunk);
+                persistedSeq = chunk.get(chunk.size() - 1).seq;
+            }
+        }
+        try {
+            journal.deleteThrough(persistedSeq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies a journal entry to what was loaded, where the shard's
+     * checkpoint shows it is not in the database yet.
+     */
+    private void replay(Entry entry, long[] checkpoints) {
+        Balance balance = balances.get(entry.account);
+        if (balance != null && entry.seq > checkpoints[JpaManager.shardOf(entry.account)]) {
+            balance.value += change(entry);
+        }
+        if (entry.target != null) {
+            Balance target = balances.get(entry.target);
+            if (target != null && entry.seq > checkpoints[JpaManager.shardOf(entry.target)]) {
+                target.value += entry.amount;
+            }
+        }
+        ATMState terminal = terminals.get(entry.terminal);
+        if (terminal != null && entry.seq > checkpoints[0]) {
+            terminal.addBanknotes(entry.notes20, entry.notes50, entry.notes100);
+        }
+        if (entry.key != null) {
+            keys.put(entry.key, new KeyedResult(entry.seq, operation(entry), entry.account, entry.amount,
+                    entry.balance));
+        }
+    }
+
+    /**
+     * Change of the entry's own account: a deposit adds, withdrawals and transfers take away.
+     */
+    private static double change(Entry entry) {
+        return entry.type.equals(Transaction.DEPOSIT) ? entry.amount : -entry.amount;
+    }
+
+    private static String operation(Entry entry) {
+        return entry.target == null ? entry.type : entry.type + ":" + entry.target;
+    }
+
+    /* ================= WRITE-BEHIND ================= */
+
+    private void persistLoop() {
+        List<Entry> pending = new ArrayList<>();
+        long backoff = 100;
+        while (true) {
+            try {
+                if (pending.isEmpty()) {
+                    List<Entry> first = unpersisted.poll(200, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    pending.addAll(first);
+                    List<List<Entry>> more = new ArrayList<>();
+                    unpersisted.drainTo(more, 15);
+                    more.forEach(pending::addAll);
+                }
+                persist(pending);
+                persistedSeq = pending.get(pending.size() - 1).seq;
+                journal.deleteThrough(persistedSeq);
+                pending.clear();
+                backoff = 100;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.out.println("Ledger write-behind failed, retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 10_000);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code entries} to every shard, one transaction each.
+     */
+    private void persist(List<Entry> entries) {
+        for (int shard = 0; shard < JpaManager.shardCount(); shard++) {
+            persist(shard, entries);
+        }
+    }
+
+    /**
+     * Writes the part of {@code entries} that belongs on {@code shard} and
+     * that its checkpoint does not cover, and moves the checkpoint past
+     * them, in one transaction. A retry after a commit whose outcome was
+     * lost therefore changes nothing twice.
+     */
+    private void persist(int shard, List<Entry> entries) {
+        long last = entries.get(entries.size() - 1).seq;
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            em.getTransaction().begin();
+            EngineCheckpoint checkpoint = em.find(EngineCheckpoint.class, NAME, LockModeType.PESSIMISTIC_WRITE);
+            long done = checkpoint == null ? 0 : checkpoint.getLastSeq();
+            if (done >= last) {
+                em.getTransaction().rollback();
+                return;
+            }
+            List<Entry> todo = entries.stream().filter(entry -> entry.seq > done).toList();
+            em.unwrap(Session.class).doWork(connection -> write(connection, shard, todo));
+
+            if (checkpoint == null) {
+                checkpoint = new EngineCheckpoint();
+                checkpoint.setEngine(NAME);
+                em.persist(checkpoint);
+            }
+            checkpoint.setLastSeq(last);
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void write(Connection connection, int shard, List<Entry> entries) throws SQLException {
+        // Changes add up per account and terminal, so each is updated once
+        Map<String, Double> balanceChanges = new LinkedHashMap<>();
+        Map<Long, int[]> noteChanges = new LinkedHashMap<>();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO transactions (account_id, amount, type, time, created_at, updated_at) "
+                + "VALUES (?, ?, ?, ?, ?, ?)");
+             PreparedStatement insertKey = connection.prepareStatement(
+                "INSERT INTO idempotency_keys (idempotency_key, operation, account_id, amount, balance_after, "
+                + "created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            for (Entry entry : entries) {
+                if (shard == 0 && entry.terminal >= 0) {
+                    int[] notes = noteChanges.computeIfAbsent(entry.terminal, t -> new int[3]);
+                    notes[0] += entry.notes20;
+                    notes[1] += entry.notes50;
+                    notes[2] += entry.notes100;
+                }
+                if (entry.type.equals(NOTES)) {
+                    continue;
+                }
+                Timestamp time = Timestamp.valueOf(LocalDateTime.ofInstant(
+                        Instant.ofEpochMilli(entry.timeMillis), ZONE));
+                if (JpaManager.shardOf(entry.account) == shard) {
+                    addRow(insert, entry.account, entry.amount, entry.type, time, now);
+                    balanceChanges.merge(entry.account, change(entry), Double::sum);
+                }
+                if (entry.target != null && JpaManager.shardOf(entry.target) == shard) {
+                    addRow(insert, entry.target, entry.amount, Transaction.TRANSFER_IN, time, now);
+                    balanceChanges.merge(entry.target, entry.amount, Double::sum);
+                }
+                if (shard == 0 && entry.key != null) {
+                    insertKey.setString(1, entry.key);
+                    insertKey.setString(2, operation(entry));
+                    insertKey.setString(3, entry.account);
+                    insertKey.setDouble(4, entry.amount);
+                    insertKey.setDouble(5, entry.balance);
+                    insertKey.setTimestamp(6, now);
+                    insertKey.setTimestamp(7, now);
+                    insertKey.addBatch();
+                }
+            }
+            insert.executeBatch();
+            insertKey.executeBatch();
+        }
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE accounts SET balance = balance + ?, updated_at = ? WHERE account_id = ?")) {
+            for (Map.Entry<String, Double> balance : balanceChanges.entrySet()) {
+                update.setDouble(1, balance.getValue());
+                update.setTimestamp(2, now);
+                update.setString(3, balance.getKey());
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE atm_state SET notes_20 = notes_20 + ?, notes_50 = notes_50 + ?, "
+                + "notes_100 = notes_100 + ?, cash = cash + ?, updated_at = ? WHERE id = ?")) {
+            for (Map.Entry<Long, int[]> notes : noteChanges.entrySet()) {
+                int[] n = notes.getValue();
+                update.setInt(1, n[0]);
+                update.setInt(2, n[1]);
+                update.setInt(3, n[2]);
+                update.setDouble(4, 20.0 * n[0] + 50.0 * n[1] + 100.0 * n[2]);
+                update.setTimestamp(5, now);
+                update.setLong(6, notes.getKey());
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+    }
+
+    private static void addRow(PreparedStatement insert, String account, double amount, String type,
+                               Timestamp time, Timestamp now) throws SQLException {
+        insert.setString(1, account);
+        insert.setDouble(2, amount);
+        insert.setString(3, type);
+        insert.setTimestamp(4, time);
+        insert.setTimestamp(5, now);
+        insert.setTimestamp(6, now);
+        insert.addBatch();
+    }
+}
@@ -0,0 +1,213 @@
+package com.atm.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Local write-ahead journal of the {@link LedgerEngine}.
+ * <p>
+ * Every approved operation is one tab-separated line holding its amount,
+ * the note counts it moved and the balances it left. Lines are appended a
+ * batch at a time with one {@code force} per batch (group commit) into
+ * numbered segments ({@code journal-000001.log}, ...). Segments whose
+ * entries are all in the database are deleted.
+ */
+public class LedgerJournal implements AutoCloseable {
+
+    /**
+     * One approved operation, its changes and the balances it left behind.
+     */
+    public static final class Entry {
+        public final long seq;
+        public final long timeMillis;
+        public final String type;
+        public final String account;
+        public final double amount;
+        public final double balance;
+        // Transfers only
+        public final String target;
+        public final double targetBalance;
+        // Cash operations only: the terminal and the change of its note counts
+        public final long terminal;
+        public final int notes20;
+        public final int notes50;
+        public final int notes100;
+        public final String key;
+
+        Entry(long seq, long timeMillis, String type, String account, double amount, double balance,
+              String target, double targetBalance, long terminal, int notes20, int notes50, int notes100, String key) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.type = type;
+            this.account = account;
+            this.amount = amount;
+            this.balance = balance;
+            this.target = target;
+            this.targetBalance = targetBalance;
+            this.terminal = terminal;
+            this.notes20 = notes20;
+            this.notes50 = notes50;
+            this.notes100 = notes100;
+            this.key = key;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append(seq).append('\t').append(timeMillis).append('\t').append(type).append('\t')
+                    .append(account).append('\t').append(amount).append('\t').append(balance).append('\t')
+                    .append(target == null ? "-" : target).append('\t').append(targetBalance).append('\t')
+                    .append(terminal).append('\t').append(notes20).append('\t').append(notes50).append('\t')
+                    .append(notes100).append('\t').append(key == null ? "-" : key).append('\n');
+        }
+
+        static Entry parse(String line) {
+            String[] f = line.split("\t", -1);
+            if (f.length != 13) {
+                throw new IllegalArgumentException(f.length + " fields instead of 13");
+            }
+            return new Entry(Long.parseLong(f[0]), Long.parseLong(f[1]), f[2], f[3],
+                    Double.parseDouble(f[4]), Double.parseDouble(f[5]),
+                    f[6].equals("-") ? null : f[6], Double.parseDouble(f[7]),
+                    Long.parseLong(f[8]), Integer.parseInt(f[9]), Integer.parseInt(f[10]), Integer.parseInt(f[11]),
+                    f[12].equals("-") ? null : f[12]);
+        }
+    }
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final StringBuilder text = new StringBuilder(64 * 1024);
+    // Last sequence number in each closed segment
+    private final Map<Integer, Long> closedSegments = new TreeMap<>();
+    private FileChannel channel;
+    private int segment;
+    private long segmentLastSeq;
+
+    public LedgerJournal(Path dir, long maxSegmentBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Reads every entry after {@code afterSeq} and prepares to append after
+     * the last one. Call once, before {@link #append}.
+     * @return the last sequence number in the journal, or {@code afterSeq} if it has none later
+     */
+    public synchronized long open(long afterSeq, Consumer<Entry> sink) throws IOException {
+        Files.createDirectories(dir);
+        long last = afterSeq;
+        segment = 1;
+        List<Path> files = segments();
+        if (!files.isEmpty()) {
+            // A torn last line was never acknowledged, however many fields survived
+            Path newest = files.get(files.size() - 1);
+            long cut = ChannelTextWriter.cutTornLine(newest);
+            if (cut > 0) {
+                System.out.println("Ledger journal: cut " + cut + " bytes of a torn line from " + newest);
+            }
+        }
+        for (Path file : files) {
+            int number = segmentNumber(file);
+            long segmentLast = 0;
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    Entry entry;
+                    try {
+                        entry = Entry.parse(line);
+                    } catch (RuntimeException e) {
+                        throw new IOException("Unreadable journal line in " + file + ": " + line, e);
+                    }
+                    segmentLast = entry.seq;
+                    if (entry.seq > last) {
+                        sink.accept(entry);
+                        last = entry.seq;
+                    }
+                }
+            }
+            closedSegments.put(number, segmentLast);
+            segment = number + 1;
+        }
+        channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return last;
+    }
+
+    /**
+     * Appends {@code entries} and forces them to disk before returning.
+     */
+    public synchronized void append(List<Entry> entries) throws IOException {
+        text.setLength(0);
+        for (Entry entry : entries) {
+            entry.appendTo(text);
+        }
+        ByteBuffer buf = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        channel.force(false);
+        segmentLastSeq = entries.get(entries.size() - 1).seq;
+
+        if (channel.size() >= maxSegmentBytes) {
+            channel.close();
+            closedSegments.put(segment, segmentLastSeq);
+            segment++;
+            channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Deletes closed segments whose entries all have {@code seq <= persistedSeq}.
+     */
+    public synchronized void deleteThrough(long persistedSeq) throws IOException {
+        Iterator<Map.Entry<Integer, Long>> it = closedSegments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Long> closed = it.next();
+            if (closed.getValue() > persistedSeq) {
+                break;
+            }
+            Files.deleteIfExists(segmentFile(closed.getKey()));
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().matches("journal-\\d{6}\\.log"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentFile(int number) {
+        return dir.resolve(String.format("journal-%06d.log", number));
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - ".log".length()));
+    }
+}
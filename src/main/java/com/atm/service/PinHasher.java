@@ -0,0 +1,87 @@
+package com.atm.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 PIN hashes, stored as
+ * {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} (Base64).
+ * <p>
+ * The iteration count is kept with each hash, so raising it only affects
+ * new hashes; {@link #needsRehash} tells which stored values to upgrade.
+ * Values without the prefix are legacy plain-text PINs, still accepted
+ * until they are migrated.
+ */
+public class PinHasher {
+
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    public PinHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive.");
+        }
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    public String hash(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$"
+                + b64.encodeToString(derive(pin, salt, iterations));
+    }
+
+    /**
+     * Whether {@code pin} matches {@code stored}, in time that does not
+     * depend on where they differ.
+     */
+    public boolean verify(String stored, String pin) {
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), pin.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[2]);
+        return MessageDigest.isEqual(expected, derive(pin, b64.decode(parts[1]), Integer.parseInt(parts[0])));
+    }
+
+    /**
+     * Whether {@code stored} is plain text or hashed with another iteration count.
+     */
+    public boolean needsRehash(String stored) {
+        return !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    private static byte[] derive(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
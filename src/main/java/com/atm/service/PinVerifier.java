@@ -0,0 +1,166 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks PINs against their slow hashes on a dedicated, bounded pool.
+ * <p>
+ * Hashing is pure CPU, so the pool has about one thread per core and a
+ * short queue in front of it. When the queue is full a login is turned
+ * away at once as {@link Outcome#BUSY} instead of piling up; a request that
+ * waits longer than the timeout is given up the same way. Callers never
+ * hold a database connection while they wait. A successful check of a
+ * legacy or outdated hash also computes its replacement on the pool.
+ */
+public class PinVerifier {
+
+    public enum Outcome { MATCH, MISMATCH, BUSY }
+
+    public static final class Result {
+        private final Outcome outcome;
+        private final String upgradedHash;
+
+        Result(Outcome outcome, String upgradedHash) {
+            this.outcome = outcome;
+            this.upgradedHash = upgradedHash;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * New hash to store for a matching PIN whose stored value is out of
+         * date, otherwise {@code null}.
+         */
+        public String getUpgradedHash() {
+            return upgradedHash;
+        }
+    }
+
+    private static final Result BUSY = new Result(Outcome.BUSY, null);
+    private static PinVerifier shared;
+
+    private final PinHasher hasher;
+    private final ThreadPoolExecutor pool;
+    private final long timeoutMillis;
+    // Checked when the card is unknown, so its response time gives nothing away
+    private final String dummyHash;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PinVerifier(PinHasher hasher, int threads, int queueCapacity, Duration timeout) {
+        this.hasher = hasher;
+        this.timeoutMillis = timeout.toMillis();
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "pin-verifier-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.dummyHash = hasher.hash("0000");
+    }
+
+    /**
+     * The verifier configured by {@code pin.properties}, shared by every
+     * service in this process so the pool bounds hashing for all of them.
+     */
+    public static synchronized PinVerifier fromClasspath() {
+        if (shared == null) {
+            Properties props = new Properties();
+            try (InputStream in = PinVerifier.class.getClassLoader().getResourceAsStream("pin.properties")) {
+                if (in != null) {
+                    props.load(in);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not read pin.properties: " + e.getMessage());
+            }
+            shared = fromProperties(props);
+        }
+        return shared;
+    }
+
+    /**
+     * Reads {@code pin.iterations}, {@code pin.threads} (0 for one per core),
+     * {@code pin.queue} and {@code pin.timeoutMillis}.
+     */
+    public static PinVerifier fromProperties(Properties props) {
+        int threads = Integer.parseInt(props.getProperty("pin.threads", "0").trim());
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return new PinVerifier(new PinHasher(Integer.parseInt(props.getProperty("pin.iterations", "100000").trim())),
+                threads,
+                Integer.parseInt(props.getProperty("pin.queue", "32").trim()),
+                Duration.ofMillis(Long.parseLong(props.getProperty("pin.timeoutMillis", "3000").trim())));
+    }
+
+    public PinHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Checks {@code pin} against {@code stored}, or against a dummy hash
+     * taking as long if {@code stored} is {@code null}, which never matches.
+     * Blocks until the check has run, been rejected or timed out.
+     */
+    public Result verify(String stored, String pin) {
+        Future<Result> pending;
+        try {
+            pending = pool.submit(() -> check(stored, pin));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return BUSY;
+        }
+        try {
+            return pending.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            pending.cancel(true);
+            rejected.incrementAndGet();
+            return BUSY;
+        } catch (InterruptedException e) {
+            pending.cancel(true);
+            Thread.currentThread().interrupt();
+            return BUSY;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("PIN check failed", e.getCause());
+        }
+    }
+
+    private Result check(String stored, String pin) {
+        if (stored == null) {
+            hasher.verify(dummyHash, pin);
+            return new Result(Outcome.MISMATCH, null);
+        }
+        if (!hasher.verify(stored, pin)) {
+            return new Result(Outcome.MISMATCH, null);
+        }
+        return new Result(Outcome.MATCH, hasher.needsRehash(stored) ? hasher.hash(pin) : null);
+    }
+
+    /** Checks waiting for a thread. */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /** Checks turned away because the queue was full or they waited too long. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,310 @@
+package com.atm.service;
+
+import com.atm.db.DatabaseGuard;
+import com.atm.db.ReadRouter;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.Transaction;
+import com.atm.service.TrafficTrace.Op;
+import com.atm.service.TrafficTrace.Outcome;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * {@link ATMService} that records every customer and technician call,
+ * with its arguments, timing and outcome, to a {@link TrafficTrace}.
+ * <p>
+ * Only the full forms of deposit, withdraw and transfer are recorded: the
+ * short ones go through them. A call that throws is recorded as
+ * {@link Outcome#ERROR}, or {@link Outcome#BUSY} when admission turned it
+ * away or {@link Outcome#UNAVAILABLE} when the database circuit was open,
+ * and the exception passed on.
+ */
+public class RecordingATMService extends ATMService {
+
+    private final TrafficTrace.Writer trace;
+
+    public RecordingATMService(TrafficTrace.Writer trace) {
+        super();
+        this.trace = trace;
+    }
+
+    public RecordingATMService(TrafficTrace.Writer trace, Long terminalId, SupplyMonitor supplies,
+                               LedgerEngine engine, ReadRouter reads) {
+        super(terminalId, supplies, engine, reads);
+        this.trace = trace;
+    }
+
+    /* ================= CUSTOMER OPERATIONS ================= */
+
+    @Override
+    public Account login(String cardNumber, String pin) {
+        long start = System.nanoTime();
+        Account account = null;
+        Outcome outcome = Outcome.ERROR;
+        try {
+            account = super.login(cardNumber, pin);
+            outcome = account != null ? Outcome.OK : Outcome.DECLINED;
+            return account;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.LOGIN, outcome, start, account == null ? null : account.getAccountId(), cardNumber,
+                    null, 0, 0);
+        }
+    }
+
+    @Override
+    public Account getAccountDetails(String accountId) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            Account account = super.getAccountDetails(accountId);
+            outcome = account != null ? Outcome.OK : Outcome.DECLINED;
+            return account;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.ACCOUNT, outcome, start, accountId, null, null, 0, 0);
+        }
+    }
+
+    @Override
+    public boolean deposit(Account account, double amount, String idempotencyKey) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.deposit(account, amount, idempotencyKey);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.DEPOSIT, outcome, start, account.getAccountId(), null, idempotencyKey, amount, 0);
+        }
+    }
+
+    @Override
+    public boolean withdraw(Account account, double amount, String idempotencyKey) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.withdraw(account, amount, idempotencyKey);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.WITHDRAW, outcome, start, account.getAccountId(), null, idempotencyKey, amount, 0);
+        }
+    }
+
+    @Override
+    public boolean transfer(Account from, String toCardNumber, double amount, String idempotencyKey) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.transfer(from, toCardNumber, amount, idempotencyKey);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.TRANSFER, outcome, start, from.getAccountId(), toCardNumber, idempotencyKey, amount, 0);
+        }
+    }
+
+    @Override
+    public boolean printReceipt(String type, double amount, double balance) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.printReceipt(type, amount, balance);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.RECEIPT, outcome, start, null, null, type, amount, balance);
+        }
+    }
+
+    @Override
+    public List<Transaction> getHistory(String accountId, LocalDateTime from, LocalDateTime to) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            List<Transaction> history = super.getHistory(accountId, from, to);
+            outcome = Outcome.OK;
+            return history;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.HISTORY, outcome, start, accountId, null, null, 0, 0,
+                    TrafficTrace.encodeTime(from), TrafficTrace.encodeTime(to));
+        }
+    }
+
+    /* ================= TECHNICIAN OPERATIONS ================= */
+
+    @Override
+    public void viewATMStatus() {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            super.viewATMStatus();
+            outcome = Outcome.OK;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.VIEW_STATUS, outcome, start, null, null, null, 0, 0);
+        }
+    }
+
+    @Override
+    public ATMState getATMStatus() {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            ATMState state = super.getATMStatus();
+            outcome = Outcome.OK;
+            return state;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.STATUS, outcome, start, null, null, null, 0, 0);
+        }
+    }
+
+    @Override
+    public boolean refillPaper(int amount) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.refillPaper(amount);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.REFILL_PAPER, outcome, start, null, null, null, 0, 0, amount);
+        }
+    }
+
+    @Override
+    public boolean refillInk(int amount) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.refillInk(amount);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.REFILL_INK, outcome, start, null, null, null, 0, 0, amount);
+        }
+    }
+
+    @Override
+    public boolean addCashToATM(int notes20, int notes50, int notes100) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.addCashToATM(notes20, notes50, notes100);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.ADD_CASH, outcome, start, null, null, null, 0, 0, notes20, notes50, notes100);
+        }
+    }
+
+    @Override
+    public boolean collectCash(int notes20, int notes50, int notes100) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.collectCash(notes20, notes50, notes100);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.COLLECT_CASH, outcome, start, null, null, null, 0, 0, notes20, notes50, notes100);
+        }
+    }
+
+    @Override
+    public boolean updateFirmware(String version) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            boolean ok = super.updateFirmware(version);
+            outcome = ok ? Outcome.OK : Outcome.DECLINED;
+            return ok;
+        } catch (AdmissionController.RejectedException e) {
+            outcome = Outcome.BUSY;
+            throw e;
+        } catch (DatabaseGuard.OpenException e) {
+            outcome = Outcome.UNAVAILABLE;
+            throw e;
+        } finally {
+            trace.record(Op.FIRMWARE, outcome, start, null, null, version, 0, 0);
+        }
+    }
+}
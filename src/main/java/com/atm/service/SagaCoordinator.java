@@ -0,0 +1,601 @@
+package com.atm.service;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.Saga;
+import com.atm.model.Transaction;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Money movements that cannot run in one database transaction because
+ * their accounts live on a shard other than the home shard, which holds
+ * the terminals.
+ * <p>
+ * Each movement is a saga: a {@link Saga} record on the home shard, then
+ * one local transaction per step, each leaving a {@link Transaction} row
+ * tagged with the saga id on the account's shard.
+ * <ul>
+ *   <li>Transfer: reserve (debit the sender), credit the receiver, confirm.
+ *       If the credit fails the reserve is compensated by a
+ *       {@link Transaction#REVERSAL}.</li>
+ *   <li>Withdrawal: reserve (debit the account), then dispense and confirm
+ *       in one home-shard transaction; compensated if the terminal cannot
+ *       dispense.</li>
+ *   <li>Deposit: take in the notes and record the saga in one home-shard
+ *       transaction, credit the account, confirm. If the credit fails the
+ *       notes are handed back.</li>
+ * </ul>
+ * A step runs under its account's row lock and checks for its own row
+ * first, so repeating it is harmless. Sagas interrupted by a crash stay
+ * {@link Saga.State#STARTED} until {@link #recover} completes or
+ * compensates them from the rows that exist. A saga leaves STARTED only
+ * once: every transition locks its record and checks the state first, so
+ * recovery and a late live step cannot both decide its outcome. The saga
+ * id is the idempotency key when the caller gives one.
+ */
+public class SagaCoordinator {
+
+    private final Long terminalId;
+    private final String owner;
+    private final SupplyMonitor supplies;
+
+    public SagaCoordinator(Long terminalId, SupplyMonitor supplies) {
+        this.terminalId = terminalId;
+        this.owner = terminalId == null ? "default" : terminalId.toString();
+        this.supplies = supplies;
+    }
+
+    /* ================= TRANSFER ================= */
+
+    public boolean transfer(Account from, String receiverId, double amount, String idempotencyKey) {
+        String id = sagaId(idempotencyKey);
+        Boolean replayed = replay(id, Transaction.TRANSFER_OUT, from, receiverId, amount);
+        if (replayed != null) {
+            return replayed;
+        }
+        if (!start(id, Transaction.TRANSFER_OUT, from.getAccountId(), receiverId, amount)) {
+            return replay(id, Transaction.TRANSFER_OUT, from, receiverId, amount);
+        }
+
+        Double balance;
+        try {
+            balance = step(from.getAccountId(), Transaction.TRANSFER_OUT, amount, true, id);
+        } catch (RuntimeException e) {
+            System.out.println("Transfer failed: " + e.getMessage());
+            return false;
+        }
+        if (balance == null) {
+            finish(id, Saga.State.DECLINED);
+            System.out.println("Insufficient balance.");
+            return false;
+        }
+
+        try {
+            step(receiverId, Transaction.TRANSFER_IN, amount, false, id);
+        } catch (RuntimeException e) {
+            System.out.println("Transfer failed: " + e.getMessage());
+            // The credit may have committed even though it reported an error
+            try {
+                if (hasStep(receiverId, Transaction.TRANSFER_IN, id)) {
+                    return confirmed(id, from, balance, "Transfer successful.");
+                }
+            } catch (RuntimeException unreachable) {
+                System.out.println("Transfer pending: it will be settled when the bank is reachable.");
+                return false;
+            }
+            compensate(from.getAccountId(), amount, id);
+            return false;
+        }
+        return confirmed(id, from, balance, "Transfer successful.");
+    }
+
+    /* ================= WITHDRAW ================= */
+
+    public boolean withdraw(Account account, double amount, String idempotencyKey) {
+        String id = sagaId(idempotencyKey);
+        Boolean replayed = replay(id, Transaction.WITHDRAW, account, null, amount);
+        if (replayed != null) {
+            return replayed;
+        }
+        // Checked again under the terminal lock; this only avoids needless compensations
+        String problem = cannotDispense(amount);
+        if (problem != null) {
+            System.out.println(problem);
+            return false;
+        }
+        if (!start(id, Transaction.WITHDRAW, account.getAccountId(), null, amount)) {
+            return replay(id, Transaction.WITHDRAW, account, null, amount);
+        }
+
+        Double balance;
+        try {
+            balance = step(account.getAccountId(), Transaction.WITHDRAW, amount, true, id);
+        } catch (RuntimeException e) {
+            System.out.println("Withdrawal failed: " + e.getMessage());
+            return false;
+        }
+        if (balance == null) {
+            finish(id, Saga.State.DECLINED);
+            System.out.println("Insufficient balance.");
+            return false;
+        }
+
+        problem = dispenseAndConfirm(id, amount);
+        if (problem != null) {
+            System.out.println(problem);
+            if (state(id) == Saga.State.CONFIRMED) {
+                return confirmed(id, account, balance, "Withdrawal successful.");
+            }
+            compensate(account.getAccountId(), amount, id);
+            return false;
+        }
+        account.setBalance(balance);
+        System.out.println("Withdrawal successful.");
+        return true;
+    }
+
+    /* ================= DEPOSIT ================= */
+
+    public boolean deposit(Account account, double amount, String idempotencyKey) {
+        String id = sagaId(idempotencyKey);
+        Boolean replayed = replay(id, Transaction.DEPOSIT, account, null, amount);
+        if (replayed != null) {
+            return replayed;
+        }
+        String problem = acceptNotes(id, account.getAccountId(), amount);
+        if (problem != null) {
+            System.out.println(problem);
+            Boolean raced = replay(id, Transaction.DEPOSIT, account, null, amount);
+            return raced != null && raced;
+        }
+
+        Double balance;
+        try {
+            balance = step(account.getAccountId(), Transaction.DEPOSIT, amount, false, id);
+        } catch (RuntimeException e) {
+            System.out.println("Deposit failed: " + e.getMessage());
+            try {
+                if (hasStep(account.getAccountId(), Transaction.DEPOSIT, id)) {
+                    return confirmed(id, account, refreshedBalance(account), "Deposit successful.");
+                }
+                returnNotes(id, amount);
+                System.out.println("Please take your notes.");
+            } catch (RuntimeException unreachable) {
+                System.out.println("Deposit pending: it will be credited when the bank is reachable.");
+            }
+            return false;
+        }
+        return confirmed(id, account, balance, "Deposit successful.");
+    }
+
+    /* ================= RECOVERY ================= */
+
+    /**
+     * Completes or compensates this terminal's sagas that started more than
+     * {@code olderThan} ago and never finished. Only call with a zero age
+     * when no operation of this terminal is running, e.g. at startup.
+     * @return how many were resolved
+     */
+    public int recover(Duration olderThan) {
+        List<Saga> open;
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            open = em.createNamedQuery(Saga.OPEN_FOR_OWNER, Saga.class)
+                    .setParameter("owner", owner)
+                    .setParameter("state", Saga.State.STARTED)
+                    .setParameter("before", LocalDateTime.now().minus(olderThan))
+                    .getResultList();
+        } finally {
+            em.close();
+        }
+
+        int resolved = 0;
+        for (Saga saga : open) {
+            try {
+                Saga.State state = recoverOne(saga.getId());
+                if (state != null) {
+                    System.out.printf("Saga %s (%s %s %.2f) recovered: %s\n", saga.getId(), saga.getType(),
+                            saga.getAccountId(), saga.getAmount(), state);
+                    resolved++;
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Saga " + saga.getId() + " still pending: " + e.getMessage());
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolves one saga while holding its record's lock, so the live
+     * operation cannot finish it meanwhile.
+     * @return the outcome, or {@code null} if it was no longer started
+     */
+    private static Saga.State recoverOne(String id) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            Saga saga = em.find(Saga.class, id, LockModeType.PESSIMISTIC_WRITE);
+            if (saga == null || saga.getState() != Saga.State.STARTED) {
+                em.getTransaction().rollback();
+                return null;
+            }
+            Saga.State state = resolve(saga);
+            saga.setState(state);
+            em.getTransaction().commit();
+            return state;
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Applies what is missing of an interrupted saga, judging by the rows
+     * its steps left.
+     */
+    private static Saga.State resolve(Saga saga) {
+        String id = saga.getId();
+        String account = saga.getAccountId();
+        double amount = saga.getAmount();
+        switch (saga.getType()) {
+            case Transaction.TRANSFER_OUT -> {
+                if (hasStep(saga.getTargetId(), Transaction.TRANSFER_IN, id)) {
+                    return Saga.State.CONFIRMED;
+                }
+                if (!hasStep(account, Transaction.TRANSFER_OUT, id)) {
+                    return Saga.State.DECLINED;
+                }
+                step(account, Transaction.REVERSAL, amount, false, id);
+                return Saga.State.COMPENSATED;
+            }
+            case Transaction.WITHDRAW -> {
+                // Dispensing confirms the saga in the same transaction, so it never happened
+                if (!hasStep(account, Transaction.WITHDRAW, id)) {
+                    return Saga.State.DECLINED;
+                }
+                step(account, Transaction.REVERSAL, amount, false, id);
+                return Saga.State.COMPENSATED;
+            }
+            case Transaction.DEPOSIT -> {
+                // The notes are in the terminal and the customer is gone: credit them
+                step(account, Transaction.DEPOSIT, amount, false, id);
+                return Saga.State.CONFIRMED;
+            }
+            default -> throw new IllegalStateException("Unknown saga type: " + saga.getType());
+        }
+    }
+
+    /* ================= STEPS ================= */
+
+    /**
+     * Debits or credits {@code amount} on the account's shard, once per saga
+     * and type.
+     * @return the balance afterwards, or {@code null} if a debit found the funds short
+     */
+    private static Double step(String accountId, String type, double amount, boolean debit, String saga) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        em.getTransaction().begin();
+        try {
+            Account account = em.find(Account.class, accountId, LockModeType.PESSIMISTIC_WRITE);
+            if (account == null) {
+                throw new IllegalStateException("Unknown account: " + accountId);
+            }
+            // Under the account lock, so a repeated step cannot apply twice
+            if (countSteps(em, type, saga) > 0) {
+                em.getTransaction().rollback();
+                return account.getBalance();
+            }
+            if (debit && account.getBalance() < amount) {
+                em.getTransaction().rollback();
+                return null;
+            }
+            account.setBalance(account.getBalance() + (debit ? -amount : amount));
+
+            Transaction t = new Transaction();
+            t.setAccount(account);
+            t.setAmount(amount);
+            t.setType(type);
+            t.setTime(LocalDateTime.now());
+            t.setSaga(saga);
+            em.persist(t);
+            em.getTransaction().commit();
+            return account.getBalance();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static boolean hasStep(String accountId, String type, String saga) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        try {
+            return countSteps(em, type, saga) > 0;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long countSteps(EntityManager em, String type, String saga) {
+        return em.createNamedQuery(Transaction.COUNT_FOR_SAGA, Long.class)
+                .setParameter("saga", saga)
+                .setParameter("type", type)
+                .getSingleResult();
+    }
+
+    /**
+     * Reverses the saga's debit and marks it compensated, or leaves it for
+     * {@link #recover} if the account's shard is unreachable.
+     */
+    private void compensate(String accountId, double amount, String id) {
+        try {
+            step(accountId, Transaction.REVERSAL, amount, false, id);
+            finish(id, Saga.State.COMPENSATED);
+            System.out.println("The amount was returned to your account.");
+        } catch (RuntimeException e) {
+            System.out.println("Reversal pending: it will be posted when the bank is reachable.");
+        }
+    }
+
+    /* ================= TERMINAL STEPS ================= */
+
+    private String cannotDispense(double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            ATMState state = ATMService.findTerminal(em, terminalId);
+            String problem = dispenseProblem(state, amount);
+            em.clear(); // dispense() above only probed the notes
+            return problem;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Dispenses from the locked terminal and confirms the saga in the same
+     * transaction.
+     * @return why it could not, or {@code null} if it did
+     */
+    private String dispenseAndConfirm(String id, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            Saga saga = em.find(Saga.class, id, LockModeType.PESSIMISTIC_WRITE);
+            if (saga.getState() != Saga.State.STARTED) {
+                // Recovered meanwhile; the caller acts on the recorded outcome
+                em.getTransaction().rollback();
+                return "Withdrawal was already " + saga.getState().name().toLowerCase() + ".";
+            }
+            ATMState state = ATMService.findTerminal(em, terminalId);
+            double[] before = SupplyMonitor.levels(state);
+            String problem = dispenseProblem(state, amount);
+            if (problem != null) {
+                em.getTransaction().rollback();
+                return problem;
+            }
+            saga.setState(Saga.State.CONFIRMED);
+            em.getTransaction().commit();
+            supplies.observe(state.getId(), before, state);
+            return null;
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            return "Withdrawal failed: " + e.getMessage();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String dispenseProblem(ATMState state, double amount) {
+        if (state.getCash() < amount) {
+            return "ATM has insufficient cash.";
+        }
+        if (state.getPaper() < 1) {
+            return "ATM is out of paper.";
+        }
+        if (state.getInk() < 1) {
+            return "ATM is out of ink.";
+        }
+        if (!state.dispense(amount)) {
+            return "ATM cannot dispense this amount with the available notes.";
+        }
+        return null;
+    }
+
+    /**
+     * Takes in the notes and records the saga in one home-shard transaction.
+     * @return why it could not, or {@code null} if it did
+     */
+    private String acceptNotes(String id, String accountId, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            ATMState state = ATMService.findTerminal(em, terminalId);
+            double[] before = SupplyMonitor.levels(state);
+            if (!state.depositNotes(amount)) {
+                em.getTransaction().rollback();
+                return "Deposits must be made in $20, $50 and $100 notes.";
+            }
+            em.persist(newSaga(id, Transaction.DEPOSIT, accountId, null, amount));
+            em.getTransaction().commit();
+            supplies.observe(state.getId(), before, state);
+            return null;
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            return "Deposit failed: " + e.getMessage();
+        } finally {
+            em.close();
+        }
+    }
+
+    private void returnNotes(String id, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            Saga saga = em.find(Saga.class, id, LockModeType.PESSIMISTIC_WRITE);
+            if (saga.getState() != Saga.State.STARTED) {
+                throw new IllegalStateException("Deposit was already " + saga.getState().name().toLowerCase());
+            }
+            ATMState state = ATMService.findTerminal(em, terminalId);
+            if (!state.returnDeposit(amount)) {
+                throw new IllegalStateException("Deposited notes are no longer in the terminal");
+            }
+            saga.setState(Saga.State.COMPENSATED);
+            em.getTransaction().commit();
+            supplies.observe(state.getId(), null, state);
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /* ================= SAGA RECORDS ================= */
+
+    private static String sagaId(String idempotencyKey) {
+        return idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+    }
+
+    private Saga newSaga(String id, String type, String accountId, String targetId, double amount) {
+        Saga saga = new Saga();
+        saga.setId(id);
+        saga.setType(type);
+        saga.setOwner(owner);
+        saga.setAccountId(accountId);
+        saga.setTargetId(targetId);
+        saga.setAmount(amount);
+        saga.setState(Saga.State.STARTED);
+        return saga;
+    }
+
+    /**
+     * Records a new saga.
+     * @return false if one with this id already exists
+     */
+    private boolean start(String id, String type, String accountId, String targetId, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            em.persist(newSaga(id, type, accountId, targetId, amount));
+            em.getTransaction().commit();
+            return true;
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            if (state(id) != null) {
+                return false;
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Marks the saga finished, unless it already is. If that fails the saga
+     * stays started and {@link #recover} reaches the same outcome from its rows.
+     */
+    private static void finish(String id, Saga.State state) {
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+        try {
+            Saga saga = em.find(Saga.class, id, LockModeType.PESSIMISTIC_WRITE);
+            if (saga.getState() != Saga.State.STARTED) {
+                em.getTransaction().rollback();
+                if (saga.getState() != state) {
+                    System.out.println("Saga " + id + " was already " + saga.getState() + "; not marked " + state + ".");
+                }
+                return;
+            }
+            saga.setState(state);
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            System.out.println("Could not record the outcome of saga " + id + ": " + e.getMessage());
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Saga.State state(String id) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            Saga saga = em.find(Saga.class, id);
+            return saga == null ? null : saga.getState();
+        } finally {
+            em.close();
+        }
+    }
+
+    private boolean confirmed(String id, Account account, double balance, String success) {
+        finish(id, Saga.State.CONFIRMED);
+        account.setBalance(balance);
+        System.out.println(success);
+        return true;
+    }
+
+    /**
+     * Outcome of an earlier saga with the same id, or {@code null} if there
+     * was none.
+     */
+    private static Boolean replay(String id, String type, Account account, String targetId, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        Saga saga;
+        try {
+            saga = em.find(Saga.class, id);
+        } finally {
+            em.close();
+        }
+        if (saga == null) {
+            return null;
+        }
+        if (!saga.matches(type, account.getAccountId(), targetId, amount)) {
+            System.out.println("Request rejected: idempotency key " + id + " was already used for "
+                    + saga.describe() + ".");
+            return false;
+        }
+        if (saga.getState() == Saga.State.STARTED) {
+            System.out.println("Request is still being processed.");
+            return false;
+        }
+        System.out.println("Duplicate request, already processed.");
+        if (saga.getState() == Saga.State.CONFIRMED) {
+            account.setBalance(refreshedBalance(account));
+            return true;
+        }
+        return false;
+    }
+
+    private static double refreshedBalance(Account account) {
+        EntityManager em = JpaManager.getAccountEntityManager(account.getAccountId());
+        try {
+            return em.find(Account.class, account.getAccountId()).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+}
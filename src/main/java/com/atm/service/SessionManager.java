@@ -0,0 +1,251 @@
+package com.atm.service;
+
+import com.atm.model.Account;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Customer sessions identified by random tokens.
+ * <p>
+ * A session ends after {@code idleTimeout} without a {@link #get}, after
+ * {@code absoluteTimeout} in total, on {@link #logout}, or when every
+ * session of an account is ended with {@link #forceLogout}. Expiry runs on
+ * a {@link TimingWheel} driven by one thread: each session has at most one
+ * timeout in the wheel, and {@link #get} only records the access time, so
+ * activity costs no scheduling at all. When the timeout fires before the
+ * real deadline (because the session was used meanwhile), it is simply
+ * rescheduled for the remainder. Ending a session any other way cancels
+ * its timeout.
+ */
+public class SessionManager implements AutoCloseable {
+
+    public enum EndReason { LOGOUT, IDLE, ABSOLUTE, FORCED }
+
+    /**
+     * One logged-in customer.
+     */
+    public static final class Session {
+        private final String token;
+        private final Account account;
+        private final long createdAt;
+        private volatile long lastAccess;
+        private volatile EndReason endReason;
+        // The session's one entry in the wheel
+        private volatile TimingWheel.Timeout<Session> timeout;
+
+        private Session(String token, Account account, long now) {
+            this.token = token;
+            this.account = account;
+            this.createdAt = now;
+            this.lastAccess = now;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public Account getAccount() {
+            return account;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        /**
+         * Why the session ended, or {@code null} while it is active.
+         */
+        public EndReason getEndReason() {
+            return endReason;
+        }
+    }
+
+    private final long idleMillis;
+    private final long absoluteMillis;
+    private final TimingWheel<Session> wheel;
+    private final LongSupplier clock;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byAccount = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private ScheduledExecutorService ticker;
+
+    public SessionManager(Duration idleTimeout, Duration absoluteTimeout) {
+        this(idleTimeout, absoluteTimeout, Duration.ofSeconds(1), System::currentTimeMillis);
+    }
+
+    /**
+     * @param tick  expiry resolution; sessions end at most one tick late
+     * @param clock current time in milliseconds, for access times and the expiry thread
+     */
+    public SessionManager(Duration idleTimeout, Duration absoluteTimeout, Duration tick, LongSupplier clock) {
+        this.idleMillis = idleTimeout.toMillis();
+        this.absoluteMillis = absoluteTimeout.toMillis();
+        this.clock = clock;
+        // One turn of the wheel covers the idle timeout, so most timeouts fire on their first pass
+        int ticks = (int) Math.min(1 << 16, Math.max(64, idleMillis / tick.toMillis()));
+        this.wheel = new TimingWheel<>(tick.toMillis(), ticks, clock.getAsLong());
+    }
+
+    /**
+     * Starts the background thread that expires sessions.
+     */
+    public synchronized SessionManager start() {
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-expiry");
+                t.setDaemon(true);
+                return t;
+            });
+            long tick = wheel.getTickMillis();
+            ticker.scheduleAtFixedRate(() -> expireDue(clock.getAsLong()), tick, tick, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /* ================= SESSIONS ================= */
+
+    /**
+     * Starts a session for a customer who has just logged in.
+     * @return the session token
+     */
+    public String open(Account account) {
+        long now = clock.getAsLong();
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        Session session = new Session(token, account, now);
+        sessions.put(token, session);
+        byAccount.compute(account.getAccountId(), (id, tokens) -> {
+            Set<String> set = tokens != null ? tokens : ConcurrentHashMap.newKeySet();
+            set.add(token);
+            return set;
+        });
+        session.timeout = wheel.schedule(session, deadline(session));
+        return token;
+    }
+
+    /**
+     * Returns the active session for {@code token} and marks it used, or
+     * {@code null} if it does not exist or has ended.
+     */
+    public Session get(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        long deadline = deadline(session);
+        if (deadline <= now) {
+            end(session, reasonAt(session, deadline));
+            return null;
+        }
+        session.lastAccess = now;
+        return session;
+    }
+
+    public void logout(String token) {
+        Session session = sessions.get(token);
+        if (session != null) {
+            end(session, EndReason.LOGOUT);
+        }
+    }
+
+    /**
+     * Ends every session of the account, e.g. after a card is reported stolen.
+     * @return number of sessions ended
+     */
+    public int forceLogout(String accountId) {
+        Set<String> tokens = byAccount.get(accountId);
+        if (tokens == null) {
+            return 0;
+        }
+        int ended = 0;
+        for (String token : tokens) {
+            Session session = sessions.get(token);
+            if (session != null && end(session, EndReason.FORCED)) {
+                ended++;
+            }
+        }
+        return ended;
+    }
+
+    public int activeSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Ends sessions whose deadline has passed by {@code nowMillis}. Called by
+     * the thread from {@link #start()}; front ends with their own clock may
+     * call it instead, but always from one thread.
+     * @return number of sessions ended
+     */
+    public int expireDue(long nowMillis) {
+        int[] ended = { 0 };
+        wheel.advance(nowMillis, session -> {
+            if (session.endReason != null) {
+                return;
+            }
+            long deadline = deadline(session);
+            if (deadline <= nowMillis) {
+                if (end(session, reasonAt(session, deadline))) {
+                    ended[0]++;
+                }
+            } else {
+                session.timeout = wheel.schedule(session, deadline);
+                if (session.endReason != null) {
+                    // Ended while being rescheduled
+                    session.timeout.cancel();
+                }
+            }
+        });
+        return ended[0];
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /* ================= HELPERS ================= */
+
+    private long deadline(Session session) {
+        return Math.min(session.lastAccess + idleMillis, session.createdAt + absoluteMillis);
+    }
+
+    private EndReason reasonAt(Session session, long deadline) {
+        return deadline == session.createdAt + absoluteMillis ? EndReason.ABSOLUTE : EndReason.IDLE;
+    }
+
+    /**
+     * @return false if the session had already ended
+     */
+    private boolean end(Session session, EndReason reason) {
+        if (!sessions.remove(session.token, session)) {
+            return false;
+        }
+        session.endReason = reason;
+        session.timeout.cancel();
+        byAccount.computeIfPresent(session.account.getAccountId(), (id, tokens) -> {
+            tokens.remove(session.token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+        return true;
+    }
+}
@@ -0,0 +1,327 @@
+package com.atm.service;
+
+import com.atm.db.DatabaseGuard;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.IdempotencyRecord;
+import com.atm.model.Transaction;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authorizes withdrawals from locally cached data while the database is
+ * unreachable, and posts them once it is back.
+ * <p>
+ * The cache is filled as a side effect of normal online operations. It
+ * keeps each card's stored PIN hash, never the PIN, and checks it through
+ * the same {@link PinVerifier} as online logins. In
+ * stand-in mode a card can log in with its last verified PIN and withdraw up
+ * to {@code offlineLimit} in total, never more than its cached balance.
+ * Approvals are written to a {@link StandInQueue} and replayed in batches
+ * by {@link #replay()}; anything that no longer fits (an account that went
+ * negative, one that no longer exists, or notes that no longer add up to
+ * the amount) is reported as a conflict.
+ */
+public class StandInAuthorizer {
+
+    private static final int REPLAY_BATCH = 200;
+
+    private static final class CachedCard {
+        final String accountId;
+        final String pinHash;
+        volatile double balance;
+        double offlineSpent;
+
+        CachedCard(String accountId, String pinHash, double balance) {
+            this.accountId = accountId;
+            this.pinHash = pinHash;
+            this.balance = balance;
+        }
+    }
+
+    private final double offlineLimit;
+    private final StandInQueue queue;
+    private final Path conflictLog;
+    private final IdempotencyStore idempotency;
+    private final Long terminalId;
+    private final PinVerifier pins;
+    private final Map<String, CachedCard> cards = new ConcurrentHashMap<>();
+    private final Set<String> queuedKeys = ConcurrentHashMap.newKeySet();
+    private volatile double cachedCash = -1;
+
+    public StandInAuthorizer(Path dir, double offlineLimit, IdempotencyStore idempotency, Long terminalId) {
+        this(dir, offlineLimit, idempotency, terminalId, PinVerifier.fromClasspath());
+    }
+
+    public StandInAuthorizer(Path dir, double offlineLimit, IdempotencyStore idempotency, Long terminalId,
+                             PinVerifier pins) {
+        this.offlineLimit = offlineLimit;
+        this.queue = new StandInQueue(dir);
+        this.conflictLog = dir.resolve("standin-conflicts.log");
+        this.idempotency = idempotency;
+        this.terminalId = terminalId;
+        this.pins = pins;
+    }
+
+    /**
+     * Whether {@code e} was caused by the database being unreachable, or the
+     * circuit breaker in front of it being open, as opposed to a query or
+     * constraint error.
+     */
+    public static boolean isDatabaseUnavailable(Throwable e) {
+        return DatabaseGuard.isUnavailable(e);
+    }
+
+    /* ================= CACHE ================= */
+
+    /**
+     * Caches the card of an account that just logged in, with the PIN hash
+     * stored for it. A legacy plain-text PIN is not cached.
+     */
+    public void rememberLogin(Account account) {
+        if (!PinHasher.isHashed(account.getPin())) {
+            cards.remove(account.getCardNumber());
+            return;
+        }
+        cards.put(account.getCardNumber(),
+                new CachedCard(account.getAccountId(), account.getPin(), account.getBalance()));
+    }
+
+    public void rememberBalance(Account account) {
+        CachedCard card = cards.get(account.getCardNumber());
+        if (card != null) {
+            card.balance = account.getBalance();
+        }
+    }
+
+    public void rememberCash(double cash) {
+        cachedCash = cash;
+    }
+
+    /* ================= STAND-IN OPERATIONS ================= */
+
+    public Account login(String cardNumber, String pin) {
+        CachedCard card = cards.get(cardNumber);
+        // An unknown card is checked against a dummy hash, so it takes as long
+        PinVerifier.Result check = pins.verify(card == null ? null : card.pinHash, pin);
+        if (check.getOutcome() == PinVerifier.Outcome.BUSY) {
+            System.out.println("The ATM is busy. Please try again in a moment.");
+            return null;
+        }
+        if (check.getOutcome() != PinVerifier.Outcome.MATCH) {
+            return null;
+        }
+        Account account = new Account();
+        account.setAccountId(card.accountId);
+        account.setCardNumber(cardNumber);
+        account.setBalance(card.balance);
+        System.out.println("Bank connection unavailable. Limited service only.");
+        return account;
+    }
+
+    public boolean withdraw(Account account, double amount, String idempotencyKey) {
+        CachedCard card = cards.get(account.getCardNumber());
+        if (card == null) {
+            System.out.println("Service temporarily unavailable. Please try again later.");
+            return false;
+        }
+        synchronized (card) {
+            // Under the card lock, so a retry racing the original is queued once
+            if (idempotencyKey != null && queuedKeys.contains(idempotencyKey)) {
+                System.out.println("Duplicate request, already processed.");
+                return true;
+            }
+            if (card.offlineSpent + amount > offlineLimit) {
+                System.out.printf("Offline limit reached. Maximum available: $%.2f\n",
+                        Math.max(0, offlineLimit - card.offlineSpent));
+                return false;
+            }
+            if (card.balance < amount) {
+                System.out.println("Insufficient balance.");
+                return false;
+            }
+            if (cachedCash >= 0 && cachedCash < amount) {
+                System.out.println("ATM has insufficient cash.");
+                return false;
+            }
+
+            String key = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+            queue.append(new StandInQueue.Entry(key, card.accountId, account.getCardNumber(),
+                    amount, LocalDateTime.now()));
+            queuedKeys.add(key);
+
+            card.offlineSpent += amount;
+            card.balance -= amount;
+            if (cachedCash >= 0) {
+                cachedCash -= amount;
+            }
+            account.setBalance(card.balance);
+        }
+
+        System.out.println("Withdrawal approved (offline).");
+        return true;
+    }
+
+    /**
+     * Closes the queue file. Queued withdrawals stay on disk for the next
+     * replay.
+     */
+    public void close() {
+        queue.close();
+    }
+
+    /* ================= REPLAY ================= */
+
+    public boolean hasPending() {
+        return !queue.isEmpty();
+    }
+
+    /**
+     * Posts every queued withdrawal, {@value #REPLAY_BATCH} per database
+     * transaction. Entries whose idempotency key is already stored were
+     * posted by an earlier, interrupted replay and are skipped. Each card's
+     * offline allowance is given back by the amounts replayed for it.
+     * @return conflicts found, also appended to the conflict log
+     */
+    public synchronized List<String> replay() {
+        List<StandInQueue.Entry> entries = queue.beginDrain();
+        List<String> conflicts = new ArrayList<>();
+
+        for (int from = 0; from < entries.size(); from += REPLAY_BATCH) {
+            List<StandInQueue.Entry> batch = entries.subList(from, Math.min(from + REPLAY_BATCH, entries.size()));
+            conflicts.addAll(replayBatch(batch));
+        }
+
+        queue.completeDrain();
+        // Only what was replayed; approvals queued since the drain began still count
+        Map<String, Double> replayed = new HashMap<>();
+        for (StandInQueue.Entry entry : entries) {
+            queuedKeys.remove(entry.key);
+            replayed.merge(entry.cardNumber, entry.amount, Double::sum);
+        }
+        for (Map.Entry<String, Double> spent : replayed.entrySet()) {
+            CachedCard card = cards.get(spent.getKey());
+            if (card != null) {
+                synchronized (card) {
+                    card.offlineSpent = Math.max(0, card.offlineSpent - spent.getValue());
+                }
+            }
+        }
+
+        logConflicts(conflicts);
+        if (!entries.isEmpty()) {
+            System.out.printf("Stand-in replay: %d withdrawals, %d conflicts\n", entries.size(), conflicts.size());
+        }
+        return conflicts;
+    }
+
+    private List<String> replayBatch(List<StandInQueue.Entry> batch) {
+        List<String> conflicts = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        Set<String> accountIds = new HashSet<>();
+        for (StandInQueue.Entry entry : batch) {
+            keys.add(entry.key);
+            accountIds.add(entry.accountId);
+        }
+
+        EntityManager em = JpaManager.getEntityManager();
+        em.getTransaction().begin();
+
+        try {
+            Set<String> posted = new HashSet<>(em.createNamedQuery(IdempotencyRecord.KEYS_IN, String.class)
+                    .setParameter("keys", keys)
+                    .getResultList());
+            Map<String, Account> accounts = new HashMap<>();
+            for (Account a : em.createNamedQuery(Account.BY_IDS, Account.class)
+                    .setParameter("ids", accountIds)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .getResultList()) {
+                accounts.put(a.getAccountId(), a);
+            }
+            ATMState state = ATMService.findTerminal(em, terminalId);
+
+            List<IdempotencyRecord> records = new ArrayList<>();
+            for (StandInQueue.Entry entry : batch) {
+                if (posted.contains(entry.key)) {
+                    continue;
+                }
+                Account account = accounts.get(entry.accountId);
+                if (account == null) {
+                    conflicts.add(String.format("%s %s ACCOUNT_MISSING amount=%.2f",
+                            entry.key, entry.accountId, entry.amount));
+                    continue;
+                }
+
+                // The cash is already dispensed, so the debit is posted even if it overdraws
+                account.setBalance(account.getBalance() - entry.amount);
+                if (!state.dispense(entry.amount)) {
+                    state.setCash(state.getCash() - entry.amount);
+                    conflicts.add(String.format("%s %s NOTES_MISMATCH amount=%.2f cash=%.2f",
+                            entry.key, entry.accountId, entry.amount, state.getCash()));
+                }
+                if (account.getBalance() < 0) {
+                    conflicts.add(String.format("%s %s OVERDRAWN amount=%.2f balance=%.2f",
+                            entry.key, entry.accountId, entry.amount, account.getBalance()));
+                }
+
+                Transaction t = new Transaction();
+                t.setAccount(account);
+                t.setAmount(entry.amount);
+                t.setType(Transaction.WITHDRAW);
+                t.setTime(entry.time);
+                em.persist(t);
+
+                records.add(idempotency.record(em, entry.key, Transaction.WITHDRAW,
+                        entry.accountId, entry.amount, account.getBalance()));
+            }
+
+            em.getTransaction().commit();
+            for (IdempotencyRecord record : records) {
+                idempotency.remember(record);
+            }
+            return conflicts;
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private void logConflicts(List<String> conflicts) {
+        if (conflicts.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String conflict : conflicts) {
+            System.out.println("Stand-in conflict: " + conflict);
+            sb.append(LocalDateTime.now()).append(' ').append(conflict).append('\n');
+        }
+        try {
+            Files.createDirectories(conflictLog.getParent());
+            Files.write(conflictLog, sb.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Could not write stand-in conflict log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable local queue of withdrawals approved while the database was
+ * unreachable. Each record is appended as one line and forced to disk
+ * before the approval is returned.
+ * <p>
+ * Draining first renames the queue file, so approvals that arrive while a
+ * replay is running go to a fresh file. A file left over from an
+ * interrupted replay is picked up again; idempotency keys make that safe.
+ * <p>
+ * A last line without its newline was torn by a crash before it was forced,
+ * so its withdrawal was never approved. It is cut off before the file is
+ * appended to or replayed.
+ */
+public class StandInQueue {
+
+    /**
+     * One queued withdrawal.
+     */
+    public static final class Entry {
+        public final String key;
+        public final String accountId;
+        public final String cardNumber;
+        public final double amount;
+        public final LocalDateTime time;
+
+        public Entry(String key, String accountId, String cardNumber, double amount, LocalDateTime time) {
+            this.key = key;
+            this.accountId = accountId;
+            this.cardNumber = cardNumber;
+            this.amount = amount;
+            this.time = time;
+        }
+
+        String toLine() {
+            return key + "\t" + accountId + "\t" + cardNumber + "\t" + amount + "\t" + time + "\n";
+        }
+
+        static Entry parse(String line) {
+            String[] f = line.split("\t");
+            return new Entry(f[0], f[1], f[2], Double.parseDouble(f[3]), LocalDateTime.parse(f[4]));
+        }
+    }
+
+    private final Path dir;
+    private final Path file;
+    private final Path draining;
+    private FileChannel channel;
+
+    public StandInQueue(Path dir) {
+        this.dir = dir;
+        this.file = dir.resolve("standin-queue.log");
+        this.draining = dir.resolve("standin-queue.draining");
+    }
+
+    public synchronized void append(Entry entry) {
+        try {
+            if (channel == null) {
+                Files.createDirectories(dir);
+                if (Files.exists(file)) {
+                    cutTornLine(file);
+                }
+                channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(entry.toLine().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        try {
+            return !Files.exists(draining) && (!Files.exists(file) || Files.size(file) == 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Moves the current queue aside and returns everything waiting to be
+     * replayed. Call {@link #completeDrain()} once all of it is applied.
+     */
+    public synchronized List<Entry> beginDrain() {
+        try {
+            if (!Files.exists(draining) && Files.exists(file)) {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                Files.move(file, draining, StandardCopyOption.ATOMIC_MOVE);
+            }
+            List<Entry> entries = new ArrayList<>();
+            if (Files.exists(draining)) {
+                cutTornLine(draining);
+                for (String line : Files.readAllLines(draining, StandardCharsets.UTF_8)) {
+                    if (!line.isBlank()) {
+                        entries.add(Entry.parse(line));
+                    }
+                }
+            }
+            return entries;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void completeDrain() {
+        try {
+            Files.deleteIfExists(draining);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void cutTornLine(Path path) throws IOException {
+        long cut = ChannelTextWriter.cutTornLine(path);
+        if (cut > 0) {
+            System.out.println("Stand-in queue: cut " + cut + " bytes of a torn line from " + path);
+        }
+    }
+
+    /**
+     * Closes the queue file; a later append opens it again.
+     */
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
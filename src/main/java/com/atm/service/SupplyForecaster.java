@@ -0,0 +1,93 @@
+package com.atm.service;
+
+import com.atm.service.SupplyMonitor.Supply;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming estimate of how fast each terminal uses each supply.
+ * <p>
+ * Per terminal it keeps one exponentially decayed sum of usage per supply,
+ * so recording usage and asking for a rate are O(1) and never look at
+ * history. Usage from {@code window} ago counts about a third as much as
+ * usage now, so the rate follows the time of day within a few windows.
+ */
+public class SupplyForecaster {
+
+    private static final class Usage {
+        final double[] decayed = new double[Supply.values().length];
+        final long first;
+        long last;
+
+        Usage(long now) {
+            this.first = now;
+            this.last = now;
+        }
+
+        void decayTo(long now, double windowMillis) {
+            if (now > last) {
+                double factor = Math.exp(-(now - last) / windowMillis);
+                for (int i = 0; i < decayed.length; i++) {
+                    decayed[i] *= factor;
+                }
+                last = now;
+            }
+        }
+    }
+
+    private final double windowMillis;
+    private final Map<Long, Usage> terminals = new ConcurrentHashMap<>();
+
+    public SupplyForecaster(Duration window) {
+        if (window.isZero() || window.isNegative()) {
+            throw new IllegalArgumentException("Forecast window must be positive.");
+        }
+        this.windowMillis = window.toMillis();
+    }
+
+    /**
+     * Records that {@code amount} of {@code supply} was used at {@code nowMillis}.
+     */
+    public void recordUsage(long terminal, Supply supply, double amount, long nowMillis) {
+        if (amount <= 0) {
+            return;
+        }
+        Usage usage = terminals.computeIfAbsent(terminal, t -> new Usage(nowMillis));
+        synchronized (usage) {
+            usage.decayTo(nowMillis, windowMillis);
+            usage.decayed[supply.ordinal()] += amount;
+        }
+    }
+
+    /**
+     * Current usage rate in units per hour, or 0 if nothing was recorded.
+     */
+    public double ratePerHour(long terminal, Supply supply, long nowMillis) {
+        Usage usage = terminals.get(terminal);
+        if (usage == null) {
+            return 0;
+        }
+        synchronized (usage) {
+            usage.decayTo(nowMillis, windowMillis);
+            // A young sum has not filled up yet: scale by what it could hold, but
+            // assume at least a tenth of a window so the first operation is not read as a burst
+            double seen = Math.max(nowMillis - usage.first, windowMillis / 10);
+            double span = windowMillis * (1 - Math.exp(-seen / windowMillis));
+            return usage.decayed[supply.ordinal()] / span * Duration.ofHours(1).toMillis();
+        }
+    }
+
+    /**
+     * Time until {@code level} runs out at the current rate, or {@code null}
+     * if the supply is not being used.
+     */
+    public Duration timeToEmpty(long terminal, Supply supply, double level, long nowMillis) {
+        double rate = ratePerHour(terminal, supply, nowMillis);
+        if (rate <= 0) {
+            return null;
+        }
+        return Duration.ofMillis((long) (Math.max(0, level) / rate * Duration.ofHours(1).toMillis()));
+    }
+}
@@ -0,0 +1,248 @@
+package com.atm.service;
+
+import com.atm.model.ATMState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Raises alerts when a terminal's supplies cross their thresholds, and
+ * forecasts when they will run out.
+ * <p>
+ * Operations report the terminal's supply levels before and after each
+ * committed change. The difference feeds a {@link SupplyForecaster}, and
+ * the new levels are compared with the thresholds and with the forecast.
+ * An alert is raised only when a supply changes state: it drops below its
+ * threshold ({@link Kind#LOW}), it is forecast to run out within the
+ * horizon ({@link Kind#RUNNING_OUT}), or it is back above both after a
+ * refill ({@link Kind#RESTORED}). Each observation is O(1) and queries
+ * nothing.
+ */
+public class SupplyMonitor {
+
+    public enum Supply {
+        CASH, NOTES_20, NOTES_50, NOTES_100, PAPER, INK;
+
+        public double level(ATMState state) {
+            return switch (this) {
+                case CASH -> state.getCash();
+                case NOTES_20 -> state.getNotes20();
+                case NOTES_50 -> state.getNotes50();
+                case NOTES_100 -> state.getNotes100();
+                case PAPER -> state.getPaper();
+                case INK -> state.getInk();
+            };
+        }
+    }
+
+    public enum Kind { LOW, RUNNING_OUT, RESTORED }
+
+    /**
+     * One change of a supply's state.
+     */
+    public static final class Alert {
+        public final long terminal;
+        public final Supply supply;
+        public final Kind kind;
+        public final double level;
+        public final double threshold;
+        public final Duration timeToEmpty;
+
+        Alert(long terminal, Supply supply, Kind kind, double level, double threshold, Duration timeToEmpty) {
+            this.terminal = terminal;
+            this.supply = supply;
+            this.kind = kind;
+            this.level = level;
+            this.threshold = threshold;
+            this.timeToEmpty = timeToEmpty;
+        }
+
+        @Override
+        public String toString() {
+            String text = String.format("Terminal %d: %s %s (level %.0f, threshold %.0f", terminal, supply, kind,
+                    level, threshold);
+            if (timeToEmpty != null) {
+                text += String.format(", empty in ~%.1f h", timeToEmpty.toMinutes() / 60.0);
+            }
+            return text + ")";
+        }
+    }
+
+    public interface Listener {
+        void onAlert(Alert alert);
+    }
+
+    public static final Listener CONSOLE = alert -> System.out.println("SUPPLY ALERT: " + alert);
+
+    private static final Supply[] ALL = Supply.values();
+    private static final int SUPPLIES = ALL.length;
+
+    private static SupplyMonitor shared;
+
+    private final double[] thresholds;
+    private final long horizonMillis;
+    private final SupplyForecaster forecaster;
+    private final Listener listener;
+    // Per terminal: whether each supply was last seen low / running out
+    private final Map<Long, boolean[]> states = new ConcurrentHashMap<>();
+
+    /**
+     * @param thresholds indexed by {@link Supply#ordinal()}
+     */
+    public SupplyMonitor(double[] thresholds, Duration horizon, SupplyForecaster forecaster, Listener listener) {
+        if (thresholds.length != SUPPLIES) {
+            throw new IllegalArgumentException("One threshold per supply is required.");
+        }
+        this.thresholds = thresholds.clone();
+        this.horizonMillis = horizon.toMillis();
+        this.forecaster = forecaster;
+        this.listener = listener;
+    }
+
+    /**
+     * The monitor configured by {@code supply.properties}, alerting on the
+     * console; shared by every service in this process, so the terminals of
+     * a fleet keep one set of usage rates and each state change is alerted
+     * once, however many services come and go.
+     */
+    public static synchronized SupplyMonitor fromClasspath() {
+        if (shared == null) {
+            shared = fromClasspath(CONSOLE);
+        }
+        return shared;
+    }
+
+    /**
+     * Reads {@code supply.properties} from the classpath, if present, into
+     * a new monitor.
+     */
+    public static SupplyMonitor fromClasspath(Listener listener) {
+        Properties props = new Properties();
+        try (InputStream in = SupplyMonitor.class.getClassLoader().getResourceAsStream("supply.properties")) {
+            if (in != null) {
+                props.load(in);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read supply.properties: " + e.getMessage());
+        }
+        return fromProperties(props, listener);
+    }
+
+    /**
+     * Reads {@code supply.threshold.<SUPPLY>}, {@code supply.windowHours}
+     * (how far back usage counts) and {@code supply.horizonHours} (how early
+     * to warn before a supply runs out).
+     */
+    public static SupplyMonitor fromProperties(Properties props, Listener listener) {
+        double[] thresholds = new double[SUPPLIES];
+        for (Supply supply : ALL) {
+            thresholds[supply.ordinal()] = Double.parseDouble(
+                    props.getProperty("supply.threshold." + supply, "0"));
+        }
+        Duration window = Duration.ofMinutes((long) (60 * Double.parseDouble(props.getProperty("supply.windowHours", "6"))));
+        Duration horizon = Duration.ofMinutes((long) (60 * Double.parseDouble(props.getProperty("supply.horizonHours", "24"))));
+        return new SupplyMonitor(thresholds, horizon, new SupplyForecaster(window), listener);
+    }
+
+    public SupplyForecaster getForecaster() {
+        return forecaster;
+    }
+
+    /* ================= OBSERVING ================= */
+
+    /**
+     * Supply levels of {@code state}, to pass to {@link #observe} once the change is committed.
+     */
+    public static double[] levels(ATMState state) {
+        double[] levels = new double[SUPPLIES];
+        for (Supply supply : ALL) {
+            levels[supply.ordinal()] = supply.level(state);
+        }
+        return levels;
+    }
+
+    /**
+     * Records a committed change of the terminal's supplies.
+     * @param before levels before a customer operation, whose decreases count
+     *               as usage; {@code null} for technician operations, which
+     *               are not part of the usage rate
+     */
+    public void observe(long terminal, double[] before, ATMState after) {
+        observe(terminal, before, after, System.currentTimeMillis());
+    }
+
+    /**
+     * {@link #observe(long, double[], ATMState)} at {@code now}.
+     */
+    public void observe(long terminal, double[] before, ATMState after, long now) {
+        observe(terminal, before, levels(after), now);
+    }
+
+    /**
+     * {@link #observe(long, double[], ATMState, long)} with the levels
+     * afterwards. Levels the caller does not know are NaN, in both arrays,
+     * and leave their supplies as they were.
+     */
+    public void observe(long terminal, double[] before, double[] levels, long now) {
+        if (before != null) {
+            for (int i = 0; i < SUPPLIES; i++) {
+                if (!Double.isNaN(levels[i])) {
+                    forecaster.recordUsage(terminal, ALL[i], before[i] - levels[i], now);
+                }
+            }
+        }
+
+        List<Alert> alerts = null;
+        boolean[] state = states.computeIfAbsent(terminal, t -> new boolean[2 * SUPPLIES]);
+        synchronized (state) {
+            for (Supply supply : ALL) {
+                int i = supply.ordinal();
+                if (Double.isNaN(levels[i])) {
+                    continue;
+                }
+                Duration left = forecaster.timeToEmpty(terminal, supply, levels[i], now);
+                boolean low = levels[i] < thresholds[i];
+                boolean soon = left != null && left.toMillis() < horizonMillis;
+
+                Kind kind = null;
+                if (low && !state[i]) {
+                    kind = Kind.LOW;
+                } else if (soon && !state[SUPPLIES + i] && !low) {
+                    kind = Kind.RUNNING_OUT;
+                } else if (!low && !soon && (state[i] || state[SUPPLIES + i])) {
+                    kind = Kind.RESTORED;
+                }
+                state[i] = low;
+                // Only tracked above the threshold, so a partial refill still warns
+                state[SUPPLIES + i] = soon && !low;
+
+                if (kind != null) {
+                    if (alerts == null) {
+                        alerts = new ArrayList<>(2);
+                    }
+                    alerts.add(new Alert(terminal, supply, kind, levels[i], thresholds[i], left));
+                }
+            }
+        }
+
+        if (alerts != null) {
+            for (Alert alert : alerts) {
+                listener.onAlert(alert);
+            }
+        }
+    }
+
+    /**
+     * Forecast time until {@code supply} runs out on the terminal, or
+     * {@code null} if it is not being used.
+     */
+    public Duration timeToEmpty(ATMState state, Supply supply) {
+        return forecaster.timeToEmpty(state.getId(), supply, supply.level(state), System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,54 @@
+package com.atm.service;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Files, caches and writer threads of one terminal, shared by every
+ * {@link ATMService} of that terminal in the process, so each file has a
+ * single writer: the stand-in queue under {@code standin/<terminal>}, the
+ * audit chain under {@code audit/<terminal>} and the event log's
+ * {@code events-<terminal>-*} files. They are closed when the last of
+ * those services is.
+ */
+final class TerminalResources {
+
+    private static final Map<String, TerminalResources> OPEN = new HashMap<>();
+
+    final String terminal;
+    final IdempotencyStore idempotency = new IdempotencyStore(10_000, Duration.ofHours(24));
+    final StandInAuthorizer standIn;
+    final AuditLog audit;
+    final TransactionEventLog events;
+    private int users;
+
+    private TerminalResources(String terminal, Long terminalId) {
+        this.terminal = terminal;
+        // Replayed withdrawals are remembered in the same cache the services look keys up in
+        this.standIn = new StandInAuthorizer(Paths.get("standin", terminal), 200.0, idempotency, terminalId);
+        this.audit = new AuditLog(Paths.get("audit", terminal), terminal);
+        this.events = TransactionEventLog.fromClasspath(terminal);
+    }
+
+    static synchronized TerminalResources acquire(Long terminalId) {
+        String terminal = terminalId == null ? "default" : terminalId.toString();
+        TerminalResources resources = OPEN.computeIfAbsent(terminal, t -> new TerminalResources(t, terminalId));
+        resources.users++;
+        return resources;
+    }
+
+    /**
+     * Gives back one use; the last one writes out and closes everything.
+     */
+    static synchronized void release(TerminalResources resources) {
+        if (--resources.users > 0) {
+            return;
+        }
+        OPEN.remove(resources.terminal);
+        resources.standIn.close();
+        resources.audit.close();
+        resources.events.close();
+    }
+}
@@ -0,0 +1,169 @@
+package com.atm.service;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, each holding the
+ * timeouts that fall due in that tick (possibly several turns of the wheel
+ * later). Scheduling and cancelling are O(1) and never touch the wheel
+ * itself; a single thread calls {@link #advance} to expire what is due.
+ * A timeout never fires early, and at most one tick late.
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Handle for one scheduled task.
+     */
+    public static final class Timeout<T> {
+        private final T task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        // Owned by the thread calling advance()
+        private long rounds;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public T getTask() {
+            return task;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Stops the task from firing. The entry is dropped when its bucket
+         * is next visited.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static final class Bucket<T> {
+        Timeout<T> head;
+        Timeout<T> tail;
+
+        void add(Timeout<T> t) {
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout<T> t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Bucket<T>[] wheel;
+    private final int mask;
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    /**
+     * @param ticksPerWheel rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int ticksPerWheel, long startMillis) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Tick length and wheel size must be positive.");
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket<>();
+        }
+        this.mask = size - 1;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules {@code task} to fire once {@code deadlineMillis} has passed.
+     * Safe to call from any thread.
+     */
+    public Timeout<T> schedule(T task, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(task, deadlineMillis);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Fires every timeout whose deadline falls in a tick that has ended by
+     * {@code nowMillis}. Must always be called from the same thread.
+     * @return number of tasks fired
+     */
+    public int advance(long nowMillis, Consumer<? super T> onExpire) {
+        int fired = 0;
+        while (startMillis + (tick + 1) * tickMillis <= nowMillis) {
+            transferPending();
+            fired += expire(wheel[(int) (tick & mask)], onExpire);
+            tick++;
+        }
+        return fired;
+    }
+
+    private void transferPending() {
+        Timeout<T> t;
+        while ((t = pending.poll()) != null) {
+            if (t.cancelled) {
+                continue;
+            }
+            long due = Math.max(tick, (t.deadline - startMillis) / tickMillis);
+            t.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(t);
+        }
+    }
+
+    private int expire(Bucket<T> bucket, Consumer<? super T> onExpire) {
+        int fired = 0;
+        Timeout<T> t = bucket.head;
+        while (t != null) {
+            Timeout<T> next = t.next;
+            if (t.cancelled) {
+                bucket.remove(t);
+            } else if (t.rounds <= 0) {
+                bucket.remove(t);
+                onExpire.accept(t.task);
+                fired++;
+            } else {
+                t.rounds--;
+            }
+            t = next;
+        }
+        return fired;
+    }
+}
@@ -0,0 +1,419 @@
+package com.atm.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary trace of {@link ATMService} calls, written by
+ * {@link RecordingATMService} and re-driven by
+ * {@link com.atm.batch.TrafficReplayer}.
+ * <p>
+ * A trace starts with a header (magic, version, wall-clock start) followed
+ * by one record per finished call: operation, outcome, start as a delta
+ * from the previous record, duration, then account, card and text fields,
+ * amount, balance and a few numbers. Times are in microseconds and amounts
+ * in cents, all as variable-length integers. Accounts and cards are written
+ * once and then referred to by number, up to {@link Writer#MAX_STRINGS} of
+ * them; the text field (mostly idempotency keys, each seen once) and any
+ * string past that limit are written inline, so the writer's memory stays
+ * bounded however long it records. A typical record takes 10 to 20 bytes
+ * plus its key. PINs are never recorded.
+ */
+public final class TrafficTrace {
+
+    /** Operations, stored by ordinal: only ever append to this list. */
+    public enum Op {
+        LOGIN, ACCOUNT, DEPOSIT, WITHDRAW, TRANSFER, RECEIPT, VIEW_STATUS, STATUS,
+        REFILL_PAPER, REFILL_INK, ADD_CASH, COLLECT_CASH, FIRMWARE, HISTORY,
+        /** Calls the recorder had to drop; {@code numbers[0]} says how many. */
+        GAP
+    }
+
+    /** Stored by ordinal: only ever append to this list. */
+    public enum Outcome { OK, DECLINED, ERROR, BUSY, UNAVAILABLE }
+
+    private static final int MAGIC = 0x41544D54; // "ATMT"
+    private static final int VERSION = 2;
+    private static final int NULL_STRING = 0;
+    private static final int INLINE_STRING = 1;
+    private static final long[] NONE = new long[0];
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * One recorded call. Fields an operation does not use are {@code null}
+     * or zero. For a login, {@code account} is the account it opened, if any.
+     */
+    public static final class Call {
+        private final Op op;
+        private final Outcome outcome;
+        private final long startMicros;
+        private final long durationMicros;
+        private final String account;
+        private final String card;
+        private final String text;
+        private final double amount;
+        private final double balance;
+        private final long[] numbers;
+
+        public Call(Op op, Outcome outcome, long startMicros, long durationMicros, String account, String card,
+                    String text, double amount, double balance, long... numbers) {
+            this.op = op;
+            this.outcome = outcome;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.account = account;
+            this.card = card;
+            this.text = text;
+            this.amount = amount;
+            this.balance = balance;
+            this.numbers = numbers == null ? NONE : numbers;
+        }
+
+        public Op getOp() {
+            return op;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /** Microseconds from the start of the trace. */
+        public long getStartMicros() {
+            return startMicros;
+        }
+
+        public long getDurationMicros() {
+            return durationMicros;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public String getCard() {
+            return card;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+
+        public double getBalance() {
+            return balance;
+        }
+
+        public long getNumber(int index) {
+            return numbers[index];
+        }
+    }
+
+    private TrafficTrace() {
+    }
+
+    /** A time as a call number: seconds since the epoch, as UTC. */
+    public static long encodeTime(LocalDateTime time) {
+        return time == null ? NO_TIME : time.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static LocalDateTime decodeTime(long seconds) {
+        return seconds == NO_TIME ? null : LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+    }
+
+    /* ================= WRITING ================= */
+
+    /**
+     * Appends calls to a trace file from a background thread, like
+     * {@link TransactionEventLog}: callers only queue the call, and when
+     * the queue is full the call is dropped and later written as a
+     * {@link Op#GAP}, so a slow disk never holds up a customer.
+     */
+    public static final class Writer implements AutoCloseable {
+        /** Accounts and cards numbered per trace; later new ones are written inline. */
+        public static final int MAX_STRINGS = 100_000;
+
+        private final DataOutputStream out;
+        private final BlockingQueue<Call> queue;
+        private final AtomicLong dropped = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private final Thread thread;
+        private final Thread shutdownHook;
+        private volatile boolean closed;
+
+        // Writer thread state
+        private final Map<String, Integer> strings = new HashMap<>();
+        private long previousStart;
+
+        public Writer(Path file, int capacity) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            this.thread = new Thread(this::writeLoop, "trace-writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+            this.shutdownHook = new Thread(this::close, "trace-flush");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        /**
+         * Records one finished call.
+         * @param startNanos {@link System#nanoTime()} when the call started
+         */
+        public void record(Op op, Outcome outcome, long startNanos, String account, String card, String text,
+                           double amount, double balance, long... numbers) {
+            long end = System.nanoTime();
+            Call call = new Call(op, outcome, (startNanos - this.startNanos) / 1_000, (end - startNanos) / 1_000,
+                    account, card, text, amount, balance, numbers);
+            if (closed || !queue.offer(call)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Writes everything recorded so far and closes the file.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, possibly in this very hook
+            }
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void writeLoop() {
+            List<Call> batch = new ArrayList<>(256);
+            try {
+                while (true) {
+                    if (!closed) {
+                        Call first = queue.poll(200, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            batch.add(first);
+                        }
+                    }
+                    queue.drainTo(batch);
+                    long lost = dropped.getAndSet(0);
+                    for (Call call : batch) {
+                        write(call);
+                    }
+                    if (lost > 0) {
+                        write(new Call(Op.GAP, Outcome.OK, previousStart, 0, null, null, null, 0, 0, lost));
+                    }
+                    if (batch.isEmpty() && closed) {
+                        break;
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.out.println("Traffic trace stopped: " + e.getMessage());
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    System.out.println("Could not close traffic trace: " + e.getMessage());
+                }
+            }
+        }
+
+        private void write(Call call) throws IOException {
+            out.writeByte(call.op.ordinal());
+            out.writeByte(call.outcome.ordinal());
+            writeSigned(call.startMicros - previousStart);
+            previousStart = call.startMicros;
+            writeUnsigned(call.durationMicros);
+            writeString(call.account);
+            writeString(call.card);
+            writeInline(call.text);
+            writeSigned(Math.round(call.amount * 100));
+            writeSigned(Math.round(call.balance * 100));
+            writeUnsigned(call.numbers.length);
+            for (long n : call.numbers) {
+                writeSigned(n);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                writeUnsigned(NULL_STRING);
+                return;
+            }
+            Integer id = strings.get(s);
+            if (id != null) {
+                writeUnsigned(id);
+                return;
+            }
+            if (strings.size() >= MAX_STRINGS) {
+                writeInline(s);
+                return;
+            }
+            // A new string takes the next number and follows it
+            id = strings.size() + INLINE_STRING + 1;
+            strings.put(s, id);
+            writeUnsigned(id);
+            out.writeUTF(s);
+        }
+
+        /**
+         * Writes {@code s} in full without numbering it.
+         */
+        private void writeInline(String s) throws IOException {
+            if (s == null) {
+                writeUnsigned(NULL_STRING);
+                return;
+            }
+            writeUnsigned(INLINE_STRING);
+            out.writeUTF(s);
+        }
+
+        private void writeSigned(long v) throws IOException {
+            writeUnsigned((v << 1) ^ (v >> 63));
+        }
+
+        private void writeUnsigned(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+    }
+
+    /* ================= READING ================= */
+
+    /**
+     * Reads a trace back one call at a time, in the order the calls finished.
+     */
+    public static final class Reader implements AutoCloseable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private final List<String> strings = new ArrayList<>();
+        private final int firstNumbered;
+        private long previousStart;
+
+        public Reader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a traffic trace: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION && version != 1) {
+                in.close();
+                throw new IOException("Unsupported traffic trace version " + version + ": " + file);
+            }
+            // Version 1 numbered every string from 1 and wrote none inline
+            this.firstNumbered = version == 1 ? 1 : INLINE_STRING + 1;
+            this.startMillis = in.readLong();
+        }
+
+        /** Wall-clock time the recording started. */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the next call, or {@code null} at the end of the trace
+         */
+        public Call next() {
+            try {
+                int op = in.read();
+                if (op < 0) {
+                    return null;
+                }
+                Outcome outcome = Outcome.values()[in.readUnsignedByte()];
+                long start = previousStart + readSigned();
+                previousStart = start;
+                long duration = readUnsigned();
+                String account = readString();
+                String card = readString();
+                String text = readString();
+                double amount = readSigned() / 100.0;
+                double balance = readSigned() / 100.0;
+                long[] numbers = new long[(int) readUnsigned()];
+                for (int i = 0; i < numbers.length; i++) {
+                    numbers[i] = readSigned();
+                }
+                return new Call(Op.values()[op], outcome, start, duration, account, card, text, amount, balance,
+                        numbers);
+            } catch (EOFException e) {
+                // Cut short, e.g. by a crash while recording
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private String readString() throws IOException {
+            int id = (int) readUnsigned();
+            if (id == NULL_STRING) {
+                return null;
+            }
+            if (id < firstNumbered) {
+                return in.readUTF();
+            }
+            int index = id - firstNumbered;
+            if (index >= strings.size()) {
+                strings.add(in.readUTF());
+            }
+            return strings.get(index);
+        }
+
+        private long readSigned() throws IOException {
+            long v = readUnsigned();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private long readUnsigned() throws IOException {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+    }
+}
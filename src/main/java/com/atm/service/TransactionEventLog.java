@@ -0,0 +1,262 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structured log of customer operations: one JSON line per deposit,
+ * withdrawal or transfer with account, terminal, amount, outcome and
+ * duration, in daily files {@code events-<terminal>-<yyyy-MM-dd>.jsonl}.
+ * <p>
+ * Events are written into a fixed pool of reusable slots that travel
+ * between two array-backed queues, so recording allocates nothing and
+ * never touches the disk. A single background writer encodes them into a
+ * reused buffer and appends them through a {@link FileChannel}. When every
+ * slot is in use, {@link Overflow#DROP} drops the event (the writer later
+ * logs how many) and {@link Overflow#BLOCK} waits up to a bounded time
+ * before dropping it, so a slow disk can never hold up a withdrawal for
+ * longer than that.
+ */
+public class TransactionEventLog implements AutoCloseable {
+
+    public enum Overflow { DROP, BLOCK }
+
+    public static final String APPROVED = "APPROVED";
+    public static final String DECLINED = "DECLINED";
+
+    private static final int BATCH = 256;
+
+    private static final class Slot {
+        long timeMillis;
+        String operation;
+        String account;
+        double amount;
+        String outcome;
+        long micros;
+    }
+
+    private final Path dir;
+    private final String terminal;
+    private final Overflow overflow;
+    private final long blockNanos;
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> filled;
+    private final BatchWriter<Slot> writer;
+
+    // Writer thread state
+    private final ChannelTextWriter out = new ChannelTextWriter(16 * 1024, 64 * 1024);
+    private final StringBuilder text = out.text();
+    private FileChannel channel;
+    private long channelDay = Long.MIN_VALUE;
+
+    public TransactionEventLog(Path dir, String terminal, int capacity, Overflow overflow, long blockMillis) {
+        if (capacity <= 0 || blockMillis < 0) {
+            throw new IllegalArgumentException("Invalid event log settings.");
+        }
+        this.dir = dir;
+        this.terminal = terminal;
+        this.overflow = overflow;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.filled = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Slot());
+        }
+        this.writer = new BatchWriter<>("event", "Event log", filled, BATCH, new BatchWriter.Sink<>() {
+            @Override
+            public void open() {
+            }
+
+            @Override
+            public void write(List<Slot> batch, long dropped) throws IOException {
+                append(batch, dropped);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel != null) {
+                    channel.force(false);
+                    channel.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads {@code events.properties} from the classpath, if present.
+     */
+    public static TransactionEventLog fromClasspath(String terminal) {
+        Properties props = new Properties();
+        try (InputStream in = TransactionEventLog.class.getClassLoader().getResourceAsStream("events.properties")) {
+            if (in != null) {
+                props.load(in);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read events.properties: " + e.getMessage());
+        }
+        return fromProperties(props, terminal);
+    }
+
+    /**
+     * Reads {@code events.dir}, {@code events.capacity}, {@code events.overflow}
+     * ({@code DROP} or {@code BLOCK}) and {@code events.blockMillis}.
+     */
+    public static TransactionEventLog fromProperties(Properties props, String terminal) {
+        return new TransactionEventLog(
+                Paths.get(props.getProperty("events.dir", "events")),
+                terminal,
+                Integer.parseInt(props.getProperty("events.capacity", "8192")),
+                Overflow.valueOf(props.getProperty("events.overflow", "DROP").trim()),
+                Long.parseLong(props.getProperty("events.blockMillis", "5"))
+        );
+    }
+
+    /* ================= RECORDING ================= */
+
+    /**
+     * Records one finished operation.
+     * @param startNanos {@link System#nanoTime()} when the operation started
+     */
+    public void record(String operation, String account, double amount, boolean approved, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1_000;
+        boolean closed = writer.isClosed();
+        Slot slot = closed ? null : free.poll();
+        if (slot == null && overflow == Overflow.BLOCK && !closed) {
+            try {
+                slot = free.poll(blockNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (slot == null) {
+            writer.dropped();
+            return;
+        }
+        slot.timeMillis = System.currentTimeMillis();
+        slot.operation = operation;
+        slot.account = account;
+        slot.amount = amount;
+        slot.outcome = approved ? APPROVED : DECLINED;
+        slot.micros = micros;
+        // Cannot fail: there are never more slots than the queue holds
+        filled.add(slot);
+    }
+
+    /**
+     * Writes everything recorded so far, then stops the writer.
+     */
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    /* ================= WRITING ================= */
+
+    /**
+     * Writes the batch, and a line counting the events dropped since the
+     * last one, then gives the slots back, written or not.
+     */
+    private void append(List<Slot> batch, long dropped) throws IOException {
+        try {
+            long now = System.currentTimeMillis();
+            for (Slot slot : batch) {
+                append(slot);
+            }
+            if (dropped > 0) {
+                appendDropped(now, dropped);
+            }
+            out.drain(true);
+        } catch (IOException e) {
+            out.discard();
+            throw e;
+        } finally {
+            for (Slot slot : batch) {
+                release(slot);
+            }
+        }
+    }
+
+    private void release(Slot slot) {
+        slot.operation = null;
+        slot.account = null;
+        free.add(slot);
+    }
+
+    private void append(Slot slot) throws IOException {
+        roll(slot.timeMillis);
+        text.append("{\"ts\":").append(slot.timeMillis)
+                .append(",\"terminal\":");
+        string(terminal);
+        text.append(",\"op\":");
+        string(slot.operation);
+        text.append(",\"account\":");
+        string(slot.account);
+        text.append(",\"amount\":").append(slot.amount)
+                .append(",\"outcome\":\"").append(slot.outcome)
+                .append("\",\"micros\":").append(slot.micros)
+                .append("}\n");
+        if (text.length() >= 8 * 1024) {
+            out.drain(false);
+        }
+    }
+
+    private void appendDropped(long timeMillis, long count) throws IOException {
+        roll(timeMillis);
+        text.append("{\"ts\":").append(timeMillis)
+                .append(",\"terminal\":");
+        string(terminal);
+        text.append(",\"op\":\"EVENTS_DROPPED\",\"count\":").append(count).append("}\n");
+    }
+
+    private void string(String value) {
+        if (value == null) {
+            text.append("null");
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c < 0x20) {
+                text.append(String.format("\\u%04x", (int) c));
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    /**
+     * Switches to the file of the event's (UTC) day, writing out what is
+     * pending for the previous one first.
+     */
+    private void roll(long timeMillis) throws IOException {
+        long day = Math.floorDiv(timeMillis, TimeUnit.DAYS.toMillis(1));
+        if (day == channelDay) {
+            return;
+        }
+        if (channel != null) {
+            out.drain(true);
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+        Files.createDirectories(dir);
+        channel = FileChannel.open(dir.resolve("events-" + terminal + "-" + LocalDate.ofEpochDay(day) + ".jsonl"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out.start(channel);
+        channelDay = day;
+    }
+}
@@ -0,0 +1,88 @@
+package com.atm.service;
+
+import com.atm.batch.TransactionArchiveJob;
+import com.atm.db.DatabaseGuard;
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.model.Transaction;
+import com.atm.model.TransactionArchive;
+
+import jakarta.persistence.EntityManager;
+
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Transaction history for one account across the hot table and the
+ * monthly archive files, so callers do not need to know where a month lives.
+ * <p>
+ * Rows are read from the account's shard; only the home shard has a replica.
+ */
+public class TransactionHistory {
+
+    private final ReadRouter reads;
+    private final DatabaseGuard guard;
+
+    public TransactionHistory() {
+        this(ReadRouter.fromClasspath());
+    }
+
+    public TransactionHistory(ReadRouter reads) {
+        this(reads, DatabaseGuard.none());
+    }
+
+    /**
+     * History whose queries run with the {@code HISTORY} timeout of {@code guard}.
+     */
+    public TransactionHistory(ReadRouter reads, DatabaseGuard guard) {
+        this.reads = reads;
+        this.guard = guard;
+    }
+
+    /**
+     * Rows of {@code accountId} with {@code from <= time < to}, oldest first.
+     */
+    public List<Transaction> forAccount(String accountId, LocalDateTime from, LocalDateTime to) {
+        return forAccount(accountId, from, to, 0);
+    }
+
+    /**
+     * Same, including every row committed before {@code notBeforeMillis}
+     * even when the replica has not caught up with them yet.
+     */
+    public List<Transaction> forAccount(String accountId, LocalDateTime from, LocalDateTime to, long notBeforeMillis) {
+        List<Transaction> result = new ArrayList<>();
+        int shard = JpaManager.shardOf(accountId);
+        EntityManager em = guard.forRead(shard == 0 ? reads.forRead(ReadRouter.Read.HISTORY, notBeforeMillis)
+                : JpaManager.getEntityManager(shard), DatabaseGuard.Operation.HISTORY);
+        try {
+            List<TransactionArchive> archives = em.createNamedQuery(TransactionArchive.BETWEEN, TransactionArchive.class)
+                    .setParameter("first", YearMonth.from(from).toString())
+                    .setParameter("last", YearMonth.from(to).toString())
+                    .getResultList();
+
+            for (TransactionArchive archive : archives) {
+                TransactionArchiveJob.read(Paths.get(archive.getFilePath()), accountId, t -> {
+                    if (!t.getTime().isBefore(from) && t.getTime().isBefore(to)) {
+                        result.add(t);
+                    }
+                });
+            }
+
+            result.addAll(em.createNamedQuery(Transaction.FOR_ACCOUNT_BETWEEN, Transaction.class)
+                    .setParameter("id", accountId)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .getResultList());
+        } finally {
+            em.close();
+        }
+
+        result.sort(Comparator.comparing(Transaction::getId));
+        return result;
+    }
+}
@@ -0,0 +1,260 @@
+package com.atm.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-card velocity limits checked in memory before a withdrawal or transfer
+ * reaches the database.
+ * <p>
+ * Each card keeps fixed-size ring buffers of counts and amounts for the last
+ * minute, hour and day. A check touches only the card's own primitive arrays
+ * under one of {@code stripes} locks, so it allocates nothing once the card
+ * has been seen. Idle cards are dropped with {@link #evictIdle}.
+ * <p>
+ * An allowed check counts the operation at once, so concurrent operations
+ * on one card cannot all pass the same limit. If the operation then does
+ * not go through, {@link #release} takes it back out.
+ */
+public class VelocityChecker {
+
+    public enum Decision { ALLOW, FLAG, BLOCK }
+
+    public enum Window {
+        MINUTE(60, 1_000L),
+        HOUR(60, 60_000L),
+        DAY(24, 3_600_000L);
+
+        final int buckets;
+        final long bucketMillis;
+
+        Window(int buckets, long bucketMillis) {
+            this.buckets = buckets;
+            this.bucketMillis = bucketMillis;
+        }
+    }
+
+    private static final Window[] WINDOWS = Window.values();
+    private static final int[] OFFSETS = new int[WINDOWS.length];
+    private static final int TOTAL_BUCKETS;
+
+    static {
+        int offset = 0;
+        for (Window w : WINDOWS) {
+            OFFSETS[w.ordinal()] = offset;
+            offset += w.buckets;
+        }
+        TOTAL_BUCKETS = offset;
+    }
+
+    /**
+     * Limit over one window. A limit of zero or less is not checked.
+     */
+    public static final class Rule {
+        final Window window;
+        final int maxCount;
+        final double maxAmount;
+        final int maxLarge;
+        final Decision action;
+
+        public Rule(Window window, int maxCount, double maxAmount, int maxLarge, Decision action) {
+            this.window = window;
+            this.maxCount = maxCount;
+            this.maxAmount = maxAmount;
+            this.maxLarge = maxLarge;
+            this.action = action;
+        }
+    }
+
+    private static final class Tracker {
+        final long[] epochs = new long[TOTAL_BUCKETS];
+        final int[] counts = new int[TOTAL_BUCKETS];
+        final int[] large = new int[TOTAL_BUCKETS];
+        final double[] amounts = new double[TOTAL_BUCKETS];
+        long lastSeen;
+    }
+
+    private final Rule[] rules;
+    private final double largeAmount;
+    private final Object[] locks;
+    private final Map<String, Tracker> trackers = new ConcurrentHashMap<>();
+
+    public VelocityChecker(List<Rule> rules, double largeAmount, int stripes) {
+        this.rules = rules.toArray(new Rule[0]);
+        this.largeAmount = largeAmount;
+        this.locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Loads rules from {@code velocity.properties} on the classpath.
+     * Without the file no operation is ever flagged or blocked.
+     */
+    public static VelocityChecker fromClasspath() {
+        Properties props = new Properties();
+        try (InputStream in = VelocityChecker.class.getClassLoader().getResourceAsStream("velocity.properties")) {
+            if (in != null) {
+                props.load(in);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read velocity.properties: " + e.getMessage());
+        }
+        return fromProperties(props);
+    }
+
+    /**
+     * Reads {@code velocity.largeAmount}, {@code velocity.stripes} and
+     * {@code velocity.rules}, a comma-separated list of
+     * {@code WINDOW:maxCount:maxAmount:maxLarge:ACTION}.
+     */
+    public static VelocityChecker fromProperties(Properties props) {
+        List<Rule> rules = new ArrayList<>();
+        String spec = props.getProperty("velocity.rules", "").trim();
+        if (!spec.isEmpty()) {
+            for (String part : spec.split(",")) {
+                String[] f = part.trim().split(":");
+                if (f.length != 5) {
+                    throw new IllegalArgumentException("Invalid velocity rule: " + part);
+                }
+                rules.add(new Rule(
+                        Window.valueOf(f[0]),
+                        Integer.parseInt(f[1]),
+                        Double.parseDouble(f[2]),
+                        Integer.parseInt(f[3]),
+                        Decision.valueOf(f[4])
+                ));
+            }
+        }
+        double largeAmount = Double.parseDouble(props.getProperty("velocity.largeAmount", "500"));
+        int stripes = Integer.parseInt(props.getProperty("velocity.stripes", "64"));
+        return new VelocityChecker(rules, largeAmount, stripes);
+    }
+
+    /**
+     * Evaluates an operation against the rules and, unless it is blocked,
+     * counts it towards the card's windows.
+     */
+    public Decision check(String cardNumber, double amount, long nowMillis) {
+        if (rules.length == 0) {
+            return Decision.ALLOW;
+        }
+        boolean isLarge = amount >= largeAmount;
+
+        synchronized (lockFor(cardNumber)) {
+            Tracker tracker = trackers.computeIfAbsent(cardNumber, k -> new Tracker());
+            tracker.lastSeen = nowMillis;
+
+            Decision decision = Decision.ALLOW;
+            for (Rule rule : rules) {
+                if (exceeds(tracker, rule, amount, isLarge, nowMillis)) {
+                    if (rule.action == Decision.BLOCK) {
+                        return Decision.BLOCK;
+                    }
+                    decision = Decision.FLAG;
+                }
+            }
+
+            for (Window w : WINDOWS) {
+                long epoch = nowMillis / w.bucketMillis;
+                int slot = OFFSETS[w.ordinal()] + (int) (epoch % w.buckets);
+                if (tracker.epochs[slot] != epoch) {
+                    tracker.epochs[slot] = epoch;
+                    tracker.counts[slot] = 0;
+                    tracker.large[slot] = 0;
+                    tracker.amounts[slot] = 0;
+                }
+                tracker.counts[slot]++;
+                tracker.amounts[slot] += amount;
+                if (isLarge) {
+                    tracker.large[slot]++;
+                }
+            }
+            return decision;
+        }
+    }
+
+    /**
+     * Takes back an operation counted by {@link #check} at {@code checkedMillis}
+     * that was not carried out. Buckets that have since been reused are left alone.
+     */
+    public void release(String cardNumber, double amount, long checkedMillis) {
+        if (rules.length == 0) {
+            return;
+        }
+        boolean isLarge = amount >= largeAmount;
+
+        synchronized (lockFor(cardNumber)) {
+            Tracker tracker = trackers.get(cardNumber);
+            if (tracker == null) {
+                return;
+            }
+            for (Window w : WINDOWS) {
+                long epoch = checkedMillis / w.bucketMillis;
+                int slot = OFFSETS[w.ordinal()] + (int) (epoch % w.buckets);
+                if (tracker.epochs[slot] == epoch && tracker.counts[slot] > 0) {
+                    tracker.counts[slot]--;
+                    tracker.amounts[slot] -= amount;
+                    if (isLarge && tracker.large[slot] > 0) {
+                        tracker.large[slot]--;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean exceeds(Tracker tracker, Rule rule, double amount, boolean isLarge, long nowMillis) {
+        Window w = rule.window;
+        long oldest = nowMillis / w.bucketMillis - w.buckets;
+        int from = OFFSETS[w.ordinal()];
+
+        int count = 1;
+        int large = isLarge ? 1 : 0;
+        double total = amount;
+        for (int i = from; i < from + w.buckets; i++) {
+            if (tracker.epochs[i] > oldest) {
+                count += tracker.counts[i];
+                large += tracker.large[i];
+                total += tracker.amounts[i];
+            }
+        }
+
+        return (rule.maxCount > 0 && count > rule.maxCount)
+                || (rule.maxAmount > 0 && total > rule.maxAmount)
+                || (rule.maxLarge > 0 && large > rule.maxLarge);
+    }
+
+    /**
+     * Drops the state of cards with no activity for {@code idleMillis}.
+     * @return number of cards evicted
+     */
+    public int evictIdle(long idleMillis, long nowMillis) {
+        int evicted = 0;
+        Iterator<Map.Entry<String, Tracker>> it = trackers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Tracker> entry = it.next();
+            synchronized (lockFor(entry.getKey())) {
+                if (nowMillis - entry.getValue().lastSeen >= idleMillis) {
+                    it.remove();
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    public int trackedCards() {
+        return trackers.size();
+    }
+
+    private Object lockFor(String cardNumber) {
+        return locks[(cardNumber.hashCode() & 0x7fffffff) % locks.length];
+    }
+}
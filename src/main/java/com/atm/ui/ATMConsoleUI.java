@@ -1,17 +1,29 @@
 package com.atm.ui;
 
+import com.atm.db.DatabaseGuard;
 import com.atm.model.Account;
 import com.atm.service.ATMService;
+import com.atm.service.AdmissionController;
+import com.atm.service.SessionManager;
 
+import java.time.Duration;
 import java.util.Scanner;
 
 public class ATMConsoleUI {
 
+    static final String TECHNICIAN_CODE = "TECH123";
+
     private final ATMService service;
+    private final SessionManager sessions;
     private final Scanner sc = new Scanner(System.in);
 
     public ATMConsoleUI(ATMService service) {
+        this(service, new SessionManager(Duration.ofMinutes(2), Duration.ofMinutes(10)).start());
+    }
+
+    public ATMConsoleUI(ATMService service, SessionManager sessions) {
         this.service = service;
+        this.sessions = sessions;
     }
 
     public void start() {
@@ -45,7 +57,16 @@ public class ATMConsoleUI {
         System.out.print("Enter PIN: ");
         String pin = sc.nextLine().trim();
 
-        Account acc = service.login(card, pin);
+        Account acc;
+        try {
+            acc = service.login(card, pin);
+        } catch (AdmissionController.RejectedException e) {
+            busy(e);
+            return;
+        } catch (DatabaseGuard.OpenException e) {
+            unavailable(e);
+            return;
+        }
 
         if (acc == null) {
             System.out.println("Login failed! Invalid card or PIN.");
@@ -53,10 +74,10 @@ public class ATMConsoleUI {
         }
 
         System.out.println("\nWelcome! Login successful.");
-        customerMenu(acc);
+        customerMenu(sessions.open(acc));
     }
 
-    private void customerMenu(Account account) {
+    private void customerMenu(String token) {
         while (true) {
             System.out.println("\n===== CUSTOMER MENU =====");
             System.out.println("1. Withdraw");
@@ -68,19 +89,33 @@ public class ATMConsoleUI {
             
             String choice = sc.nextLine().trim();
 
-            if (choice.equals("1")) {
-                withdraw(account);
-            } else if (choice.equals("2")) {
-                deposit(account);
-            } else if (choice.equals("3")) {
-                transfer(account);
-            } else if (choice.equals("4")) {
-                checkBalance(account);
-            } else if (choice.equals("5")) {
-                System.out.println("Thank you for using ATM!");
+            SessionManager.Session session = sessions.get(token);
+            if (session == null) {
+                System.out.println("Your session has expired. Please log in again.");
                 break;
-            } else {
-                System.out.println("Invalid choice. Try again.");
+            }
+            Account account = session.getAccount();
+
+            try {
+                if (choice.equals("1")) {
+                    withdraw(account);
+                } else if (choice.equals("2")) {
+                    deposit(account);
+                } else if (choice.equals("3")) {
+                    transfer(account);
+                } else if (choice.equals("4")) {
+                    checkBalance(account);
+                } else if (choice.equals("5")) {
+                    sessions.logout(token);
+                    System.out.println("Thank you for using ATM!");
+                    break;
+                } else {
+                    System.out.println("Invalid choice. Try again.");
+                }
+            } catch (AdmissionController.RejectedException e) {
+                busy(e);
+            } catch (DatabaseGuard.OpenException e) {
+                unavailable(e);
             }
         }
     }
@@ -89,8 +124,10 @@ public class ATMConsoleUI {
         System.out.print("\nEnter amount to withdraw: ");
         try {
             double amount = Double.parseDouble(sc.nextLine().trim());
-            service.withdraw(account, amount);
-            
+            if (!service.withdraw(account, amount)) {
+                return;
+            }
+
             System.out.print("\nPrint receipt? (yes/no): ");
             String receipt = sc.nextLine().trim().toLowerCase();
             if (receipt.equals("yes") || receipt.equals("y")) {
@@ -102,11 +139,13 @@ public class ATMConsoleUI {
     }
 
     private void deposit(Account account) {
-        System.out.print("\nEnter amount to deposit: ");
+        System.out.print("\nEnter amount to deposit ($20, $50 and $100 notes): ");
         try {
             double amount = Double.parseDouble(sc.nextLine().trim());
-            service.deposit(account, amount);
-            
+            if (!service.deposit(account, amount)) {
+                return;
+            }
+
             System.out.print("\nPrint receipt? (yes/no): ");
             String receipt = sc.nextLine().trim().toLowerCase();
             if (receipt.equals("yes") || receipt.equals("y")) {
@@ -150,7 +189,7 @@ public class ATMConsoleUI {
         System.out.print("\nEnter technician code: ");
         String code = sc.nextLine().trim();
 
-        if (!code.equals("TECH123")) {
+        if (!code.equals(TECHNICIAN_CODE)) {
             System.out.println("Invalid technician code!");
             return;
         }
@@ -173,37 +212,43 @@ public class ATMConsoleUI {
             
             String choice = sc.nextLine().trim();
 
-            if (choice.equals("1")) {
-                service.viewATMStatus();
-            } else if (choice.equals("2")) {
-                System.out.print("Enter amount of paper to add: ");
-                try {
-                    int amount = Integer.parseInt(sc.nextLine().trim());
-                    service.refillPaper(amount);
-                } catch (NumberFormatException e) {
-                    System.out.println("Invalid amount.");
+            try {
+                if (choice.equals("1")) {
+                    service.viewATMStatus();
+                } else if (choice.equals("2")) {
+                    System.out.print("Enter amount of paper to add: ");
+                    try {
+                        int amount = Integer.parseInt(sc.nextLine().trim());
+                        service.refillPaper(amount);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid amount.");
+                    }
+                } else if (choice.equals("3")) {
+                    System.out.print("Enter amount of ink to add: ");
+                    try {
+                        int amount = Integer.parseInt(sc.nextLine().trim());
+                        service.refillInk(amount);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid amount.");
+                    }
+                } else if (choice.equals("4")) {
+                    addCashWithBanknotes();
+                } else if (choice.equals("5")) {
+                    collectCashAmount();
+                } else if (choice.equals("6")) {
+                    System.out.print("Enter new firmware version: ");
+                    String version = sc.nextLine().trim();
+                    service.updateFirmware(version);
+                } else if (choice.equals("7")) {
+                    System.out.println("Technician session ended.");
+                    break;
+                } else {
+                    System.out.println("Invalid choice. Try again.");
                 }
-            } else if (choice.equals("3")) {
-                System.out.print("Enter amount of ink to add: ");
-                try {
-                    int amount = Integer.parseInt(sc.nextLine().trim());
-                    service.refillInk(amount);
-                } catch (NumberFormatException e) {
-                    System.out.println("Invalid amount.");
-                }
-            } else if (choice.equals("4")) {
-                addCashWithBanknotes();
-            } else if (choice.equals("5")) {
-                collectCashAmount();
-            } else if (choice.equals("6")) {
-                System.out.print("Enter new firmware version: ");
-                String version = sc.nextLine().trim();
-                service.updateFirmware(version);
-            } else if (choice.equals("7")) {
-                System.out.println("Technician session ended.");
-                break;
-            } else {
-                System.out.println("Invalid choice. Try again.");
+            } catch (AdmissionController.RejectedException e) {
+                busy(e);
+            } catch (DatabaseGuard.OpenException e) {
+                unavailable(e);
             }
         }
     }
@@ -253,4 +298,15 @@ public class ATMConsoleUI {
             System.out.println("Invalid input. Please enter whole numbers.");
         }
     }
+
+    private static void busy(AdmissionController.RejectedException e) {
+        long seconds = Math.max(1, (e.getRetryAfter().toMillis() + 999) / 1000);
+        System.out.printf("The ATM is busy. Please try again in %d second%s.\n", seconds, seconds == 1 ? "" : "s");
+    }
+
+    private static void unavailable(DatabaseGuard.OpenException e) {
+        long seconds = Math.max(1, (e.getRetryAfter().toMillis() + 999) / 1000);
+        System.out.printf("The bank cannot be reached. Please try again in %d second%s.\n",
+                seconds, seconds == 1 ? "" : "s");
+    }
 }
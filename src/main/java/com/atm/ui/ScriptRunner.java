@@ -0,0 +1,317 @@
+package com.atm.ui;
+
+import com.atm.db.DatabaseGuard;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.service.ATMService;
+import com.atm.service.AdmissionController;
+import com.atm.service.SessionManager;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs a script of session commands against an {@link ATMService}, the
+ * headless counterpart of {@link ATMConsoleUI} for end-to-end regression
+ * and soak runs.
+ * <p>
+ * One command per line; blank lines and lines starting with {@code #} are
+ * skipped:
+ * <pre>
+ * login &lt;card&gt; &lt;pin&gt;          logout
+ * balance                      withdraw &lt;amount&gt; [receipt]
+ * deposit &lt;amount&gt; [receipt]   transfer &lt;card&gt; &lt;amount&gt; [receipt]
+ * tech &lt;code&gt;                  status
+ * refill-paper &lt;n&gt;             refill-ink &lt;n&gt;
+ * add-cash &lt;n20&gt; &lt;n50&gt; &lt;n100&gt;  collect-cash &lt;n20&gt; &lt;n50&gt; &lt;n100&gt;
+ * firmware &lt;version&gt;           sleep &lt;millis&gt;
+ * expect ok|declined|busy|unavailable|error
+ * expect-balance &lt;amount&gt;      expect-cash &lt;amount&gt;
+ * expect-paper &lt;n&gt;             expect-ink &lt;n&gt;
+ * expect-firmware &lt;version&gt;
+ * </pre>
+ * Customer commands act on the session opened by the last {@code login}
+ * and fail once it expires, as in the console. {@code expect} checks the
+ * outcome of the previous command, and an error it expects does not fail
+ * the run; the other assertions read current state, so a script meant to
+ * be repeated should only use them where its own earlier steps fix the
+ * expected value.
+ * <p>
+ * Each command writes one tab-separated line,
+ * {@code <line> <command> <outcome> <millis> <detail>}, where the outcome
+ * is {@code OK}, {@code DECLINED}, {@code BUSY} (turned away by admission
+ * control, with the suggested retry delay in ms), {@code UNAVAILABLE} (failed
+ * fast by the open database circuit, likewise), {@code PASS}, {@code FAIL}
+ * or {@code ERROR}. The run ends with a {@code TIMING} line per command and a
+ * {@code SUMMARY} line. While it runs, whatever the service prints goes to
+ * standard error, so the results can be parsed as they are.
+ */
+public class ScriptRunner {
+
+    public enum Outcome { OK, DECLINED, BUSY, UNAVAILABLE, PASS, FAIL, ERROR }
+
+    private final ATMService service;
+    private final SessionManager sessions;
+    private final PrintStream out;
+
+    private final Map<String, List<Long>> timings = new LinkedHashMap<>();
+    private String token;
+    private boolean technician;
+    private Outcome last;
+    private int failed;
+    private int errors;
+    private int busy;
+    private int unavailable;
+
+    public ScriptRunner(ATMService service, PrintStream out) {
+        this(service, new SessionManager(Duration.ofMinutes(2), Duration.ofMinutes(10)).start(), out);
+    }
+
+    public ScriptRunner(ATMService service, SessionManager sessions, PrintStream out) {
+        this.service = service;
+        this.sessions = sessions;
+        this.out = out;
+    }
+
+    /**
+     * Runs {@code script} {@code repeat} times in a row.
+     *
+     * @return whether every assertion passed and no command failed with an error
+     */
+    public boolean run(Path script, int repeat) throws IOException {
+        List<String> lines = Files.readAllLines(script);
+        PrintStream console = System.out;
+        System.setOut(System.err);
+        try {
+            out.println("# line\tcommand\toutcome\tmillis\tdetail");
+            for (int i = 0; i < repeat; i++) {
+                run(lines);
+            }
+            summarize();
+        } finally {
+            System.setOut(console);
+        }
+        return failed == 0 && errors == 0;
+    }
+
+    private void run(List<String> lines) {
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] words = line.split("\\s+");
+            String command = words[0].toLowerCase(Locale.ROOT);
+            String[] args = Arrays.copyOfRange(words, 1, words.length);
+
+            String[] detail = { "" };
+            long start = System.nanoTime();
+            Outcome outcome;
+            try {
+                outcome = execute(command, args, detail);
+            } catch (AdmissionController.RejectedException e) {
+                outcome = Outcome.BUSY;
+                detail[0] = "retryAfter=" + e.getRetryAfter().toMillis();
+                busy++;
+            } catch (DatabaseGuard.OpenException e) {
+                outcome = Outcome.UNAVAILABLE;
+                detail[0] = "retryAfter=" + e.getRetryAfter().toMillis();
+                unavailable++;
+            } catch (RuntimeException e) {
+                outcome = Outcome.ERROR;
+                detail[0] = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+            long nanos = System.nanoTime() - start;
+
+            if (outcome == Outcome.FAIL) {
+                failed++;
+            } else if (outcome == Outcome.ERROR) {
+                errors++;
+            }
+            if (!command.startsWith("expect")) {
+                last = outcome;
+            }
+            timings.computeIfAbsent(command, c -> new ArrayList<>()).add(nanos);
+            out.printf(Locale.ROOT, "%d\t%s\t%s\t%.3f\t%s%n", n + 1, command, outcome, nanos / 1e6,
+                    detail[0].replace('\t', ' ').replace('\n', ' '));
+        }
+    }
+
+    private Outcome execute(String command, String[] args, String[] detail) {
+        switch (command) {
+            // ===== CUSTOMER =====
+            case "login": {
+                Account account = service.login(arg(args, 0), arg(args, 1));
+                if (account == null) {
+                    token = null;
+                    return Outcome.DECLINED;
+                }
+                token = sessions.open(account);
+                detail[0] = account.getAccountId();
+                return Outcome.OK;
+            }
+            case "logout":
+                if (token != null) {
+                    sessions.logout(token);
+                    token = null;
+                }
+                technician = false;
+                return Outcome.OK;
+            case "balance": {
+                Account account = service.getAccountDetails(session().getAccountId());
+                detail[0] = money(account.getBalance());
+                return Outcome.OK;
+            }
+            case "withdraw": {
+                Account account = session();
+                double amount = Double.parseDouble(arg(args, 0));
+                boolean ok = service.withdraw(account, amount);
+                return receipt(ok, args, 1, "WITHDRAW", amount, account, detail);
+            }
+            case "deposit": {
+                Account account = session();
+                double amount = Double.parseDouble(arg(args, 0));
+                boolean ok = service.deposit(account, amount);
+                return receipt(ok, args, 1, "DEPOSIT", amount, account, detail);
+            }
+            case "transfer": {
+                Account account = session();
+                double amount = Double.parseDouble(arg(args, 1));
+                boolean ok = service.transfer(account, arg(args, 0), amount);
+                return receipt(ok, args, 2, "TRANSFER", amount, account, detail);
+            }
+
+            // ===== TECHNICIAN =====
+            case "tech":
+                technician = arg(args, 0).equals(ATMConsoleUI.TECHNICIAN_CODE);
+                return technician ? Outcome.OK : Outcome.DECLINED;
+            case "status": {
+                technician();
+                ATMState state = service.getATMStatus();
+                detail[0] = String.format(Locale.ROOT, "cash=%s paper=%d ink=%d firmware=%s notes20=%d notes50=%d notes100=%d",
+                        money(state.getCash()), state.getPaper(), state.getInk(), state.getFirmwareVersion(),
+                        state.getNotes20(), state.getNotes50(), state.getNotes100());
+                return Outcome.OK;
+            }
+            case "refill-paper":
+                technician();
+                return service.refillPaper(Integer.parseInt(arg(args, 0))) ? Outcome.OK : Outcome.DECLINED;
+            case "refill-ink":
+                technician();
+                return service.refillInk(Integer.parseInt(arg(args, 0))) ? Outcome.OK : Outcome.DECLINED;
+            case "add-cash":
+                technician();
+                return service.addCashToATM(Integer.parseInt(arg(args, 0)), Integer.parseInt(arg(args, 1)),
+                        Integer.parseInt(arg(args, 2))) ? Outcome.OK : Outcome.DECLINED;
+            case "collect-cash":
+                technician();
+                return service.collectCash(Integer.parseInt(arg(args, 0)), Integer.parseInt(arg(args, 1)),
+                        Integer.parseInt(arg(args, 2))) ? Outcome.OK : Outcome.DECLINED;
+            case "firmware":
+                technician();
+                return service.updateFirmware(arg(args, 0)) ? Outcome.OK : Outcome.DECLINED;
+
+            // ===== SCRIPT =====
+            case "sleep":
+                try {
+                    Thread.sleep(Long.parseLong(arg(args, 0)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted");
+                }
+                return Outcome.OK;
+            case "expect": {
+                Outcome result = check(String.valueOf(last), arg(args, 0).toUpperCase(Locale.ROOT), detail);
+                if (result == Outcome.PASS && last == Outcome.ERROR) {
+                    errors--;
+                }
+                return result;
+            }
+            case "expect-balance":
+                return check(money(service.getAccountDetails(session().getAccountId()).getBalance()),
+                        money(Double.parseDouble(arg(args, 0))), detail);
+            case "expect-cash":
+                return check(money(service.getATMStatus().getCash()), money(Double.parseDouble(arg(args, 0))), detail);
+            case "expect-paper":
+                return check(String.valueOf(service.getATMStatus().getPaper()), arg(args, 0), detail);
+            case "expect-ink":
+                return check(String.valueOf(service.getATMStatus().getInk()), arg(args, 0), detail);
+            case "expect-firmware":
+                return check(service.getATMStatus().getFirmwareVersion(), arg(args, 0), detail);
+            default:
+                throw new IllegalArgumentException("Unknown command");
+        }
+    }
+
+    /* ================= HELPERS ================= */
+
+    private Outcome receipt(boolean ok, String[] args, int index, String type, double amount,
+                            Account account, String[] detail) {
+        if (ok && args.length > index && args[index].equalsIgnoreCase("receipt")) {
+            service.printReceipt(type, amount, account.getBalance());
+        }
+        detail[0] = "balance=" + money(account.getBalance());
+        return ok ? Outcome.OK : Outcome.DECLINED;
+    }
+
+    private Account session() {
+        SessionManager.Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            throw new IllegalStateException(token == null ? "Not logged in" : "Session expired");
+        }
+        return session.getAccount();
+    }
+
+    private void technician() {
+        if (!technician) {
+            throw new IllegalStateException("Not logged in as technician");
+        }
+    }
+
+    private static Outcome check(String actual, String expected, String[] detail) {
+        detail[0] = "expected=" + expected + " actual=" + actual;
+        return actual.equals(expected) ? Outcome.PASS : Outcome.FAIL;
+    }
+
+    private static String arg(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing argument " + (index + 1));
+        }
+        return args[index];
+    }
+
+    private static String money(double amount) {
+        return String.format(Locale.ROOT, "%.2f", amount);
+    }
+
+    private void summarize() {
+        int commands = 0;
+        for (Map.Entry<String, List<Long>> e : timings.entrySet()) {
+            long[] sorted = e.getValue().stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long t : sorted) {
+                total += t;
+            }
+            commands += sorted.length;
+            out.printf(Locale.ROOT, "TIMING\t%s\tcount=%d\tmean=%.3f\tp50=%.3f\tp99=%.3f\tmax=%.3f%n", e.getKey(),
+                    sorted.length, total / 1e6 / sorted.length, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+        out.printf("SUMMARY\tcommands=%d\tfailed=%d\terrors=%d\tbusy=%d\tunavailable=%d%n", commands, failed, errors,
+                busy, unavailable);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)] / 1e6;
+    }
+}
@@ -0,0 +1,242 @@
+package com.atm;
+
+import com.atm.db.DatabaseGuard;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.Transaction;
+import com.atm.service.ATMService;
+import com.atm.service.AdmissionController;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs customer and technician operations from many threads at once on an
+ * embedded H2 database, then checks that nothing was lost or double-applied.
+ * Calls turned away by admission control or an open database circuit must
+ * leave no trace either.
+ */
+public class ATMServiceStressTest {
+
+    private static final int ACCOUNTS = 200;
+    private static final double OPENING_BALANCE = 1000.0;
+    private static final int THREADS = 32;
+    private static final int OPERATIONS_PER_THREAD = 150;
+    private static final int PAPER = 300;
+    private static final int INK = 250;
+
+    private static ATMService service;
+
+    // Money that entered or left the system through the ATM, counted by the callers
+    private final AtomicLong deposited = new AtomicLong();
+    private final AtomicLong withdrawn = new AtomicLong();
+    private final AtomicLong collected = new AtomicLong();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger receipts = new AtomicInteger();
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("stress", Map.of(
+                "jakarta.persistence.jdbc.url", EmbeddedDatabase.url("stress") + ";LOCK_TIMEOUT=10000",
+                // Hibernate's built-in pool fails rather than waits once all connections are taken
+                "hibernate.connection.pool_size", String.valueOf(THREADS + 4)));
+
+        seed();
+        service = new ATMService();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void concurrentOperationsKeepInvariants() throws Exception {
+        ATMState before = getATMState();
+
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    for (int op = 0; op < OPERATIONS_PER_THREAD; op++) {
+                        try {
+                            randomOperation(ThreadLocalRandom.current());
+                        } catch (AdmissionController.RejectedException | DatabaseGuard.OpenException e) {
+                            // Nothing was run
+                            rejected.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get(5, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+            System.setOut(originalOut);
+        }
+
+        // Only operations that got past admission control had a chance to succeed
+        int admitted = THREADS * OPERATIONS_PER_THREAD - rejected.get();
+        assertTrue(succeeded.get() > admitted / 10,
+                "Too few operations succeeded to exercise anything: " + succeeded.get() + " of " + admitted);
+
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            // Conservation of money across accounts
+            double balances = em.createQuery("SELECT SUM(a.balance) FROM Account a", Double.class)
+                    .getSingleResult();
+            assertEquals(ACCOUNTS * OPENING_BALANCE + deposited.get() - withdrawn.get(), balances, 0.001);
+
+            // Non-negative balances, each matching its ledger
+            List<Account> accounts = em.createQuery("SELECT a FROM Account a", Account.class).getResultList();
+            for (Account account : accounts) {
+                assertTrue(account.getBalance() >= 0, account.getAccountId() + " is negative");
+                double ledger = em.createQuery(
+                        "SELECT COALESCE(SUM(" + Transaction.signedAmountJpql("t") + "), 0) "
+                        + "FROM Transaction t WHERE t.account.accountId = :id", Double.class)
+                        .setParameter("id", account.getAccountId())
+                        .getSingleResult();
+                assertEquals(account.getBalance(), ledger, 0.001, account.getAccountId() + " ledger");
+            }
+
+            // Cash/note consistency and cash accounted for
+            ATMState after = em.find(ATMState.class, before.getId());
+            assertEquals(20.0 * after.getNotes20() + 50.0 * after.getNotes50() + 100.0 * after.getNotes100(),
+                    after.getCash(), 0.001);
+            assertTrue(after.getNotes20() >= 0 && after.getNotes50() >= 0 && after.getNotes100() >= 0);
+            assertEquals(before.getCash() + deposited.get() - withdrawn.get() - collected.get(),
+                    after.getCash(), 0.001);
+
+            // Supplies never below zero, and each used exactly once per printed receipt
+            assertTrue(after.getPaper() >= 0 && after.getInk() >= 0);
+            assertEquals(PAPER - receipts.get(), after.getPaper());
+            assertEquals(INK - receipts.get(), after.getInk());
+        } finally {
+            em.close();
+        }
+    }
+
+    private void randomOperation(ThreadLocalRandom random) {
+        Account account = account(random.nextInt(ACCOUNTS));
+        int amount = 20 * (1 + random.nextInt(15)) + (random.nextBoolean() ? 50 : 0);
+
+        switch (random.nextInt(5)) {
+            case 0 -> {
+                if (service.withdraw(account, amount)) {
+                    withdrawn.addAndGet(amount);
+                    succeeded.incrementAndGet();
+                }
+            }
+            case 1 -> {
+                if (service.deposit(account, amount)) {
+                    deposited.addAndGet(amount);
+                    succeeded.incrementAndGet();
+                }
+            }
+            case 2 -> {
+                String target = card(random.nextInt(ACCOUNTS));
+                if (service.transfer(account, target, amount)) {
+                    succeeded.incrementAndGet();
+                }
+            }
+            case 3 -> {
+                if (service.printReceipt("STRESS", amount, 0)) {
+                    receipts.incrementAndGet();
+                }
+            }
+            default -> {
+                int notes20 = random.nextInt(3);
+                int notes50 = random.nextInt(3);
+                int notes100 = random.nextInt(2);
+                if (service.collectCash(notes20, notes50, notes100)) {
+                    collected.addAndGet(20L * notes20 + 50L * notes50 + 100L * notes100);
+                    succeeded.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /* ================= DATA ================= */
+
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = new Account();
+                account.setAccountId(String.format("ACC%04d", i));
+                account.setCardNumber(card(i));
+                account.setPin("0000");
+                account.setBalance(OPENING_BALANCE);
+                account.setFailedAttempts(0);
+                em.persist(account);
+
+                Transaction opening = new Transaction();
+                opening.setAccount(account);
+                opening.setAmount(OPENING_BALANCE);
+                opening.setType(Transaction.OPENING);
+                opening.setTime(LocalDateTime.now());
+                em.persist(opening);
+            }
+
+            ATMState state = new ATMState();
+            state.setPaper(PAPER);
+            state.setInk(INK);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(2_000, 1_000, 1_000);
+            em.persist(state);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Account account(int index) {
+        Account account = new Account();
+        account.setAccountId(String.format("ACC%04d", index));
+        account.setCardNumber(card(index));
+        return account;
+    }
+
+    private static String card(int index) {
+        return String.format("9%04d", index);
+    }
+
+    private static ATMState getATMState() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT a FROM ATMState a", ATMState.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.atm;
+
+import com.atm.model.ATMState;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * How amounts are broken down into $20, $50 and $100 notes when cash is
+ * dispensed, deposited and handed back, and that cash always equals the
+ * value of the notes held.
+ */
+public class ATMStateTest {
+
+    @Test
+    public void dispenseUsesTheLargestNotesThatAddUp() {
+        ATMState state = terminal(10, 10, 10);
+
+        assertTrue(state.dispense(280));
+        assertNotes(state, 6, 10, 8);
+
+        // A $50 would leave $10, so three $20s
+        assertTrue(state.dispense(60));
+        assertNotes(state, 3, 10, 8);
+
+        // A $100 would leave $10; one $50 and three $20s
+        assertTrue(state.dispense(110));
+        assertNotes(state, 0, 9, 8);
+    }
+
+    @Test
+    public void dispenseFallsBackToSmallerNotesWhenLargeOnesRunOut() {
+        ATMState state = terminal(5, 0, 1);
+
+        assertTrue(state.dispense(140));
+        assertNotes(state, 3, 0, 0);
+        assertTrue(state.dispense(60));
+        assertNotes(state, 0, 0, 0);
+        assertEquals(0.0, state.getCash(), 0.001);
+    }
+
+    @Test
+    public void dispenseRefusesAmountsTheNotesOnHandCannotMake() {
+        ATMState state = terminal(1, 2, 0);
+
+        // 100 + 40 needs two $20s, 50 + 90 has no fit
+        assertFalse(state.dispense(140));
+        // Only $50s and one $20 left: 130 needs at least two $20s with one $50
+        assertFalse(state.dispense(130));
+        assertFalse(state.dispense(200), "more than the terminal holds");
+        assertNotes(state, 1, 2, 0);
+
+        assertTrue(state.dispense(120));
+        assertNotes(state, 0, 0, 0);
+    }
+
+    @Test
+    public void invalidAmountsAreNeverBrokenDown() {
+        ATMState state = terminal(100, 100, 100);
+        for (double amount : new double[] { 0, -20, 10, 30, 25, 20.5, 45 }) {
+            assertFalse(state.dispense(amount), "dispense " + amount);
+            assertFalse(state.depositNotes(amount), "deposit " + amount);
+            assertFalse(state.returnDeposit(amount), "return " + amount);
+        }
+        assertNotes(state, 100, 100, 100);
+    }
+
+    @Test
+    public void depositsAreBookedAsNotesAndCanBeHandedBack() {
+        ATMState state = terminal(0, 0, 0);
+
+        assertTrue(state.depositNotes(250));
+        assertNotes(state, 0, 1, 2);
+        assertTrue(state.depositNotes(70));
+        assertNotes(state, 1, 2, 2);
+
+        assertTrue(state.returnDeposit(250));
+        assertNotes(state, 1, 1, 0);
+        assertFalse(state.returnDeposit(250), "its $100s were handed out meanwhile");
+        assertNotes(state, 1, 1, 0);
+        assertTrue(state.returnDeposit(70));
+        assertNotes(state, 0, 0, 0);
+    }
+
+    private static ATMState terminal(int notes20, int notes50, int notes100) {
+        ATMState state = new ATMState();
+        state.addBanknotes(notes20, notes50, notes100);
+        return state;
+    }
+
+    private static void assertNotes(ATMState state, int notes20, int notes50, int notes100) {
+        assertEquals(notes20, state.getNotes20(), "$20 notes");
+        assertEquals(notes50, state.getNotes50(), "$50 notes");
+        assertEquals(notes100, state.getNotes100(), "$100 notes");
+        assertEquals(20.0 * notes20 + 50.0 * notes50 + 100.0 * notes100, state.getCash(), 0.001, "cash");
+    }
+}
@@ -0,0 +1,229 @@
+package com.atm;
+
+import com.atm.service.AdmissionController;
+import com.atm.service.AdmissionController.Permit;
+import com.atm.service.AdmissionController.Priority;
+import com.atm.service.AdmissionController.RejectedException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Admission of calls by priority, share and wait bound, and a limit that
+ * follows call latencies read from an explicit clock.
+ */
+public class AdmissionControllerTest {
+
+    private static final long MILLI = 1_000_000;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void eachPriorityFillsOnlyItsShare() {
+        AdmissionController admission = fixed(10, new double[] {1.0, 0.5, 0.2}, 0, 0, 0);
+        List<Permit> permits = new ArrayList<>();
+        permits.add(admission.admit(Priority.BATCH));
+        permits.add(admission.admit(Priority.BATCH));
+        assertThrows(RejectedException.class, () -> admission.admit(Priority.BATCH));
+
+        for (int i = 0; i < 3; i++) {
+            permits.add(admission.admit(Priority.TECHNICIAN));
+        }
+        assertThrows(RejectedException.class, () -> admission.admit(Priority.TECHNICIAN));
+
+        for (int i = 0; i < 5; i++) {
+            permits.add(admission.admit(Priority.CUSTOMER));
+        }
+        RejectedException full = assertThrows(RejectedException.class, () -> admission.admit(Priority.CUSTOMER));
+        assertEquals(Priority.CUSTOMER, full.getPriority());
+        assertEquals(10, admission.getInFlight());
+
+        // A freed slot is still beyond the batch share, but not the customers'
+        permits.remove(0).close();
+        assertThrows(RejectedException.class, () -> admission.admit(Priority.BATCH));
+        permits.add(admission.admit(Priority.CUSTOMER));
+
+        assertEquals(2, admission.getRejected(Priority.BATCH));
+        assertEquals(1, admission.getRejected(Priority.TECHNICIAN));
+        assertEquals(1, admission.getRejected(Priority.CUSTOMER));
+        assertEquals(11, admission.getAdmitted());
+        permits.forEach(Permit::close);
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void waitingCallsAreAdmittedHighestPriorityFirst() throws Exception {
+        AdmissionController admission = fixed(1, new double[] {1.0, 1.0, 1.0}, 10_000, 10_000, 10_000);
+        Permit held = admission.admit(Priority.CUSTOMER);
+
+        // They arrive lowest priority first
+        List<Priority> order = new ArrayList<>();
+        List<Thread> waiters = new ArrayList<>();
+        for (Priority priority : List.of(Priority.BATCH, Priority.TECHNICIAN, Priority.CUSTOMER)) {
+            Thread waiter = new Thread(() -> {
+                try (Permit permit = admission.admit(priority)) {
+                    synchronized (order) {
+                        order.add(priority);
+                    }
+                }
+            });
+            waiter.start();
+            awaitWaiting(waiter);
+            waiters.add(waiter);
+        }
+        assertEquals(List.of(), order);
+
+        held.close();
+        for (Thread waiter : waiters) {
+            waiter.join(10_000);
+        }
+        assertEquals(List.of(Priority.CUSTOMER, Priority.TECHNICIAN, Priority.BATCH), order);
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void waitsAreBoundedByPriority() throws Exception {
+        AdmissionController admission = fixed(1, new double[] {1.0, 1.0, 1.0}, 100, 0, 0);
+        Permit held = admission.admit(Priority.CUSTOMER);
+
+        long start = System.nanoTime();
+        assertThrows(RejectedException.class, () -> admission.admit(Priority.TECHNICIAN));
+        assertTrue(System.nanoTime() - start < 100 * MILLI, "technicians do not wait");
+
+        start = System.nanoTime();
+        assertThrows(RejectedException.class, () -> admission.admit(Priority.CUSTOMER));
+        assertTrue(System.nanoTime() - start >= 100 * MILLI, "customers wait their bound first");
+
+        // A slot freed within the bound goes to the waiting customer
+        List<Permit> admitted = new ArrayList<>();
+        AdmissionController patient = fixed(1, new double[] {1.0, 1.0, 1.0}, 10_000, 0, 0);
+        Permit busy = patient.admit(Priority.CUSTOMER);
+        Thread waiter = new Thread(() -> admitted.add(patient.admit(Priority.CUSTOMER)));
+        waiter.start();
+        awaitWaiting(waiter);
+        busy.close();
+        waiter.join(10_000);
+        assertEquals(1, admitted.size());
+        assertEquals(1, patient.getInFlight());
+        held.close();
+    }
+
+    @Test
+    public void retryAfterFollowsLatencyLoadAndPriority() {
+        AdmissionController admission = fixed(2, new double[] {1.0, 1.0, 0.5}, 0, 0, 0);
+        List<Permit> permits = new ArrayList<>();
+        permits.add(admission.admit(Priority.CUSTOMER));
+        permits.add(admission.admit(Priority.CUSTOMER));
+        // No call has finished yet: the minimum
+        assertEquals(Duration.ofMillis(1), retryAfter(admission, Priority.CUSTOMER));
+        permits.forEach(Permit::close);
+        permits.clear();
+
+        call(admission, 40);
+        permits.add(admission.admit(Priority.CUSTOMER));
+        permits.add(admission.admit(Priority.CUSTOMER));
+        // 40 ms a call, twice over with the limit in use, doubled per priority below customers
+        assertEquals(Duration.ofMillis(80), retryAfter(admission, Priority.CUSTOMER));
+        assertEquals(Duration.ofMillis(160), retryAfter(admission, Priority.TECHNICIAN));
+        assertEquals(Duration.ofMillis(320), retryAfter(admission, Priority.BATCH));
+        permits.forEach(Permit::close);
+    }
+
+    @Test
+    public void limitGrowsWhileLatencyHoldsAndShrinksWhenItRises() {
+        AdmissionController admission = new AdmissionController(10, 2, 100, 1.5, 1.0,
+                new double[] {1.0, 1.0, 1.0}, waits(0, 0, 0), Duration.ofMillis(1), Duration.ofSeconds(10),
+                clock::get);
+
+        // Calls that leave most of the limit unused do not grow it
+        call(admission, 10);
+        assertEquals(10, admission.getLimit());
+
+        int limit = 10;
+        for (int round = 0; round < 3; round++) {
+            fill(admission, 10);
+            assertTrue(admission.getLimit() > limit, "grows at steady latency");
+            limit = admission.getLimit();
+        }
+        int peak = limit;
+
+        // Ten times slower: recent latency leaves the baseline behind
+        for (int round = 0; round < 5; round++) {
+            fill(admission, 100);
+        }
+        assertTrue(admission.getLimit() < peak / 2, admission.getLimit() + " of " + peak);
+    }
+
+    @Test
+    public void failedCallCutsTheLimitByATenth() {
+        AdmissionController admission = new AdmissionController(50, 2, 100, 1.5, 1.0,
+                new double[] {1.0, 1.0, 1.0}, waits(0, 0, 0), Duration.ofMillis(1), Duration.ofSeconds(10),
+                clock::get);
+        Permit permit = admission.admit(Priority.CUSTOMER);
+        clock.addAndGet(10 * MILLI);
+        permit.failed();
+        permit.close();
+        assertEquals(45, admission.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            try (Permit failing = admission.admit(Priority.CUSTOMER)) {
+                failing.failed();
+            }
+        }
+        assertEquals(2, admission.getLimit(), "never below the minimum");
+    }
+
+    /* ================= HELPERS ================= */
+
+    /**
+     * Controller whose limit stays at {@code limit}.
+     */
+    private AdmissionController fixed(int limit, double[] shares, long... waitMillis) {
+        return new AdmissionController(limit, limit, limit, 1.5, 0.2, shares,
+                waits(waitMillis), Duration.ofMillis(1), Duration.ofSeconds(10), clock::get);
+    }
+
+    private static Duration[] waits(long... millis) {
+        Duration[] waits = new Duration[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            waits[i] = Duration.ofMillis(millis[i]);
+        }
+        return waits;
+    }
+
+    /** One call taking {@code millis} on the clock. */
+    private void call(AdmissionController admission, long millis) {
+        Permit permit = admission.admit(Priority.CUSTOMER);
+        clock.addAndGet(millis * MILLI);
+        permit.close();
+    }
+
+    /** Takes every slot of the current limit, then finishes them after {@code millis}. */
+    private void fill(AdmissionController admission, long millis) {
+        List<Permit> permits = new ArrayList<>();
+        for (int i = admission.getLimit(); i > 0; i--) {
+            permits.add(admission.admit(Priority.CUSTOMER));
+        }
+        clock.addAndGet(millis * MILLI);
+        permits.forEach(Permit::close);
+    }
+
+    private static Duration retryAfter(AdmissionController admission, Priority priority) {
+        return assertThrows(RejectedException.class, () -> admission.admit(priority)).getRetryAfter();
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.TIMED_WAITING, thread.getState());
+    }
+}
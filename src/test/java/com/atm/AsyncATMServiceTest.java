@@ -0,0 +1,147 @@
+package com.atm;
+
+import com.atm.model.Account;
+import com.atm.service.ATMService;
+import com.atm.service.AsyncATMService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Timeouts and cancellation of the asynchronous facade on a one-thread
+ * pool: writes, logins among them, can only be abandoned before they
+ * start, reads are interrupted, and each operation can take its own
+ * timeout.
+ */
+public class AsyncATMServiceTest {
+
+    private static final Duration SHORT = Duration.ofMillis(50);
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("async");
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void startedWritesReportTheirOutcomePastTheTimeout() throws Exception {
+        try (AsyncATMService async = new AsyncATMService(null, 1, 4, SHORT)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            AtomicInteger runs = new AtomicInteger();
+
+            CompletableFuture<String> running = async.submitWrite(() -> {
+                started.countDown();
+                release.await();
+                runs.incrementAndGet();
+                return "committed";
+            }, SHORT);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<String> queued = async.submitWrite(() -> {
+                runs.incrementAndGet();
+                return "also committed";
+            }, SHORT);
+            CompletableFuture<String> cancelled = async.submitWrite(() -> {
+                runs.incrementAndGet();
+                return "never";
+            }, Duration.ofMinutes(1));
+
+            assertFalse(running.cancel(true), "too late to cancel");
+            assertTrue(cancelled.cancel(true), "still queued");
+            ExecutionException timedOut = assertThrows(ExecutionException.class,
+                    () -> queued.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, timedOut.getCause());
+
+            Thread.sleep(2 * SHORT.toMillis());
+            release.countDown();
+            assertEquals("committed", running.get(10, TimeUnit.SECONDS));
+            async.submitWrite(() -> null, SHORT).get(10, TimeUnit.SECONDS);
+            assertEquals(1, runs.get(), "abandoned writes never ran");
+        }
+    }
+
+    @Test
+    public void readsAreInterruptedOnTimeout() throws Exception {
+        try (AsyncATMService async = new AsyncATMService(null, 1, 4, SHORT)) {
+            AtomicBoolean interrupted = new AtomicBoolean();
+            CountDownLatch finished = new CountDownLatch(1);
+            CompletableFuture<String> read = async.submit(() -> {
+                try {
+                    Thread.sleep(10_000);
+                    return "late";
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                } finally {
+                    finished.countDown();
+                }
+            }, SHORT);
+
+            ExecutionException timedOut = assertThrows(ExecutionException.class,
+                    () -> read.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, timedOut.getCause());
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertTrue(interrupted.get());
+        }
+    }
+
+    @Test
+    public void startedLoginIsNotInterruptedByItsTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        ATMService service = new ATMService() {
+            @Override
+            public Account login(String cardNumber, String pin) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                return null;
+            }
+        };
+        try (AsyncATMService async = new AsyncATMService(service, 1, 4, Duration.ofMinutes(1))) {
+            CompletableFuture<Account> login = async.login("1", "0000", SHORT);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // Queued behind the login, each with its own timeout
+            CompletableFuture<Boolean> refill = async.refillPaper(10, SHORT);
+            CompletableFuture<Account> details = async.getAccountDetails("ACC1", Duration.ofMinutes(1));
+
+            ExecutionException timedOut = assertThrows(ExecutionException.class,
+                    () -> refill.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(TimeoutException.class, timedOut.getCause());
+            Thread.sleep(2 * SHORT.toMillis());
+            assertFalse(details.isDone(), "the default timeout is not used");
+            assertFalse(login.isDone(), "a started login outlives its timeout");
+
+            release.countDown();
+            assertNull(login.get(10, TimeUnit.SECONDS));
+            assertFalse(interrupted.get());
+            details.get(10, TimeUnit.SECONDS);
+        } finally {
+            service.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.atm;
+
+import com.atm.service.AuditLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Hash chaining of the audit log across restarts, segments and a line
+ * torn by a crash.
+ */
+public class AuditLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void chainContinuesAcrossRestartsAndSegments() {
+        try (AuditLog log = new AuditLog(dir, "7", 64, 200)) {
+            for (int i = 0; i < 5; i++) {
+                log.record("tech", "REFILL_PAPER", "amount=" + i);
+            }
+        }
+        try (AuditLog log = new AuditLog(dir, "7", 64, 200)) {
+            log.record("1234", "LOGIN_FAILED", "wrong\tcard\nor PIN");
+        }
+
+        List<AuditLog.Entry> entries = read();
+        assertEquals(6, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(i + 1, entries.get(i).seq);
+            assertEquals("7", entries.get(i).terminal);
+        }
+        assertEquals("wrong card or PIN", entries.get(5).detail);
+        assertEquals(-1, AuditLog.verify(dir));
+    }
+
+    @Test
+    public void tornLastLineIsCutOnRestart() throws Exception {
+        try (AuditLog log = new AuditLog(dir, "7", 64, 1 << 20)) {
+            log.record("tech", "COLLECT_CASH", "notes=1,0,0");
+            log.record("tech", "COLLECT_CASH", "notes=0,1,0");
+        }
+        Path segment = dir.resolve("audit-000001.log");
+        Files.write(segment, "3\t2024-01-01T00:00\t7\ttech\tCOLL".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        try (AuditLog log = new AuditLog(dir, "7", 64, 1 << 20)) {
+            log.record("tech", "UPDATE_FIRMWARE", "v2");
+        }
+
+        List<AuditLog.Entry> entries = read();
+        assertEquals(3, entries.size());
+        assertEquals("UPDATE_FIRMWARE", entries.get(2).action);
+        assertEquals(3, entries.get(2).seq);
+        assertEquals(-1, AuditLog.verify(dir));
+    }
+
+    @Test
+    public void editedLineBreaksTheChain() throws Exception {
+        try (AuditLog log = new AuditLog(dir, "7", 64, 1 << 20)) {
+            for (int i = 0; i < 3; i++) {
+                log.record("tech", "REFILL_INK", "amount=" + i);
+            }
+        }
+        Path segment = dir.resolve("audit-000001.log");
+        String text = Files.readString(segment).replace("amount=1", "amount=9");
+        Files.writeString(segment, text);
+
+        assertEquals(2, AuditLog.verify(dir));
+    }
+
+    private List<AuditLog.Entry> read() {
+        List<AuditLog.Entry> entries = new ArrayList<>();
+        AuditLog.read(dir, entries::add);
+        return entries;
+    }
+}
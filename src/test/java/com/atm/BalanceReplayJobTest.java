@@ -0,0 +1,196 @@
+package com.atm;
+
+import com.atm.batch.AccountRanges;
+import com.atm.batch.BalanceReplayJob;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.Transaction;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Splits an embedded database's accounts into ranges, and checks that
+ * balances replayed from snapshots match the ledger at any point in time,
+ * including rows posted out of time order.
+ */
+public class BalanceReplayJobTest {
+
+    private static final int ACCOUNTS = 10;
+    private static final LocalDateTime START = LocalDateTime.now().minusDays(10);
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("replay");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    /* ================= RANGES ================= */
+
+    @Test
+    public void rangesCoverEveryAccountOnce() {
+        List<String> bounds = AccountRanges.bounds(3);
+        assertEquals(List.of(account(0), account(3), account(6), account(9)), bounds);
+        assertEquals(List.of(account(0)), AccountRanges.bounds(ACCOUNTS));
+
+        List<String> seen = AccountRanges.forEachRange(bounds, 4, (lo, hi) -> {
+            EntityManager em = JpaManager.getEntityManager();
+            try {
+                return AccountRanges.bind(em.createQuery(
+                        "SELECT a.accountId FROM Account a WHERE " + AccountRanges.condition("a", hi)
+                        + " ORDER BY a.accountId", String.class), lo, hi).getResultList();
+            } finally {
+                em.close();
+            }
+        }, (left, right) -> {
+            List<String> all = new ArrayList<>(left);
+            all.addAll(right);
+            all.sort(null);
+            return all;
+        });
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            expected.add(account(i));
+        }
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void noRangesWithoutBounds() {
+        assertNull(AccountRanges.forEachRange(List.of(), 2, (lo, hi) -> 1, Integer::sum));
+    }
+
+    /* ================= SNAPSHOT AND REPLAY ================= */
+
+    @Test
+    public void snapshotsThenReplayMatchTheLedgerAtAnyTime() {
+        BalanceReplayJob job = new BalanceReplayJob(3, 2, Duration.ZERO);
+        String first = account(1);
+        String last = account(8);
+
+        assertEquals(ACCOUNTS, job.snapshot());
+        assertEquals(0, job.snapshot(), "nothing new to cover");
+
+        // A row dated before the snapshot, then one dated after the next, then an ordinary one
+        post(first, Transaction.DEPOSIT, 40.0, START.plusHours(1));
+        post(first, Transaction.INTEREST, 1.5, START.plusDays(20));
+        post(first, Transaction.WITHDRAW, 20.0, START.plusDays(3));
+        post(last, Transaction.FEE, 5.0, START.plusDays(3));
+        assertEquals(2, job.snapshot());
+
+        for (int days = 0; days <= 21; days++) {
+            LocalDateTime at = START.plusDays(days).plusHours(2);
+            for (String id : List.of(first, last, account(4))) {
+                assertEquals(ledgerAt(id, at), job.balanceAt(id, at), 0.001, id + " at day " + days);
+            }
+        }
+
+        // The restore to now leaves out the future-dated interest
+        LocalDateTime now = LocalDateTime.now();
+        job.restoreAll(now);
+        assertEquals(ledgerAt(first, now), balance(first), 0.001);
+        assertEquals(120.0 + 40.0 - 20.0, balance(first), 0.001);
+        assertEquals(ledgerAt(last, now), balance(last), 0.001);
+        assertEquals(2, snapshots(first));
+    }
+
+    /* ================= DATA ================= */
+
+    /**
+     * Each account opens with 100 and deposits 20 two days later.
+     */
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = new Account();
+                account.setAccountId(account(i));
+                account.setCardNumber("6" + i);
+                account.setPin("0000");
+                account.setBalance(120.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+                em.persist(row(account, Transaction.OPENING, 100.0, START));
+                em.persist(row(account, Transaction.DEPOSIT, 20.0, START.plusDays(2)));
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void post(String accountId, String type, double amount, LocalDateTime time) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            Account account = em.find(Account.class, accountId);
+            account.setBalance(account.getBalance() + Transaction.signedAmount(type, amount));
+            em.persist(row(account, type, amount, time));
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Transaction row(Account account, String type, double amount, LocalDateTime time) {
+        Transaction row = new Transaction();
+        row.setAccount(account);
+        row.setType(type);
+        row.setAmount(amount);
+        row.setTime(time);
+        return row;
+    }
+
+    private static double ledgerAt(String accountId, LocalDateTime at) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT COALESCE(SUM(" + Transaction.signedAmountJpql("t") + "), 0) "
+                    + "FROM Transaction t WHERE t.account.accountId = :id AND t.time <= :at", Double.class)
+                    .setParameter("id", accountId)
+                    .setParameter("at", at)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static double balance(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Account.class, accountId).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long snapshots(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT COUNT(s) FROM AccountSnapshot s WHERE s.account.accountId = :id", Long.class)
+                    .setParameter("id", accountId)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String account(int index) {
+        return String.format("ACC%02d", index);
+    }
+}
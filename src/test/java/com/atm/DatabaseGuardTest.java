@@ -0,0 +1,110 @@
+package com.atm;
+
+import com.atm.db.DatabaseGuard;
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.service.ATMService;
+import com.atm.service.SupplyMonitor;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Holds a row lock on an embedded database until operations waiting for it
+ * time out and open the breaker, then checks that it fails fast and closes
+ * again after a trial call.
+ */
+public class DatabaseGuardTest {
+
+    private static final long LOCK_MILLIS = 300;
+    private static final long OPEN_MILLIS = 500;
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("guard", Map.of(
+                "db.lockMillis", String.valueOf(LOCK_MILLIS),
+                "breaker.window", "5",
+                "breaker.minCalls", "3",
+                "breaker.openMillis", String.valueOf(OPEN_MILLIS),
+                "breaker.halfOpenTrials", "1"));
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void lockTimeoutsOpenTheBreakerUntilATrialSucceeds() throws Exception {
+        DatabaseGuard guard = DatabaseGuard.fromClasspath();
+        SupplyMonitor supplies = SupplyMonitor.fromProperties(new Properties(), SupplyMonitor.CONSOLE);
+        ATMService service = new ATMService(null, supplies, null, ReadRouter.primaryOnly());
+        Account account = service.getAccountDetails("ACC5000");
+
+        EntityManager holder = JpaManager.getEntityManager();
+        try {
+            holder.getTransaction().begin();
+            holder.find(Account.class, "ACC5000", LockModeType.PESSIMISTIC_WRITE);
+
+            // With the read above, two failed calls of three open it
+            for (int i = 0; i < 2; i++) {
+                long start = System.nanoTime();
+                assertFalse(service.deposit(account, 20));
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                assertTrue(millis < 10 * LOCK_MILLIS, "Waited " + millis + " ms for the lock");
+            }
+            assertEquals(DatabaseGuard.State.OPEN, guard.getState());
+            assertEquals(1, guard.getTimesOpened());
+
+            long start = System.nanoTime();
+            assertThrows(DatabaseGuard.OpenException.class, () -> service.deposit(account, 20));
+            assertTrue(System.nanoTime() - start < LOCK_MILLIS * 1_000_000);
+            assertEquals(1, guard.getRejected());
+        } finally {
+            holder.getTransaction().rollback();
+            holder.close();
+        }
+
+        Thread.sleep(OPEN_MILLIS + 100);
+        assertEquals(DatabaseGuard.State.HALF_OPEN, guard.getState());
+        assertTrue(service.deposit(account, 20));
+        assertEquals(DatabaseGuard.State.CLOSED, guard.getState());
+        assertEquals(1020.0, service.getAccountDetails("ACC5000").getBalance(), 0.001);
+    }
+
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            ATMState state = new ATMState();
+            state.setPaper(100);
+            state.setInk(100);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(100, 100, 100);
+            em.persist(state);
+            Account account = new Account();
+            account.setAccountId("ACC5000");
+            account.setCardNumber("5000");
+            account.setPin("0000");
+            account.setBalance(1000.0);
+            account.setFailedAttempts(0);
+            em.persist(account);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+}
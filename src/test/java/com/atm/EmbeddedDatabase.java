@@ -0,0 +1,54 @@
+package com.atm;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Points the persistence units at an in-memory H2 database in PostgreSQL
+ * mode, through the system properties JpaManager reads, and clears them
+ * again. Each test class runs in its own JVM, so a class calls
+ * {@link #use} once before its first query and {@link #clear} at the end.
+ */
+public final class EmbeddedDatabase {
+
+    private static final Set<String> EXTRA = new HashSet<>();
+
+    private EmbeddedDatabase() {
+    }
+
+    /**
+     * JDBC url of the in-memory database {@code name}, kept open until the JVM exits.
+     */
+    public static String url(String name) {
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1;MODE=PostgreSQL";
+    }
+
+    public static void use(String name) {
+        use(name, Map.of());
+    }
+
+    /**
+     * @param extra further system properties, set after the defaults so
+     *              they may override them; {@link #clear} removes them too
+     */
+    public static synchronized void use(String name, Map<String, String> extra) {
+        System.setProperty("jakarta.persistence.jdbc.driver", "org.h2.Driver");
+        System.setProperty("jakarta.persistence.jdbc.url", url(name));
+        System.setProperty("jakarta.persistence.jdbc.user", "sa");
+        System.setProperty("jakarta.persistence.jdbc.password", "");
+        System.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        System.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+        System.setProperty("hibernate.show_sql", "false");
+        extra.forEach(System::setProperty);
+        EXTRA.addAll(extra.keySet());
+    }
+
+    public static synchronized void clear() {
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith("jakarta.persistence.") || name.startsWith("hibernate.")
+                        || EXTRA.contains(name))
+                .forEach(System::clearProperty);
+        EXTRA.clear();
+    }
+}
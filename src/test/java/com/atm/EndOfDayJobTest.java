@@ -0,0 +1,198 @@
+package com.atm;
+
+import com.atm.batch.BalanceReplayJob;
+import com.atm.batch.EndOfDayJob;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.Transaction;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * End-of-day postings on an embedded database, interleaved with live
+ * deposits and balance snapshots: interest follows the balance at the end
+ * of the day, days are posted in order, and the replayed balances must
+ * match the ledger at the end of every business day and now.
+ */
+public class EndOfDayJobTest {
+
+    private static final int ACCOUNTS = 7;
+    private static final LocalDate TODAY = LocalDate.now();
+    private static final LocalDateTime START = TODAY.minusDays(40).atStartOfDay();
+
+    // 3.65% a year is 10 cents a day on $1,000
+    private static final double RATE = 0.0365;
+    private static final double FEE = 5.0;
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("eod");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void endOfDayThenSnapshotThenReplayMatchTheLedger() {
+        EndOfDayJob eod = new EndOfDayJob(RATE, FEE, 3, 2, Duration.ZERO);
+        BalanceReplayJob replay = new BalanceReplayJob(3, 2, Duration.ZERO);
+
+        assertThrows(IllegalArgumentException.class, () -> eod.run(TODAY), "today has not ended");
+        assertThrows(IllegalArgumentException.class, () -> eod.run(TODAY.plusDays(1)));
+
+        // Consecutive days around the last day of the previous month, all ended
+        LocalDate monthEnd = TODAY.withDayOfMonth(1).minusDays(1);
+        LocalDate last = monthEnd.plusDays(2).isBefore(TODAY) ? monthEnd.plusDays(2) : TODAY.minusDays(1);
+        List<LocalDate> days = new ArrayList<>();
+        for (LocalDate day = monthEnd.minusDays(1); !day.isAfter(last); day = day.plusDays(1)) {
+            days.add(day);
+        }
+
+        replay.snapshot();
+        int deposits = 0;
+        for (LocalDate day : days) {
+            LocalDateTime stamp = day.atTime(23, 59, 59);
+            double[] expected = new double[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                expected[i] = Math.round(ledgerAt(account(i), stamp) * RATE / 365 * 100) / 100.0;
+            }
+
+            EndOfDayJob.Result result = eod.run(day);
+            assertEquals(ACCOUNTS, result.getAccounts());
+            // The empty account earns nothing and cannot cover the fee
+            assertEquals(ACCOUNTS - 1, result.getInterestPostings());
+            assertEquals(day.equals(monthEnd) ? ACCOUNTS - 1 : 0, result.getFeePostings(), day.toString());
+            // Deposits made since the day ended earn nothing for it
+            for (int i = 1; i < ACCOUNTS; i++) {
+                assertEquals(expected[i], interest(account(i), stamp), 0.001, account(i) + " on " + day);
+            }
+
+            replay.snapshot();
+            // A live deposit gets a higher id than the day's postings and a later time
+            deposit(account(1 + deposits++ % (ACCOUNTS - 1)), 1_000.0, LocalDateTime.now());
+        }
+        assertEquals(0, eod.run(last).getAccounts(), "a rerun posts nothing");
+        assertThrows(IllegalStateException.class, () -> eod.run(days.get(0)), "an earlier day after a later one");
+        if (last.plusDays(2).isBefore(TODAY)) {
+            assertThrows(IllegalStateException.class, () -> eod.run(last.plusDays(2)), "a day is missing");
+        }
+        replay.snapshot();
+
+        for (LocalDate day : days) {
+            LocalDateTime at = day.plusDays(1).atStartOfDay();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                String id = account(i);
+                assertEquals(ledgerAt(id, at), replay.balanceAt(id, at), 0.001, id + " after " + day);
+            }
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertEquals(balance(account(i)), ledgerAt(account(i), now), 0.001, "posted to the balance");
+        }
+        assertEquals(0, replay.restoreAll(now), "replay agrees with every balance");
+        assertEquals(0.0, balance(account(0)), 0.001);
+    }
+
+    /* ================= DATA ================= */
+
+    /**
+     * Account 0 opens empty, the others with $1,000.
+     */
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                double opening = i == 0 ? 0.0 : 1000.0;
+                Account account = new Account();
+                account.setAccountId(account(i));
+                account.setCardNumber("7" + i);
+                account.setPin("0000");
+                account.setBalance(opening);
+                account.setFailedAttempts(0);
+                em.persist(account);
+                em.persist(row(account, Transaction.OPENING, opening, START));
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void deposit(String accountId, double amount, LocalDateTime time) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            Account account = em.find(Account.class, accountId);
+            account.setBalance(account.getBalance() + amount);
+            em.persist(row(account, Transaction.DEPOSIT, amount, time));
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Transaction row(Account account, String type, double amount, LocalDateTime time) {
+        Transaction row = new Transaction();
+        row.setAccount(account);
+        row.setType(type);
+        row.setAmount(amount);
+        row.setTime(time);
+        return row;
+    }
+
+    private static double ledgerAt(String accountId, LocalDateTime at) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT COALESCE(SUM(" + Transaction.signedAmountJpql("t") + "), 0) "
+                    + "FROM Transaction t WHERE t.account.accountId = :id AND t.time <= :at", Double.class)
+                    .setParameter("id", accountId)
+                    .setParameter("at", at)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static double interest(String accountId, LocalDateTime stamp) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT t.amount FROM Transaction t WHERE t.account.accountId = :id "
+                    + "AND t.type = :type AND t.time = :stamp", Double.class)
+                    .setParameter("id", accountId)
+                    .setParameter("type", Transaction.INTEREST)
+                    .setParameter("stamp", stamp)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static double balance(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Account.class, accountId).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String account(int index) {
+        return String.format("ACC%02d", index);
+    }
+}
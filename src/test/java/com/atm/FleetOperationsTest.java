@@ -0,0 +1,187 @@
+package com.atm;
+
+import com.atm.db.JpaManager;
+import com.atm.model.ATMState;
+import com.atm.service.AuditLog;
+import com.atm.service.FleetOperations;
+import com.atm.service.SupplyMonitor;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Chunked set-based updates of a fleet of terminals on an embedded
+ * database: which terminals each operation touches, progress per chunk,
+ * cash kept in step with the notes, and one audit entry and supply
+ * levels per operation.
+ */
+public class FleetOperationsTest {
+
+    private static final int TERMINALS = 23;
+    private static final int CHUNK = 5;
+
+    @TempDir
+    Path dir;
+
+    private final List<SupplyMonitor.Alert> alerts = new ArrayList<>();
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("fleet");
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @BeforeEach
+    public void seedFleet() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createQuery("DELETE FROM ATMState s").executeUpdate();
+            for (int i = 0; i < TERMINALS; i++) {
+                ATMState state = new ATMState();
+                state.setPaper(i * 10);
+                state.setInk(100);
+                state.setFirmwareVersion(i % 3 == 0 ? "v2.0" : "v1.0");
+                state.setRegion(i % 2 == 0 ? "north" : "south");
+                state.addBanknotes(i, 1, 0);
+                em.persist(state);
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    @Test
+    public void updatesRunChunkByChunkAndReportProgress() {
+        List<long[]> progress = new ArrayList<>();
+        try (FleetOperations fleet = operations()) {
+            // Paper 0, 10, ..., 90 is below 100
+            long updated = fleet.refillPaperBelow(100, 500, null,
+                    (done, total, count) -> progress.add(new long[] { done, total, count }));
+
+            assertEquals(10, updated);
+            int chunks = (TERMINALS + CHUNK - 1) / CHUNK;
+            assertEquals(chunks, progress.size());
+            for (int i = 0; i < chunks; i++) {
+                assertEquals(i + 1, progress.get(i)[0]);
+                assertEquals(chunks, progress.get(i)[1]);
+            }
+            assertEquals(CHUNK, progress.get(0)[2], "one chunk per transaction");
+            assertEquals(updated, progress.get(chunks - 1)[2]);
+
+            for (ATMState state : fleet()) {
+                assertTrue(state.getPaper() >= 100);
+            }
+            assertEquals(0, fleet.refillPaperBelow(100, 500, null, null), "nothing left to do");
+        }
+    }
+
+    @Test
+    public void regionAndConditionNarrowTheUpdate() {
+        try (FleetOperations fleet = operations()) {
+            // v1.0 terminals in the north: even i not divisible by 3
+            long north = fleet.rollOutFirmware("v2.0", "north", null);
+            assertEquals(8, north);
+            assertEquals(0, fleet.rollOutFirmware("v2.0", "north", null));
+            // v1.0 terminals in the south: odd i not divisible by 3
+            assertEquals(7, fleet.rollOutFirmware("v2.0", "south", null));
+            for (ATMState state : fleet()) {
+                assertEquals("v2.0", state.getFirmwareVersion());
+            }
+        }
+    }
+
+    @Test
+    public void cashFollowsTheNotes() {
+        try (FleetOperations fleet = operations()) {
+            assertEquals(TERMINALS, fleet.addBanknotes(1, 2, 3, null, null));
+            for (ATMState state : fleet()) {
+                assertEquals(20.0 * state.getNotes20() + 50.0 * state.getNotes50() + 100.0 * state.getNotes100(),
+                        state.getCash(), 0.001);
+                assertEquals(3, state.getNotes50());
+            }
+
+            assertEquals((TERMINALS + 1) / 2, fleet.collectAllCash("north", null));
+            for (ATMState state : fleet()) {
+                assertEquals(state.getRegion().equals("north") ? 0.0 : 20.0 * state.getNotes20() + 150 + 300,
+                        state.getCash(), 0.001);
+            }
+            assertThrows(IllegalArgumentException.class, () -> fleet.addBanknotes(-1, 0, 0, null, null));
+        }
+    }
+
+    @Test
+    public void eachOperationIsAuditedOnceAndReportsItsTerminals() {
+        List<Long> south = new ArrayList<>();
+        for (ATMState state : fleet()) {
+            if (state.getRegion().equals("south")) {
+                south.add(state.getId());
+            }
+        }
+
+        try (FleetOperations fleet = operations()) {
+            assertEquals(south.size(), fleet.collectAllCash("south", null));
+            Set<Long> low = alerts.stream()
+                    .filter(a -> a.supply == SupplyMonitor.Supply.CASH && a.kind == SupplyMonitor.Kind.LOW)
+                    .map(a -> a.terminal)
+                    .collect(Collectors.toSet());
+            assertEquals(Set.copyOf(south), low, "every emptied terminal, and only those");
+
+            alerts.clear();
+            assertEquals(south.size(), fleet.addBanknotes(0, 0, 5, "south", null));
+            assertTrue(alerts.stream().allMatch(a -> a.kind == SupplyMonitor.Kind.RESTORED && south.contains(a.terminal)));
+            assertEquals(south.size(), alerts.stream().filter(a -> a.supply == SupplyMonitor.Supply.CASH).count());
+
+            alerts.clear();
+            assertEquals(8, fleet.rollOutFirmware("v2.0", "north", null));
+            assertEquals(List.of(), alerts);
+        }
+
+        List<AuditLog.Entry> entries = new ArrayList<>();
+        AuditLog.read(dir, entries::add);
+        assertEquals(3, entries.size(), "one entry per operation, not per chunk");
+        assertEquals("FLEET_CASH_COLLECTED", entries.get(0).action);
+        assertEquals("cash>0 region=south terminals=" + south.size(), entries.get(0).detail);
+        assertEquals("FLEET_CASH_ADDED", entries.get(1).action);
+        assertEquals("n20=0 n50=0 n100=5 region=south terminals=" + south.size(), entries.get(1).detail);
+        assertEquals("firmware<>v2.0 region=north terminals=8", entries.get(2).detail);
+        assertEquals(-1, AuditLog.verify(dir));
+    }
+
+    /**
+     * Operations audited in the test's directory, with cash below $100 low.
+     */
+    private FleetOperations operations() {
+        Properties props = new Properties();
+        props.setProperty("supply.threshold.CASH", "100");
+        return new FleetOperations(CHUNK, new AuditLog(dir, "fleet"), SupplyMonitor.fromProperties(props, alerts::add));
+    }
+
+    private static List<ATMState> fleet() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT s FROM ATMState s ORDER BY s.id", ATMState.class).getResultList();
+        } finally {
+            em.close();
+        }
+    }
+}
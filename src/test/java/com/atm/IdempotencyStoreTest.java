@@ -0,0 +1,121 @@
+package com.atm;
+
+import com.atm.db.JpaManager;
+import com.atm.model.IdempotencyRecord;
+import com.atm.model.Transaction;
+import com.atm.service.IdempotencyStore;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cache eviction, expiry and database fallback of the idempotency store,
+ * on an embedded database. Deleting the stored rows shows which lookups
+ * were answered from the cache.
+ */
+public class IdempotencyStoreTest {
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("idempotency");
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @BeforeEach
+    public void emptyTable() {
+        deleteStored();
+    }
+
+    @Test
+    public void lookupFallsBackToTheDatabaseAndCachesTheResult() {
+        IdempotencyStore writer = new IdempotencyStore(10, Duration.ofHours(1));
+        commit(writer, "k1", 20.0);
+
+        // Another terminal, or this one after a restart, has nothing cached
+        IdempotencyStore reader = new IdempotencyStore(10, Duration.ofHours(1));
+        assertNull(reader.lookup("unknown"));
+        IdempotencyRecord found = reader.lookup("k1");
+        assertNotNull(found);
+        assertEquals(80.0, found.getBalanceAfter(), 0.001);
+        assertTrue(found.matches(Transaction.WITHDRAW, "ACC1", 20.0));
+        assertFalse(found.matches(Transaction.WITHDRAW, "ACC1", 40.0));
+        assertEquals("WITHDRAW of 20.00 on ACC1", found.describe());
+
+        deleteStored();
+        assertNotNull(reader.lookup("k1"), "answered from the cache");
+    }
+
+    @Test
+    public void oldestEntriesAreEvictedPastMaxEntries() {
+        IdempotencyStore store = new IdempotencyStore(2, Duration.ofHours(1));
+        commit(store, "k1", 10.0);
+        commit(store, "k2", 20.0);
+        commit(store, "k3", 30.0);
+        deleteStored();
+
+        assertNull(store.lookup("k1"), "evicted, and gone from the database");
+        assertNotNull(store.lookup("k2"));
+        assertNotNull(store.lookup("k3"));
+    }
+
+    @Test
+    public void expiredEntriesAreReadAgain() {
+        IdempotencyStore store = new IdempotencyStore(10, Duration.ZERO);
+        commit(store, "k1", 10.0);
+        assertNotNull(store.lookup("k1"), "still in the database");
+
+        deleteStored();
+        assertNull(store.lookup("k1"));
+    }
+
+    @Test
+    public void purgeRemovesOnlyOldKeys() {
+        IdempotencyStore store = new IdempotencyStore(10, Duration.ofHours(1));
+        commit(store, "k1", 10.0);
+        assertEquals(0, store.purgeOlderThan(Duration.ofHours(1)));
+        assertEquals(1, store.purgeOlderThan(Duration.ofSeconds(-1)));
+    }
+
+    /* ================= DATA ================= */
+
+    /**
+     * Stores a key the way the service does: in the operation's
+     * transaction, cached once it has committed.
+     */
+    private static void commit(IdempotencyStore store, String key, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            IdempotencyRecord record = store.record(em, key, Transaction.WITHDRAW, "ACC1", amount, 100.0 - amount);
+            em.getTransaction().commit();
+            store.remember(record);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void deleteStored() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createQuery("DELETE FROM IdempotencyRecord r").executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.atm;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.IdempotencyRecord;
+import com.atm.service.LedgerEngine;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The ledger engine on an embedded database: concurrent operations applied
+ * in one order and written back as changes, recovery from the journal
+ * after a stop with a torn last line, and the write-behind retrying while
+ * the database refuses it.
+ */
+public class LedgerEngineTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("engine");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void concurrentOperationsAreSequencedAndWrittenAsChanges() throws Exception {
+        LedgerEngine engine = new LedgerEngine(dir, 1_024, 64, 1_000);
+        ATMState before = terminal();
+        double cashBefore = before.getCash();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<List<LedgerEngine.Result>>> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(pool.submit(() -> {
+                List<LedgerEngine.Result> results = new ArrayList<>();
+                for (int i = 0; i < 25; i++) {
+                    results.add(engine.deposit(null, "ACC1", 20.0, "seq-" + thread + "-d" + i).join());
+                    results.add(engine.withdraw(null, "ACC1", 20.0, "seq-" + thread + "-w" + i).join());
+                }
+                return results;
+            }));
+        }
+        // Another writer posts to ACC2 while the engine holds it
+        addToBalance("ACC2", 5.0);
+        for (Future<List<LedgerEngine.Result>> thread : threads) {
+            for (LedgerEngine.Result result : thread.get()) {
+                assertTrue(result.isApproved(), String.valueOf(result.getStatus()));
+            }
+        }
+        pool.shutdown();
+        assertEquals(LedgerEngine.Status.APPROVED, engine.transfer("ACC1", "52", 30.0, "seq-transfer").join().getStatus());
+        LedgerEngine.Result cash = engine.withdraw(null, "ACC1", 100.0, null).join();
+        assertEquals(870.0, cash.getBalance(), 0.001);
+        assertEquals(cashBefore - 100.0, cash.getSuppliesAfter()[0], 0.001);
+        assertTrue(Double.isNaN(cash.getSuppliesAfter()[4]), "paper is not the engine's");
+
+        LedgerEngine.Result retry = engine.deposit(null, "ACC1", 20.0, "seq-0-d0").join();
+        assertTrue(retry.isDuplicate());
+        assertEquals(LedgerEngine.Status.KEY_REUSED, engine.deposit(null, "ACC1", 40.0, "seq-0-d0").join().getStatus());
+        engine.close();
+
+        assertEquals(870.0, balance("ACC1"), 0.001);
+        assertEquals(1_000.0 + 5.0 + 30.0, balance("ACC2"), 0.001, "the other writer's posting is kept");
+        assertEquals(4 * 50 + 2, rows("ACC1"));
+        // In id order the rows add up, step by step, to the balance
+        assertEquals(870.0, runningBalance("ACC1", 1_000.0), 0.001);
+        assertEquals(before.getNotes100() - 1, terminal().getNotes100());
+        assertEquals(cashBefore - 100.0, terminal().getCash(), 0.001);
+        assertNotNull(key("seq-3-w24"));
+    }
+
+    @Test
+    public void restartWritesBackTheJournalButNotATornLastLine() throws Exception {
+        LedgerEngine engine = new LedgerEngine(dir, 1_024, 64, 1_000);
+        refuseCheckpoints(true);
+        try {
+            assertEquals(1_050.0, engine.deposit(null, "ACC3", 50.0, "r-1").join().getBalance(), 0.001);
+            assertEquals(950.0, engine.withdraw(null, "ACC3", 100.0, "r-2").join().getBalance(), 0.001);
+            // Stopped before the database took anything
+            engine.close(200);
+        } finally {
+            refuseCheckpoints(false);
+        }
+        assertEquals(1_000.0, balance("ACC3"), 0.001);
+
+        // A crash mid-write left 13 fields with the key cut off and no newline
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.sorted().reduce((a, b) -> b).orElseThrow();
+        }
+        List<String> lines = Files.readAllLines(segment, StandardCharsets.UTF_8);
+        String[] last = lines.get(lines.size() - 1).split("\t", -1);
+        long seq = Long.parseLong(last[0]) + 1;
+        String torn = seq + "\t0\tDEPOSIT\tACC3\t1000.0\t1950.0\t-\t0.0\t" + last[8] + "\t0\t0\t10\tr-3";
+        Files.writeString(segment, torn.substring(0, torn.length() - 1), StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        LedgerEngine restarted = new LedgerEngine(dir, 1_024, 64, 1_000);
+        try {
+            assertEquals(950.0, balance("ACC3"), 0.001, "journaled operations written back once");
+            assertEquals(2, rows("ACC3"));
+            assertNotNull(key("r-2"));
+            assertNull(key("r-"), "the torn line is not applied");
+            assertFalse(Files.exists(segment), "the written-back segment is gone");
+
+            LedgerEngine.Result retry = restarted.deposit(null, "ACC3", 50.0, "r-1").join();
+            assertTrue(retry.isDuplicate());
+            assertEquals(1_050.0, retry.getBalance(), 0.001);
+            assertEquals(1_000.0, restarted.deposit(null, "ACC3", 50.0, "r-4").join().getBalance(), 0.001);
+        } finally {
+            restarted.close();
+        }
+        assertEquals(1_000.0, balance("ACC3"), 0.001);
+    }
+
+    @Test
+    public void writeBehindRetriesUntilTheDatabaseTakesIt() throws Exception {
+        // Remembers one key in memory once it is in the database
+        LedgerEngine engine = new LedgerEngine(dir, 1_024, 64, 1);
+        long persisted = engine.getPersistedSeq();
+        refuseCheckpoints(true);
+        try {
+            for (int i = 0; i < 3; i++) {
+                CompletableFuture<LedgerEngine.Result> deposit = engine.deposit(null, "ACC4", 20.0, "w-" + i);
+                assertTrue(deposit.join().isApproved(), "authorized while the database is refused");
+            }
+            Thread.sleep(300);
+            assertEquals(persisted, engine.getPersistedSeq());
+            assertEquals(1_000.0, balance("ACC4"), 0.001);
+        } finally {
+            refuseCheckpoints(false);
+        }
+
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (engine.getPersistedSeq() < persisted + 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(persisted + 3, engine.getPersistedSeq());
+        assertEquals(1_060.0, balance("ACC4"), 0.001);
+        assertEquals(3, rows("ACC4"));
+
+        // w-0 has left memory by now, but not the database
+        engine.deposit(null, "ACC4", 20.0, "w-3").join();
+        LedgerEngine.Result retry = engine.deposit(null, "ACC4", 20.0, "w-0").join();
+        assertTrue(retry.isDuplicate());
+        assertEquals(1_020.0, retry.getBalance(), 0.001);
+        engine.close();
+        assertEquals(1_080.0, balance("ACC4"), 0.001);
+    }
+
+    /* ================= DATA ================= */
+
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            ATMState state = new ATMState();
+            state.setPaper(100);
+            state.setInk(100);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(100, 100, 100);
+            em.persist(state);
+            for (int i = 1; i <= 4; i++) {
+                Account account = new Account();
+                account.setAccountId("ACC" + i);
+                account.setCardNumber("5" + i);
+                account.setPin("0000");
+                account.setBalance(1_000.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Makes the write-behind fail, by hiding the checkpoint table it writes last.
+     */
+    private static void refuseCheckpoints(boolean refuse) {
+        execute(refuse ? "ALTER TABLE engine_checkpoints RENAME TO engine_checkpoints_off"
+                : "ALTER TABLE engine_checkpoints_off RENAME TO engine_checkpoints");
+    }
+
+    private static void addToBalance(String accountId, double amount) {
+        execute("UPDATE accounts SET balance = balance + " + amount + " WHERE account_id = '" + accountId + "'");
+    }
+
+    private static void execute(String sql) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createNativeQuery(sql).executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static double balance(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Account.class, accountId).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long rows(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT COUNT(t) FROM Transaction t WHERE t.account.accountId = :id", Long.class)
+                    .setParameter("id", accountId)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Balance the rows lead to from {@code opening}, failing if it ever goes below zero.
+     */
+    private static double runningBalance(String accountId, double opening) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            List<Object[]> rows = em.createQuery("SELECT t.type, t.amount FROM Transaction t "
+                    + "WHERE t.account.accountId = :id ORDER BY t.id", Object[].class)
+                    .setParameter("id", accountId)
+                    .getResultList();
+            double balance = opening;
+            for (Object[] row : rows) {
+                balance += "DEPOSIT".equals(row[0]) || "TRANSFER_IN".equals(row[0])
+                        ? (Double) row[1] : -(Double) row[1];
+                assertTrue(balance >= 0, "overdrawn at some point");
+            }
+            return balance;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static ATMState terminal() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createNamedQuery(ATMState.ALL, ATMState.class).getResultList().get(0);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static IdempotencyRecord key(String key) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(IdempotencyRecord.class, key);
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.atm;
+
+import com.atm.batch.LedgerReconciliationJob;
+import com.atm.batch.ReconciliationReport;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.ArchivedBalance;
+import com.atm.model.Transaction;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Seeds an embedded database with a few ledger and cash mismatches among
+ * consistent accounts and terminals, and checks that the reconciliation
+ * finds exactly those, across several account ranges.
+ */
+public class LedgerReconciliationJobTest {
+
+    private static final int ACCOUNTS = 25;
+    private static final String SHORT = account(7);
+    private static final String ARCHIVED = account(12);
+    private static final String ARCHIVED_SHORT = account(23);
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("reconcile");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void findsSeededMismatchesAcrossRanges() {
+        // Ranges of 4 accounts, so the mismatches land in different tasks
+        ReconciliationReport report = new LedgerReconciliationJob(4, 3, 10).run();
+
+        assertEquals(ACCOUNTS, report.getAccountsChecked());
+        assertEquals(2, report.getTerminalsChecked());
+        assertEquals(2, report.getAccountDiscrepancies());
+        assertEquals(1, report.getCashDiscrepancies());
+        assertFalse(report.isClean());
+
+        List<String> details = report.getDiscrepancies();
+        assertEquals(3, details.size());
+        assertTrue(details.contains(String.format(
+                "ACCOUNT %s balance=%.2f ledger=%.2f diff=%.2f", SHORT, 170.0, 200.0, -30.0)), details.toString());
+        assertTrue(details.contains(String.format(
+                "ACCOUNT %s balance=%.2f ledger=%.2f diff=%.2f", ARCHIVED_SHORT, 250.0, 240.0, 10.0)),
+                details.toString());
+        assertTrue(details.stream().anyMatch(d -> d.startsWith("ATM ") && d.contains("diff=15.00")),
+                details.toString());
+    }
+
+    @Test
+    public void countsEveryMismatchButKeepsOnlyMaxDetails() {
+        ReconciliationReport report = new LedgerReconciliationJob(1, 2, 1).run();
+
+        assertEquals(ACCOUNTS, report.getAccountsChecked());
+        assertEquals(2, report.getAccountDiscrepancies());
+        assertEquals(1, report.getCashDiscrepancies());
+        assertEquals(1, report.getDiscrepancies().size());
+    }
+
+    /* ================= DATA ================= */
+
+    /**
+     * Every account opens with 200 and withdraws 50, then deposits 50.
+     * {@link #SHORT} lost 30 from its balance without a row; {@link #ARCHIVED}
+     * has a month archived whose net makes it add up, and
+     * {@link #ARCHIVED_SHORT} has one that leaves it 10 over.
+     */
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            LocalDateTime time = LocalDateTime.now().minusDays(1);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                String id = account(i);
+                Account account = new Account();
+                account.setAccountId(id);
+                account.setCardNumber("7" + id.substring(3));
+                account.setPin("0000");
+                account.setBalance(200.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+
+                if (id.equals(ARCHIVED) || id.equals(ARCHIVED_SHORT)) {
+                    // The opening row and the withdrawal were archived
+                    em.persist(archived(id, 150.0));
+                } else {
+                    em.persist(row(account, Transaction.OPENING, 200.0, time));
+                    em.persist(row(account, Transaction.WITHDRAW, 50.0, time));
+                }
+                em.persist(row(account, Transaction.DEPOSIT, 50.0, time));
+            }
+            em.createQuery("UPDATE Account a SET a.balance = 170.0 WHERE a.accountId = :id")
+                    .setParameter("id", SHORT)
+                    .executeUpdate();
+            em.createQuery("UPDATE Account a SET a.balance = 250.0 WHERE a.accountId = :id")
+                    .setParameter("id", ARCHIVED_SHORT)
+                    .executeUpdate();
+            em.createQuery("UPDATE ArchivedBalance x SET x.net = 190.0 WHERE x.accountId = :id")
+                    .setParameter("id", ARCHIVED_SHORT)
+                    .executeUpdate();
+
+            ATMState consistent = new ATMState();
+            consistent.setPaper(10);
+            consistent.setInk(10);
+            consistent.addBanknotes(5, 2, 1);
+            em.persist(consistent);
+
+            ATMState skimmed = new ATMState();
+            skimmed.setPaper(10);
+            skimmed.setInk(10);
+            skimmed.addBanknotes(5, 2, 1);
+            skimmed.addCash(15.0);
+            em.persist(skimmed);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Transaction row(Account account, String type, double amount, LocalDateTime time) {
+        Transaction row = new Transaction();
+        row.setAccount(account);
+        row.setType(type);
+        row.setAmount(amount);
+        row.setTime(time);
+        return row;
+    }
+
+    private static ArchivedBalance archived(String accountId, double net) {
+        ArchivedBalance balance = new ArchivedBalance();
+        balance.setMonth("2020-01");
+        balance.setAccountId(accountId);
+        balance.setNet(net);
+        balance.setRowCount(2);
+        return balance;
+    }
+
+    private static String account(int index) {
+        return String.format("ACC%03d", index);
+    }
+}
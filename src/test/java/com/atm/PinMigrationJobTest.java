@@ -0,0 +1,154 @@
+package com.atm;
+
+import com.atm.batch.PinMigrationJob;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.service.ATMService;
+import com.atm.service.PinHasher;
+import com.atm.service.PinVerifier;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Plain-text PINs of an embedded database replaced by salted hashes, by the
+ * migration job while one of them changes, and by a login.
+ */
+public class PinMigrationJobTest {
+
+    private static final int ACCOUNTS = 8;
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("pins");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void rerunLeavesPinsChangedMeanwhileAlone() {
+        String changed = account(3);
+        // The PIN changes after the job read it and before it writes the hash
+        PinHasher hasher = new PinHasher(1_000) {
+            @Override
+            public String hash(String pin) {
+                if (pin.equals(pinOf(3))) {
+                    setPin(changed, "9999");
+                }
+                return super.hash(pin);
+            }
+        };
+
+        assertEquals(ACCOUNTS - 1, new PinMigrationJob(hasher, 3, 2).run());
+        assertEquals("9999", pin(changed), "the new PIN is not overwritten with the old one's hash");
+        List<String> migrated = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            if (i != 3) {
+                assertTrue(hasher.verify(pin(account(i)), pinOf(i)), account(i));
+                migrated.add(pin(account(i)));
+            }
+        }
+
+        // A rerun hashes only what is still plain text
+        assertEquals(1, new PinMigrationJob(hasher, 3, 2).run());
+        assertTrue(hasher.verify(pin(changed), "9999"));
+        for (int i = 0, m = 0; i < ACCOUNTS; i++) {
+            if (i != 3) {
+                assertEquals(migrated.get(m++), pin(account(i)), account(i));
+            }
+        }
+        assertEquals(0, new PinMigrationJob(hasher, 3, 2).run());
+    }
+
+    @Test
+    public void loginStoresTheUpgradedHash() {
+        String id = "LOGIN1";
+        insert(id, "61", "4321");
+        PinHasher hasher = PinVerifier.fromClasspath().getHasher();
+        ATMService service = new ATMService();
+        try {
+            assertNull(service.login("61", "1234"));
+            assertEquals("4321", pin(id), "a failed login changes nothing");
+
+            Account account = service.login("61", "4321");
+            assertNotNull(account);
+            String stored = pin(id);
+            assertTrue(PinHasher.isHashed(stored));
+            assertFalse(hasher.needsRehash(stored));
+            assertTrue(hasher.verify(stored, "4321"));
+
+            // Already current: the next login keeps it
+            assertNotNull(service.login("61", "4321"));
+            assertEquals(stored, pin(id));
+        } finally {
+            service.close();
+        }
+    }
+
+    /* ================= DATA ================= */
+
+    private static void seed() {
+        for (int i = 0; i < ACCOUNTS; i++) {
+            insert(account(i), "9" + i, pinOf(i));
+        }
+    }
+
+    private static void insert(String id, String card, String pin) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            Account account = new Account();
+            account.setAccountId(id);
+            account.setCardNumber(card);
+            account.setPin(pin);
+            account.setBalance(100.0);
+            account.setFailedAttempts(0);
+            em.persist(account);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void setPin(String accountId, String pin) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.find(Account.class, accountId).setPin(pin);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String pin(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Account.class, accountId).getPin();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String pinOf(int index) {
+        return String.valueOf(1_000 + index);
+    }
+
+    private static String account(int index) {
+        return String.format("ACC%02d", index);
+    }
+}
@@ -0,0 +1,119 @@
+package com.atm;
+
+import com.atm.service.PinHasher;
+import com.atm.service.PinVerifier;
+import com.atm.service.PinVerifier.Outcome;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Salted PIN hashes and their checks on the bounded pool: legacy values,
+ * upgrades to the current iteration count, and logins turned away as busy.
+ */
+public class PinVerifierTest {
+
+    // About a second per hash, so a check is still running when the next ones arrive
+    private static final int SLOW = 1_000_000;
+
+    @Test
+    public void hashesVerifyAndTellWhichNeedRehashing() {
+        PinHasher hasher = new PinHasher(1_000);
+        String stored = hasher.hash("1234");
+        assertTrue(PinHasher.isHashed(stored));
+        assertTrue(stored.startsWith("pbkdf2-sha256$1000$"));
+        assertNotEquals(stored, hasher.hash("1234"), "every hash has its own salt");
+
+        assertTrue(hasher.verify(stored, "1234"));
+        assertFalse(hasher.verify(stored, "1235"));
+        assertFalse(hasher.verify("pbkdf2-sha256$1000$broken", "1234"));
+        // Legacy plain text is still accepted, until it is migrated
+        assertTrue(hasher.verify("1234", "1234"));
+        assertFalse(hasher.verify("1234", "4321"));
+
+        assertFalse(hasher.needsRehash(stored));
+        assertTrue(hasher.needsRehash("1234"));
+        PinHasher stronger = new PinHasher(2_000);
+        assertTrue(stronger.needsRehash(stored));
+        assertTrue(stronger.verify(stored, "1234"), "old hashes keep their own iteration count");
+
+        assertThrows(IllegalArgumentException.class, () -> new PinHasher(0));
+    }
+
+    @Test
+    public void matchOfAnOutdatedValueComesWithItsUpgrade() {
+        PinHasher hasher = new PinHasher(1_000);
+        PinVerifier verifier = new PinVerifier(hasher, 2, 8, Duration.ofSeconds(10));
+        try {
+            PinVerifier.Result legacy = verifier.verify("1234", "1234");
+            assertEquals(Outcome.MATCH, legacy.getOutcome());
+            assertTrue(hasher.verify(legacy.getUpgradedHash(), "1234"));
+            assertFalse(hasher.needsRehash(legacy.getUpgradedHash()));
+
+            PinVerifier.Result outdated = verifier.verify(new PinHasher(500).hash("1234"), "1234");
+            assertEquals(Outcome.MATCH, outdated.getOutcome());
+            assertTrue(outdated.getUpgradedHash().startsWith("pbkdf2-sha256$1000$"));
+
+            PinVerifier.Result current = verifier.verify(hasher.hash("1234"), "1234");
+            assertEquals(Outcome.MATCH, current.getOutcome());
+            assertNull(current.getUpgradedHash());
+
+            assertEquals(Outcome.MISMATCH, verifier.verify(hasher.hash("1234"), "0000").getOutcome());
+            assertEquals(Outcome.MISMATCH, verifier.verify("1234", "0000").getOutcome());
+            assertNull(verifier.verify("1234", "0000").getUpgradedHash());
+            // Unknown cards are checked against a dummy hash and never match
+            assertEquals(Outcome.MISMATCH, verifier.verify(null, "0000").getOutcome());
+            assertEquals(0, verifier.getRejected());
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Test
+    public void fullQueueIsBusyAtOnce() throws Exception {
+        PinHasher hasher = new PinHasher(SLOW);
+        String stored = hasher.hash("1234");
+        // One thread and room for one more check
+        PinVerifier verifier = new PinVerifier(hasher, 1, 1, Duration.ofSeconds(60));
+        try {
+            CompletableFuture<PinVerifier.Result> first = CompletableFuture.supplyAsync(() -> verifier.verify(stored, "1234"));
+            CompletableFuture<PinVerifier.Result> second = CompletableFuture.supplyAsync(() -> verifier.verify(stored, "1234"));
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (verifier.getQueued() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, verifier.getQueued(), "one check running, one waiting");
+
+            long start = System.nanoTime();
+            assertEquals(Outcome.BUSY, verifier.verify(stored, "1234").getOutcome());
+            assertTrue(System.nanoTime() - start < 500_000_000L, "turned away without waiting");
+            assertEquals(1, verifier.getRejected());
+
+            assertEquals(Outcome.MATCH, first.get().getOutcome());
+            assertEquals(Outcome.MATCH, second.get().getOutcome());
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Test
+    public void checkWaitingPastTheTimeoutIsBusy() {
+        PinHasher hasher = new PinHasher(SLOW);
+        String stored = hasher.hash("1234");
+        PinVerifier verifier = new PinVerifier(hasher, 1, 4, Duration.ofMillis(50));
+        try {
+            assertEquals(Outcome.BUSY, verifier.verify(stored, "1234").getOutcome());
+            assertEquals(1, verifier.getRejected());
+        } finally {
+            verifier.close();
+        }
+    }
+}
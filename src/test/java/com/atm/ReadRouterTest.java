@@ -0,0 +1,138 @@
+package com.atm;
+
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.db.ReadRouter.Policy;
+import com.atm.db.ReadRouter.Read;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.ReplicationHeartbeat;
+import com.atm.service.ATMService;
+import com.atm.service.SupplyMonitor;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Routes reads between two embedded databases, one standing in for the
+ * primary and one for its replica. Replication is simulated by copying the
+ * account and the heartbeat to the replica by hand.
+ */
+public class ReadRouterTest {
+
+    private static final String ACCOUNT = "ACC0001";
+    private static final long MAX_LAG = 1_000;
+
+    private static ReadRouter router;
+    private static ATMService service;
+
+    @BeforeAll
+    public static void useTwoEmbeddedDatabases() {
+        EmbeddedDatabase.use("primary",
+                Map.of("replica.jakarta.persistence.jdbc.url", EmbeddedDatabase.url("replica")));
+
+        seed(JpaManager.getEntityManager(), 100.0);
+        seed(JpaManager.getReplicaEntityManager(), 100.0);
+
+        // Re-read the replica's heartbeat on every routing decision
+        router = new ReadRouter(Map.of(Read.ACCOUNT, Policy.BOUNDED, Read.STATUS, Policy.EVENTUAL), MAX_LAG, 1);
+        service = new ATMService(null, SupplyMonitor.fromProperties(new Properties(), SupplyMonitor.CONSOLE),
+                null, router);
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void routesByStalenessAndOwnWrites() throws Exception {
+        // No heartbeat on the replica yet: everything reads the primary
+        assertFalse(router.useReplica(Read.ACCOUNT, 0));
+
+        // Replica caught up but holding a marker balance, to tell the databases apart
+        replicate(System.currentTimeMillis(), 90.0);
+        pause();
+        assertEquals(90.0, service.getAccountDetails(ACCOUNT).getBalance(), 0.001);
+        assertFalse(router.useReplica(Read.HISTORY, 0), "unlisted reads stay on the primary");
+
+        // Lagging beyond the bound: BOUNDED reads go back to the primary, EVENTUAL ones do not
+        replicate(System.currentTimeMillis() - 5 * MAX_LAG, 90.0);
+        pause();
+        assertEquals(100.0, service.getAccountDetails(ACCOUNT).getBalance(), 0.001);
+        assertTrue(router.useReplica(Read.STATUS, 0));
+
+        // Fresh replica, but it has not seen this terminal's deposit yet
+        replicate(System.currentTimeMillis(), 90.0);
+        Account account = service.getAccountDetails(ACCOUNT);
+        assertTrue(service.deposit(account, 20.0));
+        pause();
+        assertEquals(120.0, service.getAccountDetails(ACCOUNT).getBalance(), 0.001);
+        assertFalse(router.useReplica(Read.STATUS, System.currentTimeMillis()));
+
+        // Once a later heartbeat arrives the replica serves the terminal again
+        pause();
+        replicate(System.currentTimeMillis(), 119.0);
+        pause();
+        assertEquals(119.0, service.getAccountDetails(ACCOUNT).getBalance(), 0.001);
+    }
+
+    /* ================= HELPERS ================= */
+
+    private static void seed(EntityManager em, double balance) {
+        try {
+            em.getTransaction().begin();
+            Account account = new Account();
+            account.setAccountId(ACCOUNT);
+            account.setCardNumber("4000000000000001");
+            account.setPin("0000");
+            account.setBalance(balance);
+            account.setFailedAttempts(0);
+            em.persist(account);
+
+            ATMState state = new ATMState();
+            state.setPaper(100);
+            state.setInk(100);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(100, 100, 100);
+            em.persist(state);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Applies what replication would: the account's balance and the primary's heartbeat.
+     */
+    private static void replicate(long beatMillis, double balance) {
+        EntityManager em = JpaManager.getReplicaEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.find(Account.class, ACCOUNT).setBalance(balance);
+            ReplicationHeartbeat hb = em.find(ReplicationHeartbeat.class, ReplicationHeartbeat.ID);
+            if (hb == null) {
+                hb = new ReplicationHeartbeat();
+                hb.setId(ReplicationHeartbeat.ID);
+                em.persist(hb);
+            }
+            hb.setBeatMillis(beatMillis);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    // Lets the cached heartbeat expire
+    private static void pause() throws InterruptedException {
+        Thread.sleep(5);
+    }
+}
@@ -0,0 +1,69 @@
+package com.atm;
+
+import com.atm.batch.ReconciliationReport;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Counting, detail capping and merging of partial reconciliation reports.
+ */
+public class ReconciliationReportTest {
+
+    @Test
+    public void cleanUntilAMismatchIsRecorded() {
+        ReconciliationReport report = new ReconciliationReport(10);
+        report.accountChecked();
+        report.terminalChecked();
+        assertTrue(report.isClean());
+
+        report.cashMismatch(3L, 120.0, 100.0);
+        assertFalse(report.isClean());
+        assertEquals(1, report.getCashDiscrepancies());
+        assertEquals("ATM 3 cash=120.00 notes=100.00 diff=20.00", report.getDiscrepancies().get(0));
+    }
+
+    @Test
+    public void detailsAreCappedButCountersAreNot() {
+        ReconciliationReport report = new ReconciliationReport(2);
+        for (int i = 0; i < 5; i++) {
+            report.accountChecked();
+            report.accountMismatch("ACC" + i, 10.0, 0.0);
+        }
+
+        assertEquals(5, report.getAccountsChecked());
+        assertEquals(5, report.getAccountDiscrepancies());
+        assertEquals(2, report.getDiscrepancies().size());
+        assertEquals("ACCOUNT ACC0 balance=10.00 ledger=0.00 diff=10.00", report.getDiscrepancies().get(0));
+    }
+
+    @Test
+    public void mergeAddsCountersAndKeepsTheCap() {
+        ReconciliationReport left = new ReconciliationReport(3);
+        left.accountChecked();
+        left.accountMismatch("ACC1", 1.0, 0.0);
+        left.accountMismatch("ACC2", 2.0, 0.0);
+
+        ReconciliationReport right = new ReconciliationReport(3);
+        right.accountChecked();
+        right.accountChecked();
+        right.terminalChecked();
+        right.accountMismatch("ACC3", 3.0, 0.0);
+        right.cashMismatch(1L, 50.0, 40.0);
+
+        assertSame(left, left.merge(right));
+        assertEquals(3, left.getAccountsChecked());
+        assertEquals(1, left.getTerminalsChecked());
+        assertEquals(3, left.getAccountDiscrepancies());
+        assertEquals(1, left.getCashDiscrepancies());
+        assertEquals(3, left.getDiscrepancies().size());
+        assertTrue(left.getDiscrepancies().get(2).startsWith("ACCOUNT ACC3"));
+
+        // The other side is left as it was
+        assertEquals(2, right.getAccountsChecked());
+        assertEquals(2, right.getDiscrepancies().size());
+    }
+}
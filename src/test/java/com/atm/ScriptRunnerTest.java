@@ -0,0 +1,47 @@
+package com.atm;
+
+import com.atm.db.DataInitializer;
+import com.atm.service.ATMService;
+import com.atm.ui.ScriptRunner;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the smoke script headless over the seed data on an embedded
+ * database, through the same service, session and database path as the
+ * console.
+ */
+public class ScriptRunnerTest {
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("script");
+        DataInitializer.initializeTestData();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void smokeScriptPasses() throws Exception {
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        Path script = Path.of(getClass().getResource("/scripts/smoke.atm").toURI());
+
+        boolean passed = new ScriptRunner(new ATMService(), new PrintStream(results, true, StandardCharsets.UTF_8))
+                .run(script, 1);
+
+        String output = results.toString(StandardCharsets.UTF_8);
+        assertTrue(passed, output);
+        assertTrue(output.contains("SUMMARY\tcommands=44\tfailed=0\terrors=0\tbusy=0\tunavailable=0"), output);
+    }
+}
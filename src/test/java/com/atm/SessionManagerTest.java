@@ -0,0 +1,133 @@
+package com.atm;
+
+import com.atm.model.Account;
+import com.atm.service.SessionManager;
+import com.atm.service.SessionManager.EndReason;
+import com.atm.service.SessionManager.Session;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Session expiry on an explicit clock: idle and absolute deadlines, a
+ * timeout rescheduled after activity, and sessions ended by hand.
+ */
+public class SessionManagerTest {
+
+    private static final long TICK = 10;
+    private static final long IDLE = 1_000;
+    private static final long ABSOLUTE = 3_000;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    @Test
+    public void idleAndAbsoluteDeadlinesEndSessions() {
+        SessionManager sessions = sessions();
+        long start = clock.get();
+        String idle = sessions.open(account("ACC1"));
+        String busy = sessions.open(account("ACC2"));
+        Session idleSession = sessions.get(idle);
+        Session busySession = sessions.get(busy);
+
+        // Used every 900 ms, the busy session never idles out, but it cannot outlive its absolute timeout
+        for (long t = 900; t < ABSOLUTE; t += 900) {
+            clock.set(start + t);
+            assertSame(busySession, sessions.get(busy));
+            // Only the idle session ends, on the first pass after its deadline
+            assertEquals(t == 1_800 ? 1 : 0, sessions.expireDue(clock.get()), "at " + t);
+        }
+        assertEquals(EndReason.IDLE, idleSession.getEndReason());
+        assertNull(sessions.get(idle));
+        assertNull(busySession.getEndReason());
+
+        clock.set(start + ABSOLUTE - 1);
+        assertEquals(0, sessions.expireDue(clock.get()));
+        clock.set(start + ABSOLUTE + TICK);
+        assertEquals(1, sessions.expireDue(clock.get()));
+        assertEquals(EndReason.ABSOLUTE, busySession.getEndReason());
+        assertNull(sessions.get(busy));
+        assertEquals(0, sessions.activeSessions());
+    }
+
+    @Test
+    public void activityMovesTheTimeoutOn() {
+        SessionManager sessions = sessions();
+        long start = clock.get();
+        String token = sessions.open(account("ACC1"));
+        Session session = sessions.get(token);
+
+        clock.set(start + 800);
+        assertSame(session, sessions.get(token));
+        // The first timeout fires at the old deadline and is rescheduled, not ended
+        clock.set(start + IDLE + TICK);
+        assertEquals(0, sessions.expireDue(clock.get()));
+        assertNull(session.getEndReason());
+
+        clock.set(start + 800 + IDLE - 1);
+        assertEquals(0, sessions.expireDue(clock.get()));
+        clock.set(start + 800 + IDLE + TICK);
+        assertEquals(1, sessions.expireDue(clock.get()));
+        assertEquals(EndReason.IDLE, session.getEndReason());
+        assertEquals(start + 800, session.getLastAccess());
+    }
+
+    @Test
+    public void expiredSessionIsRefusedBeforeTheWheelGetsToIt() {
+        SessionManager sessions = sessions();
+        String token = sessions.open(account("ACC1"));
+        Session session = sessions.get(token);
+
+        clock.addAndGet(IDLE);
+        assertNull(sessions.get(token));
+        assertEquals(EndReason.IDLE, session.getEndReason());
+        clock.addAndGet(TICK);
+        assertEquals(0, sessions.expireDue(clock.get()), "already ended");
+    }
+
+    @Test
+    public void forceLogoutEndsEverySessionOfTheAccount() {
+        SessionManager sessions = sessions();
+        Session first = sessions.get(sessions.open(account("ACC1")));
+        Session second = sessions.get(sessions.open(account("ACC1")));
+        String other = sessions.open(account("ACC2"));
+        assertEquals(3, sessions.activeSessions());
+
+        assertEquals(2, sessions.forceLogout("ACC1"));
+        assertEquals(EndReason.FORCED, first.getEndReason());
+        assertEquals(EndReason.FORCED, second.getEndReason());
+        assertNull(sessions.get(first.getToken()));
+        assertEquals(0, sessions.forceLogout("ACC1"));
+        assertEquals(1, sessions.activeSessions());
+
+        // Their timeouts were cancelled: only the other session expires
+        clock.addAndGet(IDLE + TICK);
+        assertEquals(1, sessions.expireDue(clock.get()));
+        assertNull(sessions.get(other));
+
+        String again = sessions.open(account("ACC1"));
+        Session third = sessions.get(again);
+        assertNotNull(third);
+        sessions.logout(again);
+        assertEquals(EndReason.LOGOUT, third.getEndReason());
+        assertEquals(0, sessions.activeSessions());
+    }
+
+    /* ================= HELPERS ================= */
+
+    private SessionManager sessions() {
+        return new SessionManager(Duration.ofMillis(IDLE), Duration.ofMillis(ABSOLUTE), Duration.ofMillis(TICK),
+                clock::get);
+    }
+
+    private static Account account(String id) {
+        Account account = new Account();
+        account.setAccountId(id);
+        return account;
+    }
+}
@@ -0,0 +1,264 @@
+package com.atm;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.model.Saga;
+import com.atm.model.Transaction;
+import com.atm.service.ATMService;
+import com.atm.service.SupplyMonitor;
+import com.atm.service.TransactionHistory;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs single-account and cross-shard operations over three embedded
+ * databases, and checks that sagas move money exactly once, compensate
+ * failed steps and recover interrupted ones.
+ */
+public class ShardingTest {
+
+    private static final int SHARDS = 3;
+    private static final double OPENING_BALANCE = 1000.0;
+
+    private static ATMService service;
+    // Accounts on shards 1 and 2, away from the home shard
+    private static String alice;
+    private static String bob;
+
+    @BeforeAll
+    public static void useThreeEmbeddedDatabases() {
+        Map<String, String> shards = new HashMap<>();
+        shards.put("shards.count", String.valueOf(SHARDS));
+        for (int n = 1; n < SHARDS; n++) {
+            shards.put("shard." + n + ".jakarta.persistence.jdbc.url", EmbeddedDatabase.url("shard" + n));
+        }
+        EmbeddedDatabase.use("shard0", shards);
+
+        alice = accountOnShard(1, 0);
+        bob = accountOnShard(2, 0);
+        seedTerminal();
+        seedAccount(alice, "1111");
+        seedAccount(bob, "2222");
+        service = new ATMService(null, SupplyMonitor.fromProperties(new Properties(), SupplyMonitor.CONSOLE), null);
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void crossShardTransferAppliesOnce() {
+        double before = balance(alice) + balance(bob);
+        Account from = service.login("1111", "0000");
+
+        assertTrue(service.transfer(from, "2222", 100.0, "transfer-1"));
+        assertTrue(service.transfer(from, "2222", 100.0, "transfer-1"), "a retry replays the outcome");
+
+        assertEquals(before, balance(alice) + balance(bob), 0.001);
+        assertEquals(balance(alice), from.getBalance(), 0.001);
+        assertEquals(Saga.State.CONFIRMED, sagaState("transfer-1"));
+        assertEquals(List.of(Transaction.TRANSFER_OUT), sagaRows(alice, "transfer-1"));
+        assertEquals(List.of(Transaction.TRANSFER_IN), sagaRows(bob, "transfer-1"));
+
+        assertFalse(service.transfer(from, "2222", 5_000.0, "transfer-2"));
+        assertEquals(Saga.State.DECLINED, sagaState("transfer-2"));
+        assertEquals(List.of(), sagaRows(alice, "transfer-2"));
+    }
+
+    @Test
+    public void cashOperationsOnAnotherShardMoveTheTerminalToo() {
+        Account account = service.login("2222", "0000");
+        double balance = balance(bob);
+        double cash = terminal().getCash();
+
+        assertTrue(service.withdraw(account, 200.0, "withdraw-1"));
+        assertTrue(service.deposit(account, 50.0, "deposit-1"));
+
+        assertEquals(balance - 150.0, balance(bob), 0.001);
+        assertEquals(cash - 150.0, terminal().getCash(), 0.001);
+        assertEquals(Saga.State.CONFIRMED, sagaState("withdraw-1"));
+        assertEquals(Saga.State.CONFIRMED, sagaState("deposit-1"));
+    }
+
+    @Test
+    public void failedCreditIsCompensated() {
+        // Its card is found, but the account is not on the shard its id maps to
+        String misplaced = accountOnShard(2, 1);
+        seedAccountOn(1, misplaced, "3333");
+        Account from = service.login("1111", "0000");
+        double balance = balance(alice);
+
+        assertFalse(service.transfer(from, "3333", 100.0, "transfer-3"));
+
+        assertEquals(balance, balance(alice), 0.001);
+        assertEquals(Saga.State.COMPENSATED, sagaState("transfer-3"));
+        assertEquals(List.of(Transaction.TRANSFER_OUT, Transaction.REVERSAL), sagaRows(alice, "transfer-3"));
+    }
+
+    @Test
+    public void recoveryCompensatesAnInterruptedTransfer() {
+        double balance = balance(alice);
+        // A crash right after the reserve: saga started, sender debited, receiver never credited
+        startSaga("transfer-4", Transaction.TRANSFER_OUT, alice, bob, 100.0);
+        debit(alice, 100.0, "transfer-4");
+
+        service.recoverSagas(Duration.ZERO);
+        // A second pass finds the saga resolved and leaves it alone
+        service.recoverSagas(Duration.ZERO);
+
+        assertEquals(balance, balance(alice), 0.001);
+        assertEquals(Saga.State.COMPENSATED, sagaState("transfer-4"));
+        assertEquals(List.of(Transaction.TRANSFER_OUT, Transaction.REVERSAL), sagaRows(alice, "transfer-4"));
+        assertEquals(List.of(), sagaRows(bob, "transfer-4"));
+    }
+
+    @Test
+    public void historyIsReadFromTheAccountsShard() {
+        Account from = service.login("1111", "0000");
+        assertTrue(service.transfer(from, "2222", 10.0, "transfer-5"));
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Transaction> rows = new TransactionHistory().forAccount(bob, now.minusHours(1), now.plusMinutes(1));
+        assertTrue(rows.stream().anyMatch(t -> "transfer-5".equals(t.getSaga())
+                && Transaction.TRANSFER_IN.equals(t.getType())));
+    }
+
+    /* ================= HELPERS ================= */
+
+    private static String accountOnShard(int shard, int skip) {
+        for (int i = 0; ; i++) {
+            String id = String.format("ACC%04d", i);
+            if (JpaManager.shardOf(id) == shard && skip-- == 0) {
+                return id;
+            }
+        }
+    }
+
+    private static void seedTerminal() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            ATMState state = new ATMState();
+            state.setPaper(100);
+            state.setInk(100);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(100, 100, 100);
+            em.persist(state);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void seedAccount(String accountId, String card) {
+        seedAccountOn(JpaManager.shardOf(accountId), accountId, card);
+    }
+
+    private static void seedAccountOn(int shard, String accountId, String card) {
+        EntityManager em = JpaManager.getEntityManager(shard);
+        try {
+            em.getTransaction().begin();
+            Account account = new Account();
+            account.setAccountId(accountId);
+            account.setCardNumber(card);
+            account.setPin("0000");
+            account.setBalance(OPENING_BALANCE);
+            account.setFailedAttempts(0);
+            em.persist(account);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void startSaga(String id, String type, String accountId, String targetId, double amount) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            Saga saga = new Saga();
+            saga.setId(id);
+            saga.setType(type);
+            saga.setOwner("default");
+            saga.setAccountId(accountId);
+            saga.setTargetId(targetId);
+            saga.setAmount(amount);
+            saga.setState(Saga.State.STARTED);
+            em.persist(saga);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void debit(String accountId, double amount, String saga) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        try {
+            em.getTransaction().begin();
+            Account account = em.find(Account.class, accountId);
+            account.setBalance(account.getBalance() - amount);
+            Transaction t = new Transaction();
+            t.setAccount(account);
+            t.setAmount(amount);
+            t.setType(Transaction.TRANSFER_OUT);
+            t.setTime(LocalDateTime.now());
+            t.setSaga(saga);
+            em.persist(t);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static double balance(String accountId) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        try {
+            return em.find(Account.class, accountId).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static ATMState terminal() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.createQuery("SELECT s FROM ATMState s", ATMState.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Saga.State sagaState(String id) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Saga.class, id).getState();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static List<String> sagaRows(String accountId, String saga) {
+        EntityManager em = JpaManager.getAccountEntityManager(accountId);
+        try {
+            return em.createQuery("SELECT t.type FROM Transaction t WHERE t.saga = :saga ORDER BY t.id", String.class)
+                    .setParameter("saga", saga)
+                    .getResultList();
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.atm;
+
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.service.IdempotencyStore;
+import com.atm.service.PinHasher;
+import com.atm.service.PinVerifier;
+import com.atm.service.StandInAuthorizer;
+import com.atm.service.StandInQueue;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Approves withdrawals offline against cached cards, then replays them
+ * into an embedded database and checks each card gets back the offline
+ * allowance that was replayed for it. A line torn by a crash is dropped
+ * from the queue.
+ */
+public class StandInAuthorizerTest {
+
+    @TempDir
+    static Path dir;
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("standin");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void replayPostsQueuedWithdrawalsAndGivesBackTheirAllowance() {
+        PinHasher hasher = new PinHasher(1_000);
+        StandInAuthorizer standIn = new StandInAuthorizer(dir, 200.0,
+                new IdempotencyStore(100, Duration.ofHours(1)), null,
+                new PinVerifier(hasher, 2, 8, Duration.ofSeconds(10)));
+        Account first = account("ACC1", "71");
+        first.setPin(hasher.hash("1111"));
+        Account second = account("ACC2", "72");
+        second.setPin(hasher.hash("2222"));
+        standIn.rememberLogin(first);
+        standIn.rememberLogin(second);
+        Account legacy = account("ACC3", "73");
+        standIn.rememberLogin(legacy);
+
+        assertNull(standIn.login("71", "9999"));
+        assertNull(standIn.login("73", "0000"), "plain-text PINs are not cached");
+        Account offline = standIn.login("71", "1111");
+        assertNotNull(offline);
+        assertTrue(standIn.withdraw(offline, 150.0, "k1"));
+        assertFalse(standIn.withdraw(offline, 100.0, "k2"), "past the offline limit");
+        assertTrue(standIn.withdraw(offline, 150.0, "k1"), "duplicate key");
+        assertTrue(standIn.withdraw(standIn.login("72", "2222"), 60.0, "k3"));
+        assertTrue(standIn.hasPending());
+
+        assertEquals(0, standIn.replay().size());
+        assertFalse(standIn.hasPending());
+        assertEquals(350.0, balance("ACC1"), 0.001);
+        assertEquals(440.0, balance("ACC2"), 0.001);
+
+        // Each card has its whole allowance back, and no more
+        assertTrue(standIn.withdraw(offline, 200.0, "k4"));
+        assertFalse(standIn.withdraw(offline, 20.0, "k5"));
+
+        // The next replay posts only what was queued since the last one
+        assertEquals(0, standIn.replay().size());
+        assertEquals(150.0, balance("ACC1"), 0.001);
+        assertEquals(0, standIn.replay().size());
+        assertEquals(150.0, balance("ACC1"), 0.001);
+    }
+
+    @Test
+    public void tornLastLineIsCutFromTheQueue() throws Exception {
+        Path queueDir = dir.resolve("torn");
+        StandInQueue queue = new StandInQueue(queueDir);
+        queue.append(new StandInQueue.Entry("t1", "ACC1", "71", 20.0, LocalDateTime.now()));
+        queue.close();
+        // A crash mid-append: no newline, and not even every field
+        Files.writeString(queueDir.resolve("standin-queue.log"), "t2\tACC1\t71\t2", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        queue.append(new StandInQueue.Entry("t3", "ACC1", "71", 40.0, LocalDateTime.now()));
+        List<StandInQueue.Entry> entries = queue.beginDrain();
+        assertEquals(List.of("t1", "t3"), entries.stream().map(e -> e.key).toList());
+        queue.completeDrain();
+        queue.close();
+        assertTrue(queue.isEmpty());
+    }
+
+    /* ================= DATA ================= */
+
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.persist(account("ACC1", "71"));
+            em.persist(account("ACC2", "72"));
+            ATMState state = new ATMState();
+            state.setPaper(10);
+            state.setInk(10);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(50, 20, 10);
+            em.persist(state);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Account account(String id, String card) {
+        Account account = new Account();
+        account.setAccountId(id);
+        account.setCardNumber(card);
+        account.setPin("0000");
+        account.setBalance(500.0);
+        account.setFailedAttempts(0);
+        return account;
+    }
+
+    private static double balance(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Account.class, accountId).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+}
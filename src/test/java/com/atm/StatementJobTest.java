@@ -0,0 +1,229 @@
+package com.atm;
+
+import com.atm.batch.StatementJob;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.model.Transaction;
+import com.atm.model.TransactionArchive;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Renders this month's statements from an embedded database while deposits
+ * keep arriving, resumes an interrupted run from the range files it left,
+ * and refuses a month that is archived.
+ */
+public class StatementJobTest {
+
+    private static final int ACCOUNTS = 7;
+    private static final YearMonth MONTH = YearMonth.now();
+    private static final LocalDateTime FROM = MONTH.atDay(1).atStartOfDay();
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("statements");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void openingPlusRowsIsClosingWhileDepositsRun() throws Exception {
+        AtomicBoolean stop = new AtomicBoolean();
+        int[] deposits = new int[ACCOUNTS];
+        Thread depositor = new Thread(() -> {
+            for (int i = 0; !stop.get(); i++) {
+                deposit(account(i % ACCOUNTS), 20.0, LocalDateTime.now());
+                deposits[i % ACCOUNTS]++;
+            }
+        });
+        depositor.start();
+        StatementJob.Result result;
+        try {
+            result = new StatementJob(dir, 2, 3).run(MONTH);
+        } finally {
+            stop.set(true);
+            depositor.join();
+        }
+        assertEquals(ACCOUNTS, result.getStatements());
+
+        List<Statement> statements = read(dir.resolve(MONTH.toString()));
+        assertEquals(ACCOUNTS, statements.size());
+        for (Statement statement : statements) {
+            int index = Integer.parseInt(statement.accountId.substring(3));
+            assertEquals(1_000.0, statement.opening, 0.001, statement.accountId + " opens with last month's ledger");
+            assertEquals(statement.closing, statement.opening + statement.rows.stream().mapToDouble(d -> d).sum(),
+                    0.001, statement.accountId);
+            assertEquals(50.0, statement.rows.get(0), 0.001, "the month's own deposit comes first");
+            // Some prefix of the concurrent deposits, never a part of one
+            double concurrent = statement.closing - 1_050.0;
+            assertEquals(0.0, concurrent % 20.0, 0.001, statement.accountId);
+            assertTrue(concurrent >= 0 && concurrent <= 20.0 * deposits[index], statement.accountId);
+            assertEquals(1_050.0 + 20.0 * deposits[index], balance(statement.accountId), 0.001);
+        }
+    }
+
+    @Test
+    public void resumedRunRendersOnlyMissingRanges() throws Exception {
+        StatementJob job = new StatementJob(dir, 3, 2);
+        StatementJob.Result first = job.run(MONTH);
+        assertEquals(ACCOUNTS, first.getStatements());
+        assertEquals(0, first.getRangesSkipped());
+
+        // Interrupted after every range but the second
+        Path monthDir = dir.resolve(MONTH.toString());
+        Path missing = monthDir.resolve("statements-" + account(3) + ".txt");
+        assertTrue(Files.exists(missing));
+        Files.delete(missing);
+        String untouched = Files.readString(monthDir.resolve("statements-" + account(0) + ".txt"));
+
+        StatementJob.Result resumed = job.run(MONTH);
+        assertEquals(2, resumed.getRangesSkipped());
+        assertEquals(3, resumed.getStatements());
+        assertTrue(Files.exists(missing));
+        assertEquals(untouched, Files.readString(monthDir.resolve("statements-" + account(0) + ".txt")));
+        try (Stream<Path> files = Files.list(monthDir)) {
+            assertFalse(files.anyMatch(f -> f.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    public void archivedMonthIsRefused() {
+        YearMonth archived = MONTH.minusMonths(6);
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            TransactionArchive archive = new TransactionArchive();
+            archive.setMonth(archived.toString());
+            archive.setFilePath(dir.resolve("transactions-" + archived + ".tsv.gz").toString());
+            archive.setRowCount(0);
+            em.persist(archive);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+
+        assertThrows(IllegalStateException.class, () -> new StatementJob(dir, 3, 2).run(archived));
+        assertFalse(Files.exists(dir.resolve(archived.toString())));
+    }
+
+    /* ================= STATEMENTS ================= */
+
+    private static final class Statement {
+        String accountId;
+        double opening;
+        double closing;
+        final List<Double> rows = new ArrayList<>();
+    }
+
+    private static List<Statement> read(Path monthDir) throws Exception {
+        List<Statement> statements = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(monthDir)) {
+            files = list.filter(f -> f.getFileName().toString().startsWith("statements-")).sorted().toList();
+        }
+        for (Path file : files) {
+            Statement statement = null;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] f = line.trim().split("\\s+");
+                if (line.startsWith("STATEMENT")) {
+                    statement = new Statement();
+                    statement.accountId = f[3];
+                    statements.add(statement);
+                } else if (line.startsWith("Opening balance")) {
+                    statement.opening = Double.parseDouble(f[f.length - 1]);
+                } else if (line.startsWith("Closing balance")) {
+                    statement.closing = Double.parseDouble(f[f.length - 1]);
+                } else if (f.length >= 4) {
+                    statement.rows.add(Double.parseDouble(f[f.length - 2]));
+                }
+            }
+        }
+        return statements;
+    }
+
+    /* ================= DATA ================= */
+
+    /**
+     * Every account opens last month with $1,000 and gets $50 early this month.
+     */
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = new Account();
+                account.setAccountId(account(i));
+                account.setCardNumber("8" + i);
+                account.setPin("0000");
+                account.setBalance(1_050.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+                em.persist(row(account, Transaction.OPENING, 1_000.0, FROM.minusDays(10)));
+                em.persist(row(account, Transaction.DEPOSIT, 50.0, FROM));
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void deposit(String accountId, double amount, LocalDateTime time) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            Account account = em.find(Account.class, accountId);
+            account.setBalance(account.getBalance() + amount);
+            em.persist(row(account, Transaction.DEPOSIT, amount, time));
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Transaction row(Account account, String type, double amount, LocalDateTime time) {
+        Transaction row = new Transaction();
+        row.setAccount(account);
+        row.setType(type);
+        row.setAmount(amount);
+        row.setTime(time);
+        return row;
+    }
+
+    private static double balance(String accountId) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            return em.find(Account.class, accountId).getBalance();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String account(int index) {
+        return String.format("ACC%02d", index);
+    }
+}
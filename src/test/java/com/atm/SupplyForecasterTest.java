@@ -0,0 +1,81 @@
+package com.atm;
+
+import com.atm.service.SupplyForecaster;
+import com.atm.service.SupplyMonitor.Supply;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Usage rates of the decayed-sum forecaster, driven by an explicit clock.
+ */
+public class SupplyForecasterTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Test
+    public void steadyUsageGivesItsRate() {
+        SupplyForecaster forecaster = new SupplyForecaster(Duration.ofHours(1));
+        long now = 0;
+        // 10 sheets a minute for ten windows
+        for (int i = 0; i < 600; i++) {
+            now += MINUTE;
+            forecaster.recordUsage(1, Supply.PAPER, 10, now);
+        }
+
+        assertEquals(600, forecaster.ratePerHour(1, Supply.PAPER, now), 600 * 0.02);
+        assertEquals(0, forecaster.ratePerHour(1, Supply.INK, now), "other supplies are kept apart");
+        assertEquals(0, forecaster.ratePerHour(2, Supply.PAPER, now), "other terminals are kept apart");
+
+        double rate = forecaster.ratePerHour(1, Supply.PAPER, now);
+        Duration left = forecaster.timeToEmpty(1, Supply.PAPER, 300, now);
+        assertEquals(300 / rate * HOUR, left.toMillis(), 1);
+        assertEquals(Duration.ZERO, forecaster.timeToEmpty(1, Supply.PAPER, -5, now));
+        assertNull(forecaster.timeToEmpty(1, Supply.INK, 300, now), "unused supplies never run out");
+    }
+
+    @Test
+    public void usageDecaysByOneWindowAtATime() {
+        SupplyForecaster forecaster = new SupplyForecaster(Duration.ofHours(1));
+        long now = 0;
+        for (int i = 0; i < 600; i++) {
+            now += MINUTE;
+            forecaster.recordUsage(1, Supply.CASH, 100, now);
+        }
+        double rate = forecaster.ratePerHour(1, Supply.CASH, now);
+
+        // Usage stops: each window without any divides the rate by e
+        assertEquals(rate * Math.exp(-1), forecaster.ratePerHour(1, Supply.CASH, now + HOUR), rate * 1e-3);
+        assertEquals(rate * Math.exp(-3), forecaster.ratePerHour(1, Supply.CASH, now + 3 * HOUR), rate * 1e-3);
+        // Asking about an earlier time does not bring usage back
+        assertEquals(rate * Math.exp(-3), forecaster.ratePerHour(1, Supply.CASH, now), rate * 1e-3);
+
+        // Refills and unchanged levels are not usage
+        forecaster.recordUsage(1, Supply.CASH, -5_000, now + 3 * HOUR);
+        forecaster.recordUsage(1, Supply.CASH, 0, now + 3 * HOUR);
+        assertEquals(rate * Math.exp(-3), forecaster.ratePerHour(1, Supply.CASH, now + 3 * HOUR), rate * 1e-3);
+    }
+
+    @Test
+    public void aFirstOperationIsNotReadAsABurst() {
+        SupplyForecaster forecaster = new SupplyForecaster(Duration.ofHours(1));
+        forecaster.recordUsage(1, Supply.CASH, 100, 0);
+
+        // Spread over at least a tenth of a window, not over no time at all
+        double expected = 100 / (1 - Math.exp(-0.1));
+        assertEquals(expected, forecaster.ratePerHour(1, Supply.CASH, 0), 1e-6);
+        // Then it decays while the span stays at that tenth
+        assertEquals(expected * Math.exp(-0.1), forecaster.ratePerHour(1, Supply.CASH, 6 * MINUTE), 1e-6);
+    }
+
+    @Test
+    public void windowMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new SupplyForecaster(Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> new SupplyForecaster(Duration.ofHours(-1)));
+    }
+}
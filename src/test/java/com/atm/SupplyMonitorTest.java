@@ -0,0 +1,123 @@
+package com.atm;
+
+import com.atm.model.ATMState;
+import com.atm.service.SupplyMonitor;
+import com.atm.service.SupplyMonitor.Alert;
+import com.atm.service.SupplyMonitor.Kind;
+import com.atm.service.SupplyMonitor.Supply;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Supply alerts of one terminal withdrawing $100 a minute, then refilled
+ * and left idle, on an explicit clock.
+ */
+public class SupplyMonitorTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private final List<Alert> alerts = new ArrayList<>();
+
+    @Test
+    public void alertsOnlyWhenASupplyChangesState() {
+        // Cash below $500 is low, and running out within two hours is too soon
+        Properties props = new Properties();
+        props.setProperty("supply.threshold.CASH", "500");
+        props.setProperty("supply.windowHours", "1");
+        props.setProperty("supply.horizonHours", "2");
+        SupplyMonitor monitor = SupplyMonitor.fromProperties(props, alerts::add);
+
+        ATMState state = new ATMState();
+        state.addBanknotes(0, 0, 100);
+        long now = 0;
+        monitor.observe(7, null, state, now);
+        assertEquals(List.of(), alerts);
+
+        // Warming up, the rate is too low to worry about $10,000 at first
+        for (int i = 0; i < 4; i++) {
+            now += MINUTE;
+            withdraw(monitor, state, now);
+        }
+        assertEquals(List.of(), cash());
+        now += MINUTE;
+        withdraw(monitor, state, now);
+        assertEquals(List.of(Kind.RUNNING_OUT), cash());
+        Alert runningOut = lastCash();
+        assertEquals(7, runningOut.terminal);
+        assertTrue(runningOut.timeToEmpty.toMillis() < 2 * HOUR);
+
+        // Nothing more until cash drops below the threshold, and nothing after
+        while (state.getCash() >= 500) {
+            now += MINUTE;
+            withdraw(monitor, state, now);
+        }
+        assertEquals(List.of(Kind.RUNNING_OUT, Kind.LOW), cash());
+        now += MINUTE;
+        withdraw(monitor, state, now);
+        assertEquals(List.of(Kind.RUNNING_OUT, Kind.LOW), cash());
+
+        // A refill above the threshold still runs out within the horizon at the current rate
+        state.addBanknotes(0, 0, 100);
+        monitor.observe(7, null, state, now);
+        assertEquals(List.of(Kind.RUNNING_OUT, Kind.LOW, Kind.RUNNING_OUT), cash());
+
+        // Five idle hours later the rate has decayed
+        now += 5 * HOUR;
+        monitor.observe(7, null, state, now);
+        assertEquals(List.of(Kind.RUNNING_OUT, Kind.LOW, Kind.RUNNING_OUT, Kind.RESTORED), cash());
+        Alert restored = lastCash();
+        assertEquals(state.getCash(), restored.level);
+        assertEquals(500, restored.threshold);
+    }
+
+    @Test
+    public void terminalsAreWatchedSeparately() {
+        Properties props = new Properties();
+        props.setProperty("supply.threshold.PAPER", "50");
+        SupplyMonitor monitor = SupplyMonitor.fromProperties(props, alerts::add);
+
+        ATMState low = new ATMState();
+        low.setPaper(10);
+        ATMState full = new ATMState();
+        full.setPaper(500);
+        monitor.observe(1, null, low, 0);
+        monitor.observe(2, null, full, 0);
+        monitor.observe(1, null, low, MINUTE);
+
+        assertEquals(1, alerts.size());
+        assertEquals(1, alerts.get(0).terminal);
+        assertEquals(Supply.PAPER, alerts.get(0).supply);
+        assertEquals(Kind.LOW, alerts.get(0).kind);
+    }
+
+    @Test
+    public void servicesShareOneDefaultMonitor() {
+        assertSame(SupplyMonitor.fromClasspath(), SupplyMonitor.fromClasspath());
+        assertThrows(IllegalArgumentException.class,
+                () -> new SupplyMonitor(new double[2], Duration.ofHours(1), null, alerts::add));
+    }
+
+    private static void withdraw(SupplyMonitor monitor, ATMState state, long now) {
+        double[] before = SupplyMonitor.levels(state);
+        assertTrue(state.dispense(100));
+        monitor.observe(7, before, state, now);
+    }
+
+    private List<Kind> cash() {
+        return alerts.stream().filter(a -> a.supply == Supply.CASH).map(a -> a.kind).toList();
+    }
+
+    private Alert lastCash() {
+        return alerts.stream().filter(a -> a.supply == Supply.CASH).reduce((a, b) -> b).orElseThrow();
+    }
+}
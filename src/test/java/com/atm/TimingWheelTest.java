@@ -0,0 +1,99 @@
+package com.atm;
+
+import com.atm.service.TimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * When timeouts fire on a timing wheel driven by an explicit clock: per
+ * tick, across several turns of the wheel, and not at all once cancelled.
+ */
+public class TimingWheelTest {
+
+    // 10 ms ticks on a wheel of 8 buckets: one turn is 80 ms
+    private static final long TICK = 10;
+    private static final long TURN = 80;
+
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void timeoutsFireInTheTickAfterTheirDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 5, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 30);
+        wheel.schedule("past", -100);
+
+        assertEquals(0, wheel.advance(9, fired::add));
+        assertEquals(1, wheel.advance(10, fired::add));
+        assertEquals(List.of("past"), fired, "an overdue deadline fires at the end of the current tick");
+
+        assertEquals(0, wheel.advance(29, fired::add), "never early");
+        assertEquals(1, wheel.advance(30, fired::add));
+        assertEquals(List.of("past", "a"), fired);
+        assertEquals(1, wheel.advance(40, fired::add), "at most one tick late");
+        assertEquals(List.of("past", "a", "b"), fired);
+
+        // Scheduled after the wheel has moved on
+        wheel.schedule("c", 55);
+        assertEquals(0, wheel.advance(59, fired::add));
+        assertEquals(1, wheel.advance(1_000, fired::add));
+        assertEquals("c", fired.get(3));
+    }
+
+    @Test
+    public void deadlinesBeyondOneTurnWaitForTheirRound() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 0);
+        // Same bucket, zero, one and two rounds away
+        wheel.schedule("first", 45);
+        wheel.schedule("second", 45 + TURN);
+        wheel.schedule("third", 45 + 2 * TURN);
+
+        assertEquals(1, wheel.advance(50, fired::add));
+        assertEquals(0, wheel.advance(50 + TURN - 1, fired::add));
+        assertEquals(1, wheel.advance(50 + TURN, fired::add));
+        assertEquals(0, wheel.advance(50 + 2 * TURN - 1, fired::add));
+        assertEquals(1, wheel.advance(50 + 2 * TURN, fired::add));
+        assertEquals(List.of("first", "second", "third"), fired);
+    }
+
+    @Test
+    public void jumpingTheClockFiresEverythingDueInOrder() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 1_000);
+        for (int i = 9; i >= 0; i--) {
+            wheel.schedule("t" + i, 1_000 + i * 35L);
+        }
+
+        assertEquals(10, wheel.advance(1_000 + 10 * 35L, fired::add));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("t" + i, fired.get(i));
+        }
+    }
+
+    @Test
+    public void cancelledTimeoutsNeverFire() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 0);
+        // Cancelled while still waiting to be placed on the wheel
+        wheel.schedule("pending", 15).cancel();
+        TimingWheel.Timeout<String> placed = wheel.schedule("placed", 15 + TURN);
+        wheel.schedule("kept", 15 + TURN);
+
+        assertEquals(0, wheel.advance(20, fired::add));
+        // Cancelled once it sits in its bucket
+        placed.cancel();
+        assertEquals(1, wheel.advance(10 * TURN, fired::add));
+        assertEquals(List.of("kept"), fired);
+        assertEquals("placed", placed.getTask());
+        assertEquals(15 + TURN, placed.getDeadline());
+    }
+
+    @Test
+    public void tickAndWheelSizeMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<String>(0, 8, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<String>(TICK, 0, 0));
+    }
+}
@@ -0,0 +1,128 @@
+package com.atm;
+
+import com.atm.batch.TrafficReplayer;
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.service.ATMService;
+import com.atm.service.PinVerifier;
+import com.atm.service.RecordingATMService;
+import com.atm.service.SupplyMonitor;
+import com.atm.service.TrafficTrace;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Records a short session to a trace on an embedded database, reads it
+ * back, and replays it against the same database.
+ */
+public class TrafficReplayTest {
+
+    @BeforeAll
+    public static void useEmbeddedDatabase() {
+        EmbeddedDatabase.use("replay");
+        seed();
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void recordedSessionReplaysWithTheSameOutcomes() throws Exception {
+        Path trace = Files.createTempFile("traffic", ".trace");
+        SupplyMonitor supplies = SupplyMonitor.fromProperties(new Properties(), SupplyMonitor.CONSOLE);
+        try (TrafficTrace.Writer writer = new TrafficTrace.Writer(trace, 1024)) {
+            ATMService recording = new RecordingATMService(writer, null, supplies, null, ReadRouter.primaryOnly());
+            Account account = recording.login("4000", "1234");
+            assertNotNull(account);
+            recording.deposit(account, 100.0);
+            recording.withdraw(account, 40.0);
+            recording.withdraw(account, 1_000_000.0);
+            recording.getAccountDetails(account.getAccountId());
+            recording.refillPaper(5);
+        }
+
+        List<TrafficTrace.Call> calls = new ArrayList<>();
+        try (TrafficTrace.Reader reader = new TrafficTrace.Reader(trace)) {
+            for (TrafficTrace.Call call = reader.next(); call != null; call = reader.next()) {
+                calls.add(call);
+            }
+        }
+        assertEquals(List.of(TrafficTrace.Op.LOGIN, TrafficTrace.Op.DEPOSIT, TrafficTrace.Op.WITHDRAW,
+                        TrafficTrace.Op.WITHDRAW, TrafficTrace.Op.ACCOUNT, TrafficTrace.Op.REFILL_PAPER),
+                calls.stream().map(TrafficTrace.Call::getOp).toList());
+        assertEquals(TrafficTrace.Outcome.DECLINED, calls.get(3).getOutcome());
+        assertEquals(40.0, calls.get(2).getAmount(), 0.001);
+        assertEquals("ACC4000", calls.get(2).getAccount());
+
+        TrafficReplayer.Report report = new TrafficReplayer(new ATMService(null, supplies), 0, 2, "1234")
+                .replay(trace);
+        assertEquals(6, report.getCalls());
+        assertEquals(0, report.getMismatches());
+        Files.delete(trace);
+    }
+
+    @Test
+    public void stringsPastTheTableLimitAreWrittenInline() throws Exception {
+        Path trace = Files.createTempFile("traffic", ".trace");
+        int accounts = TrafficTrace.Writer.MAX_STRINGS + 10;
+        try (TrafficTrace.Writer writer = new TrafficTrace.Writer(trace, 2 * accounts)) {
+            for (int i = 0; i < accounts; i++) {
+                // Every deposit carries its own idempotency key
+                writer.record(TrafficTrace.Op.DEPOSIT, TrafficTrace.Outcome.OK, System.nanoTime(),
+                        "ACC" + i, null, "key-" + i, 1.0, 0.0);
+            }
+            writer.record(TrafficTrace.Op.DEPOSIT, TrafficTrace.Outcome.OK, System.nanoTime(),
+                    "ACC0", "4000", "key-0", 1.0, 0.0);
+            assertEquals(0, writer.getDropped());
+        }
+
+        int read = 0;
+        try (TrafficTrace.Reader reader = new TrafficTrace.Reader(trace)) {
+            for (TrafficTrace.Call call = reader.next(); call != null; call = reader.next()) {
+                int i = read++ % accounts;
+                assertEquals("ACC" + i, call.getAccount());
+                assertEquals("key-" + i, call.getText());
+            }
+        }
+        assertEquals(accounts + 1, read);
+        Files.delete(trace);
+    }
+
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            ATMState state = new ATMState();
+            state.setPaper(100);
+            state.setInk(100);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(100, 100, 100);
+            em.persist(state);
+            Account account = new Account();
+            account.setAccountId("ACC4000");
+            account.setCardNumber("4000");
+            account.setPin(PinVerifier.fromClasspath().getHasher().hash("1234"));
+            account.setBalance(1000.0);
+            account.setFailedAttempts(0);
+            em.persist(account);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.atm;
+
+import com.atm.batch.BalanceReplayJob;
+import com.atm.batch.TransactionArchiveJob;
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.model.Account;
+import com.atm.model.ArchivedBalance;
+import com.atm.model.Transaction;
+import com.atm.service.TransactionHistory;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Archives an old month of an embedded database into a bucketed file, then
+ * reads single accounts back through the index, and checks that balance
+ * replays refuse points in time they no longer have the rows for.
+ */
+public class TransactionArchiveJobTest {
+
+    private static final int ACCOUNTS = 40;
+    private static final int OLD_ROWS_PER_ACCOUNT = 5;
+    private static final YearMonth OLD = YearMonth.now().minusMonths(5);
+
+    @TempDir
+    static Path archiveDir;
+
+    private static Path file;
+
+    @BeforeAll
+    public static void archiveOldMonth() {
+        EmbeddedDatabase.use("archive");
+        seed();
+
+        // The old month and the two empty ones after it; 200 old rows in buckets of 30 rows: 7 members
+        assertEquals(3, new TransactionArchiveJob(archiveDir, 3, 30).run());
+        file = archiveDir.resolve("transactions-" + OLD + ".tsv.gz");
+    }
+
+    @AfterAll
+    public static void clearProperties() {
+        EmbeddedDatabase.clear();
+    }
+
+    @Test
+    public void oneAccountIsReadFromItsBucket() throws Exception {
+        Path index = archiveDir.resolve(file.getFileName() + ".idx");
+        assertEquals(7, Files.readAllLines(index).size());
+
+        List<Transaction> all = new ArrayList<>();
+        TransactionArchiveJob.read(file, all::add);
+        assertEquals(ACCOUNTS * OLD_ROWS_PER_ACCOUNT, all.size());
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String id = account(i);
+            List<Long> expected = all.stream()
+                    .filter(t -> t.getAccount().getAccountId().equals(id))
+                    .map(Transaction::getId)
+                    .toList();
+            List<Long> read = new ArrayList<>();
+            TransactionArchiveJob.read(file, id, t -> read.add(t.getId()));
+            assertEquals(expected, read, id);
+            assertEquals(OLD_ROWS_PER_ACCOUNT, read.size());
+        }
+
+        // Files archived before the index existed are scanned whole
+        Path copy = archiveDir.resolve("unindexed.tsv.gz");
+        Files.copy(file, copy);
+        List<Transaction> scanned = new ArrayList<>();
+        TransactionArchiveJob.read(copy, account(3), scanned::add);
+        assertEquals(OLD_ROWS_PER_ACCOUNT, scanned.size());
+    }
+
+    @Test
+    public void historyJoinsArchivedAndHotRows() {
+        List<Transaction> history = new TransactionHistory(ReadRouter.primaryOnly())
+                .forAccount(account(7), OLD.atDay(1).atStartOfDay(), LocalDateTime.now().plusDays(1));
+        assertEquals(OLD_ROWS_PER_ACCOUNT + 1, history.size());
+        assertEquals(Transaction.DEPOSIT, history.get(history.size() - 1).getType());
+        for (int i = 1; i < history.size(); i++) {
+            assertTrue(history.get(i - 1).getId() < history.get(i).getId());
+        }
+    }
+
+    @Test
+    public void archivedNetsCarryTheirLastTransactionId() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            List<ArchivedBalance> nets = em.createQuery("SELECT x FROM ArchivedBalance x", ArchivedBalance.class)
+                    .getResultList();
+            assertEquals(ACCOUNTS, nets.size());
+            for (ArchivedBalance net : nets) {
+                assertEquals(OLD_ROWS_PER_ACCOUNT, net.getRowCount());
+                assertEquals(100.0 + 4 * 10.0, net.getNet(), 0.001);
+                assertTrue(net.getLastTransactionId() != null && net.getLastTransactionId() > 0);
+            }
+        } finally {
+            em.close();
+        }
+    }
+
+    @Test
+    public void replaysRefusePointsInArchivedMonths() {
+        BalanceReplayJob job = new BalanceReplayJob();
+        String id = account(2);
+
+        assertThrows(IllegalArgumentException.class, () -> job.balanceAt(id, OLD.atDay(15).atStartOfDay()));
+        assertThrows(IllegalArgumentException.class,
+                () -> job.restoreAll(OLD.plusMonths(3).atDay(1).atStartOfDay().minusSeconds(1)));
+
+        // The archive job's snapshot covers the archived rows
+        assertEquals(140.0 + 25.0, job.balanceAt(id, LocalDateTime.now()), 0.001);
+        assertEquals(0, job.restoreAll(LocalDateTime.now()));
+    }
+
+    /* ================= DATA ================= */
+
+    /**
+     * Each account opens with 100 in the old month and deposits 10 four
+     * times there, then deposits 25 this month.
+     */
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            LocalDateTime old = OLD.atDay(3).atTime(9, 0);
+            List<Account> accounts = new ArrayList<>();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = new Account();
+                account.setAccountId(account(i));
+                account.setCardNumber("5" + i);
+                account.setPin("0000");
+                account.setBalance(165.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+                accounts.add(account);
+                em.persist(row(account, Transaction.OPENING, 100.0, old));
+            }
+            // Interleaved, so each account's rows are spread over the id order
+            for (int n = 1; n < OLD_ROWS_PER_ACCOUNT; n++) {
+                for (Account account : accounts) {
+                    em.persist(row(account, Transaction.DEPOSIT, 10.0, old.plusDays(n)));
+                }
+            }
+            for (Account account : accounts) {
+                em.persist(row(account, Transaction.DEPOSIT, 25.0, LocalDateTime.now().minusMinutes(5)));
+            }
+            em.flush();
+            // Created long enough ago for the archive job's snapshot to take them
+            em.createQuery("UPDATE Transaction t SET t.createdAt = :created")
+                    .setParameter("created", LocalDateTime.now().minusMinutes(5))
+                    .executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static Transaction row(Account account, String type, double amount, LocalDateTime time) {
+        Transaction row = new Transaction();
+        row.setAccount(account);
+        row.setType(type);
+        row.setAmount(amount);
+        row.setTime(time);
+        return row;
+    }
+
+    private static String account(int index) {
+        return String.format("ACC%03d", index);
+    }
+}
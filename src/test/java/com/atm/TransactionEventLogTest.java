@@ -0,0 +1,91 @@
+package com.atm;
+
+import com.atm.service.TransactionEventLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The JSON lines the event log writes, read back from its daily files.
+ */
+public class TransactionEventLogTest {
+
+    private static final Pattern LINE = Pattern.compile(
+            "\\{\"ts\":(\\d+),\"terminal\":\"7\",\"op\":(.+),\"account\":(.+),\"amount\":(.+),"
+            + "\"outcome\":\"(APPROVED|DECLINED)\",\"micros\":(\\d+)}");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void everyOperationIsOneEscapedJsonLine() throws Exception {
+        long before = System.currentTimeMillis();
+        try (TransactionEventLog log = new TransactionEventLog(dir, "7", 16, TransactionEventLog.Overflow.BLOCK, 1_000)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                log.record("WITHDRAW", "ACC" + i, 20.0 + i, i % 10 != 0, start);
+            }
+            log.record("DEPOSIT", "A\"B\\C\nD", 0.5, true, start);
+            log.record("TRANSFER", null, 1.0, false, start);
+        }
+        long after = System.currentTimeMillis();
+
+        List<String> lines = lines();
+        assertEquals(102, lines.size());
+
+        for (int i = 0; i < 100; i++) {
+            Matcher m = LINE.matcher(lines.get(i));
+            assertTrue(m.matches(), lines.get(i));
+            long ts = Long.parseLong(m.group(1));
+            assertTrue(ts >= before && ts <= after);
+            assertEquals("\"WITHDRAW\"", m.group(2));
+            assertEquals("\"ACC" + i + "\"", m.group(3));
+            assertEquals(20.0 + i, Double.parseDouble(m.group(4)));
+            assertEquals(i % 10 != 0 ? "APPROVED" : "DECLINED", m.group(5));
+        }
+
+        Matcher escaped = LINE.matcher(lines.get(100));
+        assertTrue(escaped.matches(), lines.get(100));
+        assertEquals("\"A\\\"B\\\\C\\u000aD\"", escaped.group(3));
+        Matcher missing = LINE.matcher(lines.get(101));
+        assertTrue(missing.matches(), lines.get(101));
+        assertEquals("null", missing.group(3));
+        assertEquals("DECLINED", missing.group(5));
+    }
+
+    @Test
+    public void nothingIsRecordedAfterClose() throws Exception {
+        TransactionEventLog log = new TransactionEventLog(dir, "7", 4, TransactionEventLog.Overflow.DROP, 0);
+        log.record("DEPOSIT", "ACC1", 10.0, true, System.nanoTime());
+        log.close();
+        log.record("DEPOSIT", "ACC2", 10.0, true, System.nanoTime());
+
+        List<String> lines = lines();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"ACC1\""));
+    }
+
+    /**
+     * Lines of every daily file in order, in case the test ran over midnight.
+     */
+    private List<String> lines() throws Exception {
+        List<String> lines = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.sorted().toList()) {
+                assertTrue(file.getFileName().toString().matches("events-7-\\d{4}-\\d{2}-\\d{2}\\.jsonl"));
+                lines.addAll(Files.readAllLines(file));
+            }
+        }
+        return lines;
+    }
+}
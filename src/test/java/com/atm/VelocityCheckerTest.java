@@ -0,0 +1,146 @@
+package com.atm;
+
+import com.atm.service.VelocityChecker;
+import com.atm.service.VelocityChecker.Decision;
+import com.atm.service.VelocityChecker.Rule;
+import com.atm.service.VelocityChecker.Window;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Window arithmetic of the velocity checker with explicit clock values:
+ * limits, ring buffer wraparound, releasing uncommitted operations, and
+ * exact counting when many threads share a card or a lock stripe.
+ */
+public class VelocityCheckerTest {
+
+    // Midnight UTC, so minute, hour and day buckets all start here
+    private static final long T0 = 1_699_920_000_000L;
+
+    @Test
+    public void blocksPastTheCountAndFlagsPastTheAmount() {
+        VelocityChecker checker = new VelocityChecker(List.of(
+                new Rule(Window.MINUTE, 3, 0, 0, Decision.BLOCK),
+                new Rule(Window.HOUR, 0, 100, 0, Decision.FLAG)), 500, 4);
+
+        assertEquals(Decision.ALLOW, checker.check("1", 40, T0));
+        assertEquals(Decision.ALLOW, checker.check("1", 40, T0 + 1));
+        assertEquals(Decision.FLAG, checker.check("1", 40, T0 + 2));
+        assertEquals(Decision.BLOCK, checker.check("1", 1, T0 + 3));
+        assertEquals(Decision.ALLOW, checker.check("2", 40, T0 + 3), "limits are per card");
+    }
+
+    @Test
+    public void bucketsAreReusedOnceTheWindowHasPassed() {
+        VelocityChecker checker = new VelocityChecker(List.of(
+                new Rule(Window.MINUTE, 2, 0, 0, Decision.BLOCK),
+                new Rule(Window.DAY, 0, 0, 3, Decision.BLOCK)), 500, 4);
+
+        checker.check("1", 20, T0);
+        checker.check("1", 20, T0 + 500);
+        assertEquals(Decision.BLOCK, checker.check("1", 20, T0 + 59_000));
+        // Sixty one-second buckets later the ring is back on the same slot, now stale
+        assertEquals(Decision.ALLOW, checker.check("1", 20, T0 + 60_000));
+        assertEquals(Decision.ALLOW, checker.check("1", 20, T0 + 61_000));
+        assertEquals(Decision.BLOCK, checker.check("1", 20, T0 + 61_500));
+
+        long day = 24 * 3_600_000L;
+        checker.check("2", 600, T0);
+        checker.check("2", 600, T0 + 3_600_000L);
+        checker.check("2", 600, T0 + 2 * 3_600_000L);
+        assertEquals(Decision.BLOCK, checker.check("2", 600, T0 + day - 1));
+        // The first large withdrawal's hour has wrapped out of the day
+        assertEquals(Decision.ALLOW, checker.check("2", 600, T0 + day + 3_600_000L - 1));
+    }
+
+    @Test
+    public void releaseTakesBackAnOperationThatDidNotGoThrough() {
+        VelocityChecker checker = new VelocityChecker(List.of(
+                new Rule(Window.MINUTE, 1, 0, 0, Decision.BLOCK),
+                new Rule(Window.HOUR, 0, 100, 0, Decision.BLOCK)), 500, 4);
+
+        assertEquals(Decision.ALLOW, checker.check("1", 80, T0));
+        checker.release("1", 80, T0);
+        assertEquals(Decision.ALLOW, checker.check("1", 80, T0 + 10), "count and amount both released");
+        assertEquals(Decision.BLOCK, checker.check("1", 10, T0 + 20));
+
+        // A release after the bucket has been reused leaves the newer count alone
+        checker.release("1", 80, T0 - 60_000);
+        assertEquals(Decision.BLOCK, checker.check("1", 10, T0 + 30));
+        checker.release("unknown", 80, T0);
+    }
+
+    @Test
+    public void concurrentChecksOnOneCardPassTheLimitExactlyOnce() throws Exception {
+        int limit = 100;
+        VelocityChecker checker = new VelocityChecker(List.of(
+                new Rule(Window.MINUTE, limit, 0, 0, Decision.BLOCK)), 500, 8);
+
+        AtomicInteger allowed = new AtomicInteger();
+        runConcurrently(16, 50, (thread, i) -> {
+            if (checker.check("1", 20, T0) == Decision.ALLOW) {
+                allowed.incrementAndGet();
+            }
+        });
+        assertEquals(limit, allowed.get());
+    }
+
+    @Test
+    public void cardsSharingOneStripeAreCountedSeparately() throws Exception {
+        int cards = 20;
+        VelocityChecker checker = new VelocityChecker(List.of(
+                new Rule(Window.HOUR, 5, 0, 0, Decision.BLOCK)), 500, 1);
+
+        AtomicInteger allowed = new AtomicInteger();
+        runConcurrently(8, 40, (thread, i) -> {
+            String card = String.valueOf((thread * 40 + i) % cards);
+            if (checker.check(card, 20, T0 + i) == Decision.ALLOW) {
+                allowed.incrementAndGet();
+            }
+        });
+        assertEquals(cards * 5, allowed.get());
+        assertEquals(cards, checker.trackedCards());
+
+        assertEquals(0, checker.evictIdle(60_000, T0 + 100));
+        assertEquals(cards, checker.evictIdle(60_000, T0 + 60_100));
+        assertEquals(0, checker.trackedCards());
+    }
+
+    private interface Step {
+        void run(int thread, int i);
+    }
+
+    private static void runConcurrently(int threads, int steps, Step step) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < steps; i++) {
+                        step.run(thread, i);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.atm.bench;
+
+import com.atm.service.AdmissionController;
+import com.atm.service.AdmissionController.Priority;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tail latency under overload with and without {@link AdmissionController},
+ * against a simulated database of {@link #CONNECTIONS} connections that
+ * each serve one call in {@link #SERVICE_MILLIS}.
+ * <p>
+ * Clients call in a closed loop with a short pause between calls. Once
+ * there are more of them than the database can serve, calls queue for a
+ * connection and, without admission, latency grows with the number of
+ * clients. With it, the limit settles a little above what the database
+ * serves without queueing, calls beyond it wait at most the customer bound
+ * and are then turned away, and p99 stays near that bound however many
+ * clients there are. Turned-away clients back off for the retry hint.
+ * <pre>
+ * mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.atm.bench.AdmissionBenchmark [seconds]
+ * </pre>
+ */
+public class AdmissionBenchmark {
+
+    private static final int CONNECTIONS = 8;
+    private static final long SERVICE_MILLIS = 5;
+    private static final long THINK_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        System.out.println("admission  clients  calls/s  p50 ms  p99 ms  max ms  busy   limit");
+        for (int clients : new int[] {8, 64, 512}) {
+            run("off", AdmissionController.unlimited(), clients, seconds);
+            run("on", AdmissionController.fromProperties(new Properties()), clients, seconds);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String label, AdmissionController admission, int clients, int seconds)
+            throws Exception {
+        Semaphore database = new Semaphore(CONNECTIONS, true);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        AtomicInteger busy = new AtomicInteger();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            results.add(pool.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try (AdmissionController.Permit permit = admission.admit(Priority.CUSTOMER)) {
+                        database.acquire();
+                        try {
+                            Thread.sleep(SERVICE_MILLIS);
+                        } finally {
+                            database.release();
+                        }
+                    } catch (AdmissionController.RejectedException e) {
+                        busy.incrementAndGet();
+                        Thread.sleep(jitter(e.getRetryAfter()));
+                        continue;
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                    Thread.sleep(THINK_MILLIS);
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+
+        long[] all = new long[0];
+        for (Future<long[]> result : results) {
+            long[] part = result.get();
+            long[] merged = Arrays.copyOf(all, all.length + part.length);
+            System.arraycopy(part, 0, merged, all.length, part.length);
+            all = merged;
+        }
+        pool.shutdown();
+        Arrays.sort(all);
+        System.out.printf("%-9s  %7d  %7.0f  %6.1f  %6.1f  %6.1f  %5d  %6s%n", label, clients,
+                all.length / (double) seconds, percentile(all, 0.50), percentile(all, 0.99),
+                all.length == 0 ? 0 : all[all.length - 1] / 1e6, busy.get(),
+                label.equals("on") ? String.valueOf(admission.getLimit()) : "-");
+    }
+
+    private static long jitter(Duration retryAfter) {
+        long millis = retryAfter.toMillis();
+        return millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+}
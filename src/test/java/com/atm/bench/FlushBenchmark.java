@@ -0,0 +1,192 @@
+package com.atm.bench;
+
+import com.atm.EmbeddedDatabase;
+import com.atm.db.JpaManager;
+import com.atm.db.ReadRouter;
+import com.atm.model.Account;
+import com.atm.model.ATMState;
+import com.atm.service.ATMService;
+import com.atm.service.SupplyMonitor;
+import jakarta.persistence.EntityManager;
+import org.hibernate.SessionEventListener;
+import org.hibernate.engine.spi.SelfDirtinessTracker;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * Flush cost and allocation per {@link ATMService} deposit, withdrawal and
+ * transfer, on an embedded database, single-threaded, and of one flush of
+ * a batch job that holds every account.
+ * <p>
+ * Flushes are timed by a session listener; allocation is what the calling
+ * thread allocated per operation, Hibernate and H2 included. Run it once
+ * on the default build, whose entities are bytecode enhanced with in-line
+ * dirty tracking, and once on a build without enhancement, and compare:
+ * <pre>
+ * mvn -q clean test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.atm.bench.FlushBenchmark [operations]
+ * mvn -q clean test-compile -DskipEnhance
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.atm.bench.FlushBenchmark [operations]
+ * </pre>
+ */
+public class FlushBenchmark {
+
+    private static final int ACCOUNTS = 1000;
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder flushNanos = new LongAdder();
+
+    /**
+     * Times every flush of every session, registered through
+     * {@code hibernate.session.events.auto}.
+     */
+    public static class FlushTimer implements SessionEventListener {
+        private long start;
+
+        @Override
+        public void flushStart() {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void flushEnd(int numberOfEntities, int numberOfCollections) {
+            flushNanos.add(System.nanoTime() - start);
+            flushes.increment();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        EmbeddedDatabase.use("flush", Map.of("hibernate.session.events.auto", FlushTimer.class.getName()));
+
+        seed();
+        ATMService service = new ATMService(null,
+                SupplyMonitor.fromProperties(new Properties(), SupplyMonitor.CONSOLE), null, ReadRouter.primaryOnly());
+        Account[] accounts = new Account[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = service.getAccountDetails(id(i));
+        }
+
+        System.out.printf("Entities %s; %d operations each%n",
+                SelfDirtinessTracker.class.isAssignableFrom(Account.class)
+                        ? "enhanced, in-line dirty tracking" : "not enhanced, snapshot dirty checking",
+                operations);
+        System.out.println("operation   us/op  flush us/op  flushes/op  KB alloc/op");
+        // Each account takes a few of each, well inside the velocity limits
+        IntPredicate deposit = i -> service.deposit(accounts[i % ACCOUNTS], 20);
+        IntPredicate withdraw = i -> service.withdraw(accounts[i % ACCOUNTS], 20);
+        IntPredicate transfer = i -> service.transfer(accounts[i % ACCOUNTS], card((i + 1) % ACCOUNTS), 1);
+        run("deposit", deposit, operations / 4, false);
+        run("deposit", deposit, operations, true);
+        run("withdraw", withdraw, operations / 4, false);
+        run("withdraw", withdraw, operations, true);
+        run("transfer", transfer, operations / 4, false);
+        run("transfer", transfer, operations, true);
+        batch(10, false);
+        batch(50, true);
+        System.exit(0);
+    }
+
+    private static void run(String name, IntPredicate operation, int count, boolean report) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int failed = 0;
+        flushes.reset();
+        flushNanos.reset();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (!operation.test(i)) {
+                    failed++;
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        if (report) {
+            System.out.printf("%-9s  %6.1f  %11.1f  %10.2f  %11.1f%s%n", name, nanos / 1e3 / count,
+                    flushNanos.sum() / 1e3 / count, flushes.sum() / (double) count, allocated / 1024.0 / count,
+                    failed > 0 ? "  (" + failed + " declined)" : "");
+        }
+    }
+
+    /**
+     * A batch job's flush: every account managed, {@code changed} of them
+     * updated. Without enhancement the flush compares each managed account
+     * with its snapshot; with it, only the changed ones are looked at.
+     */
+    private static void batch(int repeat, boolean report) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int changed = 10;
+        long nanos = 0;
+        long allocated = 0;
+        for (int r = 0; r < repeat; r++) {
+            EntityManager em = JpaManager.getEntityManager();
+            try {
+                em.getTransaction().begin();
+                List<Account> all = em.createQuery("SELECT a FROM Account a", Account.class).getResultList();
+                for (int i = 0; i < changed; i++) {
+                    Account account = all.get((r * changed + i) % all.size());
+                    account.setBalance(account.getBalance() + 1);
+                }
+                long bytes = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                em.flush();
+                nanos += System.nanoTime() - start;
+                allocated += threads.getCurrentThreadAllocatedBytes() - bytes;
+            } finally {
+                em.getTransaction().rollback();
+                em.close();
+            }
+        }
+        if (report) {
+            System.out.printf("batch flush, %d managed accounts, %d changed: %.1f us, %.1f KB alloc%n",
+                    ACCOUNTS, changed, nanos / 1e3 / repeat, allocated / 1024.0 / repeat);
+        }
+    }
+
+    private static void seed() {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = new Account();
+                account.setAccountId(id(i));
+                account.setCardNumber(card(i));
+                account.setPin("0000");
+                account.setBalance(1_000_000.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+            }
+            ATMState state = new ATMState();
+            state.setPaper(1000);
+            state.setInk(1000);
+            state.setFirmwareVersion("v1.0");
+            state.addBanknotes(100_000, 0, 0);
+            em.persist(state);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String id(int index) {
+        return String.format("ACC%05d", index);
+    }
+
+    private static String card(int index) {
+        return String.format("8%05d", index);
+    }
+}
@@ -0,0 +1,143 @@
+package com.atm.bench;
+
+import com.atm.EmbeddedDatabase;
+import com.atm.db.JpaManager;
+import com.atm.model.Account;
+import com.atm.service.ATMService;
+import com.atm.service.PinHasher;
+import com.atm.service.PinVerifier;
+import jakarta.persistence.EntityManager;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Login throughput and latency at the hash cost set in
+ * {@code pin.properties}, on an embedded database.
+ * <p>
+ * First measures one PIN check on its own, then drives
+ * {@link ATMService#login} from more and more client threads. Throughput
+ * should level off at about {@code threads / check time}, and latency at
+ * about {@code (queue + threads) * check time / threads}, with the excess
+ * turned away as busy; turned-away clients retry after {@link #BACKOFF_MILLIS}.
+ * <pre>
+ * mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.atm.bench.LoginBenchmark [seconds]
+ * </pre>
+ */
+public class LoginBenchmark {
+
+    private static final int ACCOUNTS = 100;
+    private static final long BACKOFF_MILLIS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        EmbeddedDatabase.use("bench", Map.of("hibernate.connection.pool_size", "80"));
+
+        PinVerifier pins = PinVerifier.fromClasspath();
+        PinHasher hasher = pins.getHasher();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        String stored = hasher.hash("1234");
+        int checks = 20;
+        for (int i = 0; i < checks; i++) {
+            hasher.verify(stored, "1234"); // warm-up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            hasher.verify(stored, "1234");
+        }
+        double checkMillis = (System.nanoTime() - start) / 1e6 / checks;
+        System.out.printf("PBKDF2-HMAC-SHA256, %d iterations: %.1f ms per check, %d cores%n",
+                hasher.getIterations(), checkMillis, cores);
+
+        seed(hasher);
+        ATMService service = new ATMService();
+
+        System.out.println("clients  logins/s  p50 ms  p99 ms  max ms  busy");
+        for (int clients : IntStream.of(1, cores, 4 * cores, 16 * cores, 64).distinct().toArray()) {
+            run(service, clients, seconds);
+        }
+        System.exit(0);
+    }
+
+    private static void run(ATMService service, int clients, int seconds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicInteger busy = new AtomicInteger();
+        List<Future<List<Long>>> results = new ArrayList<>();
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int c = 0; c < clients; c++) {
+                results.add(pool.submit(() -> {
+                    List<Long> latencies = new ArrayList<>();
+                    while (System.nanoTime() < end) {
+                        int i = ThreadLocalRandom.current().nextInt(ACCOUNTS);
+                        long t0 = System.nanoTime();
+                        Account account = service.login(card(i), "1234");
+                        long t1 = System.nanoTime();
+                        if (account == null) {
+                            busy.incrementAndGet();
+                            Thread.sleep(BACKOFF_MILLIS);
+                        } else {
+                            latencies.add(t1 - t0);
+                        }
+                    }
+                    return latencies;
+                }));
+            }
+            List<Long> all = new ArrayList<>();
+            for (Future<List<Long>> f : results) {
+                all.addAll(f.get());
+            }
+            long[] sorted = all.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            System.setOut(out);
+            System.out.printf("%7d  %8.1f  %6.1f  %6.1f  %6.1f  %4d%n", clients, sorted.length / (double) seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6, busy.get());
+        } finally {
+            System.setOut(out);
+            pool.shutdown();
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, p * sorted.length)] / 1e6;
+    }
+
+    private static void seed(PinHasher hasher) {
+        EntityManager em = JpaManager.getEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = new Account();
+                account.setAccountId(String.format("ACC%04d", i));
+                account.setCardNumber(card(i));
+                account.setPin(hasher.hash("1234"));
+                account.setBalance(1000.0);
+                account.setFailedAttempts(0);
+                em.persist(account);
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static String card(int index) {
+        return String.format("5000%012d", index);
+    }
+}